@@ -26,7 +26,9 @@ import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.LoggerConfig;
 import org.apache.logging.log4j.core.layout.PatternLayout;
 import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.BaseModuleActivator;
+import org.openmrs.module.fgh.mpi.listener.MpiGlobalPropertyListener;
 import org.openmrs.module.fgh.mpi.utils.MpiUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +49,8 @@ public class MpiActivator extends BaseModuleActivator {
 	
 	protected static final String LOG_FILE_PATTERN = LOG_FILE + ".%d{yyyy-MM-dd}-%i";
 	
+	private MpiGlobalPropertyListener globalPropertyListener;
+	
 	/**
 	 * @see BaseModuleActivator#started()
 	 */
@@ -82,6 +86,8 @@ public class MpiActivator extends BaseModuleActivator {
 			throw new APIException(e);
 		}
 		
+		globalPropertyListener = new MpiGlobalPropertyListener();
+		Context.getAdministrationService().addGlobalPropertyListener(globalPropertyListener);
 	}
 	
 	/**
@@ -90,6 +96,12 @@ public class MpiActivator extends BaseModuleActivator {
 	@Override
 	public void stopped() {
 		log.info("MPI module stopped");
+		
+		if (globalPropertyListener != null) {
+			Context.getAdministrationService().removeGlobalPropertyListener(globalPropertyListener);
+			globalPropertyListener = null;
+		}
+		
 		log.info("Removing MPI log file from log4j configuration");
 		
 		LoggerContext context = (LoggerContext) LogManager.getContext(false);
@@ -1,9 +1,14 @@
 package org.openmrs.module.fgh.mpi.api;
 
+import java.util.List;
+
 import org.openmrs.EncounterType;
 import org.openmrs.Location;
 import org.openmrs.Patient;
 import org.openmrs.api.OpenmrsService;
+import org.openmrs.module.fgh.mpi.entity.FailedSubmission;
+import org.openmrs.module.fgh.mpi.integ.CircuitBreaker;
+import org.openmrs.module.fgh.mpi.integ.MpiPatientCache;
 
 /**
  * Provides a service layer for the module
@@ -29,4 +34,71 @@ public interface MpiService extends OpenmrsService {
 	 */
 	Location getLocationForOldestEncounter(Patient patient, EncounterType type);
 	
+	/**
+	 * Gets all the patients that could not be submitted to the MPI
+	 *
+	 * @return list of failed submissions
+	 */
+	List<FailedSubmission> getFailedSubmissions();
+	
+	/**
+	 * Gets the failed submission with the specified id
+	 *
+	 * @param id the id to match
+	 * @return the failed submission or null if none is found
+	 */
+	FailedSubmission getFailedSubmission(Integer id);
+	
+	/**
+	 * Schedules the specified failed submission for an immediate retry even if its failure was
+	 * classified as permanent, this should be called after fixing the cause of the failure.
+	 *
+	 * @param failedSubmission the failed submission to retry
+	 */
+	void retryFailedSubmission(FailedSubmission failedSubmission);
+	
+	/**
+	 * Schedules all the failed submissions for an immediate retry
+	 */
+	void retryFailedSubmissions();
+	
+	/**
+	 * Gets the current state of the circuit breaker that guards the requests to the MPI
+	 *
+	 * @return the circuit breaker state
+	 */
+	CircuitBreaker.State getCircuitBreakerState();
+	
+	/**
+	 * Gets the hit, miss and eviction statistics of the cache of MPI patient records
+	 *
+	 * @return the cache statistics
+	 */
+	MpiPatientCache.Stats getPatientCacheStats();
+	
+	/**
+	 * Gets the id of the patient resource in the MPI recorded in the crosswalk for the patient with the
+	 * specified OpenMRS uuid
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @return the MPI id or null if none is recorded
+	 */
+	String getMpiId(String patientUuid);
+	
+	/**
+	 * Pages through all the patients in the MPI, records their MPI ids in the crosswalk and rebuilds the
+	 * filter of patients known to exist in the MPI
+	 *
+	 * @return the count of patients recorded in the crosswalk
+	 */
+	int primeCrosswalk();
+	
+	/**
+	 * Gets the count of patient submissions that were skipped because the generated patient resource
+	 * was identical to the one last submitted to the MPI
+	 *
+	 * @return the count of suppressed submissions
+	 */
+	long getSuppressedSubmissionCount();
+	
 }
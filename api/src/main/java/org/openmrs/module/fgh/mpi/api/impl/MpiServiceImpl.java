@@ -1,19 +1,23 @@
 package org.openmrs.module.fgh.mpi.api.impl;
 
-import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_ADULT_PROCESS_ENC_TYPE_UUID;
-import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_CHILD_PROCESS_ENC_TYPE_UUID;
-import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_FICHA_RESUMO_ENC_TYPE_UUID;
-import static org.openmrs.module.fgh.mpi.processor.MpiIntegrationProcessor.ID_PLACEHOLDER;
-
 import java.util.List;
 
 import org.openmrs.EncounterType;
 import org.openmrs.Location;
 import org.openmrs.Patient;
+import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
+import org.openmrs.module.fgh.mpi.entity.FailedSubmission;
+import org.openmrs.module.fgh.mpi.integ.CircuitBreaker;
+import org.openmrs.module.fgh.mpi.integ.MpiHttpClient;
+import org.openmrs.module.fgh.mpi.integ.MpiPatientCache;
+import org.openmrs.module.fgh.mpi.ledger.ContentHashLedger;
+import org.openmrs.module.fgh.mpi.ledger.FailureLedger;
+import org.openmrs.module.fgh.mpi.projection.HealthFacilityResolver;
 import org.openmrs.module.fgh.mpi.utils.MpiUtils;
 import org.openmrs.module.fgh.mpi.api.MpiService;
+import org.openmrs.module.fgh.mpi.crosswalk.MpiCrosswalk;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.transaction.annotation.Transactional;
@@ -23,63 +27,29 @@ public class MpiServiceImpl extends BaseOpenmrsService implements MpiService {
 	
 	private static final Logger log = LoggerFactory.getLogger(MpiServiceImpl.class);
 	
-	private final static String ENC_TYPE_ID_PLACEHOLDER = "{ENC_TYPE_ID}";
-	
-	private final static String ENC_LOC_QUERY = "SELECT location_id FROM encounter WHERE patient_id = " + ID_PLACEHOLDER
-	        + " AND encounter_type = " + ENC_TYPE_ID_PLACEHOLDER
-	        + " AND voided = 0 AND location_id IS NOT NULL ORDER BY encounter_datetime ASC LIMIT 1";
-	
-	private static EncounterType fichaEncType;
-	
-	private static EncounterType adultProcessEncType;
-	
-	private static EncounterType childProcessEncType;
+	private final static String ENC_LOC_QUERY = "SELECT location_id FROM encounter WHERE patient_id = ? AND "
+	        + "encounter_type = ? AND voided = 0 AND location_id IS NOT NULL ORDER BY encounter_datetime ASC LIMIT 1";
 	
 	/**
 	 * @see MpiService#getHealthFacility(Patient)
 	 */
 	@Override
 	public Location getHealthFacility(Patient patient) {
-		Location location;
-		if (fichaEncType == null) {
-			fichaEncType = MpiUtils.getEncounterTypeByGlobalProperty(GP_FICHA_RESUMO_ENC_TYPE_UUID);
-		}
-		
-		if (adultProcessEncType == null) {
-			adultProcessEncType = MpiUtils.getEncounterTypeByGlobalProperty(GP_ADULT_PROCESS_ENC_TYPE_UUID);
-		}
-		
-		if (childProcessEncType == null) {
-			childProcessEncType = MpiUtils.getEncounterTypeByGlobalProperty(GP_CHILD_PROCESS_ENC_TYPE_UUID);
-		}
-		
-		location = getLocationForOldestEncounter(patient, fichaEncType);
-		if (location == null) {
+		Integer locationId = HealthFacilityResolver.getHealthFacilityId(patient.getId());
+		if (locationId == null) {
 			if (log.isDebugEnabled()) {
-				log.debug("No location found for encounter of type " + fichaEncType.getName() + ", looking up one for "
-				        + "type " + adultProcessEncType.getName());
+				log.debug("No health facility found for patient with id: " + patient.getId());
 			}
 			
-			location = getLocationForOldestEncounter(patient, adultProcessEncType);
-			if (location == null) {
-				if (log.isDebugEnabled()) {
-					log.debug("No location found for encounter of type " + adultProcessEncType.getName()
-					        + ", looking up one for type " + childProcessEncType.getName());
-				}
-				
-				location = getLocationForOldestEncounter(patient, childProcessEncType);
-			}
+			return null;
 		}
 		
-		return location;
+		return Context.getLocationService().getLocation(locationId);
 	}
 	
 	@Override
 	public Location getLocationForOldestEncounter(Patient patient, EncounterType type) {
-		final String query = ENC_LOC_QUERY.replace(ID_PLACEHOLDER, patient.getId().toString())
-		        .replace(ENC_TYPE_ID_PLACEHOLDER, type.getId().toString());
-		
-		List<List<Object>> ids = MpiUtils.executeQuery(query);
+		List<List<Object>> ids = MpiUtils.executeQuery(ENC_LOC_QUERY, patient.getId(), type.getId());
 		if (ids.isEmpty()) {
 			return null;
 		}
@@ -87,4 +57,86 @@ public class MpiServiceImpl extends BaseOpenmrsService implements MpiService {
 		return Context.getLocationService().getLocation(Integer.valueOf(ids.get(0).get(0).toString()));
 	}
 	
+	/**
+	 * @see MpiService#getFailedSubmissions()
+	 */
+	@Override
+	public List<FailedSubmission> getFailedSubmissions() {
+		return FailureLedger.getFailedSubmissions();
+	}
+	
+	/**
+	 * @see MpiService#getFailedSubmission(Integer)
+	 */
+	@Override
+	public FailedSubmission getFailedSubmission(Integer id) {
+		return FailureLedger.getFailedSubmission(id);
+	}
+	
+	/**
+	 * @see MpiService#retryFailedSubmission(FailedSubmission)
+	 */
+	@Override
+	public void retryFailedSubmission(FailedSubmission failedSubmission) {
+		log.info("Scheduling retry of failed submission -> " + failedSubmission);
+		
+		FailureLedger.scheduleRetry(failedSubmission.getId());
+	}
+	
+	/**
+	 * @see MpiService#retryFailedSubmissions()
+	 */
+	@Override
+	public void retryFailedSubmissions() {
+		for (FailedSubmission failedSubmission : getFailedSubmissions()) {
+			retryFailedSubmission(failedSubmission);
+		}
+	}
+	
+	/**
+	 * @see MpiService#getCircuitBreakerState()
+	 */
+	@Override
+	public CircuitBreaker.State getCircuitBreakerState() {
+		return Context.getRegisteredComponents(MpiHttpClient.class).get(0).getCircuitBreaker().getState();
+	}
+	
+	/**
+	 * @see MpiService#getPatientCacheStats()
+	 */
+	@Override
+	public MpiPatientCache.Stats getPatientCacheStats() {
+		return Context.getRegisteredComponents(MpiHttpClient.class).get(0).getPatientCache().getStats();
+	}
+	
+	/**
+	 * @see MpiService#getMpiId(String)
+	 */
+	@Override
+	public String getMpiId(String patientUuid) {
+		return MpiCrosswalk.getMpiId(patientUuid);
+	}
+	
+	/**
+	 * @see MpiService#primeCrosswalk()
+	 */
+	@Override
+	public int primeCrosswalk() {
+		try {
+			return Context.getRegisteredComponents(MpiHttpClient.class).get(0)
+			        .primeCrosswalk(MpiHttpClient.DEFAULT_CROSSWALK_PAGE_SIZE);
+		}
+		catch (Exception e) {
+			throw new APIException("Failed to prime the MPI crosswalk", e);
+		}
+	}
+	
+	/**
+	 * @see MpiService#getSuppressedSubmissionCount()
+	 */
+	@Override
+	public long getSuppressedSubmissionCount() {
+		return ContentHashLedger.getSuppressedCount();
+	}
+	
 }
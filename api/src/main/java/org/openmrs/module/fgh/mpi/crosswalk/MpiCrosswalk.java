@@ -0,0 +1,144 @@
+package org.openmrs.module.fgh.mpi.crosswalk;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+
+/**
+ * Persistent crosswalk of OpenMRS patient uuids to the ids of the matching patient resources in the
+ * MPI, it is filled in whenever a patient is looked up or submitted so that later lookups can fetch
+ * the patient resource directly without a PIX query.
+ */
+public final class MpiCrosswalk {
+	
+	private static final int MAX_ROWS_PER_STATEMENT = 500;
+	
+	private static final String SELECT = "SELECT patient_uuid, mpi_id FROM mpi_patient_crosswalk WHERE patient_uuid";
+	
+	private static final String UPSERT = "INSERT INTO mpi_patient_crosswalk (patient_uuid, mpi_id, date_created) VALUES ";
+	
+	private static final String ON_DUPLICATE = " ON DUPLICATE KEY UPDATE date_changed = IF(mpi_id = VALUES(mpi_id), "
+	        + "date_changed, VALUES(date_created)), mpi_id = VALUES(mpi_id)";
+	
+	private static final String EXISTS = "SELECT 1 FROM mpi_patient_crosswalk LIMIT 1";
+	
+	private static final String CHANGED_SINCE = "SELECT patient_uuid FROM mpi_patient_crosswalk WHERE "
+	        + "COALESCE(date_changed, date_created) >= ?";
+	
+	private static final String DELETE = "DELETE FROM mpi_patient_crosswalk WHERE patient_uuid = ?";
+	
+	private MpiCrosswalk() {
+	}
+	
+	/**
+	 * Gets the MPI id of the patient with the specified OpenMRS uuid
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @return the MPI id or null if none is recorded
+	 */
+	public static String getMpiId(String patientUuid) {
+		List<List<Object>> rows = MpiUtils.executeQuery(SELECT + " = ?", patientUuid);
+		return rows.isEmpty() ? null : rows.get(0).get(1).toString();
+	}
+	
+	/**
+	 * Gets the MPI ids of the patients with the specified OpenMRS uuids
+	 *
+	 * @param patientUuids the patients' OpenMRS uuids
+	 * @return map of OpenMRS uuids to MPI ids, patients with no recorded MPI id are left out
+	 */
+	public static Map<String, String> getMpiIds(Collection<String> patientUuids) {
+		if (patientUuids.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		
+		Map<String, String> mpiIds = new HashMap(patientUuids.size());
+		List<String> uuids = new ArrayList(patientUuids);
+		for (int i = 0; i < uuids.size(); i += MAX_ROWS_PER_STATEMENT) {
+			List<String> batch = uuids.subList(i, Math.min(i + MAX_ROWS_PER_STATEMENT, uuids.size()));
+			String placeholders = StringUtils.repeat("?", ",", batch.size());
+			for (List<Object> row : MpiUtils.executeQuery(SELECT + " IN (" + placeholders + ")", batch.toArray())) {
+				mpiIds.put(row.get(0).toString(), row.get(1).toString());
+			}
+		}
+		
+		return mpiIds;
+	}
+	
+	/**
+	 * Checks if no MPI id has been recorded for any patient
+	 *
+	 * @return true if the crosswalk is empty otherwise false
+	 */
+	public static boolean isEmpty() {
+		return MpiUtils.executeQuery(EXISTS).isEmpty();
+	}
+	
+	/**
+	 * Gets the OpenMRS uuids of the patients whose MPI ids were recorded or changed since the specified
+	 * date
+	 *
+	 * @param date the date to compare against
+	 * @return list of OpenMRS uuids
+	 */
+	public static List<String> getPatientUuidsChangedSince(Date date) {
+		List<List<Object>> rows = MpiUtils.executeQuery(CHANGED_SINCE, new Timestamp(date.getTime()));
+		List<String> patientUuids = new ArrayList(rows.size());
+		for (List<Object> row : rows) {
+			patientUuids.add(row.get(0).toString());
+		}
+		
+		return patientUuids;
+	}
+
+/**
+	 * Records the MPI id of the patient with the specified OpenMRS uuid, replacing any existing one
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @param mpiId the MPI id
+	 */
+	public static void save(String patientUuid, String mpiId) {
+		saveAll(Collections.singletonMap(patientUuid, mpiId));
+	}
+	
+	/**
+	 * Records the MPI ids of the specified patients, replacing any existing ones
+	 *
+	 * @param uuidAndMpiIds map of OpenMRS uuids to MPI ids
+	 */
+	public static void saveAll(Map<String, String> uuidAndMpiIds) {
+		List<Map.Entry<String, String>> entries = new ArrayList(uuidAndMpiIds.entrySet());
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		for (int i = 0; i < entries.size(); i += MAX_ROWS_PER_STATEMENT) {
+			List<Map.Entry<String, String>> batch = entries.subList(i, Math.min(i + MAX_ROWS_PER_STATEMENT, entries.size()));
+			List<Object> params = new ArrayList(batch.size() * 3);
+			for (Map.Entry<String, String> entry : batch) {
+				params.add(entry.getKey());
+				params.add(entry.getValue());
+				params.add(now);
+			}
+			
+			String values = StringUtils.repeat("(?, ?, ?)", ", ", batch.size());
+			MpiUtils.executeUpdate(UPSERT + values + ON_DUPLICATE, params.toArray());
+		}
+	}
+	
+	/**
+	 * Removes the MPI id of the patient with the specified OpenMRS uuid, this is called when the MPI id
+	 * is found to be stale e.g. after patients are merged in the MPI.
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 */
+	public static void remove(String patientUuid) {
+		MpiUtils.executeUpdate(DELETE, patientUuid);
+	}
+	
+}
@@ -0,0 +1,237 @@
+package org.openmrs.module.fgh.mpi.crosswalk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of the OpenMRS uuids of the patients known to exist in the MPI, it never returns a
+ * false negative so when it reports that a patient is definitely absent the lookup from the MPI can
+ * be skipped. The filter is only authoritative once it is marked as complete i.e. it was rebuilt
+ * from the MPI or started empty for an initial loading, until then every patient is reported as
+ * possibly existing. Adding uuids is lock free so the filter can be shared by all threads, a filter
+ * created with an expected number of patients of zero or less is disabled.
+ */
+public class MpiPatientFilter {
+	
+	private static final int FORMAT_VERSION = 1;
+	
+	private final AtomicLongArray bits;
+	
+	private final long bitCount;
+	
+	private final int hashCount;
+	
+	private final AtomicLong count = new AtomicLong();
+	
+	private volatile boolean complete;
+	
+	/**
+	 * @param expectedInsertions the expected number of patients
+	 * @param falsePositiveRate the acceptable rate of patients wrongly reported as possibly existing
+	 */
+	public MpiPatientFilter(int expectedInsertions, double falsePositiveRate) {
+		if (expectedInsertions <= 0) {
+			bits = new AtomicLongArray(0);
+			bitCount = 0;
+			hashCount = 0;
+			return;
+		}
+		
+		long m = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		bits = new AtomicLongArray((int) ((m + 63) / 64));
+		bitCount = bits.length() * 64L;
+		hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+	}
+	
+	private MpiPatientFilter(long[] words, int hashCount, long count, boolean complete) {
+		this.bits = new AtomicLongArray(words);
+		this.bitCount = words.length * 64L;
+		this.hashCount = hashCount;
+		this.count.set(count);
+		this.complete = complete;
+	}
+	
+	/**
+	 * Adds the patient with the specified uuid to the filter
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 */
+	public void put(String patientUuid) {
+		if (!isEnabled()) {
+			return;
+		}
+		
+		long hash1 = hash(patientUuid);
+		long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L);
+		boolean changed = false;
+		for (int i = 0; i < hashCount; i++) {
+			long index = Math.floorMod(hash1 + i * hash2, bitCount);
+			int word = (int) (index >>> 6);
+			long mask = 1L << index;
+			long current;
+			while (((current = bits.get(word)) & mask) == 0) {
+				if (bits.compareAndSet(word, current, current | mask)) {
+					changed = true;
+					break;
+				}
+			}
+		}
+		
+		if (changed) {
+			count.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Checks if the patient with the specified uuid may exist in the MPI, a false value means the
+	 * patient definitely does not exist while a true value may be a false positive.
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @return false if the filter is complete and the patient was never added otherwise true
+	 */
+	public boolean mightContain(String patientUuid) {
+		if (!complete || !isEnabled()) {
+			return true;
+		}
+		
+		long hash1 = hash(patientUuid);
+		long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L);
+		for (int i = 0; i < hashCount; i++) {
+			long index = Math.floorMod(hash1 + i * hash2, bitCount);
+			if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Adds all the patients in the specified filter to this filter, the filters must have been created
+	 * with the same size.
+	 *
+	 * @param other the filter to merge
+	 * @return true if the filters were merged otherwise false if they have different sizes
+	 */
+	public boolean merge(MpiPatientFilter other) {
+		if (other.bitCount != bitCount || other.hashCount != hashCount) {
+			return false;
+		}
+		
+		for (int i = 0; i < bits.length(); i++) {
+			long otherWord = other.bits.get(i);
+			long current;
+			while (((current = bits.get(i)) | otherWord) != current) {
+				if (bits.compareAndSet(i, current, current | otherWord)) {
+					break;
+				}
+			}
+		}
+		
+		count.addAndGet(other.count.get());
+		return true;
+	}
+	
+	/**
+	 * Marks the filter as complete, after this call patients that were never added are reported as
+	 * definitely absent.
+	 */
+	public void markComplete() {
+		complete = true;
+	}
+	
+	public boolean isEnabled() {
+		return bitCount > 0;
+	}
+	
+	public boolean isComplete() {
+		return complete;
+	}
+	
+	/**
+	 * Gets the approximate count of patients added to the filter
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * Writes the filter to the specified file, the data is first written to a temporary file that
+	 * then replaces the specified file.
+	 *
+	 * @param file the file to write to
+	 * @throws IOException
+	 */
+	public void writeTo(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(hashCount);
+			out.writeLong(count.get());
+			out.writeBoolean(complete);
+			out.writeInt(bits.length());
+			for (int i = 0; i < bits.length(); i++) {
+				out.writeLong(bits.get(i));
+			}
+		}
+		
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Reads a filter from the specified file
+	 *
+	 * @param file the file to read from
+	 * @return the filter
+	 * @throws IOException
+	 */
+	public static MpiPatientFilter readFrom(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			int version = in.readInt();
+			if (version != FORMAT_VERSION) {
+				throw new IOException("Unsupported patient filter format version: " + version);
+			}
+			
+			int hashCount = in.readInt();
+			long count = in.readLong();
+			boolean complete = in.readBoolean();
+			long[] words = new long[in.readInt()];
+			for (int i = 0; i < words.length; i++) {
+				words[i] = in.readLong();
+			}
+			
+			return new MpiPatientFilter(words, hashCount, count, complete);
+		}
+	}
+	
+	private static long hash(String value) {
+		long hash = 0xCBF29CE484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			hash = (hash ^ value.charAt(i)) * 0x100000001B3L;
+		}
+		
+		return mix(hash);
+	}
+	
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		hash *= 0xC4CEB9FE1A85EC53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+	
+}
@@ -0,0 +1,138 @@
+package org.openmrs.module.fgh.mpi.entity;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Represents a patient that could not be submitted to the MPI, it is recorded in the failure ledger
+ * and submitted again later by a background scheduler unless the failure is permanent.
+ */
+public class FailedSubmission implements Serializable {
+	
+	private Integer id;
+	
+	private Integer patientId;
+	
+	private String patientUuid;
+	
+	private String tableName;
+	
+	private String operation;
+	
+	private String errorClass;
+	
+	private String errorMessage;
+	
+	private Integer attemptCount;
+	
+	private Boolean permanent;
+	
+	private Date nextRetryAt;
+	
+	private Date dateCreated;
+	
+	private Date dateChanged;
+	
+	public Integer getId() {
+		return id;
+	}
+	
+	public void setId(Integer id) {
+		this.id = id;
+	}
+	
+	public Integer getPatientId() {
+		return patientId;
+	}
+	
+	public void setPatientId(Integer patientId) {
+		this.patientId = patientId;
+	}
+	
+	public String getPatientUuid() {
+		return patientUuid;
+	}
+	
+	public void setPatientUuid(String patientUuid) {
+		this.patientUuid = patientUuid;
+	}
+	
+	public String getTableName() {
+		return tableName;
+	}
+	
+	public void setTableName(String tableName) {
+		this.tableName = tableName;
+	}
+	
+	public String getOperation() {
+		return operation;
+	}
+	
+	public void setOperation(String operation) {
+		this.operation = operation;
+	}
+	
+	public String getErrorClass() {
+		return errorClass;
+	}
+	
+	public void setErrorClass(String errorClass) {
+		this.errorClass = errorClass;
+	}
+	
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+	
+	public void setErrorMessage(String errorMessage) {
+		this.errorMessage = errorMessage;
+	}
+	
+	public Integer getAttemptCount() {
+		return attemptCount;
+	}
+	
+	public void setAttemptCount(Integer attemptCount) {
+		this.attemptCount = attemptCount;
+	}
+	
+	public Boolean getPermanent() {
+		return permanent;
+	}
+	
+	public void setPermanent(Boolean permanent) {
+		this.permanent = permanent;
+	}
+	
+	public Date getNextRetryAt() {
+		return nextRetryAt;
+	}
+	
+	public void setNextRetryAt(Date nextRetryAt) {
+		this.nextRetryAt = nextRetryAt;
+	}
+	
+	public Date getDateCreated() {
+		return dateCreated;
+	}
+	
+	public void setDateCreated(Date dateCreated) {
+		this.dateCreated = dateCreated;
+	}
+	
+	public Date getDateChanged() {
+		return dateChanged;
+	}
+	
+	public void setDateChanged(Date dateChanged) {
+		this.dateChanged = dateChanged;
+	}
+	
+	@Override
+	public String toString() {
+		return "FailedSubmission {id=" + id + ", patientId=" + patientId + ", errorClass=" + errorClass + ", attemptCount="
+		        + attemptCount + ", permanent=" + permanent + "}";
+	}
+	
+}
@@ -1,5 +1,7 @@
 package org.openmrs.module.fgh.mpi.handler;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import org.openmrs.module.debezium.DatabaseEvent;
@@ -29,9 +31,32 @@ public abstract class BaseEventHandler {
 			log.debug("Patient id: " + patientId);
 		}
 		
+		return handle(patientId, event);
+	}
+	
+	/**
+	 * Generates the fhir resource for the patient with the specified id in response to the specified
+	 * event
+	 *
+	 * @param patientId the patient id
+	 * @param event DatabaseEvent object
+	 * @return a map representation of the generated patient fhir resource
+	 * @throws Exception
+	 */
+	public Map<String, Object> handle(Integer patientId, DatabaseEvent event) throws Exception {
 		return processor.process(patientId, event);
 	}
 	
+	/**
+	 * Retrieve the ids of all the patients affected by the specified event instance
+	 *
+	 * @param event DatabaseEvent object
+	 * @return the list of patient ids
+	 */
+	public List<Integer> getPatientIds(DatabaseEvent event) {
+		return Collections.singletonList(getPatientId(event));
+	}
+	
 	/**
 	 * Retrieve the patient id from the specified event instance
 	 * 
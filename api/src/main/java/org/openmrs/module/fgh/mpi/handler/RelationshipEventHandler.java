@@ -30,6 +30,27 @@ public class RelationshipEventHandler extends BaseEventHandler {
 			log.debug("Handling " + event.getTableName() + " event -> " + event);
 		}
 		
+		List<Integer> personIds = getPatientIds(event);
+		List<Map<String, Object>> fhirPatients = new ArrayList(personIds.size());
+		for (Integer personId : personIds) {
+			Map<String, Object> resource = processor.process(personId, event);
+			if (resource != null) {
+				fhirPatients.add(resource);
+			}
+		}
+		
+		Map<String, Object> patientBundle = new HashMap(2);
+		patientBundle.put(MpiConstants.FIELD_RESOURCE_TYPE, MpiConstants.BUNDLE);
+		patientBundle.put(MpiConstants.FIELD_ENTRY, fhirPatients);
+		
+		return patientBundle;
+	}
+	
+	/**
+	 * @see BaseEventHandler#getPatientIds(DatabaseEvent)
+	 */
+	@Override
+	public List<Integer> getPatientIds(DatabaseEvent event) {
 		log.info("Looking up the ids of the persons associated to the relationship event");
 		
 		//There can be 2-4 affected patient records for an update event
@@ -46,19 +67,7 @@ public class RelationshipEventHandler extends BaseEventHandler {
 		
 		log.info("Affected person ids: " + personIds);
 		
-		List<Map<String, Object>> fhirPatients = new ArrayList(personIds.size());
-		for (Integer personId : personIds) {
-			Map<String, Object> resource = processor.process(personId, event);
-			if (resource != null) {
-				fhirPatients.add(resource);
-			}
-		}
-		
-		Map<String, Object> patientBundle = new HashMap(2);
-		patientBundle.put(MpiConstants.FIELD_RESOURCE_TYPE, MpiConstants.BUNDLE);
-		patientBundle.put(MpiConstants.FIELD_ENTRY, fhirPatients);
-		
-		return patientBundle;
+		return new ArrayList(personIds);
 	}
 	
 	/**
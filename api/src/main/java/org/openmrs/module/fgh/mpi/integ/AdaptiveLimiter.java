@@ -0,0 +1,183 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of in-flight requests to the MPI using additive increase multiplicative
+ * decrease. The limit grows by one for every limit's worth of successful requests whose latency
+ * stays within the tolerance of the minimum latency observed in the current window, and it is
+ * halved whenever a request fails in a way that indicates the MPI is overloaded e.g. a timeout, a
+ * 429 or a 5xx response. Requests that exceed the limit wait without blocking a thread until a
+ * permit is released. A max limit of zero disables the limiter.
+ */
+public class AdaptiveLimiter {
+	
+	private static final Logger log = LoggerFactory.getLogger(AdaptiveLimiter.class);
+	
+	private static final double BACKOFF_RATIO = 0.5;
+	
+	private static final double LATENCY_TOLERANCE = 2.0;
+	
+	private static final long MIN_LATENCY_WINDOW = 60000;
+	
+	public enum Outcome {
+		
+		/**
+		 * The request completed successfully
+		 */
+		SUCCESS,
+		
+		/**
+		 * The request failed in a way that indicates the MPI is overloaded
+		 */
+		DROPPED,
+		
+		/**
+		 * The request failed in a way that says nothing about the load on the MPI
+		 */
+		IGNORED
+	}
+	
+	private final String name;
+	
+	private final int minLimit;
+	
+	private final int maxLimit;
+	
+	private final Executor executor;
+	
+	private final Deque<CompletableFuture<Void>> waiters = new ArrayDeque();
+	
+	private double limit;
+	
+	private int inFlight;
+	
+	private long minLatency = Long.MAX_VALUE;
+	
+	private long windowMinLatency = Long.MAX_VALUE;
+	
+	private long windowStart = System.currentTimeMillis();
+	
+	/**
+	 * @param name the name of the limiter used in log messages
+	 * @param initialLimit the initial limit
+	 * @param maxLimit the maximum limit
+	 * @param executor the executor on which waiting requests are resumed
+	 */
+	public AdaptiveLimiter(String name, int initialLimit, int maxLimit, Executor executor) {
+		this.name = name;
+		this.minLimit = 1;
+		this.maxLimit = maxLimit;
+		this.limit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+		this.executor = executor;
+	}
+	
+	/**
+	 * Acquires a permit to send a request, every acquired permit must be released by calling
+	 * {@link #release(Outcome, long)}
+	 *
+	 * @return a CompletableFuture that is completed when the permit is acquired
+	 */
+	public synchronized CompletableFuture<Void> acquire() {
+		if (maxLimit <= 0 || inFlight < (int) limit) {
+			inFlight++;
+			return CompletableFuture.completedFuture(null);
+		}
+		
+		CompletableFuture<Void> waiter = new CompletableFuture();
+		waiters.add(waiter);
+		
+		return waiter;
+	}
+	
+	/**
+	 * Releases a permit and adjusts the limit based on the outcome of the request
+	 *
+	 * @param outcome the outcome of the request
+	 * @param latency the latency of the request in milliseconds
+	 */
+	public void release(Outcome outcome, long latency) {
+		List<CompletableFuture<Void>> resumed = new ArrayList();
+		synchronized (this) {
+			inFlight--;
+			if (maxLimit <= 0) {
+				return;
+			}
+			
+			adjustLimit(outcome, latency);
+			
+			while (inFlight < (int) limit && !waiters.isEmpty()) {
+				inFlight++;
+				resumed.add(waiters.poll());
+			}
+		}
+		
+		//Resume the waiting requests on the executor so that they are not sent on the releasing thread
+		for (CompletableFuture<Void> waiter : resumed) {
+			executor.execute(() -> waiter.complete(null));
+		}
+	}
+	
+	private void adjustLimit(Outcome outcome, long latency) {
+		double oldLimit = limit;
+		if (outcome == Outcome.DROPPED) {
+			limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+		} else if (outcome == Outcome.SUCCESS) {
+			long now = System.currentTimeMillis();
+			if (now - windowStart >= MIN_LATENCY_WINDOW) {
+				//Start a new window so that the minimum follows changes in the MPI's baseline latency
+				minLatency = Math.min(windowMinLatency, latency);
+				windowMinLatency = latency;
+				windowStart = now;
+			} else {
+				windowMinLatency = Math.min(windowMinLatency, latency);
+				minLatency = Math.min(minLatency, latency);
+			}
+			
+			//Only grow the limit when it is actually being used
+			if (latency <= minLatency * LATENCY_TOLERANCE && inFlight + 1 >= limit / 2) {
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+		}
+		
+		if ((int) oldLimit != (int) limit && log.isDebugEnabled()) {
+			log.debug("Concurrency limit for " + name + " changed from " + (int) oldLimit + " to " + (int) limit);
+		}
+	}
+	
+	/**
+	 * Gets the current limit
+	 *
+	 * @return the limit
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+	
+	/**
+	 * Gets the count of requests that are in flight
+	 *
+	 * @return the count
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+	
+	/**
+	 * Gets the count of requests waiting for a permit
+	 *
+	 * @return the count
+	 */
+	public synchronized int getWaiting() {
+		return waiters.size();
+	}
+	
+}
@@ -0,0 +1,201 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker that stops requests from being sent to the MPI while it is failing. The outcomes
+ * of the most recent calls are kept in a sliding window, a call is considered failed if it failed
+ * with a retryable error or took longer than the slow call duration. When the failure rate in the
+ * window reaches the threshold the circuit opens and all calls are rejected for the open duration,
+ * after which it becomes half open and lets a few trial calls through, if they all succeed the
+ * circuit closes otherwise it opens again. A window size of zero disables the circuit breaker.
+ */
+public class CircuitBreaker {
+	
+	private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+	
+	public enum State {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+	
+	private final int windowSize;
+	
+	private final int minimumCalls;
+	
+	private final int failureRateThreshold;
+	
+	private final long slowCallDuration;
+	
+	private final long openDuration;
+	
+	private final int halfOpenCalls;
+	
+	private final boolean[] outcomes;
+	
+	private int index;
+	
+	private int bufferedCalls;
+	
+	private int failedCalls;
+	
+	private State state = State.CLOSED;
+	
+	private long openedAt;
+	
+	private int halfOpenPermits;
+	
+	private int halfOpenSuccesses;
+	
+	private long rejectedCalls;
+	
+	/**
+	 * @param windowSize the number of most recent calls whose outcome is used to compute the failure
+	 *            rate
+	 * @param minimumCalls the minimum number of calls before the failure rate is computed
+	 * @param failureRateThreshold the failure rate percentage at which the circuit opens
+	 * @param slowCallDuration the duration in milliseconds above which a call is considered failed
+	 * @param openDuration the time in milliseconds for which the circuit stays open
+	 * @param halfOpenCalls the number of trial calls allowed when the circuit is half open
+	 */
+	public CircuitBreaker(int windowSize, int minimumCalls, int failureRateThreshold, long slowCallDuration,
+	    long openDuration, int halfOpenCalls) {
+		this.windowSize = Math.max(windowSize, 0);
+		this.minimumCalls = Math.max(1, Math.min(minimumCalls, this.windowSize));
+		this.failureRateThreshold = failureRateThreshold;
+		this.slowCallDuration = slowCallDuration;
+		this.openDuration = openDuration;
+		this.halfOpenCalls = Math.max(halfOpenCalls, 1);
+		this.outcomes = new boolean[this.windowSize];
+	}
+	
+	/**
+	 * Checks whether a call is permitted, every permitted call must be followed by a call to
+	 * {@link #onResult(boolean, long)}
+	 *
+	 * @return true if the call is permitted otherwise false
+	 */
+	public synchronized boolean tryAcquire() {
+		if (windowSize == 0) {
+			return true;
+		}
+		
+		if (state == State.OPEN) {
+			if (System.currentTimeMillis() - openedAt < openDuration) {
+				rejectedCalls++;
+				return false;
+			}
+			
+			transitionTo(State.HALF_OPEN);
+			halfOpenPermits = halfOpenCalls;
+			halfOpenSuccesses = 0;
+		}
+		
+		if (state == State.HALF_OPEN) {
+			if (halfOpenPermits <= 0) {
+				rejectedCalls++;
+				return false;
+			}
+			
+			halfOpenPermits--;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Records the outcome of a permitted call
+	 *
+	 * @param failed specifies if the call failed with an error that indicates a problem with the MPI
+	 * @param duration the duration of the call in milliseconds
+	 */
+	public synchronized void onResult(boolean failed, long duration) {
+		if (windowSize == 0) {
+			return;
+		}
+		
+		boolean failure = failed || (slowCallDuration > 0 && duration >= slowCallDuration);
+		if (state == State.HALF_OPEN) {
+			if (failure) {
+				open();
+			} else if (++halfOpenSuccesses >= halfOpenCalls) {
+				transitionTo(State.CLOSED);
+			}
+			
+			return;
+		} else if (state == State.OPEN) {
+			//The call was started before the circuit opened
+			return;
+		}
+		
+		if (bufferedCalls == windowSize) {
+			if (outcomes[index]) {
+				failedCalls--;
+			}
+		} else {
+			bufferedCalls++;
+		}
+		
+		outcomes[index] = failure;
+		if (failure) {
+			failedCalls++;
+		}
+		
+		index = (index + 1) % windowSize;
+		if (bufferedCalls >= minimumCalls && getFailureRate() >= failureRateThreshold) {
+			open();
+		}
+	}
+	
+	/**
+	 * Gets the current state of the circuit, note that an open circuit only becomes half open when a
+	 * call is attempted after the open duration has elapsed
+	 *
+	 * @return the state
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+	
+	/**
+	 * Gets the percentage of failed calls in the sliding window
+	 *
+	 * @return the failure rate
+	 */
+	public synchronized float getFailureRate() {
+		return bufferedCalls == 0 ? 0 : failedCalls * 100f / bufferedCalls;
+	}
+	
+	/**
+	 * Gets the count of calls that were rejected because the circuit was open
+	 *
+	 * @return the count
+	 */
+	public synchronized long getRejectedCalls() {
+		return rejectedCalls;
+	}
+	
+	private void open() {
+		transitionTo(State.OPEN);
+		openedAt = System.currentTimeMillis();
+	}
+	
+	private void transitionTo(State newState) {
+		if (newState == state) {
+			return;
+		}
+		
+		log.warn("MPI circuit breaker transitioning from " + state + " to " + newState + ", failure rate: "
+		        + getFailureRate() + "%");
+		
+		state = newState;
+		if (newState == State.CLOSED) {
+			index = 0;
+			bufferedCalls = 0;
+			failedCalls = 0;
+		}
+	}
+	
+}
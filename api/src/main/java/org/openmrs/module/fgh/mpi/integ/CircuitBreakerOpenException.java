@@ -0,0 +1,15 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import org.openmrs.api.APIException;
+
+/**
+ * Thrown when a request to the MPI is rejected without being sent because the {@link CircuitBreaker}
+ * is open
+ */
+public class CircuitBreakerOpenException extends APIException {
+	
+	public CircuitBreakerOpenException(String message) {
+		super(message);
+	}
+	
+}
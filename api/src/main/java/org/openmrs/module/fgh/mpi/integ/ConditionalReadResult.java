@@ -0,0 +1,43 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import java.util.Map;
+
+/**
+ * Result of a conditional read of a resource from the MPI i.e. a read sent with an If-None-Match
+ * header carrying the last known version of the resource, the resource is only read from the
+ * response when its version changed.
+ */
+public class ConditionalReadResult {
+	
+	private final String version;
+	
+	private final Map<String, Object> resource;
+	
+	public ConditionalReadResult(String version, Map<String, Object> resource) {
+		this.version = version;
+		this.resource = resource;
+	}
+	
+	/**
+	 * Gets the current version of the resource in the MPI
+	 *
+	 * @return the version or null if the MPI did not return one
+	 */
+	public String getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Gets the resource read from the response
+	 *
+	 * @return map representation of the resource or null if it was not modified
+	 */
+	public Map<String, Object> getResource() {
+		return resource;
+	}
+	
+	public boolean isNotModified() {
+		return resource == null;
+	}
+	
+}
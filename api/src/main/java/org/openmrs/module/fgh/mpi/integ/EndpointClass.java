@@ -0,0 +1,41 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+/**
+ * Groups the requests sent to the MPI by the kind of work they cause on the MPI side so that the
+ * concurrency of each group can be limited independently.
+ */
+public enum EndpointClass {
+	
+	/**
+	 * PIX queries for the MPI identifier of a patient
+	 */
+	PIX_LOOKUP,
+	
+	/**
+	 * Reads of patient resources
+	 */
+	PATIENT_GET,
+	
+	/**
+	 * Submissions of patients and bundles, batch bundles of GET entries are classed with the reads they
+	 * contain
+	 */
+	SUBMISSION;
+	
+	/**
+	 * Gets the endpoint class of the request with the specified path, any request with data is a
+	 * submission so reads that post data must specify their endpoint class explicitly
+	 *
+	 * @param requestPath the request path
+	 * @param data the data to post if any
+	 * @return the endpoint class
+	 */
+	public static EndpointClass of(String requestPath, String data) {
+		if (data != null) {
+			return SUBMISSION;
+		}
+		
+		return requestPath.contains("$ihe-pix") ? PIX_LOOKUP : PATIENT_GET;
+	}
+	
+}
@@ -0,0 +1,183 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking {@link MpiHttpTransport} backed by the JDK {@link HttpClient}, HTTP/2 is negotiated
+ * with the MPI when it supports it so that many concurrent requests are multiplexed on a single
+ * connection, otherwise it falls back to persistent HTTP/1.1 connections. Requests are sent and
+ * responses are received asynchronously on a small fixed pool of threads.
+ * <p>
+ * Note that unlike the other transports, the JDK client always verifies the MPI host name against
+ * its certificate, it is therefore not used with certificate authentication where the MPI is
+ * expected to have a self signed certificate.
+ */
+public class Http2Transport implements MpiHttpTransport {
+	
+	private static final Logger log = LoggerFactory.getLogger(Http2Transport.class);
+	
+	//Headers that are computed by the JDK client and can't be set on a request
+	private static final Set<String> RESTRICTED_HEADERS = new TreeSet(String.CASE_INSENSITIVE_ORDER);
+	
+	static {
+		RESTRICTED_HEADERS.add("Connection");
+		RESTRICTED_HEADERS.add("Content-Length");
+		RESTRICTED_HEADERS.add("Expect");
+		RESTRICTED_HEADERS.add("Host");
+		RESTRICTED_HEADERS.add("Upgrade");
+	}
+	
+	private final ExecutorService executor;
+	
+	private final HttpClient httpClient;
+	
+	/**
+	 * @param sslContext the {@link SSLContext} holding the client certificate, if null the default one
+	 *            is used
+	 * @param threadCount the number of threads on which responses are handled
+	 * @param connectTimeout the connect timeout in milliseconds
+	 */
+	public Http2Transport(SSLContext sslContext, int threadCount, int connectTimeout) {
+		final AtomicInteger threadNumber = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(threadCount, r -> {
+			Thread thread = new Thread(r, "mpi-http-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		HttpClient.Builder builder = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).executor(executor)
+		        .followRedirects(HttpClient.Redirect.NEVER);
+		if (connectTimeout > 0) {
+			builder.connectTimeout(Duration.ofMillis(connectTimeout));
+		}
+		if (sslContext != null) {
+			builder.sslContext(sslContext);
+		}
+		
+		httpClient = builder.build();
+		
+		log.info("Created HTTP/2 MPI http transport with " + threadCount + " thread(s)");
+	}
+	
+	/**
+	 * @see MpiHttpTransport#execute(MpiHttpRequest)
+	 */
+	@Override
+	public MpiHttpResponse execute(MpiHttpRequest request) throws IOException {
+		try {
+			return executeAsync(request).get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a response to " + request, e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	/**
+	 * @see MpiHttpTransport#executeAsync(MpiHttpRequest)
+	 */
+	@Override
+	public CompletableFuture<MpiHttpResponse> executeAsync(MpiHttpRequest request) {
+		HttpRequest httpRequest;
+		try {
+			HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(request.getUrl()));
+			for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+				if (!RESTRICTED_HEADERS.contains(header.getKey())) {
+					builder.header(header.getKey(), header.getValue());
+				}
+			}
+			
+			if (request.getBody() != null) {
+				builder.method(request.getMethod(), HttpRequest.BodyPublishers.ofByteArray(request.getBody().getBytes()));
+			} else {
+				builder.method(request.getMethod(), HttpRequest.BodyPublishers.noBody());
+			}
+			
+			httpRequest = builder.build();
+		}
+		catch (RuntimeException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Sending " + request);
+		}
+		
+		return httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofByteArray()).thenApply(Http2Response::new);
+	}
+	
+	/**
+	 * @see MpiHttpTransport#close()
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+	
+	private static class Http2Response implements MpiHttpResponse {
+		
+		private final HttpResponse<byte[]> response;
+		
+		Http2Response(HttpResponse<byte[]> response) {
+			this.response = response;
+		}
+		
+		@Override
+		public int getStatusCode() {
+			return response.statusCode();
+		}
+		
+		/**
+		 * HTTP/2 has no reason phrase so the status message is always null
+		 */
+		@Override
+		public String getStatusMessage() {
+			return null;
+		}
+		
+		@Override
+		public String getHeader(String name) {
+			return response.headers().firstValue(name).orElse(null);
+		}
+		
+		@Override
+		public InputStream getBody() {
+			return new ByteArrayInputStream(response.body() != null ? response.body() : new byte[0]);
+		}
+		
+		@Override
+		public void close() {
+		}
+		
+	}
+	
+}
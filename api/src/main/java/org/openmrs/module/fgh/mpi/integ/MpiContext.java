@@ -22,6 +22,10 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.KeyManagerFactory;
@@ -38,49 +42,200 @@ import org.openmrs.module.fgh.mpi.utils.MpiUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Configuration used to communicate with the MPI, it is built from the global properties on first
+ * use and published through a volatile reference so that reading it never contends on a lock. A
+ * context is immutable except for its OAuth token, when any of the {@link #GLOBAL_PROPERTIES}
+ * changes, a new context is built and swapped in by {@link #reload()}, requests that are in flight
+ * keep using the context they started with. Contexts are created with a {@link Builder}.
+ */
 public class MpiContext {
 	
 	private static final Logger log = LoggerFactory.getLogger(MpiContext.class);
 	
-	private TokenInfo tokenInfo;
+	/**
+	 * The names of the global properties the context is built from
+	 */
+	public static final List<String> GLOBAL_PROPERTIES = Collections.unmodifiableList(Arrays.asList(
+	    GP_AUTHENTICATION_TYPE, GP_MPI_BASE_URL, GP_MPI_SYSTEM, GP_UUID_SYSTEM, GP_MPI_APP_CONTENT_TYPE, GP_KEYSTORE_PATH,
+	    GP_KEYSTORE_PASS, GP_KEYSTORE_TYPE, GP_SANTE_CLIENT_ID, GP_SANTE_CLIENT_SECRET));
 	
-	private String contentType;
+	private volatile TokenInfo tokenInfo;
 	
-	private AuthenticationType authenticationType;
+	private final String contentType;
 	
-	private boolean contextInitialized;
+	private final AuthenticationType authenticationType;
 	
-	private SSLContext sslContext;
+	private final boolean contextInitialized;
 	
-	private String serverBaseUrl;
+	private final SSLContext sslContext;
 	
-	private MpiSystemType mpiSystem;
+	private final String serverBaseUrl;
 	
-	private String openmrsUuidSystem;
+	private final MpiSystemType mpiSystem;
 	
-	private String clientId;
+	private final String openmrsUuidSystem;
 	
-	private String clientSecret;
+	private final String clientId;
 	
-	public static MpiContext mpiContext;
+	private final String clientSecret;
 	
-	public MpiContext() {
+	private static volatile MpiContext mpiContext;
+	
+	private MpiContext(Builder builder) {
+		contentType = builder.contentType;
+		authenticationType = builder.authenticationType;
+		contextInitialized = builder.loaded;
+		sslContext = builder.sslContext;
+		serverBaseUrl = builder.serverBaseUrl;
+		mpiSystem = builder.mpiSystem;
+		openmrsUuidSystem = builder.openmrsUuidSystem;
+		clientId = builder.clientId;
+		clientSecret = builder.clientSecret;
 	}
 	
-	public static synchronized MpiContext initIfNecessary() throws Exception {
-		if (mpiContext == null) {
-			mpiContext = new MpiContext();
-			
-			mpiContext.init();
+	/**
+	 * Gets the current context, building it if necessary, only the first calls that find no context
+	 * are serialized.
+	 *
+	 * @return the {@link MpiContext} object
+	 * @throws Exception
+	 */
+	public static MpiContext initIfNecessary() throws Exception {
+		MpiContext context = mpiContext;
+		if (context == null) {
+			synchronized (MpiContext.class) {
+				context = mpiContext;
+				if (context == null) {
+					context = new Builder().load().build();
+					mpiContext = context;
+				}
+			}
 		}
 		
-		return mpiContext;
+		return context;
+	}
+	
+	/**
+	 * Checks if the specified context is the current one i.e. it was not replaced by a reload
+	 *
+	 * @param context the {@link MpiContext} object
+	 * @return true if the context is the current one otherwise false
+	 */
+	static boolean isCurrent(MpiContext context) {
+		return context == mpiContext;
+	}
+	
+	/**
+	 * Builds a new context from the current global property values and swaps it in place of the
+	 * current one, the OAuth token is carried over if the server and the client credentials are
+	 * unchanged. If building the new context fails, the current one is kept. Nothing is done if no
+	 * context has been built yet.
+	 *
+	 * @throws Exception
+	 */
+	public static void reload() throws Exception {
+		synchronized (MpiContext.class) {
+			MpiContext previous = mpiContext;
+			if (previous == null) {
+				return;
+			}
+			
+			MpiContext context = new Builder().load().build();
+			if (Objects.equals(previous.serverBaseUrl, context.serverBaseUrl)
+			        && Objects.equals(previous.clientId, context.clientId)
+			        && Objects.equals(previous.clientSecret, context.clientSecret)) {
+				context.tokenInfo = previous.tokenInfo;
+			}
+			
+			mpiContext = context;
+			log.info("Reloaded the MPI context");
+		}
+	}
+	
+	public String getContentType() {
+		return contentType;
+	}
+	
+	public AuthenticationType getAuthenticationType() {
+		return authenticationType;
+	}
+	
+	public boolean isContextInitialized() {
+		return contextInitialized;
+	}
+	
+	public SSLContext getSslContext() {
+		return sslContext;
+	}
+	
+	public String getServerBaseUrl() {
+		return serverBaseUrl;
+	}
+	
+	public MpiSystemType getMpiSystem() {
+		return mpiSystem;
+	}
+	
+	public String getOpenmrsUuidSystem() {
+		return openmrsUuidSystem;
+	}
+	
+	public String getClientId() {
+		return clientId;
+	}
+	
+	public String getClientSecret() {
+		return clientSecret;
 	}
 	
-	protected void init() throws Exception {
+	public TokenInfo getTokenInfo() {
+		return tokenInfo;
+	}
+	
+	/**
+	 * Sets the token to use, the expiry date is computed before the token is published so that other
+	 * threads never see a token without it
+	 *
+	 * @param tokenInfo the {@link TokenInfo} object, expires_in is in seconds as per the OAuth spec
+	 */
+	public void initToken(TokenInfo tokenInfo) {
+		tokenInfo.setTokenExpirationDateTime(LocalDateTime.now().plus(tokenInfo.getExpiresIn(), ChronoUnit.SECONDS));
+		this.tokenInfo = tokenInfo;
+	}
+	
+	/**
+	 * Builds {@link MpiContext} objects, {@link #load()} reads the values from the global properties,
+	 * the setters allow to specify them directly.
+	 */
+	public static class Builder {
+		
+		private String contentType;
 		
-		//TODO: Add global property listener to rebuild the SSL context when the GP values change
-		if (!this.contextInitialized) {
+		private AuthenticationType authenticationType;
+		
+		private boolean loaded;
+		
+		private SSLContext sslContext;
+		
+		private String serverBaseUrl;
+		
+		private MpiSystemType mpiSystem;
+		
+		private String openmrsUuidSystem;
+		
+		private String clientId;
+		
+		private String clientSecret;
+		
+		/**
+		 * Reads the values of the context from the global properties and sets up the SSL context or the
+		 * OAuth client credentials depending on the authentication type.
+		 *
+		 * @return this builder
+		 * @throws Exception
+		 */
+		public Builder load() throws Exception {
 			AdministrationService adminService = Context.getAdministrationService();
 			
 			String gpAuthenticationType = adminService.getGlobalProperty(GP_AUTHENTICATION_TYPE);
@@ -141,127 +296,118 @@ public class MpiContext {
 				initOauth();
 			}
 			
-			this.contextInitialized = true;
+			this.loaded = true;
+			
+			return this;
 		}
-	}
-	
-	protected void initOauth() {
-		AdministrationService adminService = Context.getAdministrationService();
-		
-		this.clientId = adminService.getGlobalProperty(GP_SANTE_CLIENT_ID);
 		
-		if (StringUtils.isBlank(this.clientId)) {
-			throw new APIException(GP_SANTE_CLIENT_ID + " global property value is not set");
+		protected void initOauth() {
+			AdministrationService adminService = Context.getAdministrationService();
+			
+			this.clientId = adminService.getGlobalProperty(GP_SANTE_CLIENT_ID);
+			
+			if (StringUtils.isBlank(this.clientId)) {
+				throw new APIException(GP_SANTE_CLIENT_ID + " global property value is not set");
+			}
+			
+			if (log.isDebugEnabled()) {
+				log.debug("Client Id: " + this.clientId);
+			}
+			
+			this.clientSecret = adminService.getGlobalProperty(GP_SANTE_CLIENT_SECRET);
+			
+			if (StringUtils.isBlank(this.clientSecret)) {
+				throw new APIException(GP_SANTE_CLIENT_SECRET + " global property value is not set");
+			}
 		}
 		
-		if (log.isDebugEnabled()) {
-			log.debug("Client Id: " + this.clientId);
+		protected void initSSL() throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
+		        FileNotFoundException, UnrecoverableKeyException, KeyManagementException {
+			
+			AdministrationService adminService = Context.getAdministrationService();
+			
+			log.info("Setting up SSL context using configured client certificate and MPI server base URL");
+			
+			String keyStorePath = adminService.getGlobalProperty(GP_KEYSTORE_PATH);
+			if (StringUtils.isBlank(keyStorePath)) {
+				throw new APIException(GP_KEYSTORE_PATH + " global property value is not set");
+			}
+			
+			String keyStorePass = adminService.getGlobalProperty(GP_KEYSTORE_PASS);
+			char[] keyStorePassArray = "".toCharArray();
+			if (keyStorePass != null) {
+				keyStorePassArray = keyStorePass.toCharArray();
+			}
+			
+			String keyStoreType = adminService.getGlobalProperty(GP_KEYSTORE_TYPE);
+			if (StringUtils.isBlank(keyStoreType)) {
+				throw new APIException(GP_KEYSTORE_TYPE + " global property value is not set");
+			}
+			
+			log.info("Keystore path: " + keyStorePath);
+			log.info("Keystore Type: " + keyStoreType);
+			
+			KeyStore ks = FhirUtils.getKeyStoreInstanceByType(keyStoreType, keyStorePath, keyStorePassArray);
+			
+			KeyManagerFactory kmf = FhirUtils.getKeyManagerFactoryInstance("SunX509");
+			kmf.init(ks, keyStorePassArray);
+			this.sslContext = FhirUtils.getSslContextByProtocol("TLSv1.2");
+			this.initSSLContext(this.sslContext, kmf);
+			
+			//We are communicating wih our own service that uses a self signed certificate so no need for
+			//host name verification
+			HttpsURLConnection.setDefaultHostnameVerifier((host, session) -> true);
 		}
 		
-		this.clientSecret = adminService.getGlobalProperty(GP_SANTE_CLIENT_SECRET);
+		protected void initSSLContext(SSLContext sslContext, KeyManagerFactory keyManagerFactory)
+		    throws KeyManagementException {
+			sslContext.init(keyManagerFactory.getKeyManagers(), null, new SecureRandom());
+		}
 		
-		if (StringUtils.isBlank(this.clientSecret)) {
-			throw new APIException(GP_SANTE_CLIENT_SECRET + " global property value is not set");
+		public Builder setContentType(String contentType) {
+			this.contentType = contentType;
+			return this;
 		}
-	}
-	
-	protected void initSSL() throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
-	        FileNotFoundException, UnrecoverableKeyException, KeyManagementException {
 		
-		AdministrationService adminService = Context.getAdministrationService();
+		public Builder setAuthenticationType(AuthenticationType authenticationType) {
+			this.authenticationType = authenticationType;
+			return this;
+		}
 		
-		log.info("Setting up SSL context using configured client certificate and MPI server base URL");
+		public Builder setSslContext(SSLContext sslContext) {
+			this.sslContext = sslContext;
+			return this;
+		}
 		
-		String keyStorePath = adminService.getGlobalProperty(GP_KEYSTORE_PATH);
-		if (StringUtils.isBlank(keyStorePath)) {
-			throw new APIException(GP_KEYSTORE_PATH + " global property value is not set");
+		public Builder setServerBaseUrl(String serverBaseUrl) {
+			this.serverBaseUrl = serverBaseUrl;
+			return this;
 		}
 		
-		String keyStorePass = adminService.getGlobalProperty(GP_KEYSTORE_PASS);
-		char[] keyStorePassArray = "".toCharArray();
-		if (keyStorePass != null) {
-			keyStorePassArray = keyStorePass.toCharArray();
+		public Builder setMpiSystem(MpiSystemType mpiSystem) {
+			this.mpiSystem = mpiSystem;
+			return this;
 		}
 		
-		String keyStoreType = adminService.getGlobalProperty(GP_KEYSTORE_TYPE);
-		if (StringUtils.isBlank(keyStoreType)) {
-			throw new APIException(GP_KEYSTORE_TYPE + " global property value is not set");
+		public Builder setOpenmrsUuidSystem(String openmrsUuidSystem) {
+			this.openmrsUuidSystem = openmrsUuidSystem;
+			return this;
 		}
 		
-		log.info("Keystore path: " + keyStorePath);
-		log.info("Keystore Type: " + keyStoreType);
+		public Builder setClientId(String clientId) {
+			this.clientId = clientId;
+			return this;
+		}
 		
-		KeyStore ks = FhirUtils.getKeyStoreInstanceByType(keyStoreType, keyStorePath, keyStorePassArray);
+		public Builder setClientSecret(String clientSecret) {
+			this.clientSecret = clientSecret;
+			return this;
+		}
 		
-		KeyManagerFactory kmf = FhirUtils.getKeyManagerFactoryInstance("SunX509");
-		kmf.init(ks, keyStorePassArray);
-		this.sslContext = FhirUtils.getSslContextByProtocol("TLSv1.2");
-		this.initSSLContext(this.sslContext, kmf);
+		public MpiContext build() {
+			return new MpiContext(this);
+		}
 		
-		//We are communicating wih our own service that uses a self signed certificate so no need for
-		//host name verification
-		HttpsURLConnection.setDefaultHostnameVerifier((host, session) -> true);
 	}
 	
-	protected void initSSLContext(SSLContext sslContext, KeyManagerFactory keyManagerFactory) throws KeyManagementException {
-		sslContext.init(keyManagerFactory.getKeyManagers(), null, new SecureRandom());
-	}
-	
-	public String getContentType() {
-		return contentType;
-	}
-	
-	public AuthenticationType getAuthenticationType() {
-		return authenticationType;
-	}
-	
-	public void setAuthenticationType(AuthenticationType authenticationType) {
-		this.authenticationType = authenticationType;
-	}
-	
-	public boolean isContextInitialized() {
-		return contextInitialized;
-	}
-	
-	public void setSslContext(SSLContext sslContext) {
-		this.sslContext = sslContext;
-	}
-	
-	public SSLContext getSslContext() {
-		return sslContext;
-	}
-	
-	public String getServerBaseUrl() {
-		return serverBaseUrl;
-	}
-	
-	public void setServerBaseUrl(String serverBaseUrl) {
-		this.serverBaseUrl = serverBaseUrl;
-	}
-	
-	public MpiSystemType getMpiSystem() {
-		return mpiSystem;
-	}
-	
-	public String getOpenmrsUuidSystem() {
-		return openmrsUuidSystem;
-	}
-	
-	public String getClientId() {
-		return clientId;
-	}
-	
-	public String getClientSecret() {
-		return clientSecret;
-	}
-	
-	public TokenInfo getTokenInfo() {
-		return tokenInfo;
-	}
-	
-	public void initToken(TokenInfo tokenInfo) {
-		this.tokenInfo = tokenInfo;
-		this.tokenInfo
-		        .setTokenExpirationDateTime(LocalDateTime.now().plus(this.tokenInfo.getExpiresIn(), ChronoUnit.MILLIS));
-	}
 }
@@ -1,32 +1,91 @@
 package org.openmrs.module.fgh.mpi.integ;
 
+import static java.util.Collections.singletonMap;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_CIRCUIT_BREAKER_FAILURE_RATE;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_CIRCUIT_BREAKER_MINIMUM_CALLS;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_CIRCUIT_BREAKER_OPEN_DURATION;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_CIRCUIT_BREAKER_SLOW_CALL_DURATION;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_CIRCUIT_BREAKER_WINDOW_SIZE;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_CONDITIONAL_UPDATE_SYSTEMS;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_ASYNC_THREAD_COUNT;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_CONCURRENCY_INITIAL_LIMIT;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_CONCURRENCY_MAX_LIMIT;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_CONNECT_TIMEOUT;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_POOL_IDLE_TIMEOUT;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_POOL_MAX_PER_ROUTE;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_POOL_MAX_TOTAL;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_POOL_VALIDATE_AFTER_INACTIVITY;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_RATE_LIMIT;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_RETRY_INITIAL_DELAY;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_RETRY_MAX_ATTEMPTS;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_RETRY_MAX_DELAY;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_TRANSPORT;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_PATIENT_CACHE_MAX_SIZE;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_PATIENT_CACHE_TTL;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_PATIENT_FILTER_EXPECTED_SIZE;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_PIX_BATCH_SIZE;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_SANTE_TOKEN_REFRESH_MARGIN;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.HTTP_REQUEST_SUCCESS_RANGE;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.HTTP_TRANSPORT_HTTP2;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.HTTP_TRANSPORT_POOLED;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.REQ_PARAM_SOURCE_ID;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.RESPONSE_FIELD_PARAM;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.RESPONSE_FIELD_VALUE_REF;
+import static org.openmrs.util.OpenmrsUtil.getApplicationDataDirectory;
 
-import java.io.OutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.net.HttpURLConnection;
-import java.time.LocalDateTime;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.MapUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.Range;
+import org.apache.commons.lang3.StringUtils;
 import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.fgh.mpi.crosswalk.MpiCrosswalk;
+import org.openmrs.module.fgh.mpi.crosswalk.MpiPatientFilter;
+import org.openmrs.module.fgh.mpi.entity.MpiSystemType;
 import org.openmrs.module.fgh.mpi.entity.TokenInfo;
+import org.openmrs.module.fgh.mpi.integ.AdaptiveLimiter.Outcome;
+import org.openmrs.module.fgh.mpi.ledger.ContentHashLedger;
+import org.openmrs.module.fgh.mpi.utils.MpiConstants;
 import org.openmrs.module.fgh.mpi.utils.MpiUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.stereotype.Component;
 
 /**
- * Http client that posts patient data to the MPI
+ * Http client that posts patient data to the MPI, each operation has an asynchronous variant that
+ * returns a CompletableFuture, the synchronous variants wait for the asynchronous ones to complete.
+ * The components shared by the requests are created on first use and published via volatile fields
+ * so that the requests read them without locking.
  */
 @Component("mpiHttpClient")
-public class MpiHttpClient {
+public class MpiHttpClient implements DisposableBean {
 	
 	private static final Logger log = LoggerFactory.getLogger(MpiHttpClient.class);
 	
@@ -34,8 +93,52 @@ public class MpiHttpClient {
 	
 	private static final String SUBPATH_PATIENT = SUBPATH_FHIR + "/Patient";
 	
+	private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+	
+	private static final String HEADER_ETAG = "ETag";
+	
 	private static final ObjectMapper MAPPER = new ObjectMapper();
 	
+	private static final int DEFAULT_TOKEN_REFRESH_MARGIN = 60000;
+	
+	private static final int DEFAULT_PIX_BATCH_SIZE = 100;
+	
+	public static final int DEFAULT_CROSSWALK_PAGE_SIZE = 500;
+	
+	private static final double PATIENT_FILTER_FALSE_POSITIVE_RATE = 0.01;
+	
+	private static final long RETIRED_TRANSPORT_CLOSE_DELAY = 300000;
+	
+	private static final long PATIENT_FILTER_SAVE_PERIOD = 300000;
+	
+	private static final long PATIENT_FILTER_SAVE_MARGIN = 60000;
+	
+	private volatile MpiHttpTransport transport;
+	
+	private volatile MpiContext transportContext;
+	
+	private volatile OAuthTokenManager tokenManager;
+	
+	private volatile CircuitBreaker circuitBreaker;
+	
+	private volatile RetryPolicy retryPolicy;
+	
+	private volatile Map<EndpointClass, AdaptiveLimiter> limiters;
+	
+	private volatile RequestRateLimiter rateLimiter;
+	
+	private volatile ExecutorService requestExecutor;
+	
+	private volatile MpiPatientCache patientCache;
+	
+	private volatile MpiPatientFilter patientFilter;
+	
+	private ScheduledExecutorService patientFilterSaver;
+	
+	private volatile Set<MpiSystemType> conditionalUpdateSystems;
+	
+	private int connectTimeout = MpiHttpRequest.DEFAULT_CONNECT_TIMEOUT;
+	
 	/**
 	 * Looks up the patient with the specified OpenMRS uuid from the MPI
 	 *
@@ -46,245 +149,1751 @@ public class MpiHttpClient {
 	public Map<String, Object> getPatient(String patientUuid) throws Exception {
 		MpiContext mpiContext = MpiContext.initIfNecessary();
 		
+		Map<String, Object> cachedPatient = getPatientCache().get(patientUuid);
+		if (cachedPatient != null) {
+			if (log.isDebugEnabled()) {
+				log.debug("Found cached MPI patient record with OpenMRS uuid: " + patientUuid);
+			}
+			
+			return cachedPatient;
+		}
+		
 		log.info("Looking up patient record from MPI with OpenMRS uuid: " + patientUuid);
 		
+		String mpiId = getCrosswalkMpiId(patientUuid);
+		if (mpiId != null) {
+			Map<String, Object> mpiPatient = getPatientById(patientUuid, mpiId);
+			if (mpiPatient != null) {
+				return mpiPatient;
+			}
+			
+			removeCrosswalkMpiId(patientUuid);
+		}
+		
 		if (log.isDebugEnabled()) {
 			log.debug("Searching for patient from MPI with OpenMRS uuid: " + patientUuid);
 		}
 		
-		String query = REQ_PARAM_SOURCE_ID + "=" + mpiContext.getOpenmrsUuidSystem() + "|" + patientUuid;
-		
-		Map<String, Object> pixResponse = submitRequest(SUBPATH_PATIENT + "/$ihe-pix?" + query, null, Map.class);
+		Map<String, Object> pixResponse = submitRequest(getPixRequestPath(mpiContext, patientUuid), null, Map.class);
 		
-		List<Map<String, Object>> ids = (List<Map<String, Object>>) pixResponse.get(RESPONSE_FIELD_PARAM);
-		if (CollectionUtils.isEmpty(ids)) {
+		String remoteRef = getRemoteRef(mpiContext, pixResponse);
+		if (remoteRef == null) {
 			return null;
 		}
 		
-		if (log.isDebugEnabled()) {
-			log.debug("Fetching actual patient record from MPI");
+		recordMpiIds(singletonMap(patientUuid, remoteRef));
+		Map<String, Object> mpiPatient = submitRequest(SUBPATH_PATIENT + "/" + remoteRef, null, Map.class);
+		getPatientCache().put(patientUuid, mpiPatient);
+		
+		return mpiPatient;
+	}
+	
+	/**
+	 * Fetches the patient with the specified MPI id and caches it, if an expired record of the patient
+	 * with a known version is cached it is revalidated with a conditional read so that the record is
+	 * only transferred if it changed in the MPI.
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @param mpiId the MPI id of the patient
+	 * @return map representation of the patient fhir resource or null if no patient is found
+	 * @throws Exception
+	 */
+	private Map<String, Object> getPatientById(String patientUuid, String mpiId) throws Exception {
+		final String path = SUBPATH_PATIENT + "/" + mpiId;
+		try {
+			String version = getPatientCache().getVersion(patientUuid);
+			if (version != null) {
+				ConditionalReadResult result = submitRequest(MpiHttpRequest.METHOD_GET, path, null,
+				    getConditionalReadHeaders(version), ConditionalReadResult.class);
+				if (result == null) {
+					return null;
+				}
+				
+				Map<String, Object> mpiPatient = getRevalidatedPatient(patientUuid, result);
+				if (mpiPatient != null) {
+					return mpiPatient;
+				}
+			}
+			
+			Map<String, Object> mpiPatient = submitRequest(path, null, Map.class);
+			if (MapUtils.isEmpty(mpiPatient)) {
+				return null;
+			}
+			
+			getPatientCache().put(patientUuid, mpiPatient);
+			return mpiPatient;
+		}
+		catch (MpiHttpException e) {
+			if (isNotFound(e)) {
+				return null;
+			}
+			
+			throw e;
+		}
+	}
+	
+	/**
+	 * Asynchronous variant of {@link #getPatientById(String, String)}, the returned future is completed
+	 * with an empty map if no patient is found
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @param mpiId the MPI id of the patient
+	 * @return a CompletableFuture that is completed with the map representation of the patient fhir
+	 *         resource
+	 */
+	private CompletableFuture<Map> getPatientByIdAsync(String patientUuid, String mpiId) {
+		final String path = SUBPATH_PATIENT + "/" + mpiId;
+		String version = getPatientCache().getVersion(patientUuid);
+		if (version == null) {
+			return fetchAndCachePatientAsync(patientUuid, path);
 		}
 		
-		String remoteRef = null;
+		CompletableFuture<ConditionalReadResult> future = submitRequestAsync(MpiHttpRequest.METHOD_GET, path, null,
+		    getConditionalReadHeaders(version), ConditionalReadResult.class);
 		
-		if (mpiContext.getMpiSystem().isSanteMPI()) {
-			remoteRef = (ids.get(ids.size() - 1).get(RESPONSE_FIELD_VALUE_REF).toString().split("/")[1]).split(",")[0];
-		} else if (mpiContext.getMpiSystem().isOpenCr()) {
-			String[] patientUrlParts = ids.get(0).get(RESPONSE_FIELD_VALUE_REF).toString().split("/");
+		return future.thenCompose(result -> {
+			Map<String, Object> mpiPatient = result == null ? MapUtils.EMPTY_MAP : getRevalidatedPatient(patientUuid, result);
+			if (mpiPatient != null) {
+				return CompletableFuture.<Map> completedFuture(mpiPatient);
+			}
+			
+			return fetchAndCachePatientAsync(patientUuid, path);
+		});
+	}
+	
+	private CompletableFuture<Map> fetchAndCachePatientAsync(String patientUuid, String path) {
+		CompletableFuture<Map> future = submitRequestAsync(path, null, Map.class);
+		return future.thenApply(mpiPatient -> {
+			if (!MapUtils.isEmpty(mpiPatient)) {
+				getPatientCache().put(patientUuid, mpiPatient);
+			}
+			
+			return mpiPatient;
+		});
+	}
+	
+	/**
+	 * Gets the patient record from the result of a conditional read, if the version is unchanged the
+	 * cached record is renewed and returned otherwise the record read from the MPI is cached with its
+	 * new version and returned.
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @param result the {@link ConditionalReadResult} object
+	 * @return map representation of the patient fhir resource or null if the MPI reported the record as
+	 *         unchanged but it was since evicted from the cache
+	 */
+	private Map<String, Object> getRevalidatedPatient(String patientUuid, ConditionalReadResult result) {
+		Map<String, Object> mpiPatient = getPatientCache().revalidate(patientUuid, result.getVersion());
+		if (mpiPatient != null) {
+			if (log.isDebugEnabled()) {
+				log.debug("Cached MPI patient record with OpenMRS uuid: " + patientUuid + " is unchanged");
+			}
 			
-			remoteRef = patientUrlParts[patientUrlParts.length - 1];
-		} else
-			throw new APIException("Unsupported MPI System!!! [" + mpiContext.getMpiSystem() + "]");
+			return mpiPatient;
+		}
 		
-		return submitRequest(SUBPATH_PATIENT + "/" + remoteRef, null, Map.class);
+		if (!result.isNotModified()) {
+			getPatientCache().put(patientUuid, result.getResource(), result.getVersion());
+		}
 		
+		return result.getResource();
+	}
+	
+	private Map<String, String> getConditionalReadHeaders(String version) {
+		return singletonMap(HEADER_IF_NONE_MATCH, "W/\"" + version + "\"");
+	}
+	
+	private boolean isNotFound(Throwable error) {
+		return error instanceof MpiHttpException
+		        && ((MpiHttpException) error).getStatusCode() == HttpURLConnection.HTTP_NOT_FOUND;
 	}
 	
 	/**
-	 * Submits the specified bundle data to the MPI
+	 * Asynchronously looks up the patient with the specified OpenMRS uuid from the MPI
 	 *
-	 * @param bundleData the bundle fhir json payload
-	 * @throws Exception
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @return a CompletableFuture that is completed with the map representation of the patient fhir
+	 *         resource or null if no patient is found
 	 */
-	public <T> T submitBundle(String fhirURL, String bundleData, Class<T> responseType) throws Exception {
-		log.info("Submitting patient bundle to the MPI");
+	public CompletableFuture<Map<String, Object>> getPatientAsync(String patientUuid) {
+		final MpiContext mpiContext;
+		try {
+			mpiContext = MpiContext.initIfNecessary();
+		}
+		catch (Exception e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		
+		Map<String, Object> cachedPatient = getPatientCache().get(patientUuid);
+		if (cachedPatient != null) {
+			return CompletableFuture.completedFuture(cachedPatient);
+		}
 		
-		T response = submitRequest(fhirURL, bundleData, responseType);
+		final String mpiId = getCrosswalkMpiId(patientUuid);
+		CompletableFuture<Map<String, Object>> byIdFuture = CompletableFuture.completedFuture(null);
+		if (mpiId != null) {
+			byIdFuture = getPatientByIdAsync(patientUuid, mpiId).handle((mpiPatient, error) -> {
+				Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause()
+				        : error;
+				if (cause != null && !isNotFound(cause)) {
+					throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+				}
+				
+				return MapUtils.isEmpty(mpiPatient) ? null : (Map<String, Object>) mpiPatient;
+			});
+		}
 		
+		return byIdFuture.thenCompose(mpiPatient -> {
+			if (mpiPatient != null) {
+				return CompletableFuture.completedFuture(mpiPatient);
+			}
+			
+			if (mpiId != null) {
+				removeCrosswalkMpiId(patientUuid);
+			}
+			
+			return getPatientUsingPixAsync(mpiContext, patientUuid);
+		});
+	}
+	
+	private CompletableFuture<Map<String, Object>> getPatientUsingPixAsync(MpiContext mpiContext, String patientUuid) {
 		if (log.isDebugEnabled()) {
-			log.debug("MPI patient bundle submission response: " + response);
+			log.debug("Searching for patient from MPI with OpenMRS uuid: " + patientUuid);
 		}
 		
-		log.info("Successfully submitted the patient bundle to the MPI");
+		CompletableFuture<Map> pixFuture = submitRequestAsync(getPixRequestPath(mpiContext, patientUuid), null, Map.class);
 		
-		return response;
+		return pixFuture.thenCompose(pixResponse -> {
+			String remoteRef = getRemoteRef(mpiContext, pixResponse);
+			if (remoteRef == null) {
+				return CompletableFuture.completedFuture(null);
+			}
+			
+			recordMpiIds(singletonMap(patientUuid, remoteRef));
+			return submitRequestAsync(SUBPATH_PATIENT + "/" + remoteRef, null, Map.class).thenApply(patient -> {
+				getPatientCache().put(patientUuid, patient);
+				return (Map<String, Object>) patient;
+			});
+		});
 	}
 	
 	/**
-	 * Submits the specified patient data to the MPI
+	 * Looks up the patients with the specified OpenMRS uuids from the MPI using FHIR batch bundles of
+	 * GET entries, the first bundle resolves the MPI identifiers of all the patients with PIX queries
+	 * and the second fetches the matching patient resources, the uuids are split into bundles of at
+	 * most the configured PIX batch size. The returned map has an entry for each patient that was
+	 * resolved, the value is null if no patient was found in the MPI, patients for which the MPI
+	 * returned an error entry are left out so that the caller can look them up individually. Patients
+	 * with a known MPI id in the {@link MpiCrosswalk} are fetched directly without a PIX query and those
+	 * that the {@link MpiPatientFilter} reports as definitely absent are not looked up at all.
 	 *
-	 * @param patientData the patient fhir json payload
+	 * @param patientUuids the patients' OpenMRS uuids
+	 * @return map of OpenMRS uuids to map representations of the patient fhir resources
 	 * @throws Exception
 	 */
-	public void submitPatient(String patientData) throws Exception {
+	public Map<String, Map<String, Object>> getPatients(Collection<String> patientUuids) throws Exception {
 		MpiContext mpiContext = MpiContext.initIfNecessary();
+		Map<String, Map<String, Object>> patients = new HashMap(patientUuids.size());
+		List<String> uuids = new ArrayList(patientUuids.size());
+		for (String uuid : patientUuids) {
+			Map<String, Object> cachedPatient = getPatientCache().get(uuid);
+			if (cachedPatient != null) {
+				patients.put(uuid, cachedPatient);
+			} else if (isAbsentFromMpi(uuid)) {
+				patients.put(uuid, null);
+			} else {
+				uuids.add(uuid);
+			}
+		}
 		
-		log.info("Submitting patient record to the MPI");
-		if (log.isDebugEnabled()) {
-			log.debug("Patient data -> " + patientData);
+		int batchSize = MpiUtils.getGlobalPropertyAsInt(GP_PIX_BATCH_SIZE, DEFAULT_PIX_BATCH_SIZE);
+		if (batchSize <= 0) {
+			batchSize = DEFAULT_PIX_BATCH_SIZE;
 		}
 		
-		if (mpiContext.getMpiSystem().isSanteMPI()) {
-			Map<String, Object> santeResponse = submitRequest(SUBPATH_PATIENT, patientData, Map.class);
+		log.info("Looking up " + uuids.size() + " patient record(s) from MPI in batches of " + batchSize);
+		
+		Map<String, String> knownMpiIds = getCrosswalkMpiIds(uuids);
+		for (int i = 0; i < uuids.size(); i += batchSize) {
+			List<String> batch = uuids.subList(i, Math.min(i + batchSize, uuids.size()));
+			Map<String, String> uuidAndRemoteRefs = new LinkedHashMap();
+			List<String> unknown = new ArrayList(batch.size());
+			for (String uuid : batch) {
+				if (knownMpiIds.containsKey(uuid)) {
+					uuidAndRemoteRefs.put(uuid, knownMpiIds.get(uuid));
+				} else {
+					unknown.add(uuid);
+				}
+			}
 			
-			if (log.isDebugEnabled()) {
-				log.debug("MPI patient submission response: " + santeResponse);
+			if (!unknown.isEmpty()) {
+				List<String> pixQueries = new ArrayList(unknown.size());
+				for (String uuid : unknown) {
+					pixQueries.add(getPixQuery(mpiContext, uuid));
+				}
+				
+				List<Map<String, Object>> pixResponses = submitBatchGet(pixQueries, EndpointClass.PIX_LOOKUP);
+				Map<String, String> resolved = new HashMap(unknown.size());
+				for (int j = 0; j < unknown.size(); j++) {
+					Map<String, Object> pixResponse = pixResponses.get(j);
+					if (pixResponse == null) {
+						continue;
+					}
+					
+					String remoteRef = getRemoteRef(mpiContext, pixResponse);
+					if (remoteRef == null) {
+						patients.put(unknown.get(j), null);
+					} else {
+						resolved.put(unknown.get(j), remoteRef);
+					}
+				}
+				
+				uuidAndRemoteRefs.putAll(resolved);
+				recordMpiIds(resolved);
 			}
 			
-			if (MapUtils.isEmpty(santeResponse)) {
-				throw new APIException("An empty response was received when the patient was submitted");
+			if (uuidAndRemoteRefs.isEmpty()) {
+				continue;
 			}
-		} else {
-			List<Map<String, Object>> mpiIdsResp = submitRequest(SUBPATH_PATIENT, patientData, List.class);
 			
-			if (log.isDebugEnabled()) {
-				log.debug("MPI patient submission response: " + mpiIdsResp);
+			List<String> patientReads = new ArrayList(uuidAndRemoteRefs.size());
+			for (String remoteRef : uuidAndRemoteRefs.values()) {
+				patientReads.add("Patient/" + remoteRef);
 			}
 			
-			if (CollectionUtils.isEmpty(mpiIdsResp) || mpiIdsResp.get(0) == null) {
-				throw new APIException("An empty response was received when the patient was submitted");
+			List<Map<String, Object>> mpiPatients = submitBatchGet(patientReads, EndpointClass.PATIENT_GET);
+			int j = 0;
+			for (String uuid : uuidAndRemoteRefs.keySet()) {
+				Map<String, Object> mpiPatient = mpiPatients.get(j++);
+				if (mpiPatient == null) {
+					continue;
+				}
+				
+				if (!mpiPatient.isEmpty()) {
+					patients.put(uuid, mpiPatient);
+					getPatientCache().put(uuid, mpiPatient);
+				} else if (knownMpiIds.containsKey(uuid)) {
+					//The crosswalk entry is stale, leave the patient out to be looked up with a PIX query
+					removeCrosswalkMpiId(uuid);
+				} else {
+					patients.put(uuid, null);
+				}
 			}
 		}
 		
-		log.info("Successfully submitted the patient record to the MPI");
+		if (log.isDebugEnabled()) {
+			log.debug("Resolved " + patients.size() + " of " + patientUuids.size() + " patient(s) from MPI or cache");
+		}
+		
+		return patients;
 	}
 	
-	private <T> void retriveAccessToken(Class<T> responseType) throws Exception {
-		MpiContext mpiContext = MpiContext.initIfNecessary();
+	/**
+	 * Submits a FHIR batch bundle with a GET entry for each of the specified urls
+	 *
+	 * @param urls the urls relative to the fhir base url
+	 * @param endpointClass the {@link EndpointClass} of the GET entries
+	 * @return list of the resources returned in the same order as the urls, the resource is an empty
+	 *         map if the MPI returned a 404 entry and null if it returned any other error entry
+	 * @throws Exception
+	 */
+	private List<Map<String, Object>> submitBatchGet(List<String> urls, EndpointClass endpointClass) throws Exception {
+		List<Map<String, Object>> entries = new ArrayList(urls.size());
+		for (String url : urls) {
+			Map<String, Object> request = new HashMap(2);
+			request.put("method", MpiHttpRequest.METHOD_GET);
+			request.put("url", url);
+			entries.add(singletonMap("request", request));
+		}
 		
-		String data = "grant_type=client_credentials" + "&" + "scope=*" + "&" + "client_secret="
-		        + mpiContext.getClientSecret() + "&" + "client_id=" + mpiContext.getClientId();
+		Map<String, Object> bundle = new HashMap(3);
+		bundle.put(MpiConstants.FIELD_RESOURCE_TYPE, MpiConstants.BUNDLE);
+		bundle.put(MpiConstants.FIELD_TYPE, MpiConstants.BATCH);
+		bundle.put(MpiConstants.FIELD_ENTRY, entries);
 		
-		// Request a Refresh token in case it expires 
-		if (mpiContext.getTokenInfo() != null) {
-			
-			if (!mpiContext.getTokenInfo().isValid(LocalDateTime.now())) {
-				//Implement a refresh token method
-				data = "grant_type=refresh_token&refresh_token=" + mpiContext.getTokenInfo().getRefreshToken() + "&"
-				        + "client_secret=" + mpiContext.getClientSecret() + "&" + "client_id=" + mpiContext.getClientId();
-				this.doAuthentication(data);
+		Object response = submitReadRequest(SUBPATH_FHIR, MAPPER.writeValueAsString(bundle), endpointClass, Object.class);
+		List<Map<String, Object>> responseEntries = null;
+		if (response instanceof Map) {
+			responseEntries = (List<Map<String, Object>>) ((Map) response).get(MpiConstants.FIELD_ENTRY);
+		}
+		
+		if (responseEntries == null || responseEntries.size() != urls.size()) {
+			throw new APIException("Unexpected batch response from MPI for " + urls.size() + " GET entries");
+		}
+		
+		List<Map<String, Object>> resources = new ArrayList(urls.size());
+		for (Map<String, Object> entry : responseEntries) {
+			Map<String, Object> entryResponse = (Map) entry.get("response");
+			String status = entryResponse == null ? "" : String.valueOf(entryResponse.get("status"));
+			if (status.startsWith("2") && entry.get(MpiConstants.FIELD_RESOURCE) != null) {
+				resources.add((Map) entry.get(MpiConstants.FIELD_RESOURCE));
+			} else if (status.startsWith("404")) {
+				resources.add(MapUtils.EMPTY_MAP);
+			} else {
+				if (log.isDebugEnabled()) {
+					log.debug("MPI returned status " + status + " for batch entry");
+				}
+				
+				resources.add(null);
 			}
-		} else {
-			// Normal Login 
-			this.doAuthentication(data);
 		}
+		
+		return resources;
 	}
 	
-	protected void doAuthentication(String data) throws Exception {
-		MpiContext mpiContext = MpiContext.initIfNecessary();
+	/**
+	 * Submits the specified batch bundle to OpenCR, since the response does not identify the patients
+	 * that failed, the patients in the bundle are only recorded as submitted if OpenCR processed all of
+	 * them otherwise they are all removed from the cache and an exception is thrown so that each patient
+	 * is submitted again.
+	 *
+	 * @param bundleData the batch bundle fhir json payload
+	 * @param patientCount the number of patients in the bundle
+	 * @return the response from the MPI
+	 * @throws Exception
+	 */
+	public List<Object> submitBatchBundle(String bundleData, int patientCount) throws Exception {
+		log.info("Submitting patient batch bundle to the MPI");
 		
-		String uri = "/auth/oauth2_token";
-		String url = mpiContext.getServerBaseUrl() + uri;
+		List<Object> response;
+		try {
+			response = submitRequest(SUBPATH_FHIR, bundleData, List.class);
+		}
+		catch (Exception e) {
+			invalidateCachedPatients(bundleData);
+			throw e;
+		}
+		
+		//OpenCR returns 2 entries for each successfully processed patient
+		int successPatientCount = response.size() / 2;
+		if (successPatientCount != patientCount) {
+			invalidateCachedPatients(bundleData);
+			throw new APIException(
+			        (patientCount - successPatientCount) + " patient(s) in the batch were not successfully processed by the MPI");
+		}
 		
-		HttpURLConnection connection = MpiUtils.openConnection(url);
+		recordSubmission(bundleData, response);
 		
-		Range<Integer> successRange = Range.between(200, 299);
+		log.info("All patients in the batch were successfully processed by the MPI");
+		
+		return response;
+	}
+	
+	/**
+	 * Submits the specified bundle data to the MPI
+	 *
+	 * @param bundleData the bundle fhir json payload
+	 * @throws Exception
+	 */
+	public <T> T submitBundle(String fhirURL, String bundleData, Class<T> responseType) throws Exception {
+		log.info("Submitting patient bundle to the MPI");
 		
+		T response;
 		try {
-			connection.setRequestProperty("Content-type", "application/x-www-form-urlencoded");
-			connection.setRequestProperty("Content-Length", Integer.toString(data.getBytes().length));
-			
-			connection.setConnectTimeout(30000);
-			connection.setUseCaches(false);
-			connection.setDoInput(true);
-			connection.setDoOutput(true);
-			connection.setRequestMethod("POST");
-			
-			connection.connect();
-			
-			OutputStream out = connection.getOutputStream();
-			out.write(data.getBytes());
-			out.flush();
-			out.close();
-			
-			if (!successRange.contains(connection.getResponseCode())) {
-				final String error = connection.getResponseCode() + " " + connection.getResponseMessage();
-				throw new APIException("Unexpected response " + error + " from MPI");
-			}
-			
-			mpiContext.initToken(MAPPER.readValue(connection.getInputStream(), TokenInfo.class));
+			response = submitRequest(fhirURL, bundleData, responseType);
 		}
-		finally {
-			if (connection != null) {
-				connection.disconnect();
-			}
+		catch (Exception e) {
+			invalidateCachedPatients(bundleData);
+			throw e;
+		}
+		
+		recordSubmission(bundleData, response);
+		
+		if (log.isDebugEnabled()) {
+			log.debug("MPI patient bundle submission response: " + response);
 		}
+		
+		log.info("Successfully submitted the patient bundle to the MPI");
+		
+		return response;
 	}
 	
 	/**
-	 * Submits a request to the MPI
+	 * Asynchronously submits the specified bundle data to the MPI
 	 *
-	 * @param requestPath the string to append to the URL
-	 * @param data the data to post if any
+	 * @param fhirURL the path to which to post the bundle
+	 * @param bundleData the bundle fhir json payload
 	 * @param responseType the type of response to return
-	 * @param <T>
-	 * @return the response from the MPI
-	 * @throws Exception
+	 * @return a CompletableFuture that is completed with the response from the MPI
 	 */
-	protected <T> T submitRequest(String requestPath, String data, Class<T> responseType) throws Exception {
-		MpiContext mpiContext = MpiContext.initIfNecessary();
-		String url = mpiContext.getServerBaseUrl() + "/" + requestPath;
-		int responseCode = 0;
+	public <T> CompletableFuture<T> submitBundleAsync(String fhirURL, String bundleData, Class<T> responseType) {
+		log.info("Submitting patient bundle to the MPI");
 		
-		HttpURLConnection connection = null;
+		CompletableFuture<T> future = submitRequestAsync(fhirURL, bundleData, responseType)
+		        .whenComplete((response, error) -> updatePatientCache(bundleData, response, error));
 		
-		if (mpiContext.getAuthenticationType().isOuath()) {
-			retriveAccessToken(responseType);
-			
-			connection = MpiUtils.openConnection(url);
-			
-			String authHeaderValue = "bearer " + mpiContext.getTokenInfo().getAccessToken();
+		return future.thenApply(response -> {
+			if (log.isDebugEnabled()) {
+				log.debug("MPI patient bundle submission response: " + response);
+			}
 			
-			connection.setRequestProperty("Authorization", authHeaderValue);
-		} else if (mpiContext.getAuthenticationType().isCertificate()) {
+			log.info("Successfully submitted the patient bundle to the MPI");
 			
-			connection = MpiUtils.openConnectionForSSL(url, mpiContext);
-		} else {
-			throw new APIException("Unsupported Authentication type");
+			return response;
+		});
+	}
+	
+	/**
+	 * Submits the specified patient data to the MPI
+	 *
+	 * @param patientData the patient fhir json payload
+	 * @throws Exception
+	 */
+	public void submitPatient(String patientData) throws Exception {
+		MpiContext mpiContext = MpiContext.initIfNecessary();
+		
+		log.info("Submitting patient record to the MPI");
+		if (log.isDebugEnabled()) {
+			log.debug("Patient data -> " + patientData);
 		}
 		
+		Object response;
 		try {
-			connection.setRequestProperty("Accept", mpiContext.getContentType());
-			connection.setDoInput(true);
-			connection.setConnectTimeout(30000);
-			connection.setUseCaches(false);
-			
-			if (data != null) {
-				connection.setRequestMethod("POST");
-				connection.setRequestProperty("Content-Type", mpiContext.getContentType());
-				connection.setDoOutput(true);
-			} else {
-				connection.setRequestMethod("GET");
-			}
-			
-			if (log.isDebugEnabled()) {
-				log.debug("Making http request to MPI");
-			}
-			
-			connection.connect();
-			
-			if (data != null) {
-				OutputStream out = connection.getOutputStream();
-				out.write(data.getBytes());
-				out.flush();
-				out.close();
-			}
-			
-			responseCode = connection.getResponseCode();
-			
-			if (mpiContext.getMpiSystem().isSanteMPI()) {
-				if (!HTTP_REQUEST_SUCCESS_RANGE.contains(responseCode)) {
-					if (responseCode == 404) {
-						return (T) MapUtils.EMPTY_MAP;
-					}
-					handleUnexpectedResponse(responseCode, connection.getResponseMessage());
-				}
-			} else if (mpiContext.getMpiSystem().isOpenCr()) {
-				if (responseCode != 200) {
-					handleUnexpectedResponse(responseCode, connection.getResponseMessage());
-				}
-			}
-			return MAPPER.readValue(connection.getInputStream(), responseType);
+			response = submitRequest(SUBPATH_PATIENT, patientData, getPatientResponseType(mpiContext));
+			checkPatientSubmissionResponse(response);
 		}
-		finally {
-			if (connection != null) {
-				connection.disconnect();
-			}
+		catch (Exception e) {
+			invalidateCachedPatients(patientData);
+			throw e;
+		}
+		
+		recordSubmission(patientData, response);
+		
+		log.info("Successfully submitted the patient record to the MPI");
+	}
+	
+	/**
+	 * Asynchronously submits the specified patient data to the MPI
+	 *
+	 * @param patientData the patient fhir json payload
+	 * @return a CompletableFuture that is completed when the patient is submitted
+	 */
+	public CompletableFuture<Void> submitPatientAsync(String patientData) {
+		final MpiContext mpiContext;
+		try {
+			mpiContext = MpiContext.initIfNecessary();
+		}
+		catch (Exception e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Patient data -> " + patientData);
+		}
+		
+		Class<Object> type = getPatientResponseType(mpiContext);
+		return submitRequestAsync(SUBPATH_PATIENT, patientData, type).thenApply(response -> {
+			checkPatientSubmissionResponse(response);
+			return response;
+		}).whenComplete((response, error) -> updatePatientCache(patientData, response, error)).thenAccept(response -> {
+			log.info("Successfully submitted the patient record to the MPI");
+		});
+	}
+	
+	/**
+	 * Submits the specified patient data to the MPI as a FHIR conditional update i.e. a PUT to
+	 * Patient?identifier={uuidSystem}|{uuid} which creates or replaces the patient with the specified
+	 * uuid in a single request without looking it up first. If the MPI rejects the request because it
+	 * does not support conditional updates i.e. with a 404, 405 or 501 status, they are disabled for the
+	 * rest of the runtime, in that case or if the identifier matches multiple patients false is returned
+	 * so that the caller can fall back to a lookup followed by a regular submission. Any other error
+	 * including a 400 status is a failure to submit this patient and is rethrown.
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @param patientData the patient fhir json payload
+	 * @return true if the patient was submitted otherwise false
+	 * @throws Exception
+	 */
+	public boolean updatePatient(String patientUuid, String patientData) throws Exception {
+		MpiContext mpiContext = MpiContext.initIfNecessary();
+		
+		log.info("Submitting patient record to the MPI as a conditional update");
+		if (log.isDebugEnabled()) {
+			log.debug("Patient data -> " + patientData);
+		}
+		
+		String path = SUBPATH_PATIENT + "?identifier=" + mpiContext.getOpenmrsUuidSystem() + "|" + patientUuid;
+		Object response;
+		try {
+			response = submitRequest(MpiHttpRequest.METHOD_PUT, path, patientData, Object.class);
+		}
+		catch (MpiHttpException e) {
+			invalidateCachedPatients(patientData);
+			switch (e.getStatusCode()) {
+				case HttpURLConnection.HTTP_NOT_FOUND:
+				case HttpURLConnection.HTTP_BAD_METHOD:
+				case HttpURLConnection.HTTP_NOT_IMPLEMENTED:
+					log.warn("The MPI rejected the conditional update with status " + e.getStatusCode()
+					        + ", disabling conditional updates");
+					synchronized (this) {
+						conditionalUpdateSystems = EnumSet.noneOf(MpiSystemType.class);
+					}
+					return false;
+				case HttpURLConnection.HTTP_PRECON_FAILED:
+					log.warn("The identifier of the patient matches multiple patients in the MPI, falling back to a "
+					        + "regular submission");
+					return false;
+			}
+			
+			throw e;
+		}
+		catch (Exception e) {
+			invalidateCachedPatients(patientData);
+			throw e;
+		}
+		
+		recordSubmission(patientData, response);
+		
+		log.info("Successfully submitted the patient record to the MPI");
+		
+		return true;
+	}
+	
+	/**
+	 * Checks if patients should be submitted with {@link #updatePatient(String, String)} for the
+	 * configured MPI system, the MPI systems for which conditional updates are enabled are specified
+	 * via a global property.
+	 *
+	 * @return true if conditional updates are enabled otherwise false
+	 * @throws Exception
+	 */
+	public boolean isConditionalUpdateEnabled() throws Exception {
+		MpiContext mpiContext = MpiContext.initIfNecessary();
+		Set<MpiSystemType> systems = conditionalUpdateSystems;
+		if (systems == null) {
+			systems = loadConditionalUpdateSystems();
+		}
+		
+		return systems.contains(mpiContext.getMpiSystem());
+	}
+	
+	private synchronized Set<MpiSystemType> loadConditionalUpdateSystems() {
+		if (conditionalUpdateSystems == null) {
+			Set<MpiSystemType> systems = EnumSet.noneOf(MpiSystemType.class);
+			String value = MpiUtils.getGlobalPropertyValue(GP_CONDITIONAL_UPDATE_SYSTEMS);
+			for (String system : StringUtils.split(StringUtils.trimToEmpty(value), ",")) {
+				systems.add(MpiSystemType.valueOf(system.trim().toUpperCase()));
+			}
+			
+			conditionalUpdateSystems = systems;
+		}
+		
+		return conditionalUpdateSystems;
+	}
+	
+	/**
+	 * Caches the patient records in the specified submitted data if the submission succeeded otherwise
+	 * removes them from the cache
+	 *
+	 * @param data the submitted patient or bundle json payload
+	 * @param error the submission error if any
+	 */
+	private void updatePatientCache(String data, Object response, Throwable error) {
+		if (error == null) {
+			recordSubmission(data, response);
+		} else {
+			invalidateCachedPatients(data);
+		}
+	}
+	
+	/**
+	 * Caches the patient records in the specified successfully submitted data along with their content
+	 * hashes in the {@link ContentHashLedger} and records in the {@link MpiCrosswalk} the MPI ids of any
+	 * patient resources found in the response, the cached records are given the MPI versions of the
+	 * matching patient resources in the response if any.
+	 *
+	 * @param data the submitted patient or bundle json payload
+	 * @param response the response from the MPI
+	 */
+	private void recordSubmission(String data, Object response) {
+		MpiPatientCache cache = getPatientCache();
+		MpiPatientFilter filter = getPatientFilter();
+		Map<String, String> uuidAndHashes = new HashMap();
+		try {
+			MpiContext mpiContext = MpiContext.initIfNecessary();
+			Map<String, String> versions = new HashMap();
+			if (response instanceof Map) {
+				for (Map<String, Object> patient : getPatientResources((Map<String, Object>) response)) {
+					String uuid = getOpenmrsUuid(mpiContext, patient);
+					if (uuid != null && MpiPatientCache.getVersion(patient) != null) {
+						versions.put(uuid, MpiPatientCache.getVersion(patient));
+					}
+				}
+			}
+			
+			Map<String, Object> resource = MAPPER.readValue(data, Map.class);
+			for (Map<String, Object> patient : getPatientResources(resource)) {
+				String uuid = getOpenmrsUuid(mpiContext, patient);
+				if (uuid != null) {
+					filter.put(uuid);
+					cache.put(uuid, patient, versions.get(uuid));
+					uuidAndHashes.put(uuid, ContentHashLedger.hash(patient));
+				}
+			}
+		}
+		catch (Exception e) {
+			log.warn("Failed to cache the submitted patient record(s), clearing the cache", e);
+			cache.invalidateAll();
+		}
+		
+		if (!uuidAndHashes.isEmpty()) {
+			try {
+				ContentHashLedger.saveAll(uuidAndHashes);
+			}
+			catch (Exception e) {
+				log.warn("Failed to record the content hashes of the submitted patient(s)", e);
+			}
+		}
+		
+		if (response instanceof Map) {
+			try {
+				recordMpiIds(getMpiIds(MpiContext.initIfNecessary(), (Map) response));
+			}
+			catch (Exception e) {
+				log.warn("Failed to record the MPI ids of the submitted patient(s)", e);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the MPI ids of the patient resources with an OpenMRS uuid identifier in the specified
+	 * resource, if it is a bundle the patient resources are looked up in its entries including those of
+	 * nested bundles.
+	 *
+	 * @param mpiContext the {@link MpiContext} object
+	 * @param resource the resource
+	 * @return map of OpenMRS uuids to MPI ids
+	 */
+	private Map<String, String> getMpiIds(MpiContext mpiContext, Map<String, Object> resource) {
+		Map<String, String> uuidAndMpiIds = new HashMap();
+		for (Map<String, Object> patient : getPatientResources(resource)) {
+			String uuid = getOpenmrsUuid(mpiContext, patient);
+			if (uuid != null && patient.get(MpiConstants.FIELD_ID) != null) {
+				uuidAndMpiIds.put(uuid, patient.get(MpiConstants.FIELD_ID).toString());
+			}
+		}
+		
+		return uuidAndMpiIds;
+	}
+	
+	/**
+	 * Pages through all the patients in the MPI requesting only their identifiers and records their
+	 * MPI ids in the {@link MpiCrosswalk}, this primes the crosswalk so that later lookups do not need
+	 * PIX queries. The {@link MpiPatientFilter} is rebuilt from the same pages and replaces the current
+	 * one as a complete filter once all the pages are read.
+	 *
+	 * @param pageSize the number of patients to request per page
+	 * @return the count of patients recorded in the crosswalk
+	 * @throws Exception
+	 */
+	public int primeCrosswalk(int pageSize) throws Exception {
+		MpiContext mpiContext = MpiContext.initIfNecessary();
+		
+		log.info("Priming the MPI crosswalk with pages of " + pageSize + " patient(s)");
+		
+		int count = 0;
+		MpiPatientFilter filter = createPatientFilter();
+		String path = SUBPATH_PATIENT + "?_elements=identifier&_count=" + pageSize;
+		while (path != null) {
+			Map<String, Object> page = submitRequest(path, null, Map.class);
+			Map<String, String> uuidAndMpiIds = getMpiIds(mpiContext, page);
+			MpiCrosswalk.saveAll(uuidAndMpiIds);
+			uuidAndMpiIds.keySet().forEach(filter::put);
+			count += uuidAndMpiIds.size();
+			
+			if (log.isDebugEnabled()) {
+				log.debug("Recorded " + count + " patient(s) in the MPI crosswalk so far");
+			}
+			
+			path = getNextPagePath(mpiContext, page);
+		}
+		
+		log.info("Recorded " + count + " patient(s) in the MPI crosswalk");
+		
+		replacePatientFilter(filter);
+		
+		return count;
+	}
+	
+	/**
+	 * Gets the path of the next page of the specified search result bundle relative to the MPI base url
+	 *
+	 * @param mpiContext the {@link MpiContext} object
+	 * @param page the search result bundle
+	 * @return the path or null if there is no next page
+	 */
+	private String getNextPagePath(MpiContext mpiContext, Map<String, Object> page) {
+		List<Map<String, Object>> links = (List) page.get("link");
+		if (links == null) {
+			return null;
+		}
+		
+		for (Map<String, Object> link : links) {
+			if (link != null && "next".equals(link.get("relation")) && link.get("url") != null) {
+				String url = link.get("url").toString();
+				String baseUrl = mpiContext.getServerBaseUrl() + "/";
+				if (url.startsWith(baseUrl)) {
+					return url.substring(baseUrl.length());
+				}
+				
+				int index = url.indexOf("/" + SUBPATH_FHIR + "/");
+				return index < 0 ? url : url.substring(index + 1);
+			}
+		}
+		
+		return null;
+	}
+	
+	private String getCrosswalkMpiId(String patientUuid) {
+		try {
+			return MpiCrosswalk.getMpiId(patientUuid);
+		}
+		catch (Exception e) {
+			log.warn("Failed to look up the MPI id of the patient with OpenMRS uuid: " + patientUuid, e);
+			return null;
+		}
+	}
+	
+	private Map<String, String> getCrosswalkMpiIds(Collection<String> patientUuids) {
+		try {
+			return MpiCrosswalk.getMpiIds(patientUuids);
+		}
+		catch (Exception e) {
+			log.warn("Failed to look up the MPI ids of " + patientUuids.size() + " patient(s)", e);
+			return Collections.emptyMap();
+		}
+	}
+	
+	private void recordMpiIds(Map<String, String> uuidAndMpiIds) {
+		if (uuidAndMpiIds.isEmpty()) {
+			return;
+		}
+		
+		uuidAndMpiIds.keySet().forEach(getPatientFilter()::put);
+		try {
+			MpiCrosswalk.saveAll(uuidAndMpiIds);
+		}
+		catch (Exception e) {
+			log.warn("Failed to record the MPI ids of " + uuidAndMpiIds.size() + " patient(s)", e);
+		}
+	}
+	
+	private void removeCrosswalkMpiId(String patientUuid) {
+		if (log.isDebugEnabled()) {
+			log.debug("Removing stale MPI id of the patient with OpenMRS uuid: " + patientUuid);
+		}
+		
+		try {
+			MpiCrosswalk.remove(patientUuid);
+		}
+		catch (Exception e) {
+			log.warn("Failed to remove the MPI id of the patient with OpenMRS uuid: " + patientUuid, e);
+		}
+	}
+	
+	private void invalidateCachedPatients(String data) {
+		MpiPatientCache cache = getPatientCache();
+		if (!cache.isEnabled()) {
+			return;
+		}
+		
+		try {
+			MpiContext mpiContext = MpiContext.initIfNecessary();
+			Map<String, Object> resource = MAPPER.readValue(data, Map.class);
+			for (Map<String, Object> patient : getPatientResources(resource)) {
+				String uuid = getOpenmrsUuid(mpiContext, patient);
+				if (uuid != null) {
+					cache.invalidate(uuid);
+				}
+			}
+		}
+		catch (Exception e) {
+			cache.invalidateAll();
+		}
+	}
+	
+	/**
+	 * Gets the patient resources in the specified resource, if it is a bundle the patient resources are
+	 * looked up in its entries including those of nested bundles.
+	 *
+	 * @param resource the resource
+	 * @return list of patient resources
+	 */
+	private List<Map<String, Object>> getPatientResources(Map<String, Object> resource) {
+		List<Map<String, Object>> patients = new ArrayList();
+		Object resourceType = resource.get(MpiConstants.FIELD_RESOURCE_TYPE);
+		if (MpiConstants.PATIENT.equals(resourceType)) {
+			patients.add(resource);
+		} else if (MpiConstants.BUNDLE.equals(resourceType) && resource.get(MpiConstants.FIELD_ENTRY) != null) {
+			for (Map<String, Object> entry : (List<Map<String, Object>>) resource.get(MpiConstants.FIELD_ENTRY)) {
+				Object entryResource = entry == null ? null : entry.get(MpiConstants.FIELD_RESOURCE);
+				if (entryResource instanceof Map) {
+					patients.addAll(getPatientResources((Map) entryResource));
+				}
+			}
+		}
+		
+		return patients;
+	}
+	
+	private String getOpenmrsUuid(MpiContext mpiContext, Map<String, Object> patient) {
+		List<Map<String, Object>> ids = (List) patient.get(MpiConstants.FIELD_IDENTIFIER);
+		if (ids == null) {
+			return null;
+		}
+		
+		for (Map<String, Object> id : ids) {
+			if (id != null && mpiContext.getOpenmrsUuidSystem() != null
+			        && mpiContext.getOpenmrsUuidSystem().equals(id.get(MpiConstants.FIELD_SYSTEM))) {
+				return id.get(MpiConstants.FIELD_VALUE).toString();
+			}
+		}
+		
+		return null;
+	}
+	
+	private String getPixRequestPath(MpiContext mpiContext, String patientUuid) {
+		return SUBPATH_FHIR + "/" + getPixQuery(mpiContext, patientUuid);
+	}
+	
+	private String getPixQuery(MpiContext mpiContext, String patientUuid) {
+		String query = REQ_PARAM_SOURCE_ID + "=" + mpiContext.getOpenmrsUuidSystem() + "|" + patientUuid;
+		return "Patient/$ihe-pix?" + query;
+	}
+	
+	private String getRemoteRef(MpiContext mpiContext, Map<String, Object> pixResponse) {
+		List<Map<String, Object>> ids = (List<Map<String, Object>>) pixResponse.get(RESPONSE_FIELD_PARAM);
+		if (CollectionUtils.isEmpty(ids)) {
+			return null;
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Fetching actual patient record from MPI");
+		}
+		
+		if (mpiContext.getMpiSystem().isSanteMPI()) {
+			return (ids.get(ids.size() - 1).get(RESPONSE_FIELD_VALUE_REF).toString().split("/")[1]).split(",")[0];
+		} else if (mpiContext.getMpiSystem().isOpenCr()) {
+			String[] patientUrlParts = ids.get(0).get(RESPONSE_FIELD_VALUE_REF).toString().split("/");
+			
+			return patientUrlParts[patientUrlParts.length - 1];
+		}
+		
+		throw new APIException("Unsupported MPI System!!! [" + mpiContext.getMpiSystem() + "]");
+	}
+	
+	private Class getPatientResponseType(MpiContext mpiContext) {
+		return mpiContext.getMpiSystem().isSanteMPI() ? Map.class : List.class;
+	}
+	
+	private void checkPatientSubmissionResponse(Object response) {
+		if (log.isDebugEnabled()) {
+			log.debug("MPI patient submission response: " + response);
+		}
+		
+		boolean isEmpty;
+		if (response instanceof Map) {
+			isEmpty = MapUtils.isEmpty((Map) response);
+		} else {
+			List<Object> mpiIdsResp = (List<Object>) response;
+			isEmpty = CollectionUtils.isEmpty(mpiIdsResp) || mpiIdsResp.get(0) == null;
+		}
+		
+		if (isEmpty) {
+			throw new APIException("An empty response was received when the patient was submitted");
+		}
+	}
+	
+	protected void doAuthentication(String data) throws Exception {
+		MpiContext mpiContext = MpiContext.initIfNecessary();
+		
+		String uri = "/auth/oauth2_token";
+		String url = mpiContext.getServerBaseUrl() + uri;
+		
+		MpiHttpRequest request = new MpiHttpRequest(MpiHttpRequest.METHOD_POST, url);
+		request.setHeader("Content-type", "application/x-www-form-urlencoded");
+		request.setHeader("Content-Length", Integer.toString(data.getBytes().length));
+		request.setBody(data);
+		
+		Range<Integer> successRange = Range.between(200, 299);
+		
+		MpiHttpTransport transport = getTransport(mpiContext);
+		request.setConnectTimeout(connectTimeout);
+		
+		try (MpiHttpResponse response = transport.execute(request)) {
+			if (!successRange.contains(response.getStatusCode())) {
+				handleUnexpectedResponse(response.getStatusCode(), response.getStatusMessage());
+			}
+			
+			mpiContext.initToken(MAPPER.readValue(response.getBody(), TokenInfo.class));
+		}
+	}
+	
+	/**
+	 * Submits a request to the MPI
+	 *
+	 * @param requestPath the string to append to the URL
+	 * @param data the data to post if any
+	 * @param responseType the type of response to return
+	 * @param <T>
+	 * @return the response from the MPI
+	 * @throws Exception
+	 */
+	protected <T> T submitRequest(String requestPath, String data, Class<T> responseType) throws Exception {
+		return submitRequest(getMethod(data), requestPath, data, responseType);
+	}
+	
+	/**
+	 * Same as {@link #submitRequest(String, String, Class)} except that the request is sent with the
+	 * specified http method
+	 *
+	 * @param method the http method
+	 * @param requestPath the string to append to the URL
+	 * @param data the data to send if any
+	 * @param responseType the type of response to return
+	 * @param <T>
+	 * @return the response from the MPI
+	 * @throws Exception
+	 */
+	protected <T> T submitRequest(String method, String requestPath, String data, Class<T> responseType)
+	    throws Exception {
+		return submitRequest(method, requestPath, data, null, responseType);
+	}
+	
+	/**
+	 * Same as {@link #submitRequest(String, String, String, Class)} except that the specified headers
+	 * are added to the request
+	 *
+	 * @param method the http method
+	 * @param requestPath the string to append to the URL
+	 * @param data the data to send if any
+	 * @param headers the extra request headers if any
+	 * @param responseType the type of response to return
+	 * @param <T>
+	 * @return the response from the MPI
+	 * @throws Exception
+	 */
+	protected <T> T submitRequest(String method, String requestPath, String data, Map<String, String> headers,
+	        Class<T> responseType) throws Exception {
+		return join(submitRequestAsync(method, requestPath, data, headers, responseType));
+	}
+	
+	/**
+	 * Asynchronously submits a request to the MPI, requests that fail with a retryable error are
+	 * retried as per the {@link RetryPolicy} except for POST requests that are only retried if they
+	 * failed to connect since the MPI may otherwise create duplicate resources, requests are rejected
+	 * without being sent while the {@link CircuitBreaker} is open. Note that when a new access token is
+	 * required it is retrieved on the request executor before the request is sent.
+	 *
+	 * @param requestPath the string to append to the URL
+	 * @param data the data to post if any
+	 * @param responseType the type of response to return
+	 * @param <T>
+	 * @return a CompletableFuture that is completed with the response from the MPI
+	 */
+	protected <T> CompletableFuture<T> submitRequestAsync(String requestPath, String data, Class<T> responseType) {
+		return submitRequestAsync(getMethod(data), requestPath, data, responseType);
+	}
+	
+	/**
+	 * Same as {@link #submitRequestAsync(String, String, Class)} except that the request is sent with
+	 * the specified http method
+	 *
+	 * @param method the http method
+	 * @param requestPath the string to append to the URL
+	 * @param data the data to send if any
+	 * @param responseType the type of response to return
+	 * @param <T>
+	 * @return a CompletableFuture that is completed with the response from the MPI
+	 */
+	protected <T> CompletableFuture<T> submitRequestAsync(String method, String requestPath, String data,
+	        Class<T> responseType) {
+		return submitRequestAsync(method, requestPath, data, null, responseType);
+	}
+	
+	/**
+	 * Same as {@link #submitRequestAsync(String, String, String, Class)} except that the specified
+	 * headers are added to the request
+	 *
+	 * @param method the http method
+	 * @param requestPath the string to append to the URL
+	 * @param data the data to send if any
+	 * @param headers the extra request headers if any
+	 * @param responseType the type of response to return, {@link ConditionalReadResult} for a
+	 *            conditional read
+	 * @param <T>
+	 * @return a CompletableFuture that is completed with the response from the MPI
+	 */
+	protected <T> CompletableFuture<T> submitRequestAsync(String method, String requestPath, String data,
+	        Map<String, String> headers, Class<T> responseType) {
+		boolean idempotent = !MpiHttpRequest.METHOD_POST.equals(method);
+		return submitWithRetry(method, requestPath, data, headers, responseType, EndpointClass.of(requestPath, data),
+		    idempotent, 1);
+	}
+	
+	/**
+	 * Same as {@link #submitRequest(String, String, Class)} except that the posted data is only a read
+	 * e.g. a batch bundle of GET entries, the request is therefore retried like a GET request and
+	 * limited with the reads of the specified endpoint class instead of the submissions.
+	 *
+	 * @param requestPath the string to append to the URL
+	 * @param data the data to post
+	 * @param endpointClass the {@link EndpointClass} of the reads
+	 * @param responseType the type of response to return
+	 * @param <T>
+	 * @return the response from the MPI
+	 * @throws Exception
+	 */
+	protected <T> T submitReadRequest(String requestPath, String data, EndpointClass endpointClass, Class<T> responseType)
+	    throws Exception {
+		return join(
+		    submitWithRetry(MpiHttpRequest.METHOD_POST, requestPath, data, null, responseType, endpointClass, true, 1));
+	}
+	
+	private <T> T join(CompletableFuture<T> future) throws Exception {
+		try {
+			return future.join();
+		}
+		catch (CompletionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			
+			throw e;
+		}
+	}
+	
+	private String getMethod(String data) {
+		return data != null ? MpiHttpRequest.METHOD_POST : MpiHttpRequest.METHOD_GET;
+	}
+	
+	/**
+	 * Sends the request once a permit was obtained from the rate limiter, the concurrency limiter and
+	 * lastly the circuit breaker so that a trial permit of a half open circuit is never held while
+	 * waiting for the other limiters.
+	 */
+	private <T> CompletableFuture<T> submitWithRetry(String method, String requestPath, String data,
+	        Map<String, String> headers, Class<T> responseType, EndpointClass endpointClass, boolean idempotent,
+	        int attempt) {
+		final CircuitBreaker breaker = getCircuitBreaker();
+		final AdaptiveLimiter limiter = getLimiter(endpointClass);
+		
+		return throttle().thenCompose(v -> limiter.acquire()).thenCompose(v -> {
+			if (!breaker.tryAcquire()) {
+				limiter.release(Outcome.IGNORED, 0);
+				return CompletableFuture.<T> failedFuture(
+				    new CircuitBreakerOpenException("Not sending request to MPI because the circuit breaker is open"));
+			}
+			
+			final long start = System.currentTimeMillis();
+			
+			return sendRequestAsync(method, requestPath, data, headers, responseType).handle((response, error) -> {
+				Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause()
+				        : error;
+				long duration = System.currentTimeMillis() - start;
+				boolean overloaded = cause != null && RetryPolicy.isRetryable(cause);
+				limiter.release(cause == null ? Outcome.SUCCESS : overloaded ? Outcome.DROPPED : Outcome.IGNORED,
+				    duration);
+				breaker.onResult(overloaded, duration);
+				if (cause == null) {
+					return CompletableFuture.completedFuture(response);
+				}
+				
+				RetryPolicy retryPolicy = getRetryPolicy();
+				if (!retryPolicy.shouldRetry(cause, attempt, idempotent)) {
+					return CompletableFuture.<T> failedFuture(cause);
+				}
+				
+				long delay = retryPolicy.getDelay(attempt);
+				log.warn("Attempt " + attempt + " of request to MPI failed with error: " + cause.getMessage()
+				        + ", retrying in " + delay + "ms");
+				
+				Executor delayedExecutor = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS,
+				    getRequestExecutor());
+				return CompletableFuture.runAsync(() -> {}, delayedExecutor)
+				        .thenCompose(r -> submitWithRetry(method, requestPath, data, headers, responseType, endpointClass,
+				            idempotent, attempt + 1));
+			}).thenCompose(Function.identity());
+		});
+	}
+	
+	/**
+	 * Reserves a permit from the {@link RequestRateLimiter}, if the request must wait, the returned
+	 * future is completed on the request executor after the wait.
+	 *
+	 * @return a CompletableFuture that is completed when the request can be sent
+	 */
+	private CompletableFuture<Void> throttle() {
+		long delay = getRateLimiter().reserve();
+		if (delay <= 0) {
+			return CompletableFuture.completedFuture(null);
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Delaying request to MPI by " + delay + "ms to stay within the rate limit");
+		}
+		
+		return CompletableFuture.runAsync(() -> {},
+		    CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, getRequestExecutor()));
+	}
+	
+	private <T> CompletableFuture<T> sendRequestAsync(String method, String requestPath, String data,
+	        Map<String, String> headers, Class<T> responseType) {
+		final MpiContext mpiContext;
+		final MpiHttpTransport transport;
+		try {
+			mpiContext = MpiContext.initIfNecessary();
+			transport = getTransport(mpiContext);
+		}
+		catch (Exception e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		
+		//Getting a new token blocks on the token request so it is never done on a thread of the transport
+		CompletableFuture<TokenInfo> tokenFuture = CompletableFuture.completedFuture(null);
+		if (mpiContext.getAuthenticationType().isOuath()) {
+			tokenFuture = getTokenManager().getTokenAsync(mpiContext, getRequestExecutor());
+		}
+		
+		return tokenFuture.thenCompose(token -> {
+			final MpiHttpRequest request = createRequest(mpiContext, method, requestPath, data, headers, token);
+			
+			if (log.isDebugEnabled()) {
+				log.debug("Making http request to MPI");
+			}
+			
+			return transport.executeAsync(request).thenCompose(response -> {
+				if (token != null && isUnauthorized(response)) {
+					//The token was revoked or expired early, get a new one and replay the request once
+					log.warn("MPI rejected the access token, refreshing it and replaying the request");
+					
+					closeQuietly(response);
+					
+					return getTokenManager().refreshAsync(mpiContext, token, getRequestExecutor()).thenCompose(newToken -> {
+						MpiHttpRequest replay = createRequest(mpiContext, method, requestPath, data, headers, newToken);
+						return transport.executeAsync(replay).thenApply(r -> readResponse(mpiContext, replay, r, responseType));
+					});
+				}
+				
+				return CompletableFuture.completedFuture(readResponse(mpiContext, request, response, responseType));
+			});
+		});
+	}
+	
+	private void closeQuietly(MpiHttpResponse response) {
+		try {
+			response.close();
+		}
+		catch (IOException e) {
+			log.debug("Failed to close the MPI response", e);
+		}
+	}
+	
+	private MpiHttpRequest createRequest(MpiContext mpiContext, String method, String requestPath, String data,
+	        Map<String, String> headers, TokenInfo token) {
+		String url = mpiContext.getServerBaseUrl() + "/" + requestPath;
+		MpiHttpRequest request = new MpiHttpRequest(method, url);
+		request.setConnectTimeout(connectTimeout);
+		
+		if (mpiContext.getAuthenticationType().isOuath()) {
+			String authHeaderValue = "bearer " + token.getAccessToken();
+			
+			request.setHeader("Authorization", authHeaderValue);
+		} else if (!mpiContext.getAuthenticationType().isCertificate()) {
+			throw new APIException("Unsupported Authentication type");
+		}
+		
+		request.setHeader("Accept", mpiContext.getContentType());
+		if (data != null) {
+			request.setHeader("Content-Type", mpiContext.getContentType());
+			request.setBody(data);
+		}
+		
+		if (headers != null) {
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				request.setHeader(header.getKey(), header.getValue());
+			}
+		}
+		
+		return request;
+	}
+	
+	private boolean isUnauthorized(MpiHttpResponse response) {
+		try {
+			return response.getStatusCode() == HttpURLConnection.HTTP_UNAUTHORIZED;
+		}
+		catch (IOException e) {
+			throw new CompletionException(e);
+		}
+	}
+	
+	private <T> T readResponse(MpiContext mpiContext, MpiHttpRequest request, MpiHttpResponse response,
+	        Class<T> responseType) {
+		try (response) {
+			if (responseType == ConditionalReadResult.class) {
+				return (T) readConditionalResponse(request, response);
+			}
+			
+			int responseCode = response.getStatusCode();
+			boolean isPut = MpiHttpRequest.METHOD_PUT.equals(request.getMethod());
+			
+			if (mpiContext.getMpiSystem().isSanteMPI()) {
+				if (!HTTP_REQUEST_SUCCESS_RANGE.contains(responseCode)) {
+					//Only a lookup can treat a missing resource as an empty result, for a submission it is a failure
+					if (responseCode == 404 && MpiHttpRequest.METHOD_GET.equals(request.getMethod())) {
+						return (T) MapUtils.EMPTY_MAP;
+					}
+					handleUnexpectedResponse(responseCode, response.getStatusMessage());
+				}
+			} else if (mpiContext.getMpiSystem().isOpenCr()) {
+				if (responseCode != 200 && !(isPut && HTTP_REQUEST_SUCCESS_RANGE.contains(responseCode))) {
+					handleUnexpectedResponse(responseCode, response.getStatusMessage());
+				}
+			}
+			
+			if (isPut) {
+				//A conditional update may return no body e.g. with a 204 status
+				byte[] body = IOUtils.toByteArray(response.getBody());
+				return body.length == 0 ? null : MAPPER.readValue(body, responseType);
+			}
+			
+			return MAPPER.readValue(response.getBody(), responseType);
+		}
+		catch (IOException e) {
+			throw new CompletionException(e);
+		}
+	}
+	
+	/**
+	 * Reads the response to a conditional read, the body is only parsed if the MPI returned it and its
+	 * version differs from the one sent in the If-None-Match header since some servers ignore the
+	 * header and always return the resource.
+	 *
+	 * @param request the {@link MpiHttpRequest} object
+	 * @param response the {@link MpiHttpResponse} object
+	 * @return the {@link ConditionalReadResult} or null if the resource was not found
+	 * @throws IOException
+	 */
+	private ConditionalReadResult readConditionalResponse(MpiHttpRequest request, MpiHttpResponse response)
+	    throws IOException {
+		int responseCode = response.getStatusCode();
+		String knownVersion = parseVersion(request.getHeaders().get(HEADER_IF_NONE_MATCH));
+		if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			return new ConditionalReadResult(knownVersion, null);
+		} else if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+			return null;
+		} else if (responseCode != HttpURLConnection.HTTP_OK) {
+			handleUnexpectedResponse(responseCode, response.getStatusMessage());
+		}
+		
+		String version = parseVersion(response.getHeader(HEADER_ETAG));
+		if (version != null && version.equals(knownVersion)) {
+			return new ConditionalReadResult(version, null);
+		}
+		
+		Map<String, Object> resource = MAPPER.readValue(response.getBody(), Map.class);
+		
+		return new ConditionalReadResult(version != null ? version : MpiPatientCache.getVersion(resource), resource);
+	}
+	
+	/**
+	 * Gets the version in the specified entity tag e.g. 3 for W/"3"
+	 *
+	 * @param etag the entity tag
+	 * @return the version or null if the entity tag is blank
+	 */
+	private String parseVersion(String etag) {
+		if (StringUtils.isBlank(etag)) {
+			return null;
+		}
+		
+		return StringUtils.strip(StringUtils.removeStart(etag.trim(), "W/"), "\"");
+	}
+	
+	/**
+	 * Gets the {@link MpiHttpTransport} to use to communicate with the MPI, it is created on first use
+	 * and shared by all threads. The transport is bound to the {@link MpiContext} it was created with,
+	 * when the context is reloaded a new transport is created and the previous one is closed after a
+	 * delay so that the requests using it can complete, the background refresh of the OAuth token is
+	 * also moved to the new context.
+	 *
+	 * @param mpiContext the {@link MpiContext} object
+	 * @return the transport
+	 */
+	protected MpiHttpTransport getTransport(MpiContext mpiContext) {
+		//The context is written after the transport, so a matching context guarantees a current transport
+		if (transportContext == mpiContext) {
+			MpiHttpTransport current = transport;
+			if (current != null) {
+				return current;
+			}
+		}
+		
+		return createTransport(mpiContext);
+	}
+	
+	private synchronized MpiHttpTransport createTransport(MpiContext mpiContext) {
+		//A request that started before a reload may still hold the previous context, it uses the current transport
+		if (transport != null && (transportContext == mpiContext || !MpiContext.isCurrent(mpiContext))) {
+			return transport;
+		}
+		
+		MpiHttpTransport newTransport;
+		connectTimeout = MpiUtils.getGlobalPropertyAsInt(GP_HTTP_CONNECT_TIMEOUT, MpiHttpRequest.DEFAULT_CONNECT_TIMEOUT);
+		String type = Context.getAdministrationService().getGlobalProperty(GP_HTTP_TRANSPORT);
+		if (HTTP_TRANSPORT_POOLED.equalsIgnoreCase(StringUtils.trimToEmpty(type))) {
+			newTransport = createPooledTransport(mpiContext);
+		} else if (HTTP_TRANSPORT_HTTP2.equalsIgnoreCase(StringUtils.trimToEmpty(type))) {
+			if (mpiContext.getSslContext() != null) {
+				//The JDK client always verifies the host name which would reject the self signed MPI certificate
+				log.warn("The HTTP2 transport can't be used with certificate authentication because it always "
+				        + "verifies the MPI host name, using the POOLED transport instead");
+				
+				newTransport = createPooledTransport(mpiContext);
+			} else {
+				newTransport = new Http2Transport(mpiContext.getSslContext(),
+				        MpiUtils.getGlobalPropertyAsInt(GP_HTTP_ASYNC_THREAD_COUNT, 4), connectTimeout);
+			}
+		} else {
+			newTransport = new UrlConnectionTransport(mpiContext);
+		}
+		
+		final MpiHttpTransport retired = transport;
+		transport = newTransport;
+		transportContext = mpiContext;
+		if (retired != null) {
+			OAuthTokenManager manager = tokenManager;
+			if (manager != null) {
+				manager.rebind(mpiContext);
+			}
+			
+			log.info("The MPI context was reloaded, the previous HTTP transport will be closed");
+			CompletableFuture.delayedExecutor(RETIRED_TRANSPORT_CLOSE_DELAY, TimeUnit.MILLISECONDS, getRequestExecutor())
+			        .execute(retired::close);
+		}
+		
+		return newTransport;
+	}
+	
+	private MpiHttpTransport createPooledTransport(MpiContext mpiContext) {
+		return new PooledHttpTransport(mpiContext.getSslContext(),
+		        MpiUtils.getGlobalPropertyAsInt(GP_HTTP_POOL_MAX_TOTAL, 20),
+		        MpiUtils.getGlobalPropertyAsInt(GP_HTTP_POOL_MAX_PER_ROUTE, 10),
+		        MpiUtils.getGlobalPropertyAsInt(GP_HTTP_POOL_IDLE_TIMEOUT, 30000),
+		        MpiUtils.getGlobalPropertyAsInt(GP_HTTP_POOL_VALIDATE_AFTER_INACTIVITY, 2000));
+	}
+	
+	/**
+	 * Gets the {@link CircuitBreaker} that guards the requests to the MPI, it is created on first use
+	 * and shared by all threads
+	 *
+	 * @return the circuit breaker
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		CircuitBreaker current = circuitBreaker;
+		return current != null ? current : createCircuitBreaker();
+	}
+	
+	private synchronized CircuitBreaker createCircuitBreaker() {
+		if (circuitBreaker == null) {
+			circuitBreaker = new CircuitBreaker(MpiUtils.getGlobalPropertyAsInt(GP_CIRCUIT_BREAKER_WINDOW_SIZE, 20),
+			        MpiUtils.getGlobalPropertyAsInt(GP_CIRCUIT_BREAKER_MINIMUM_CALLS, 10),
+			        MpiUtils.getGlobalPropertyAsInt(GP_CIRCUIT_BREAKER_FAILURE_RATE, 50),
+			        MpiUtils.getGlobalPropertyAsInt(GP_CIRCUIT_BREAKER_SLOW_CALL_DURATION, 20000),
+			        MpiUtils.getGlobalPropertyAsInt(GP_CIRCUIT_BREAKER_OPEN_DURATION, 10000), 3);
+		}
+		
+		return circuitBreaker;
+	}
+	
+	/**
+	 * Gets the {@link RetryPolicy} applied to the requests to the MPI
+	 *
+	 * @return the retry policy
+	 */
+	protected RetryPolicy getRetryPolicy() {
+		RetryPolicy current = retryPolicy;
+		return current != null ? current : createRetryPolicy();
+	}
+	
+	private synchronized RetryPolicy createRetryPolicy() {
+		if (retryPolicy == null) {
+			retryPolicy = new RetryPolicy(MpiUtils.getGlobalPropertyAsInt(GP_HTTP_RETRY_MAX_ATTEMPTS, 3),
+			        MpiUtils.getGlobalPropertyAsInt(GP_HTTP_RETRY_INITIAL_DELAY, 500),
+			        MpiUtils.getGlobalPropertyAsInt(GP_HTTP_RETRY_MAX_DELAY, 10000));
+		}
+		
+		return retryPolicy;
+	}
+	
+	/**
+	 * Gets the {@link AdaptiveLimiter} that caps the in-flight requests of the specified endpoint class,
+	 * the limiters are created on first use and shared by all threads
+	 *
+	 * @param endpointClass the endpoint class
+	 * @return the limiter
+	 */
+	public AdaptiveLimiter getLimiter(EndpointClass endpointClass) {
+		Map<EndpointClass, AdaptiveLimiter> current = limiters;
+		return (current != null ? current : createLimiters()).get(endpointClass);
+	}
+	
+	private synchronized Map<EndpointClass, AdaptiveLimiter> createLimiters() {
+		if (limiters == null) {
+			int initialLimit = MpiUtils.getGlobalPropertyAsInt(GP_HTTP_CONCURRENCY_INITIAL_LIMIT, 10);
+			int maxLimit = MpiUtils.getGlobalPropertyAsInt(GP_HTTP_CONCURRENCY_MAX_LIMIT, 50);
+			Map<EndpointClass, AdaptiveLimiter> newLimiters = new EnumMap(EndpointClass.class);
+			for (EndpointClass clazz : EndpointClass.values()) {
+				newLimiters.put(clazz, new AdaptiveLimiter(clazz.name(), initialLimit, maxLimit,
+				        r -> getRequestExecutor().execute(r)));
+			}
+			
+			limiters = newLimiters;
+		}
+		
+		return limiters;
+	}
+	
+	/**
+	 * Gets the {@link RequestRateLimiter} that caps the rate of requests to the MPI
+	 *
+	 * @return the rate limiter
+	 */
+	protected RequestRateLimiter getRateLimiter() {
+		RequestRateLimiter current = rateLimiter;
+		return current != null ? current : createRateLimiter();
+	}
+	
+	private synchronized RequestRateLimiter createRateLimiter() {
+		if (rateLimiter == null) {
+			rateLimiter = new RequestRateLimiter(MpiUtils.getGlobalPropertyAsInt(GP_HTTP_RATE_LIMIT, 0));
+		}
+		
+		return rateLimiter;
+	}
+	
+	/**
+	 * Gets the executor on which requests that were delayed by a limiter or a retry are resumed, a
+	 * dedicated executor is used because the requests may block e.g. with the default transport.
+	 *
+	 * @return the executor
+	 */
+	protected Executor getRequestExecutor() {
+		Executor current = requestExecutor;
+		return current != null ? current : createRequestExecutor();
+	}
+	
+	private synchronized Executor createRequestExecutor() {
+		if (requestExecutor == null) {
+			requestExecutor = Executors.newCachedThreadPool(r -> {
+				Thread thread = new Thread(r, "mpi-request");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		
+		return requestExecutor;
+	}
+	
+	/**
+	 * Gets the {@link MpiPatientCache} that holds the last known MPI record of the patients, it is
+	 * created on first use and shared by all threads
+	 *
+	 * @return the patient cache
+	 */
+	public MpiPatientCache getPatientCache() {
+		MpiPatientCache current = patientCache;
+		return current != null ? current : createPatientCache();
+	}
+	
+	private synchronized MpiPatientCache createPatientCache() {
+		if (patientCache == null) {
+			patientCache = new MpiPatientCache(MpiUtils.getGlobalPropertyAsInt(GP_PATIENT_CACHE_MAX_SIZE, 10485760),
+			        MpiUtils.getGlobalPropertyAsInt(GP_PATIENT_CACHE_TTL, 300000));
+		}
+		
+		return patientCache;
+	}
+	
+	/**
+	 * Gets the {@link MpiPatientFilter} of the patients known to exist in the MPI, on first use it is
+	 * loaded from the file it is periodically saved to. Since the patients submitted after the file was
+	 * last saved are missing after an unclean shutdown, a complete filter is caught up with the patients
+	 * recorded in the {@link MpiCrosswalk} since then, if that fails the filter starts as incomplete.
+	 *
+	 * @return the patient filter
+	 */
+	public MpiPatientFilter getPatientFilter() {
+		MpiPatientFilter current = patientFilter;
+		return current != null ? current : loadPatientFilter();
+	}
+	
+	private synchronized MpiPatientFilter loadPatientFilter() {
+		if (patientFilter == null) {
+			MpiPatientFilter filter = createPatientFilter();
+			File file = getPatientFilterFile();
+			if (filter.isEnabled() && file.exists()) {
+				try {
+					MpiPatientFilter savedFilter = MpiPatientFilter.readFrom(file);
+					if (savedFilter.isComplete()) {
+						Date since = new Date(file.lastModified() - PATIENT_FILTER_SAVE_MARGIN);
+						MpiCrosswalk.getPatientUuidsChangedSince(since).forEach(savedFilter::put);
+					}
+					
+					filter = savedFilter;
+					log.info("Loaded MPI patient filter with " + filter.getCount() + " patient(s)");
+				}
+				catch (Exception e) {
+					log.warn("Failed to load the MPI patient filter, starting with an incomplete filter", e);
+				}
+			}
+			
+			patientFilter = filter;
+			if (filter.isEnabled()) {
+				startPatientFilterSaver();
+			}
+		}
+		
+		return patientFilter;
+	}
+	
+	private void startPatientFilterSaver() {
+		patientFilterSaver = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "mpi-patient-filter-saver");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		patientFilterSaver.scheduleWithFixedDelay(this::savePatientFilter, PATIENT_FILTER_SAVE_PERIOD,
+		    PATIENT_FILTER_SAVE_PERIOD, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Saves the {@link MpiPatientFilter} to its file, this is called periodically by the patient filter
+	 * saver and at shutdown.
+	 */
+	protected synchronized void savePatientFilter() {
+		if (patientFilter == null || !patientFilter.isEnabled()) {
+			return;
+		}
+		
+		try {
+			patientFilter.writeTo(getPatientFilterFile());
+		}
+		catch (IOException e) {
+			log.warn("Failed to save the MPI patient filter", e);
+		}
+	}
+	
+	/**
+	 * Checks if the patient with the specified uuid definitely does not exist in the MPI according to
+	 * the {@link MpiPatientFilter}, in which case the lookup from the MPI can be skipped.
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @return true if the patient was never submitted to the MPI otherwise false
+	 */
+	public boolean isAbsentFromMpi(String patientUuid) {
+		return !getPatientFilter().mightContain(patientUuid);
+	}
+	
+	/**
+	 * Marks the {@link MpiPatientFilter} as complete when an initial loading starts from scratch, this
+	 * is only done when the module has never done initial loading and the {@link MpiCrosswalk} is empty
+	 * i.e. no patient can have been submitted to the MPI, otherwise the filter has to be rebuilt from
+	 * the MPI via {@link #primeCrosswalk(int)}. The crosswalk alone is not enough since it is empty
+	 * after an upgrade even though the MPI holds all the patients.
+	 */
+	public void startPatientFilterForInitialLoading() {
+		MpiPatientFilter filter = getPatientFilter();
+		if (!filter.isEnabled() || filter.isComplete()) {
+			return;
+		}
+		
+		try {
+			if (!MpiUtils.isInitialLoadingDone() && MpiCrosswalk.isEmpty()) {
+				log.info("Starting an empty MPI patient filter for the initial loading");
+				filter.markComplete();
+			} else {
+				log.info("Not using the MPI patient filter until it is rebuilt from the MPI via primeCrosswalk");
+			}
+		}
+		catch (Exception e) {
+			log.warn("Failed to check the MPI crosswalk, not using the MPI patient filter", e);
+		}
+	}
+	
+	private MpiPatientFilter createPatientFilter() {
+		return new MpiPatientFilter(MpiUtils.getGlobalPropertyAsInt(GP_PATIENT_FILTER_EXPECTED_SIZE, 1000000),
+		        PATIENT_FILTER_FALSE_POSITIVE_RATE);
+	}
+	
+	private synchronized void replacePatientFilter(MpiPatientFilter filter) {
+		//Keep the patients submitted while the new filter was being built
+		if (patientFilter != null && !filter.merge(patientFilter)) {
+			log.warn("The MPI patient filter size changed, patients submitted during the rebuild may be missing");
+		}
+		
+		filter.markComplete();
+		patientFilter = filter;
+	}
+	
+	protected File getPatientFilterFile() {
+		return Paths.get(getApplicationDataDirectory(), MpiConstants.MODULE_ID, MpiConstants.PATIENT_FILTER_FILE).toFile();
+	}
+	
+	/**
+	 * Gets the {@link OAuthTokenManager} that manages the access token, it is created on first use and
+	 * shared by all threads
+	 *
+	 * @return the token manager
+	 */
+	protected OAuthTokenManager getTokenManager() {
+		OAuthTokenManager current = tokenManager;
+		return current != null ? current : createTokenManager();
+	}
+	
+	private synchronized OAuthTokenManager createTokenManager() {
+		if (tokenManager == null) {
+			tokenManager = new OAuthTokenManager(this,
+			        MpiUtils.getGlobalPropertyAsInt(GP_SANTE_TOKEN_REFRESH_MARGIN, DEFAULT_TOKEN_REFRESH_MARGIN));
+		}
+		
+		return tokenManager;
+	}
+	
+	/**
+	 * @see DisposableBean#destroy()
+	 */
+	@Override
+	public synchronized void destroy() {
+		if (tokenManager != null) {
+			tokenManager.shutdown();
+			tokenManager = null;
+		}
+		
+		if (transport != null) {
+			transport.close();
+			transport = null;
+			transportContext = null;
+		}
+		
+		if (requestExecutor != null) {
+			requestExecutor.shutdown();
+			requestExecutor = null;
+		}
+		
+		if (patientFilterSaver != null) {
+			patientFilterSaver.shutdown();
+			patientFilterSaver = null;
+		}
+		
+		if (patientFilter != null) {
+			savePatientFilter();
+			patientFilter = null;
 		}
 	}
 	
 	private void handleUnexpectedResponse(int responseCode, String responseMessage) {
-		String error = responseCode + " " + responseMessage;
-		throw new APIException("Unexpected response " + error + " from MPI");
+		throw new MpiHttpException(responseCode, responseMessage);
 	}
 }
@@ -0,0 +1,21 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import org.openmrs.api.APIException;
+
+/**
+ * Thrown when the MPI responds with an unexpected http status code
+ */
+public class MpiHttpException extends APIException {
+	
+	private final int statusCode;
+	
+	public MpiHttpException(int statusCode, String statusMessage) {
+		super("Unexpected response " + statusCode + " " + statusMessage + " from MPI");
+		this.statusCode = statusCode;
+	}
+	
+	public int getStatusCode() {
+		return statusCode;
+	}
+	
+}
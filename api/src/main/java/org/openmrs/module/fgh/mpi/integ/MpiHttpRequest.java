@@ -0,0 +1,81 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encapsulates the details of an http request to be sent to the MPI by a {@link MpiHttpTransport}
+ */
+public class MpiHttpRequest {
+	
+	public static final String METHOD_GET = "GET";
+	
+	public static final String METHOD_POST = "POST";
+	
+	public static final String METHOD_PUT = "PUT";
+	
+	public static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+	
+	private final String method;
+	
+	private final String url;
+	
+	private final Map<String, String> headers = new LinkedHashMap();
+	
+	private String body;
+	
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	
+	public MpiHttpRequest(String method, String url) {
+		this.method = method;
+		this.url = url;
+	}
+	
+	/**
+	 * Sets the value of the header with the specified name
+	 *
+	 * @param name the header name
+	 * @param value the header value
+	 * @return this request
+	 */
+	public MpiHttpRequest setHeader(String name, String value) {
+		headers.put(name, value);
+		return this;
+	}
+	
+	public String getMethod() {
+		return method;
+	}
+	
+	public String getUrl() {
+		return url;
+	}
+	
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+	
+	public String getBody() {
+		return body;
+	}
+	
+	public MpiHttpRequest setBody(String body) {
+		this.body = body;
+		return this;
+	}
+	
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+	
+	public MpiHttpRequest setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		return this;
+	}
+	
+	@Override
+	public String toString() {
+		return method + " " + url;
+	}
+	
+}
@@ -0,0 +1,46 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Represents a response received from the MPI by a {@link MpiHttpTransport}, the response must always
+ * be closed by the caller so that the underlying connection is released.
+ */
+public interface MpiHttpResponse extends Closeable {
+	
+	/**
+	 * Gets the http status code of the response
+	 *
+	 * @return the status code
+	 * @throws IOException
+	 */
+	int getStatusCode() throws IOException;
+	
+	/**
+	 * Gets the http status message of the response
+	 *
+	 * @return the status message
+	 * @throws IOException
+	 */
+	String getStatusMessage() throws IOException;
+	
+	/**
+	 * Gets the value of the response header with the specified name
+	 *
+	 * @param name the header name
+	 * @return the header value or null if the response has no such header
+	 * @throws IOException
+	 */
+	String getHeader(String name) throws IOException;
+	
+	/**
+	 * Gets the response body, should only be called for successful responses
+	 *
+	 * @return the response body as a stream
+	 * @throws IOException
+	 */
+	InputStream getBody() throws IOException;
+	
+}
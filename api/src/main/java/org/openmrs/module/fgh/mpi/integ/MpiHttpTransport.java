@@ -0,0 +1,42 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends http requests to the MPI, implementations must be thread safe since a single instance is
+ * shared by all the threads that communicate with the MPI.
+ */
+public interface MpiHttpTransport {
+	
+	/**
+	 * Sends the specified request to the MPI
+	 *
+	 * @param request the {@link MpiHttpRequest} to send
+	 * @return the {@link MpiHttpResponse} object
+	 * @throws IOException
+	 */
+	MpiHttpResponse execute(MpiHttpRequest request) throws IOException;
+	
+	/**
+	 * Sends the specified request to the MPI without blocking the calling thread, the default
+	 * implementation is meant for blocking transports and sends the request on the calling thread.
+	 *
+	 * @param request the {@link MpiHttpRequest} to send
+	 * @return a CompletableFuture that is completed with the {@link MpiHttpResponse} object
+	 */
+	default CompletableFuture<MpiHttpResponse> executeAsync(MpiHttpRequest request) {
+		try {
+			return CompletableFuture.completedFuture(execute(request));
+		}
+		catch (IOException | RuntimeException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+	
+	/**
+	 * Releases any resources held by this transport
+	 */
+	void close();
+	
+}
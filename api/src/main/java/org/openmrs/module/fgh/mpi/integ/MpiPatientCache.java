@@ -0,0 +1,381 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openmrs.api.APIException;
+import org.openmrs.module.fgh.mpi.utils.MpiConstants;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Bounded cache of the MPI patient records keyed by the OpenMRS patient uuid, records are stored as
+ * json so that every read returns a private copy the caller can modify and the weight of an entry is
+ * the length of its json. The least recently used entries are evicted when the total weight exceeds
+ * the maximum weight and entries expire after the configured time to live. A maximum weight of zero
+ * disables the cache. The MPI version of each record is kept with it, an expired record with a known
+ * version is retained until evicted so that it can be revalidated with a conditional read instead of
+ * being fetched again from the MPI.
+ */
+public class MpiPatientCache {
+	
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	
+	private final long maxWeight;
+	
+	private final long ttl;
+	
+	private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap(16, 0.75f, true);
+	
+	private long weight;
+	
+	private long hitCount;
+	
+	private long missCount;
+	
+	private long evictionCount;
+	
+	private long expirationCount;
+	
+	private long revalidationCount;
+	
+	private long notModifiedCount;
+	
+	/**
+	 * @param maxWeight the maximum total length of the json of the cached records
+	 * @param ttl the time in milliseconds after which an entry expires
+	 */
+	public MpiPatientCache(long maxWeight, long ttl) {
+		this.maxWeight = maxWeight;
+		this.ttl = ttl;
+	}
+	
+	/**
+	 * Checks if the cache is enabled
+	 *
+	 * @return true if the cache is enabled otherwise false
+	 */
+	public boolean isEnabled() {
+		return maxWeight > 0 && ttl > 0;
+	}
+	
+	/**
+	 * Gets a copy of the cached MPI record of the patient with the specified OpenMRS uuid
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @return the MPI patient record or null if none is cached
+	 */
+	public Map<String, Object> get(String patientUuid) {
+		if (!isEnabled()) {
+			return null;
+		}
+		
+		String json;
+		synchronized (this) {
+			CacheEntry entry = entries.get(patientUuid);
+			if (entry != null && System.currentTimeMillis() >= entry.expiresAt) {
+				if (!entry.expired) {
+					entry.expired = true;
+					expirationCount++;
+				}
+				
+				if (entry.version == null) {
+					remove(patientUuid);
+				}
+				
+				entry = null;
+			}
+			
+			if (entry == null) {
+				missCount++;
+				return null;
+			}
+			
+			hitCount++;
+			json = entry.json;
+		}
+		
+		try {
+			return MAPPER.readValue(json, Map.class);
+		}
+		catch (IOException e) {
+			throw new APIException("Failed to read cached MPI patient record", e);
+		}
+	}
+	
+	/**
+	 * Adds or replaces the MPI record of the patient with the specified OpenMRS uuid, the version of
+	 * the record is read from its meta.versionId field
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @param patient the MPI patient record
+	 */
+	public void put(String patientUuid, Map<String, Object> patient) {
+		put(patientUuid, patient, getVersion(patient));
+	}
+	
+	/**
+	 * Adds or replaces the MPI record of the patient with the specified OpenMRS uuid
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @param patient the MPI patient record
+	 * @param version the MPI version of the record, may be null
+	 */
+	public void put(String patientUuid, Map<String, Object> patient, String version) {
+		if (!isEnabled()) {
+			return;
+		}
+		
+		String json;
+		try {
+			json = MAPPER.writeValueAsString(patient);
+		}
+		catch (IOException e) {
+			throw new APIException("Failed to cache MPI patient record", e);
+		}
+		
+		synchronized (this) {
+			remove(patientUuid);
+			if (json.length() > maxWeight) {
+				return;
+			}
+			
+			entries.put(patientUuid, new CacheEntry(json, version, System.currentTimeMillis() + ttl));
+			weight += json.length();
+			
+			Iterator<CacheEntry> it = entries.values().iterator();
+			while (weight > maxWeight && it.hasNext()) {
+				weight -= it.next().json.length();
+				it.remove();
+				evictionCount++;
+			}
+		}
+	}
+	
+	/**
+	 * Gets the MPI version of the cached record of the patient with the specified OpenMRS uuid
+	 * including an expired one
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @return the version or null if no versioned record is cached
+	 */
+	public synchronized String getVersion(String patientUuid) {
+		if (!isEnabled()) {
+			return null;
+		}
+		
+		CacheEntry entry = entries.get(patientUuid);
+		return entry != null ? entry.version : null;
+	}
+	
+	/**
+	 * Records the outcome of a conditional read from the MPI of the record of the patient with the
+	 * specified OpenMRS uuid, if the specified version matches that of the cached record, the MPI
+	 * record is unchanged so the cached one is renewed for another time to live and a copy of it is
+	 * returned.
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @param version the current MPI version of the record
+	 * @return the MPI patient record or null if the version changed or the record was since evicted
+	 */
+	public Map<String, Object> revalidate(String patientUuid, String version) {
+		String json;
+		synchronized (this) {
+			revalidationCount++;
+			CacheEntry entry = entries.get(patientUuid);
+			if (entry == null || entry.version == null || !entry.version.equals(version)) {
+				return null;
+			}
+			
+			notModifiedCount++;
+			entry.expiresAt = System.currentTimeMillis() + ttl;
+			entry.expired = false;
+			json = entry.json;
+		}
+		
+		try {
+			return MAPPER.readValue(json, Map.class);
+		}
+		catch (IOException e) {
+			throw new APIException("Failed to read cached MPI patient record", e);
+		}
+	}
+	
+	/**
+	 * Removes the MPI record of the patient with the specified OpenMRS uuid
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 */
+	public synchronized void invalidate(String patientUuid) {
+		remove(patientUuid);
+	}
+	
+	/**
+	 * Removes all the cached MPI patient records
+	 */
+	public synchronized void invalidateAll() {
+		entries.clear();
+		weight = 0;
+	}
+	
+	/**
+	 * Gets a snapshot of the cache statistics
+	 *
+	 * @return the statistics
+	 */
+	public synchronized Stats getStats() {
+		return new Stats(hitCount, missCount, evictionCount, expirationCount, revalidationCount, notModifiedCount,
+		        entries.size(), weight);
+	}
+	
+	private void remove(String patientUuid) {
+		CacheEntry removed = entries.remove(patientUuid);
+		if (removed != null) {
+			weight -= removed.json.length();
+		}
+	}
+	
+	/**
+	 * Gets the MPI version of the specified patient record from its meta.versionId field
+	 *
+	 * @param patient the MPI patient record
+	 * @return the version or null if the record has none
+	 */
+	public static String getVersion(Map<String, Object> patient) {
+		Object meta = patient == null ? null : patient.get(MpiConstants.FIELD_META);
+		if (!(meta instanceof Map) || ((Map) meta).get(MpiConstants.FIELD_VERSION_ID) == null) {
+			return null;
+		}
+		
+		return ((Map) meta).get(MpiConstants.FIELD_VERSION_ID).toString();
+	}
+	
+	private static class CacheEntry {
+		
+		private final String json;
+		
+		private final String version;
+		
+		private long expiresAt;
+		
+		private boolean expired;
+		
+		private CacheEntry(String json, String version, long expiresAt) {
+			this.json = json;
+			this.version = version;
+			this.expiresAt = expiresAt;
+		}
+		
+	}
+	
+	/**
+	 * Statistics of a {@link MpiPatientCache}
+	 */
+	public static class Stats {
+		
+		private final long hitCount;
+		
+		private final long missCount;
+		
+		private final long evictionCount;
+		
+		private final long expirationCount;
+		
+		private final long revalidationCount;
+		
+		private final long notModifiedCount;
+		
+		private final int size;
+		
+		private final long weight;
+		
+		public Stats(long hitCount, long missCount, long evictionCount, long expirationCount, long revalidationCount,
+		    long notModifiedCount, int size, long weight) {
+			this.hitCount = hitCount;
+			this.missCount = missCount;
+			this.evictionCount = evictionCount;
+			this.expirationCount = expirationCount;
+			this.revalidationCount = revalidationCount;
+			this.notModifiedCount = notModifiedCount;
+			this.size = size;
+			this.weight = weight;
+		}
+		
+		public long getHitCount() {
+			return hitCount;
+		}
+		
+		public long getMissCount() {
+			return missCount;
+		}
+		
+		/**
+		 * Gets the count of entries that were removed to make room for new ones
+		 *
+		 * @return the count
+		 */
+		public long getEvictionCount() {
+			return evictionCount;
+		}
+		
+		public long getExpirationCount() {
+			return expirationCount;
+		}
+		
+		/**
+		 * Gets the count of conditional reads sent to the MPI to revalidate expired records
+		 *
+		 * @return the count
+		 */
+		public long getRevalidationCount() {
+			return revalidationCount;
+		}
+		
+		/**
+		 * Gets the count of revalidations where the MPI record was unchanged so no record was transferred
+		 *
+		 * @return the count
+		 */
+		public long getNotModifiedCount() {
+			return notModifiedCount;
+		}
+		
+		/**
+		 * Gets the ratio of revalidations that saved the transfer of the MPI record
+		 *
+		 * @return the ratio
+		 */
+		public double getNotModifiedRate() {
+			return revalidationCount == 0 ? 0 : (double) notModifiedCount / revalidationCount;
+		}
+		
+		public int getSize() {
+			return size;
+		}
+		
+		public long getWeight() {
+			return weight;
+		}
+		
+		/**
+		 * Gets the ratio of reads that were served from the cache
+		 *
+		 * @return the hit rate
+		 */
+		public double getHitRate() {
+			long total = hitCount + missCount;
+			return total == 0 ? 0 : (double) hitCount / total;
+		}
+		
+		@Override
+		public String toString() {
+			return "{hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount + ", expirations="
+			        + expirationCount + ", revalidations=" + revalidationCount + ", notModified=" + notModifiedCount
+			        + ", size=" + size + ", weight=" + weight + "}";
+		}
+		
+	}
+	
+}
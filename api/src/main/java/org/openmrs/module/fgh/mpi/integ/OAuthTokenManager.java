@@ -0,0 +1,283 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.module.fgh.mpi.entity.TokenInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manages the OAuth access token used to authenticate with SanteMPI. Threads read the current token
+ * from the {@link MpiContext} without locking. The token is refreshed in the background before it
+ * expires, using the configured safety margin. Only one refresh runs at a time. Threads that find
+ * the token about to expire keep using it while the refresh runs. Only threads that find no valid
+ * token wait for the refresh to complete. The asynchronous variants run the refresh on the specified
+ * executor because it blocks until the MPI responds, it must never run on a thread of the transport
+ * that has to complete the token request.
+ */
+public class OAuthTokenManager {
+	
+	private static final Logger log = LoggerFactory.getLogger(OAuthTokenManager.class);
+	
+	private static final long MIN_REFRESH_DELAY = 1000;
+	
+	private static final long RETRY_DELAY = 30000;
+	
+	private final MpiHttpClient httpClient;
+	
+	private final long refreshMargin;
+	
+	private final ReentrantLock refreshLock = new ReentrantLock();
+	
+	private final AtomicBoolean backgroundRefreshRunning = new AtomicBoolean();
+	
+	private final ScheduledExecutorService scheduler;
+	
+	private ScheduledFuture<?> scheduledRefresh;
+	
+	private MpiContext boundContext;
+	
+	/**
+	 * @param httpClient the {@link MpiHttpClient} used to authenticate with the MPI
+	 * @param refreshMargin the time in milliseconds before the token expires at which it is refreshed
+	 */
+	public OAuthTokenManager(MpiHttpClient httpClient, long refreshMargin) {
+		this.httpClient = httpClient;
+		this.refreshMargin = refreshMargin;
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "mpi-token-refresher");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Gets a valid access token, if there is no token or it has expired a new one is obtained on the
+	 * calling thread, if the token is about to expire a refresh is started in the background and the
+	 * current token is returned.
+	 *
+	 * @param mpiContext the {@link MpiContext} object
+	 * @return the {@link TokenInfo} object
+	 * @throws Exception
+	 */
+	public TokenInfo getToken(MpiContext mpiContext) throws Exception {
+		TokenInfo token = mpiContext.getTokenInfo();
+		if (isUsable(mpiContext, token)) {
+			return token;
+		}
+		
+		return refresh(mpiContext, token);
+	}
+	
+	/**
+	 * Asynchronous variant of {@link #getToken(MpiContext)}, the returned future is already complete if
+	 * the current token is valid otherwise a new one is obtained on the specified executor.
+	 *
+	 * @param mpiContext the {@link MpiContext} object
+	 * @param executor the executor on which to obtain a new token
+	 * @return a CompletableFuture that is completed with the {@link TokenInfo} object
+	 */
+	public CompletableFuture<TokenInfo> getTokenAsync(MpiContext mpiContext, Executor executor) {
+		TokenInfo token = mpiContext.getTokenInfo();
+		if (isUsable(mpiContext, token)) {
+			return CompletableFuture.completedFuture(token);
+		}
+		
+		return refreshAsync(mpiContext, token, executor);
+	}
+	
+	/**
+	 * Replaces the specified token with a new one, if another thread has already replaced it, the
+	 * token obtained by that thread is returned and no request is sent to the MPI.
+	 *
+	 * @param mpiContext the {@link MpiContext} object
+	 * @param staleToken the token to replace, can be null
+	 * @return the new {@link TokenInfo} object
+	 * @throws Exception
+	 */
+	public TokenInfo refresh(MpiContext mpiContext, TokenInfo staleToken) throws Exception {
+		refreshLock.lock();
+		try {
+			TokenInfo current = mpiContext.getTokenInfo();
+			if (current != null && current != staleToken && current.isValid(LocalDateTime.now())) {
+				if (log.isDebugEnabled()) {
+					log.debug("Access token was already refreshed by another thread");
+				}
+				
+				return current;
+			}
+			
+			authenticate(mpiContext, current);
+			
+			TokenInfo newToken = mpiContext.getTokenInfo();
+			scheduleRefresh(mpiContext, newToken);
+			
+			return newToken;
+		}
+		finally {
+			refreshLock.unlock();
+		}
+	}
+	
+	/**
+	 * Asynchronous variant of {@link #refresh(MpiContext, TokenInfo)} that runs on the specified
+	 * executor
+	 *
+	 * @param mpiContext the {@link MpiContext} object
+	 * @param staleToken the token to replace, can be null
+	 * @param executor the executor on which to obtain the new token
+	 * @return a CompletableFuture that is completed with the new {@link TokenInfo} object
+	 */
+	public CompletableFuture<TokenInfo> refreshAsync(MpiContext mpiContext, TokenInfo staleToken, Executor executor) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return refresh(mpiContext, staleToken);
+			}
+			catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+	
+	/**
+	 * Binds the background refresh to the specified context after it was swapped in by a reload, the
+	 * refresh scheduled for the previous context is cancelled and the token carried over to the new
+	 * context if any is scheduled for refresh instead. Refreshes are no longer scheduled for the
+	 * previous context.
+	 *
+	 * @param mpiContext the new {@link MpiContext} object
+	 */
+	public void rebind(MpiContext mpiContext) {
+		synchronized (this) {
+			boundContext = mpiContext;
+			if (scheduledRefresh != null) {
+				scheduledRefresh.cancel(false);
+				scheduledRefresh = null;
+			}
+		}
+		
+		scheduleRefresh(mpiContext, mpiContext.getTokenInfo());
+	}
+	
+	/**
+	 * Stops the background refresh of the token
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+	
+	/**
+	 * Checks if the specified token is valid, a refresh is started in the background if it is about to
+	 * expire
+	 */
+	private boolean isUsable(MpiContext mpiContext, TokenInfo token) {
+		LocalDateTime now = LocalDateTime.now();
+		if (token == null || !token.isValid(now)) {
+			return false;
+		}
+		
+		if (!token.isValid(now.plus(getRefreshMargin(token), ChronoUnit.MILLIS))) {
+			refreshInBackground(mpiContext, token);
+		}
+		
+		return true;
+	}
+	
+	private void authenticate(MpiContext mpiContext, TokenInfo current) throws Exception {
+		String credentials = "client_secret=" + mpiContext.getClientSecret() + "&" + "client_id=" + mpiContext.getClientId();
+		if (current != null && StringUtils.isNotBlank(current.getRefreshToken())) {
+			log.info("Refreshing the MPI access token");
+			
+			try {
+				httpClient.doAuthentication(
+				    "grant_type=refresh_token&refresh_token=" + current.getRefreshToken() + "&" + credentials);
+				return;
+			}
+			catch (Exception e) {
+				log.warn("Failed to refresh the MPI access token, requesting a new one", e);
+			}
+		}
+		
+		log.info("Requesting a new MPI access token");
+		
+		httpClient.doAuthentication("grant_type=client_credentials" + "&" + "scope=*" + "&" + credentials);
+	}
+	
+	private void refreshInBackground(MpiContext mpiContext, TokenInfo token) {
+		if (!backgroundRefreshRunning.compareAndSet(false, true)) {
+			return;
+		}
+		
+		try {
+			scheduler.execute(() -> runBackgroundRefresh(mpiContext, token));
+		}
+		catch (RuntimeException e) {
+			backgroundRefreshRunning.set(false);
+			log.warn("Failed to start the background refresh of the MPI access token", e);
+		}
+	}
+	
+	private void runBackgroundRefresh(MpiContext mpiContext, TokenInfo token) {
+		try {
+			refresh(mpiContext, token);
+		}
+		catch (Exception e) {
+			log.error("Failed to refresh the MPI access token in the background, retrying in " + RETRY_DELAY + "ms", e);
+			schedule(mpiContext, token, RETRY_DELAY);
+		}
+		finally {
+			backgroundRefreshRunning.set(false);
+		}
+	}
+	
+	private void scheduleRefresh(MpiContext mpiContext, TokenInfo token) {
+		if (token == null || token.getTokenExpirationDateTime() == null) {
+			return;
+		}
+		
+		LocalDateTime refreshAt = token.getTokenExpirationDateTime().minus(getRefreshMargin(token), ChronoUnit.MILLIS);
+		long delay = Math.max(MIN_REFRESH_DELAY, ChronoUnit.MILLIS.between(LocalDateTime.now(), refreshAt));
+		schedule(mpiContext, token, delay);
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Scheduled refresh of the MPI access token in " + delay + "ms");
+		}
+	}
+	
+	private synchronized void schedule(MpiContext mpiContext, TokenInfo token, long delay) {
+		//A request that started before a reload may still refresh the token of the previous context
+		if (scheduler.isShutdown() || (boundContext != null && boundContext != mpiContext)) {
+			return;
+		}
+		
+		if (scheduledRefresh != null) {
+			scheduledRefresh.cancel(false);
+		}
+		
+		scheduledRefresh = scheduler.schedule(() -> {
+			if (backgroundRefreshRunning.compareAndSet(false, true)) {
+				runBackgroundRefresh(mpiContext, token);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * The margin is capped at half the token lifetime so that short-lived tokens are not refreshed
+	 * on every request
+	 */
+	private long getRefreshMargin(TokenInfo token) {
+		return Math.min(refreshMargin, TimeUnit.SECONDS.toMillis(token.getExpiresIn()) / 2);
+	}
+	
+}
@@ -0,0 +1,176 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link MpiHttpTransport} backed by a pool of persistent connections that are kept alive and reused
+ * across requests and threads so that the TCP and TLS handshakes are not repeated for every request.
+ * Connections that have been idle for longer than the idle timeout are evicted by a background
+ * thread and those that have been idle for longer than the validation period are checked for
+ * staleness before they are reused.
+ */
+public class PooledHttpTransport implements MpiHttpTransport {
+	
+	private static final Logger log = LoggerFactory.getLogger(PooledHttpTransport.class);
+	
+	private final PoolingHttpClientConnectionManager connectionManager;
+	
+	private final CloseableHttpClient httpClient;
+	
+	/**
+	 * @param sslContext the {@link SSLContext} holding the client certificate, if null the default one
+	 *            is used
+	 * @param maxTotal the maximum number of connections in the pool
+	 * @param maxPerRoute the maximum number of connections per route
+	 * @param idleTimeout the time in milliseconds after which idle connections are evicted
+	 * @param validateAfterInactivity the time in milliseconds after which idle connections are
+	 *            validated before they are reused
+	 */
+	public PooledHttpTransport(SSLContext sslContext, int maxTotal, int maxPerRoute, int idleTimeout,
+	    int validateAfterInactivity) {
+		
+		SSLConnectionSocketFactory sslSocketFactory;
+		if (sslContext != null) {
+			//We are communicating wih our own service that uses a self signed certificate so no need for
+			//host name verification
+			sslSocketFactory = new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE);
+		} else {
+			sslSocketFactory = SSLConnectionSocketFactory.getSocketFactory();
+		}
+		
+		Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory> create()
+		        .register("http", PlainConnectionSocketFactory.getSocketFactory()).register("https", sslSocketFactory)
+		        .build();
+		
+		connectionManager = new PoolingHttpClientConnectionManager(registry);
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		connectionManager.setValidateAfterInactivity(validateAfterInactivity);
+		
+		httpClient = HttpClients.custom().setConnectionManager(connectionManager).disableCookieManagement()
+		        .disableAutomaticRetries().evictExpiredConnections()
+		        .evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS).build();
+		
+		log.info("Created pooled MPI http transport with max total connections: " + maxTotal + ", max per route: "
+		        + maxPerRoute + ", idle timeout: " + idleTimeout + "ms");
+	}
+	
+	/**
+	 * @see MpiHttpTransport#execute(MpiHttpRequest)
+	 */
+	@Override
+	public MpiHttpResponse execute(MpiHttpRequest request) throws IOException {
+		RequestConfig config = RequestConfig.custom().setConnectTimeout(request.getConnectTimeout())
+		        .setConnectionRequestTimeout(request.getConnectTimeout()).build();
+		RequestBuilder builder = RequestBuilder.create(request.getMethod()).setUri(request.getUrl()).setConfig(config);
+		for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+			//The content length is set by the client from the entity
+			if (!HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(header.getKey())) {
+				builder.setHeader(header.getKey(), header.getValue());
+			}
+		}
+		
+		if (request.getBody() != null) {
+			builder.setEntity(new ByteArrayEntity(request.getBody().getBytes()));
+		}
+		
+		HttpUriRequest httpRequest = builder.build();
+		if (log.isDebugEnabled()) {
+			PoolStats stats = connectionManager.getTotalStats();
+			log.debug("Sending " + request + ", leased connections: " + stats.getLeased() + ", available: "
+			        + stats.getAvailable());
+		}
+		
+		return new PooledResponse(httpClient.execute(httpRequest));
+	}
+	
+	/**
+	 * Gets the statistics of the connection pool
+	 *
+	 * @return the {@link PoolStats} object
+	 */
+	public PoolStats getPoolStats() {
+		return connectionManager.getTotalStats();
+	}
+	
+	/**
+	 * @see MpiHttpTransport#close()
+	 */
+	@Override
+	public void close() {
+		try {
+			httpClient.close();
+		}
+		catch (IOException e) {
+			log.warn("Failed to close the pooled MPI http transport", e);
+		}
+	}
+	
+	private static class PooledResponse implements MpiHttpResponse {
+		
+		private final CloseableHttpResponse response;
+		
+		PooledResponse(CloseableHttpResponse response) {
+			this.response = response;
+		}
+		
+		@Override
+		public int getStatusCode() {
+			return response.getStatusLine().getStatusCode();
+		}
+		
+		@Override
+		public String getStatusMessage() {
+			return response.getStatusLine().getReasonPhrase();
+		}
+		
+		@Override
+		public String getHeader(String name) {
+			Header header = response.getFirstHeader(name);
+			return header != null ? header.getValue() : null;
+		}
+		
+		@Override
+		public InputStream getBody() throws IOException {
+			HttpEntity entity = response.getEntity();
+			return entity != null ? entity.getContent() : new ByteArrayInputStream(new byte[0]);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			//Consuming the rest of the entity allows the connection to be returned to the pool for reuse
+			EntityUtils.consumeQuietly(response.getEntity());
+			response.close();
+		}
+		
+	}
+	
+}
@@ -0,0 +1,51 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+/**
+ * Token bucket that caps the rate at which requests are sent to the MPI, the bucket holds at most
+ * one second's worth of permits so short bursts are allowed. Instead of blocking, a caller reserves
+ * a permit and is told how long to wait before sending its request. A rate of zero disables the
+ * limiter.
+ */
+public class RequestRateLimiter {
+	
+	private final double permitsPerSecond;
+	
+	private final double maxPermits;
+	
+	private double storedPermits;
+	
+	private long lastRefill = System.nanoTime();
+	
+	/**
+	 * @param permitsPerSecond the maximum number of requests per second
+	 */
+	public RequestRateLimiter(double permitsPerSecond) {
+		this.permitsPerSecond = permitsPerSecond;
+		this.maxPermits = Math.max(1, permitsPerSecond);
+		this.storedPermits = maxPermits;
+	}
+	
+	/**
+	 * Reserves a permit to send a request
+	 *
+	 * @return the time in milliseconds to wait before sending the request
+	 */
+	public synchronized long reserve() {
+		if (permitsPerSecond <= 0) {
+			return 0;
+		}
+		
+		long now = System.nanoTime();
+		storedPermits = Math.min(maxPermits, storedPermits + (now - lastRefill) / 1e9 * permitsPerSecond);
+		lastRefill = now;
+		
+		//The permit is taken even if not yet available, the bucket goes into debt and the caller waits
+		storedPermits -= 1;
+		if (storedPermits >= 0) {
+			return 0;
+		}
+		
+		return (long) Math.ceil(-storedPermits / permitsPerSecond * 1000);
+	}
+	
+}
@@ -0,0 +1,141 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * Decides whether a failed request to the MPI should be retried and how long to wait before the
+ * next attempt. Only IO errors and status codes that indicate a temporary problem with the MPI are
+ * retried. A request that is not idempotent e.g. a POST that creates a patient is only retried if it
+ * failed before it reached the MPI since the MPI may have processed it when the response is lost.
+ * The delay grows exponentially with each attempt up to a maximum. Each delay is randomly reduced by
+ * up to half so that threads that failed at the same time do not retry at the same time.
+ */
+public class RetryPolicy {
+	
+	private final int maxAttempts;
+	
+	private final long initialDelay;
+	
+	private final long maxDelay;
+	
+	/**
+	 * @param maxAttempts the maximum number of attempts including the first one
+	 * @param initialDelay the delay in milliseconds before the first retry
+	 * @param maxDelay the maximum delay in milliseconds between two attempts
+	 */
+	public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay) {
+		this.maxAttempts = maxAttempts;
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+	}
+	
+	/**
+	 * Checks whether the request should be attempted again after it failed with the specified error
+	 *
+	 * @param error the error
+	 * @param attempt the number of the attempt that failed starting from 1
+	 * @return true if the request should be retried otherwise false
+	 */
+	public boolean shouldRetry(Throwable error, int attempt) {
+		return shouldRetry(error, attempt, true);
+	}
+	
+	/**
+	 * Checks whether the request should be attempted again after it failed with the specified error
+	 *
+	 * @param error the error
+	 * @param attempt the number of the attempt that failed starting from 1
+	 * @param idempotent specifies if the request can safely be sent again after the MPI received it
+	 * @return true if the request should be retried otherwise false
+	 */
+	public boolean shouldRetry(Throwable error, int attempt, boolean idempotent) {
+		if (attempt >= maxAttempts) {
+			return false;
+		}
+		
+		return idempotent ? isRetryable(error) : isConnectFailure(error);
+	}
+	
+	/**
+	 * Gets the time to wait before the next attempt
+	 *
+	 * @param attempt the number of the attempt that failed starting from 1
+	 * @return the delay in milliseconds
+	 */
+	public long getDelay(int attempt) {
+		long delay = initialDelay << Math.min(attempt - 1, 30);
+		if (delay <= 0 || delay > maxDelay) {
+			delay = maxDelay;
+		}
+		
+		long half = delay / 2;
+		return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+	}
+	
+	/**
+	 * Checks whether the specified error indicates a temporary problem with the MPI
+	 *
+	 * @param error the error to check
+	 * @return true if the error is retryable otherwise false
+	 */
+	public static boolean isRetryable(Throwable error) {
+		Throwable cause = error;
+		while (cause != null) {
+			if (cause instanceof CircuitBreakerOpenException) {
+				return false;
+			} else if (cause instanceof IOException) {
+				return true;
+			} else if (cause instanceof MpiHttpException) {
+				return isRetryableStatusCode(((MpiHttpException) cause).getStatusCode());
+			}
+			
+			cause = cause.getCause();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Checks whether the specified error occurred while connecting to the MPI i.e. before any request
+	 * data was sent
+	 *
+	 * @param error the error to check
+	 * @return true if the error is a connection failure otherwise false
+	 */
+	public static boolean isConnectFailure(Throwable error) {
+		Throwable cause = error;
+		while (cause != null) {
+			if (cause instanceof ConnectException || cause instanceof NoRouteToHostException
+			        || cause instanceof UnknownHostException || cause instanceof HttpConnectTimeoutException
+			        || cause instanceof ConnectTimeoutException) {
+				return true;
+			}
+			
+			cause = cause.getCause();
+		}
+		
+		return false;
+	}
+	
+	protected static boolean isRetryableStatusCode(int statusCode) {
+		switch (statusCode) {
+			case 408:
+			case 429:
+			case 500:
+			case 502:
+			case 503:
+			case 504:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+}
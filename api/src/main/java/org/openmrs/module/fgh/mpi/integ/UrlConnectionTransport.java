@@ -0,0 +1,107 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Map;
+
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+
+/**
+ * {@link MpiHttpTransport} that opens a new {@link HttpURLConnection} for each request and
+ * disconnects it once the response is closed.
+ */
+public class UrlConnectionTransport implements MpiHttpTransport {
+	
+	private final MpiContext mpiContext;
+	
+	public UrlConnectionTransport(MpiContext mpiContext) {
+		this.mpiContext = mpiContext;
+	}
+	
+	/**
+	 * @see MpiHttpTransport#execute(MpiHttpRequest)
+	 */
+	@Override
+	public MpiHttpResponse execute(MpiHttpRequest request) throws IOException {
+		HttpURLConnection connection;
+		if (mpiContext.getAuthenticationType() != null && mpiContext.getAuthenticationType().isCertificate()) {
+			connection = MpiUtils.openConnectionForSSL(request.getUrl(), mpiContext);
+		} else {
+			connection = MpiUtils.openConnection(request.getUrl());
+		}
+		
+		try {
+			for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+				connection.setRequestProperty(header.getKey(), header.getValue());
+			}
+			
+			connection.setDoInput(true);
+			connection.setConnectTimeout(request.getConnectTimeout());
+			connection.setUseCaches(false);
+			connection.setRequestMethod(request.getMethod());
+			if (request.getBody() != null) {
+				connection.setDoOutput(true);
+			}
+			
+			connection.connect();
+			
+			if (request.getBody() != null) {
+				OutputStream out = connection.getOutputStream();
+				out.write(request.getBody().getBytes());
+				out.flush();
+				out.close();
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			connection.disconnect();
+			throw e;
+		}
+		
+		return new UrlConnectionResponse(connection);
+	}
+	
+	/**
+	 * @see MpiHttpTransport#close()
+	 */
+	@Override
+	public void close() {
+	}
+	
+	private static class UrlConnectionResponse implements MpiHttpResponse {
+		
+		private final HttpURLConnection connection;
+		
+		UrlConnectionResponse(HttpURLConnection connection) {
+			this.connection = connection;
+		}
+		
+		@Override
+		public int getStatusCode() throws IOException {
+			return connection.getResponseCode();
+		}
+		
+		@Override
+		public String getStatusMessage() throws IOException {
+			return connection.getResponseMessage();
+		}
+		
+		@Override
+		public String getHeader(String name) {
+			return connection.getHeaderField(name);
+		}
+		
+		@Override
+		public InputStream getBody() throws IOException {
+			return connection.getInputStream();
+		}
+		
+		@Override
+		public void close() {
+			connection.disconnect();
+		}
+		
+	}
+	
+}
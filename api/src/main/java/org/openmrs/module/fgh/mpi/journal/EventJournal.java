@@ -0,0 +1,308 @@
+package org.openmrs.module.fgh.mpi.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.APIException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A local append-only journal of {@link JournalEntry} records stored in fixed size memory-mapped
+ * segment files, each record is written as a 4 byte length followed by the json of the entry and
+ * the segment is forced to disk before {@link #append(JournalEntry)} returns. A reader reads the
+ * records after the last committed checkpoint via {@link #read(int)} and calls
+ * {@link #commit(Batch)} once they have been processed, the checkpoint is stored in a separate file
+ * and segments before it are kept for reuse as new segments instead of allocating new files.
+ * Records are read at least once i.e. records read but not committed before a restart are read
+ * again.
+ */
+public class EventJournal {
+	
+	private static final Logger log = LoggerFactory.getLogger(EventJournal.class);
+	
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	
+	protected static final String CHECKPOINT_FILE = ".checkpoint";
+	
+	private static final String SEGMENT_PREFIX = "segment-";
+	
+	private static final String SEGMENT_SUFFIX = ".dat";
+	
+	private static final int MAX_SPARE_SEGMENTS = 2;
+	
+	private final File directory;
+	
+	private final int segmentSize;
+	
+	private final ObjectMapper mapper = new ObjectMapper();
+	
+	private final LinkedList<File> spareSegments = new LinkedList();
+	
+	private long writeSegment;
+	
+	private MappedByteBuffer writeBuffer;
+	
+	private long readSegment;
+	
+	private int readOffset;
+	
+	public EventJournal(File directory) {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+	
+	public EventJournal(File directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		open();
+	}
+	
+	/**
+	 * Durably appends the specified entry to the journal
+	 *
+	 * @param entry the {@link JournalEntry} to append
+	 */
+	public synchronized void append(JournalEntry entry) {
+		try {
+			byte[] data = mapper.writeValueAsBytes(entry);
+			if (data.length + 4 > segmentSize) {
+				throw new APIException("Journal entry of " + data.length + " bytes is larger than the segment size");
+			}
+			
+			if (writeBuffer.remaining() < data.length + 4) {
+				roll();
+			}
+			
+			int position = writeBuffer.position();
+			writeBuffer.position(position + 4);
+			writeBuffer.put(data);
+			//The length is written last so that a reader never sees a partially written record
+			writeBuffer.putInt(position, data.length);
+			writeBuffer.force();
+		}
+		catch (IOException e) {
+			throw new APIException("Failed to append entry to the journal -> " + entry, e);
+		}
+	}
+	
+	/**
+	 * Reads the entries after the last committed checkpoint
+	 *
+	 * @param maxEntries the maximum number of entries to read
+	 * @return the read entries along with the position to commit after processing them
+	 */
+	public synchronized Batch read(int maxEntries) {
+		List<JournalEntry> entries = new ArrayList();
+		long segment = readSegment;
+		int offset = readOffset;
+		try {
+			while (entries.size() < maxEntries && segment <= writeSegment) {
+				ByteBuffer buffer;
+				if (segment == writeSegment) {
+					buffer = writeBuffer.duplicate();
+					buffer.limit(writeBuffer.position());
+				} else {
+					buffer = map(getSegmentFile(segment), FileChannel.MapMode.READ_ONLY);
+				}
+				
+				buffer.position(offset);
+				while (entries.size() < maxEntries && buffer.remaining() > 4) {
+					int length = buffer.getInt(buffer.position());
+					if (length <= 0 || length > buffer.remaining() - 4) {
+						break;
+					}
+					
+					byte[] data = new byte[length];
+					buffer.position(buffer.position() + 4);
+					buffer.get(data);
+					entries.add(mapper.readValue(data, JournalEntry.class));
+				}
+				
+				offset = buffer.position();
+				if (entries.size() < maxEntries && segment < writeSegment) {
+					segment++;
+					offset = 0;
+				} else {
+					break;
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new APIException("Failed to read entries from the journal", e);
+		}
+		
+		return new Batch(entries, segment, offset);
+	}
+	
+	/**
+	 * Moves the checkpoint to the end of the specified batch, segments that were fully read are
+	 * recycled.
+	 *
+	 * @param batch the processed {@link Batch}
+	 */
+	public synchronized void commit(Batch batch) {
+		try {
+			File tmp = new File(directory, CHECKPOINT_FILE + ".tmp");
+			FileUtils.writeStringToFile(tmp, batch.segment + ":" + batch.offset, StandardCharsets.UTF_8);
+			Files.move(tmp.toPath(), new File(directory, CHECKPOINT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+			    StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			throw new APIException("Failed to save the journal checkpoint", e);
+		}
+		
+		for (long segment = readSegment; segment < batch.segment; segment++) {
+			recycle(getSegmentFile(segment));
+		}
+		
+		readSegment = batch.segment;
+		readOffset = batch.offset;
+	}
+	
+	/**
+	 * Checks if there are entries after the last committed checkpoint
+	 *
+	 * @return true if there are uncommitted entries otherwise false
+	 */
+	public synchronized boolean hasPendingEntries() {
+		return readSegment < writeSegment || readOffset < writeBuffer.position();
+	}
+	
+	private void open() {
+		try {
+			FileUtils.forceMkdir(directory);
+			SortedMap<Long, File> segments = new TreeMap();
+			File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+			for (File file : files) {
+				String index = StringUtils.substringBetween(file.getName(), SEGMENT_PREFIX, SEGMENT_SUFFIX);
+				segments.put(Long.valueOf(index), file);
+			}
+			
+			File checkpointFile = new File(directory, CHECKPOINT_FILE);
+			if (checkpointFile.exists()) {
+				String[] checkpoint = FileUtils.readFileToString(checkpointFile, StandardCharsets.UTF_8).trim().split(":");
+				readSegment = Long.valueOf(checkpoint[0]);
+				readOffset = Integer.valueOf(checkpoint[1]);
+			} else if (!segments.isEmpty()) {
+				readSegment = segments.firstKey();
+			}
+			
+			for (File file : segments.headMap(readSegment).values()) {
+				recycle(file);
+			}
+			
+			writeSegment = segments.isEmpty() ? readSegment : Math.max(readSegment, segments.lastKey());
+			writeBuffer = map(getSegmentFile(writeSegment), FileChannel.MapMode.READ_WRITE);
+			int position = 0;
+			while (position + 4 <= writeBuffer.capacity()) {
+				int length = writeBuffer.getInt(position);
+				if (length <= 0 || position + 4 + length > writeBuffer.capacity()) {
+					break;
+				}
+				
+				position += 4 + length;
+			}
+			
+			writeBuffer.position(position);
+			
+			log.info("Opened journal at " + directory + " with read position " + readSegment + ":" + readOffset
+			        + " and write position " + writeSegment + ":" + position);
+		}
+		catch (IOException e) {
+			throw new APIException("Failed to open the journal at " + directory, e);
+		}
+	}
+	
+	private void roll() throws IOException {
+		writeBuffer.force();
+		writeSegment++;
+		File file = getSegmentFile(writeSegment);
+		File spare = spareSegments.poll();
+		if (spare != null) {
+			Files.move(spare.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			writeBuffer = map(file, FileChannel.MapMode.READ_WRITE);
+			//Clear the previous contents since a zero length marks the end of the written records
+			while (writeBuffer.remaining() >= 8) {
+				writeBuffer.putLong(0);
+			}
+			
+			while (writeBuffer.hasRemaining()) {
+				writeBuffer.put((byte) 0);
+			}
+			
+			writeBuffer.position(0);
+		} else {
+			writeBuffer = map(file, FileChannel.MapMode.READ_WRITE);
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Rolled journal to segment " + file.getName());
+		}
+	}
+	
+	private void recycle(File segmentFile) {
+		if (!segmentFile.exists()) {
+			return;
+		}
+		
+		if (spareSegments.size() < MAX_SPARE_SEGMENTS) {
+			spareSegments.add(segmentFile);
+		} else if (!segmentFile.delete()) {
+			log.warn("Failed to delete journal segment " + segmentFile);
+		}
+	}
+	
+	private MappedByteBuffer map(File file, FileChannel.MapMode mode) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw")) {
+			if (mode != FileChannel.MapMode.READ_ONLY && raf.length() < segmentSize) {
+				raf.setLength(segmentSize);
+			}
+			
+			return raf.getChannel().map(mode, 0, raf.length());
+		}
+	}
+	
+	private File getSegmentFile(long index) {
+		return new File(directory, SEGMENT_PREFIX + String.format("%010d", index) + SEGMENT_SUFFIX);
+	}
+	
+	/**
+	 * Holds the entries read from the journal and the position after the last entry
+	 */
+	public static class Batch {
+		
+		private final List<JournalEntry> entries;
+		
+		private final long segment;
+		
+		private final int offset;
+		
+		Batch(List<JournalEntry> entries, long segment, int offset) {
+			this.entries = entries;
+			this.segment = segment;
+			this.offset = offset;
+		}
+		
+		public List<JournalEntry> getEntries() {
+			return entries;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,113 @@
+package org.openmrs.module.fgh.mpi.journal;
+
+import java.util.Map;
+
+import org.openmrs.module.debezium.DatabaseEvent;
+import org.openmrs.module.debezium.DatabaseOperation;
+
+/**
+ * Represents a patient level work item recorded in the {@link EventJournal}, it holds the id of the
+ * affected patient and the fields of the database event that affected it since the event's
+ * previous state is required to process a deleted person.
+ */
+public class JournalEntry {
+	
+	private Integer patientId;
+	
+	private Object primaryKeyId;
+	
+	private String tableName;
+	
+	private String operation;
+	
+	private String snapshot;
+	
+	private Map<String, Object> previousState;
+	
+	private Map<String, Object> newState;
+	
+	public JournalEntry() {
+	}
+	
+	public JournalEntry(Integer patientId, DatabaseEvent event) {
+		this.patientId = patientId;
+		this.primaryKeyId = event.getPrimaryKeyId();
+		this.tableName = event.getTableName();
+		this.operation = event.getOperation() != null ? event.getOperation().name() : null;
+		this.snapshot = event.getSnapshot() != null ? event.getSnapshot().name() : null;
+		this.previousState = event.getPreviousState();
+		this.newState = event.getNewState();
+	}
+	
+	/**
+	 * Creates a {@link DatabaseEvent} from this entry
+	 *
+	 * @return DatabaseEvent object
+	 */
+	public DatabaseEvent toEvent() {
+		return new DatabaseEvent(primaryKeyId, tableName, operation != null ? DatabaseOperation.valueOf(operation) : null,
+		        snapshot != null ? DatabaseEvent.Snapshot.valueOf(snapshot) : null, previousState, newState);
+	}
+	
+	public Integer getPatientId() {
+		return patientId;
+	}
+	
+	public void setPatientId(Integer patientId) {
+		this.patientId = patientId;
+	}
+	
+	public Object getPrimaryKeyId() {
+		return primaryKeyId;
+	}
+	
+	public void setPrimaryKeyId(Object primaryKeyId) {
+		this.primaryKeyId = primaryKeyId;
+	}
+	
+	public String getTableName() {
+		return tableName;
+	}
+	
+	public void setTableName(String tableName) {
+		this.tableName = tableName;
+	}
+	
+	public String getOperation() {
+		return operation;
+	}
+	
+	public void setOperation(String operation) {
+		this.operation = operation;
+	}
+	
+	public String getSnapshot() {
+		return snapshot;
+	}
+	
+	public void setSnapshot(String snapshot) {
+		this.snapshot = snapshot;
+	}
+	
+	public Map<String, Object> getPreviousState() {
+		return previousState;
+	}
+	
+	public void setPreviousState(Map<String, Object> previousState) {
+		this.previousState = previousState;
+	}
+	
+	public Map<String, Object> getNewState() {
+		return newState;
+	}
+	
+	public void setNewState(Map<String, Object> newState) {
+		this.newState = newState;
+	}
+	
+	@Override
+	public String toString() {
+		return "JournalEntry {patientId=" + patientId + ", tableName=" + tableName + ", operation=" + operation + "}";
+	}
+	
+}
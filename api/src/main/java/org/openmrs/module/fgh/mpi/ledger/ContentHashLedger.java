@@ -0,0 +1,143 @@
+package org.openmrs.module.fgh.mpi.ledger;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.APIException;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Persistent ledger of the content hash of the patient resource last successfully submitted to the
+ * MPI for each patient, a generated patient resource with the same hash as the one last submitted
+ * is not submitted again. The hash is computed over a canonical form of the resource where map
+ * entries are sorted by key and null values and null list entries are left out so that the null
+ * padding entries and the field ordering of the generated resources do not affect it.
+ */
+public final class ContentHashLedger {
+	
+	private static final int MAX_ROWS_PER_STATEMENT = 500;
+	
+	private static final String SELECT = "SELECT content_hash FROM mpi_patient_content_hash WHERE patient_uuid = ?";
+	
+	private static final String UPSERT = "INSERT INTO mpi_patient_content_hash (patient_uuid, content_hash, "
+	        + "date_submitted) VALUES ";
+	
+	private static final String ON_DUPLICATE = " ON DUPLICATE KEY UPDATE content_hash = VALUES(content_hash), "
+	        + "date_submitted = VALUES(date_submitted)";
+	
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	
+	private static final AtomicLong suppressedCount = new AtomicLong();
+	
+	private ContentHashLedger() {
+	}
+	
+	/**
+	 * Computes the content hash of the specified patient resource
+	 *
+	 * @param resource the patient resource
+	 * @return the hex encoded SHA-256 hash
+	 */
+	public static String hash(Map<String, Object> resource) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(MAPPER.writeValueAsBytes(canonicalize(resource)));
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b));
+			}
+			
+			return hex.toString();
+		}
+		catch (JsonProcessingException | NoSuchAlgorithmException e) {
+			throw new APIException("Failed to compute the content hash of the patient resource", e);
+		}
+	}
+	
+	/**
+	 * Checks if the specified hash matches that of the patient resource last successfully submitted
+	 * for the patient with the specified uuid, if it does the submission is counted as suppressed.
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @param hash the content hash of the patient resource to submit
+	 * @return true if the hash is unchanged otherwise false
+	 */
+	public static boolean isUnchanged(String patientUuid, String hash) {
+		List<List<Object>> rows = MpiUtils.executeQuery(SELECT, patientUuid);
+		if (rows.isEmpty() || !hash.equals(rows.get(0).get(0))) {
+			return false;
+		}
+		
+		suppressedCount.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Records the content hashes of successfully submitted patient resources, replacing any existing
+	 * ones
+	 *
+	 * @param uuidAndHashes map of OpenMRS uuids to content hashes
+	 */
+	public static void saveAll(Map<String, String> uuidAndHashes) {
+		List<Map.Entry<String, String>> entries = new ArrayList(uuidAndHashes.entrySet());
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		for (int i = 0; i < entries.size(); i += MAX_ROWS_PER_STATEMENT) {
+			List<Map.Entry<String, String>> batch = entries.subList(i, Math.min(i + MAX_ROWS_PER_STATEMENT, entries.size()));
+			List<Object> params = new ArrayList(batch.size() * 3);
+			for (Map.Entry<String, String> entry : batch) {
+				params.add(entry.getKey());
+				params.add(entry.getValue());
+				params.add(now);
+			}
+			
+			String values = StringUtils.repeat("(?, ?, ?)", ", ", batch.size());
+			MpiUtils.executeUpdate(UPSERT + values + ON_DUPLICATE, params.toArray());
+		}
+	}
+	
+	/**
+	 * Gets the count of submissions that were suppressed because the patient resource was unchanged
+	 * since the module was started
+	 *
+	 * @return the count
+	 */
+	public static long getSuppressedCount() {
+		return suppressedCount.get();
+	}
+	
+	private static Object canonicalize(Object value) {
+		if (value instanceof Map) {
+			Map<String, Object> canonical = new TreeMap();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				if (entry.getValue() != null) {
+					canonical.put(entry.getKey().toString(), canonicalize(entry.getValue()));
+				}
+			}
+			
+			return canonical;
+		}
+		
+		if (value instanceof List) {
+			List<Object> canonical = new ArrayList(((List) value).size());
+			for (Object item : (List) value) {
+				if (item != null) {
+					canonical.add(canonicalize(item));
+				}
+			}
+			
+			return canonical;
+		}
+		
+		return value;
+	}
+	
+}
@@ -0,0 +1,81 @@
+package org.openmrs.module.fgh.mpi.ledger;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.APIException;
+import org.openmrs.module.fgh.mpi.integ.CircuitBreakerOpenException;
+import org.openmrs.module.fgh.mpi.integ.MpiHttpException;
+
+/**
+ * Classifies errors that occur while submitting a patient to the MPI as either retryable or
+ * permanent, a permanent error is one that will keep occurring until the patient data or module
+ * configuration is fixed e.g. an identifier type with no mapped system uri or a 4xx response from
+ * the MPI, retrying such errors is pointless until someone re-drives the failure.
+ */
+public final class FailureClassifier {
+	
+	private static final Pattern RESPONSE_CODE_PATTERN = Pattern.compile("Unexpected response (\\d{3})");
+	
+	private static final String[] PERMANENT_MESSAGES = new String[] { "No id system uri defined",
+	        "No person attribute type found", "No value set for the global property", "No encounter found matching uuid" };
+	
+	private FailureClassifier() {
+	}
+	
+	/**
+	 * Checks if the specified error is permanent
+	 *
+	 * @param error the error to classify
+	 * @return true if the error is permanent otherwise false
+	 */
+	public static boolean isPermanent(Throwable error) {
+		Throwable cause = error;
+		while (cause != null) {
+			if (cause instanceof IOException || cause instanceof CircuitBreakerOpenException) {
+				return false;
+			}
+			
+			if (cause instanceof MpiHttpException) {
+				return isPermanentResponseCode(((MpiHttpException) cause).getStatusCode());
+			}
+			
+			if (cause instanceof APIException && cause.getMessage() != null) {
+				if (StringUtils.startsWithAny(cause.getMessage(), PERMANENT_MESSAGES)) {
+					return true;
+				}
+				
+				Matcher matcher = RESPONSE_CODE_PATTERN.matcher(cause.getMessage());
+				if (matcher.find()) {
+					return isPermanentResponseCode(Integer.valueOf(matcher.group(1)));
+				}
+			}
+			
+			if (cause instanceof NumberFormatException || cause instanceof ClassCastException) {
+				return true;
+			}
+			
+			cause = cause.getCause() == cause ? null : cause.getCause();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Checks if an error response with the specified code from the MPI is permanent, all 4xx codes are
+	 * permanent except those for authentication, timeouts, conflicts and throttling.
+	 *
+	 * @param code the http response code
+	 * @return true if permanent otherwise false
+	 */
+	protected static boolean isPermanentResponseCode(int code) {
+		if (code < 400 || code >= 500) {
+			return false;
+		}
+		
+		return code != 401 && code != 403 && code != 408 && code != 409 && code != 429;
+	}
+	
+}
@@ -0,0 +1,258 @@
+package org.openmrs.module.fgh.mpi.ledger;
+
+import static org.openmrs.module.debezium.DatabaseOperation.DELETE;
+import static org.openmrs.module.debezium.DatabaseOperation.UPDATE;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.module.debezium.DatabaseEvent;
+import org.openmrs.module.fgh.mpi.entity.FailedSubmission;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent ledger of patients that could not be submitted to the MPI, there is at most one entry
+ * per patient which is removed when the patient is successfully submitted. Retryable failures are
+ * scheduled for another attempt with an exponential backoff, permanent failures and failures that
+ * have exhausted the maximum number of attempts are only retried when explicitly re-driven.
+ */
+public final class FailureLedger {
+	
+	private static final Logger log = LoggerFactory.getLogger(FailureLedger.class);
+	
+	protected static final int MAX_ATTEMPTS = 10;
+	
+	protected static final long BASE_RETRY_DELAY = 60000;
+	
+	protected static final long MAX_RETRY_DELAY = 6 * 60 * 60 * 1000;
+	
+	private static final int MAX_MESSAGE_LENGTH = 1024;
+	
+	private static final String COLUMNS = "id, patient_id, patient_uuid, table_name, operation, error_class, error_message, "
+	        + "attempt_count, permanent, next_retry_at, date_created, date_changed";
+	
+	private static final String SELECT = "SELECT " + COLUMNS + " FROM mpi_failed_submission";
+	
+	private static final String INSERT = "INSERT INTO mpi_failed_submission (patient_id, patient_uuid, table_name, "
+	        + "operation, error_class, error_message, attempt_count, permanent, next_retry_at, date_created) VALUES "
+	        + "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	
+	private static final String UPDATE_FAILURE = "UPDATE mpi_failed_submission SET patient_uuid = ?, table_name = ?, "
+	        + "operation = ?, error_class = ?, error_message = ?, attempt_count = ?, permanent = ?, next_retry_at = ?, "
+	        + "date_changed = ? WHERE id = ?";
+	
+	private static final String DELETE_BY_PATIENT = "DELETE FROM mpi_failed_submission WHERE patient_id = ?";
+	
+	private static final String SCHEDULE_RETRY = "UPDATE mpi_failed_submission SET permanent = ?, next_retry_at = ?, "
+	        + "date_changed = ? WHERE id = ?";
+	
+	private static final String PERSON_UUID_QUERY = "SELECT uuid FROM person WHERE person_id = ?";
+	
+	private static Set<Integer> openPatientIds;
+	
+	private FailureLedger() {
+	}
+	
+	/**
+	 * Records a failed submission of the patient with the specified id, if the patient already has an
+	 * entry in the ledger, its attempt count is incremented.
+	 *
+	 * @param patientId the patient id
+	 * @param event the {@link DatabaseEvent} that was being processed
+	 * @param error the error that occurred
+	 */
+	public static void record(Integer patientId, DatabaseEvent event, Throwable error) {
+		FailedSubmission existing = getByPatientId(patientId);
+		final int attemptCount = existing == null ? 1 : existing.getAttemptCount() + 1;
+		final boolean permanent = FailureClassifier.isPermanent(error) || attemptCount >= MAX_ATTEMPTS;
+		final Date now = new Date();
+		Timestamp nextRetryAt = permanent ? null : new Timestamp(now.getTime() + getRetryDelay(attemptCount));
+		String errorMessage = StringUtils.abbreviate(error.getMessage(), MAX_MESSAGE_LENGTH);
+		
+		String tableName = event.getTableName();
+		String operation = event.getOperation() != null ? event.getOperation().name() : null;
+		String patientUuid = getPatientUuid(patientId, event);
+		//Never replace a delete since the uuid of a deleted person can't be looked up again
+		if (existing != null && DELETE.name().equals(existing.getOperation())) {
+			tableName = existing.getTableName();
+			operation = existing.getOperation();
+			patientUuid = existing.getPatientUuid();
+		}
+		
+		if (existing == null) {
+			MpiUtils.executeUpdate(INSERT, patientId, patientUuid, tableName, operation, error.getClass().getName(),
+			    errorMessage, attemptCount, permanent, nextRetryAt, new Timestamp(now.getTime()));
+		} else {
+			MpiUtils.executeUpdate(UPDATE_FAILURE, patientUuid, tableName, operation, error.getClass().getName(),
+			    errorMessage, attemptCount, permanent, nextRetryAt, new Timestamp(now.getTime()), existing.getId());
+		}
+		
+		getOpenPatientIds().add(patientId);
+		
+		log.info("Recorded " + (permanent ? "permanent" : "retryable") + " failure #" + attemptCount
+		        + " for patient with id: " + patientId + (permanent ? "" : ", next retry at: " + nextRetryAt));
+	}
+	
+	/**
+	 * Removes the entry for the patient with the specified id from the ledger if any, this is called
+	 * after the patient is successfully submitted to the MPI.
+	 *
+	 * @param patientId the patient id
+	 * @return true if an entry was removed otherwise false
+	 */
+	public static boolean resolve(Integer patientId) {
+		if (!getOpenPatientIds().contains(patientId)) {
+			return false;
+		}
+		
+		MpiUtils.executeUpdate(DELETE_BY_PATIENT, patientId);
+		getOpenPatientIds().remove(patientId);
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Removed failure ledger entry for patient with id: " + patientId);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Gets all the entries in the ledger
+	 *
+	 * @return list of failed submissions
+	 */
+	public static List<FailedSubmission> getFailedSubmissions() {
+		return toFailedSubmissions(MpiUtils.executeQuery(SELECT + " ORDER BY id"));
+	}
+	
+	/**
+	 * Gets the entry with the specified id
+	 *
+	 * @param id the entry id
+	 * @return the failed submission or null if none is found
+	 */
+	public static FailedSubmission getFailedSubmission(Integer id) {
+		List<FailedSubmission> matches = toFailedSubmissions(MpiUtils.executeQuery(SELECT + " WHERE id = ?", id));
+		return matches.isEmpty() ? null : matches.get(0);
+	}
+	
+	/**
+	 * Gets the retryable entries that are due for another attempt
+	 *
+	 * @param max the maximum number of entries to return
+	 * @return list of failed submissions
+	 */
+	public static List<FailedSubmission> getDueFailedSubmissions(int max) {
+		return toFailedSubmissions(MpiUtils.executeQuery(
+		    SELECT + " WHERE permanent = ? AND next_retry_at <= ? ORDER BY next_retry_at LIMIT " + max, false,
+		    new Timestamp(System.currentTimeMillis())));
+	}
+	
+	/**
+	 * Schedules the entry with the specified id for an immediate retry even if it is permanent
+	 *
+	 * @param id the entry id
+	 */
+	public static void scheduleRetry(Integer id) {
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		MpiUtils.executeUpdate(SCHEDULE_RETRY, false, now, now, id);
+	}
+	
+	/**
+	 * Creates the {@link DatabaseEvent} to use to process the patient in the specified entry again,
+	 * delete events are kept as is since the patient has to be marked as inactive in the MPI, for
+	 * any other event the patient is processed as if the patient row was updated.
+	 *
+	 * @param failure the failed submission
+	 * @return DatabaseEvent object
+	 */
+	public static DatabaseEvent toEvent(FailedSubmission failure) {
+		if (DELETE.name().equals(failure.getOperation()) && failure.getPatientUuid() != null
+		        && ("person".equals(failure.getTableName()) || "patient".equals(failure.getTableName()))) {
+			Map<String, Object> prevState = Collections.singletonMap("uuid", failure.getPatientUuid());
+			return new DatabaseEvent(failure.getPatientId(), failure.getTableName(), DELETE, null, prevState, null);
+		}
+		
+		return new DatabaseEvent(failure.getPatientId(), "patient", UPDATE, null, null, null);
+	}
+	
+	/**
+	 * Gets the delay before the next attempt after the specified number of failed attempts
+	 *
+	 * @param attemptCount the count of failed attempts
+	 * @return the delay in milliseconds
+	 */
+	protected static long getRetryDelay(int attemptCount) {
+		return Math.min(BASE_RETRY_DELAY << Math.min(attemptCount - 1, 20), MAX_RETRY_DELAY);
+	}
+	
+	private static FailedSubmission getByPatientId(Integer patientId) {
+		List<FailedSubmission> matches = toFailedSubmissions(
+		    MpiUtils.executeQuery(SELECT + " WHERE patient_id = ?", patientId));
+		return matches.isEmpty() ? null : matches.get(0);
+	}
+	
+	private static String getPatientUuid(Integer patientId, DatabaseEvent event) {
+		if ("person".equals(event.getTableName())) {
+			Map<String, Object> state = event.getOperation() == DELETE ? event.getPreviousState() : event.getNewState();
+			if (state != null && state.get("uuid") != null) {
+				return state.get("uuid").toString();
+			}
+		}
+		
+		List<List<Object>> rows = MpiUtils.executeQuery(PERSON_UUID_QUERY, patientId);
+		return rows.isEmpty() ? null : rows.get(0).get(0).toString();
+	}
+	
+	private static synchronized Set<Integer> getOpenPatientIds() {
+		if (openPatientIds == null) {
+			Set<Integer> ids = ConcurrentHashMap.newKeySet();
+			for (List<Object> row : MpiUtils.executeQuery("SELECT patient_id FROM mpi_failed_submission")) {
+				ids.add(Integer.valueOf(row.get(0).toString()));
+			}
+			
+			openPatientIds = ids;
+		}
+		
+		return openPatientIds;
+	}
+	
+	private static List<FailedSubmission> toFailedSubmissions(List<List<Object>> rows) {
+		List<FailedSubmission> failures = new ArrayList(rows.size());
+		for (List<Object> row : rows) {
+			FailedSubmission failure = new FailedSubmission();
+			failure.setId(Integer.valueOf(row.get(0).toString()));
+			failure.setPatientId(Integer.valueOf(row.get(1).toString()));
+			failure.setPatientUuid(row.get(2) != null ? row.get(2).toString() : null);
+			failure.setTableName((String) row.get(3));
+			failure.setOperation((String) row.get(4));
+			failure.setErrorClass((String) row.get(5));
+			failure.setErrorMessage((String) row.get(6));
+			failure.setAttemptCount(Integer.valueOf(row.get(7).toString()));
+			failure.setPermanent(toBoolean(row.get(8)));
+			failure.setNextRetryAt((Date) row.get(9));
+			failure.setDateCreated((Date) row.get(10));
+			failure.setDateChanged((Date) row.get(11));
+			failures.add(failure);
+		}
+		
+		return failures;
+	}
+	
+	private static boolean toBoolean(Object value) {
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		}
+		
+		return value != null && !"0".equals(value.toString()) && !"false".equalsIgnoreCase(value.toString());
+	}
+	
+}
@@ -1,5 +1,8 @@
 package org.openmrs.module.fgh.mpi.listener;
 
+import static org.openmrs.util.OpenmrsUtil.getApplicationDataDirectory;
+
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Set;
@@ -13,10 +16,14 @@ import org.openmrs.module.debezium.DebeziumConstants;
 import org.openmrs.module.debezium.DebeziumEngineConfig;
 import org.openmrs.module.debezium.SnapshotMode;
 import org.openmrs.module.debezium.mysql.MySqlSnapshotMode;
+import org.openmrs.module.fgh.mpi.journal.EventJournal;
 import org.openmrs.module.fgh.mpi.utils.MpiConstants;
 import org.openmrs.module.fgh.mpi.processor.BaseEventProcessor;
 import org.openmrs.module.fgh.mpi.processor.IncrementalEventProcessor;
+import org.openmrs.module.fgh.mpi.processor.JdbcSnapshotReader;
 import org.openmrs.module.fgh.mpi.processor.SnapshotEventProcessor;
+import org.openmrs.module.fgh.mpi.projection.PatientFacilityTable;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
@@ -34,18 +41,81 @@ public class MpiDebeziumEngineConfig implements DebeziumEngineConfig {
 	@Override
 	public void init() {
 		if (getSnapshotMode() == MySqlSnapshotMode.INITIAL) {
-			String num = Context.getAdministrationService().getGlobalProperty(MpiConstants.GP_INITIAL_BATCH_SIZE);
-			int threadCount;
-			if (StringUtils.isNotBlank(num)) {
-				threadCount = Integer.valueOf(num);
-			} else {
-				threadCount = Runtime.getRuntime().availableProcessors();
+			//Encounter changes are not streamed during the snapshot so the table is reloaded by incremental loading
+			PatientFacilityTable.clear();
+			eventProcessor = createSnapshotEventProcessor();
+		} else {
+			int batchSize = MpiUtils.getGlobalPropertyAsInt(MpiConstants.GP_INCREMENTAL_BATCH_SIZE, 1);
+			int maxWait = MpiUtils.getGlobalPropertyAsInt(MpiConstants.GP_INCREMENTAL_BATCH_MAX_WAIT, 2000);
+			int coalescingWindow = MpiUtils.getGlobalPropertyAsInt(MpiConstants.GP_INCREMENTAL_COALESCING_WINDOW, 0);
+			int laneCount = MpiUtils.getGlobalPropertyAsInt(MpiConstants.GP_INCREMENTAL_LANE_COUNT, 1);
+			EventJournal journal = null;
+			boolean journalEnabled = Boolean.valueOf(
+			    Context.getAdministrationService().getGlobalProperty(MpiConstants.GP_INCREMENTAL_JOURNAL_ENABLED));
+			boolean jdbcInitialLoading = isJdbcInitialLoading();
+			if (!journalEnabled && (batchSize > 1 || coalescingWindow > 0 || laneCount > 1)) {
+				//Debezium considers an event as handled once the listener returns, buffered, held or queued patients
+				//would be lost
+				log.warn("Enabling the incremental journal since it is required for an incremental batch size of "
+				        + batchSize + ", coalescing window of " + coalescingWindow + "ms and lane count of " + laneCount);
+				journalEnabled = true;
+			} else if (!journalEnabled && jdbcInitialLoading) {
+				log.warn("Enabling the incremental journal since it is required for initial loading with the JDBC engine");
+				journalEnabled = true;
+			}
+			
+			if (journalEnabled) {
+				journal = new EventJournal(
+				        Paths.get(getApplicationDataDirectory(), MpiConstants.MODULE_ID, MpiConstants.JOURNAL_DIR).toFile());
 			}
 			
-			eventProcessor = new SnapshotEventProcessor(threadCount);
+			IncrementalEventProcessor incrementalProcessor = new IncrementalEventProcessor(batchSize, maxWait,
+			        coalescingWindow, laneCount, journal);
+			eventProcessor = incrementalProcessor;
+			
+			if (jdbcInitialLoading) {
+				//Debezium only streams the changes while the patients are read directly from the database, changes
+				//made in the meantime are held in the journal and submitted once the reader is done so that a patient
+				//read before a change can never be submitted after it and overwrite the newer data in the MPI
+				incrementalProcessor.pause();
+				String pageSize = Context.getAdministrationService().getGlobalProperty(MpiConstants.GP_INITIAL_PAGE_SIZE);
+				SnapshotEventProcessor snapshotProcessor = createSnapshotEventProcessor();
+				new JdbcSnapshotReader(snapshotProcessor, snapshotProcessor.getBatchSize(),
+				        StringUtils.isNotBlank(pageSize) ? Integer.valueOf(pageSize) : 1000, incrementalProcessor::resume)
+				                .start();
+			} else {
+				//Incremental loading only runs alone once initial loading is done or was skipped, from then on the
+				//MPI may hold patients that are not in the crosswalk
+				MpiUtils.markInitialLoadingDone();
+			}
+		}
+	}
+	
+	/**
+	 * Checks if initial loading is enabled and the patients should be read by the
+	 * {@link JdbcSnapshotReader} instead of the Debezium snapshot
+	 *
+	 * @return true if initial loading should be done by the JDBC reader otherwise false
+	 */
+	public boolean isJdbcInitialLoading() {
+		String initial = Context.getAdministrationService().getGlobalProperty(MpiConstants.GP_INITIAL);
+		String engine = Context.getAdministrationService().getGlobalProperty(MpiConstants.GP_INITIAL_ENGINE);
+		return Boolean.valueOf(initial) && MpiConstants.INITIAL_ENGINE_JDBC.equalsIgnoreCase(StringUtils.trim(engine));
+	}
+	
+	private SnapshotEventProcessor createSnapshotEventProcessor() {
+		String num = Context.getAdministrationService().getGlobalProperty(MpiConstants.GP_INITIAL_BATCH_SIZE);
+		int batchSize;
+		if (StringUtils.isNotBlank(num)) {
+			batchSize = Integer.valueOf(num);
 		} else {
-			eventProcessor = new IncrementalEventProcessor();
+			batchSize = Runtime.getRuntime().availableProcessors();
 		}
+		
+		String threads = Context.getAdministrationService().getGlobalProperty(MpiConstants.GP_INITIAL_THREAD_COUNT);
+		int threadCount = StringUtils.isNotBlank(threads) ? Integer.valueOf(threads) : batchSize;
+		
+		return new SnapshotEventProcessor(threadCount, batchSize);
 	}
 	
 	/**
@@ -54,7 +124,11 @@ public class MpiDebeziumEngineConfig implements DebeziumEngineConfig {
 	@Override
 	public SnapshotMode getSnapshotMode() {
 		String initial = Context.getAdministrationService().getGlobalProperty(MpiConstants.GP_INITIAL);
-		return Boolean.valueOf(initial) ? MySqlSnapshotMode.INITIAL : MySqlSnapshotMode.SCHEMA_ONLY;
+		if (!Boolean.valueOf(initial) || isJdbcInitialLoading()) {
+			return MySqlSnapshotMode.SCHEMA_ONLY;
+		}
+		
+		return MySqlSnapshotMode.INITIAL;
 	}
 	
 	/**
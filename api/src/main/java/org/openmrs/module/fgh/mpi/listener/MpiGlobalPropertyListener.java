@@ -0,0 +1,81 @@
+package org.openmrs.module.fgh.mpi.listener;
+
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_ADULT_PROCESS_ENC_TYPE_UUID;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_CHILD_PROCESS_ENC_TYPE_UUID;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_FICHA_RESUMO_ENC_TYPE_UUID;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.module.fgh.mpi.integ.MpiContext;
+import org.openmrs.module.fgh.mpi.projection.PatientFacilityTable;
+import org.openmrs.module.fgh.mpi.refdata.ReferenceData;
+import org.openmrs.module.fgh.mpi.utils.MpiConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rebuilds the {@link ReferenceData} snapshot whenever a module global property is saved or
+ * deleted, the {@link MpiContext} is also rebuilt when one of its global properties changes.
+ */
+public class MpiGlobalPropertyListener implements GlobalPropertyListener {
+	
+	private static final Logger log = LoggerFactory.getLogger(MpiGlobalPropertyListener.class);
+	
+	private static final List<String> ENC_TYPE_GPS = Arrays.asList(GP_FICHA_RESUMO_ENC_TYPE_UUID,
+	    GP_ADULT_PROCESS_ENC_TYPE_UUID, GP_CHILD_PROCESS_ENC_TYPE_UUID);
+	
+	/**
+	 * @see GlobalPropertyListener#supportsPropertyName(String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return propertyName != null && propertyName.startsWith(MpiConstants.MODULE_ID + ".");
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		reload(newValue.getProperty());
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#globalPropertyDeleted(String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		reload(propertyName);
+	}
+	
+	private void reload(String propertyName) {
+		log.info("Reloading the MPI reference data after a change to the global property: " + propertyName);
+		
+		try {
+			ReferenceData.reload();
+		}
+		catch (Exception e) {
+			//Saving the global property should not fail, the snapshot is rebuilt on next use
+			log.warn("Failed to reload the MPI reference data", e);
+		}
+		
+		if (ENC_TYPE_GPS.contains(propertyName) && PatientFacilityTable.isInitialized()) {
+			//The rows of the table are prioritized by encounter type, it is reloaded on the next start
+			PatientFacilityTable.clear();
+		}
+		
+		if (MpiContext.GLOBAL_PROPERTIES.contains(propertyName)) {
+			try {
+				MpiContext.reload();
+			}
+			catch (Exception e) {
+				//The current context stays in use until the settings are valid
+				log.warn("Failed to reload the MPI context, the current one is still in use", e);
+			}
+		}
+	}
+	
+}
@@ -1,13 +1,34 @@
 package org.openmrs.module.fgh.mpi.processor;
 
+import static org.openmrs.module.fgh.mpi.utils.FhirUtils.fastCreateMap;
+import static org.openmrs.module.fgh.mpi.utils.FhirUtils.generateMessageHeader;
+import static org.openmrs.module.fgh.mpi.utils.FhirUtils.getObjectInMapAsMap;
+import static org.openmrs.module.fgh.mpi.utils.FhirUtils.getObjectOnMapAsListOfMap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.lang3.StringUtils;
+
+import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.debezium.DatabaseEvent;
 import org.openmrs.module.fgh.mpi.handler.AssociationEventHandler;
+import org.openmrs.module.fgh.mpi.handler.BaseEventHandler;
 import org.openmrs.module.fgh.mpi.handler.PatientAndPersonEventHandler;
 import org.openmrs.module.fgh.mpi.handler.RelationshipEventHandler;
+import org.openmrs.module.fgh.mpi.integ.MpiContext;
 import org.openmrs.module.fgh.mpi.integ.MpiHttpClient;
+import org.openmrs.module.fgh.mpi.projection.PatientProjection;
+import org.openmrs.module.fgh.mpi.projection.PatientProjectionLoader;
+import org.openmrs.module.fgh.mpi.refdata.ReferenceData;
+import org.openmrs.module.fgh.mpi.utils.FhirUtils;
+import org.openmrs.module.fgh.mpi.utils.MpiConstants;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
 import org.openmrs.util.PrivilegeConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +42,8 @@ public abstract class BaseEventProcessor {
 	
 	private static final Logger log = LoggerFactory.getLogger(BaseEventProcessor.class);
 	
+	public final static String PERSON_UUID_QUERY = "SELECT person_id, uuid FROM person WHERE person_id IN (%s)";
+	
 	protected PatientAndPersonEventHandler patientHandler;
 	
 	protected AssociationEventHandler assocHandler;
@@ -58,30 +81,11 @@ public abstract class BaseEventProcessor {
 				log.debug("Start: create fhir resource");
 			}
 			
-			Context.openSession();
-			Context.addProxyPrivilege(PrivilegeConstants.SQL_LEVEL_ACCESS);
-			Context.addProxyPrivilege(PrivilegeConstants.GET_PERSON_ATTRIBUTE_TYPES);
-			Context.addProxyPrivilege(PrivilegeConstants.GET_IDENTIFIER_TYPES);
-			Context.addProxyPrivilege(PrivilegeConstants.GET_LOCATIONS);
-			Context.addProxyPrivilege(PrivilegeConstants.GET_RELATIONSHIP_TYPES);
-			Context.addProxyPrivilege(PrivilegeConstants.GET_PATIENTS);
-			Context.addProxyPrivilege(PrivilegeConstants.GET_ENCOUNTER_TYPES);
-			
-			switch (event.getTableName()) {
-				case "person":
-				case "patient":
-					resource = patientHandler.handle(event);
-					break;
-				case "person_name":
-				case "person_address":
-				case "patient_identifier":
-				case "person_attribute":
-				case "encounter":
-					resource = assocHandler.handle(event);
-					break;
-				case "relationship":
-					resource = relationshipHandler.handle(event);
-					break;
+			openSession();
+			
+			BaseEventHandler handler = getEventHandler(event);
+			if (handler != null) {
+				resource = handler.handle(event);
 			}
 			
 			if (log.isDebugEnabled()) {
@@ -91,20 +95,222 @@ public abstract class BaseEventProcessor {
 			return resource;
 		}
 		finally {
+			closeSession();
+		}
+		
+	}
+	
+	/**
+	 * Creates a fhir patient resource for the patient with the specified id in response to the
+	 * specified event, unlike {@link #createFhirResource(DatabaseEvent)} this method never returns a
+	 * bundle even for a relationship table event.
+	 *
+	 * @param patientId the patient id
+	 * @param event the {@link DatabaseEvent} object to process
+	 * @throws Throwable
+	 */
+	public Map<String, Object> createFhirResource(Integer patientId, DatabaseEvent event) throws Throwable {
+		try {
+			if (log.isDebugEnabled()) {
+				log.debug("Start: create fhir resource for patient with id: " + patientId);
+			}
+			
+			openSession();
+			
+			Map<String, Object> resource = null;
+			BaseEventHandler handler = getEventHandler(event);
+			if (handler != null) {
+				resource = handler.handle(patientId, event);
+			}
+			
+			if (log.isDebugEnabled()) {
+				log.debug("End: create fhir resource for patient with id: " + patientId);
+			}
+			
+			return resource;
+		}
+		finally {
+			closeSession();
+		}
+	}
+	
+	/**
+	 * Gets the handler for events in the table of the specified event
+	 *
+	 * @param event the {@link DatabaseEvent} object
+	 * @return the matching {@link BaseEventHandler} or null if the table is not handled
+	 */
+	protected BaseEventHandler getEventHandler(DatabaseEvent event) {
+		switch (event.getTableName()) {
+			case "person":
+			case "patient":
+				return patientHandler;
+			case "person_name":
+			case "person_address":
+			case "patient_identifier":
+			case "person_attribute":
+			case "encounter":
+				return assocHandler;
+			case "relationship":
+				return relationshipHandler;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Looks up in bulk the MPI records of the patients with the specified ids so that they can be made
+	 * available to {@link MpiIntegrationProcessor} via {@link PrefetchedMpiPatients}, a failure is
+	 * logged and an empty map is returned in which case the patients are looked up one by one.
+	 *
+	 * @param patientIds the patient ids
+	 * @return map of OpenMRS uuids to MPI patient records
+	 */
+	protected Map<String, Map<String, Object>> prefetchMpiPatients(Collection<Integer> patientIds) {
+		if (patientIds.size() < 2) {
+			return Collections.emptyMap();
+		}
+		
+		try {
+			List<List<Object>> rows;
 			try {
-				Context.removeProxyPrivilege(PrivilegeConstants.SQL_LEVEL_ACCESS);
-				Context.removeProxyPrivilege(PrivilegeConstants.GET_PERSON_ATTRIBUTE_TYPES);
-				Context.removeProxyPrivilege(PrivilegeConstants.GET_IDENTIFIER_TYPES);
-				Context.removeProxyPrivilege(PrivilegeConstants.GET_LOCATIONS);
-				Context.removeProxyPrivilege(PrivilegeConstants.GET_RELATIONSHIP_TYPES);
-				Context.removeProxyPrivilege(PrivilegeConstants.GET_PATIENTS);
-				Context.removeProxyPrivilege(PrivilegeConstants.GET_ENCOUNTER_TYPES);
+				openSession();
+				rows = MpiUtils.executeQuery(String.format(PERSON_UUID_QUERY, StringUtils.join(patientIds, ",")));
 			}
 			finally {
-				Context.closeSession();
+				closeSession();
+			}
+			
+			List<String> uuids = new ArrayList(rows.size());
+			for (List<Object> row : rows) {
+				uuids.add(row.get(1).toString());
 			}
+			
+			Map<String, Map<String, Object>> patients = mpiHttpClient.getPatients(uuids);
+			return patients != null ? patients : Collections.emptyMap();
+		}
+		catch (Throwable t) {
+			log.warn("Failed to look up a batch of " + patientIds.size() + " patient(s) from the MPI, they will be looked "
+			        + "up individually", t);
+			
+			return Collections.emptyMap();
+		}
+	}
+	
+	/**
+	 * Loads in bulk the {@link PatientProjection} objects of the patients with the specified ids so that
+	 * they can be made available to {@link MpiIntegrationProcessor} via
+	 * {@link PrefetchedPatientProjections}, a failure is logged and an empty map is returned in which
+	 * case the patients are loaded one by one.
+	 *
+	 * @param patientIds the patient ids
+	 * @return map of patient ids to projections
+	 */
+	protected Map<Integer, PatientProjection> prefetchPatientProjections(Collection<Integer> patientIds) {
+		if (patientIds.size() < 2) {
+			return Collections.emptyMap();
 		}
 		
+		try {
+			openSession();
+			return PatientProjectionLoader.loadAll(patientIds, MpiContext.initIfNecessary().getMpiSystem().isSanteMPI());
+		}
+		catch (Throwable t) {
+			log.warn("Failed to load a batch of " + patientIds.size() + " patient(s), they will be loaded individually", t);
+			
+			return Collections.emptyMap();
+		}
+		finally {
+			closeSession();
+		}
+	}
+	
+	private void openSession() {
+		Context.openSession();
+		Context.addProxyPrivilege(PrivilegeConstants.SQL_LEVEL_ACCESS);
+		Context.addProxyPrivilege(PrivilegeConstants.GET_PERSON_ATTRIBUTE_TYPES);
+		Context.addProxyPrivilege(PrivilegeConstants.GET_IDENTIFIER_TYPES);
+		Context.addProxyPrivilege(PrivilegeConstants.GET_LOCATIONS);
+		Context.addProxyPrivilege(PrivilegeConstants.GET_RELATIONSHIP_TYPES);
+		Context.addProxyPrivilege(PrivilegeConstants.GET_PATIENTS);
+		Context.addProxyPrivilege(PrivilegeConstants.GET_ENCOUNTER_TYPES);
+	}
+	
+	private void closeSession() {
+		try {
+			Context.removeProxyPrivilege(PrivilegeConstants.SQL_LEVEL_ACCESS);
+			Context.removeProxyPrivilege(PrivilegeConstants.GET_PERSON_ATTRIBUTE_TYPES);
+			Context.removeProxyPrivilege(PrivilegeConstants.GET_IDENTIFIER_TYPES);
+			Context.removeProxyPrivilege(PrivilegeConstants.GET_LOCATIONS);
+			Context.removeProxyPrivilege(PrivilegeConstants.GET_RELATIONSHIP_TYPES);
+			Context.removeProxyPrivilege(PrivilegeConstants.GET_PATIENTS);
+			Context.removeProxyPrivilege(PrivilegeConstants.GET_ENCOUNTER_TYPES);
+		}
+		finally {
+			Context.closeSession();
+		}
+	}
+	
+	/**
+	 * Submits the specified patient resources to the MPI in a single request, as a batch bundle for
+	 * OpenCR and as a message bundle with a message header for SanteMPI.
+	 *
+	 * @param fhirPatients list of bundle entries, each entry holds a patient resource under the resource
+	 *            field
+	 * @param mpiContext the {@link MpiContext} object
+	 * @throws Exception
+	 */
+	protected void submitPatientBundle(List<Map<String, Object>> fhirPatients, MpiContext mpiContext) throws Exception {
+		if (mpiContext.getMpiSystem().isOpenCr()) {
+			Map<String, Object> fhirBundle = new HashMap(3);
+			fhirBundle.put(MpiConstants.FIELD_RESOURCE_TYPE, MpiConstants.BUNDLE);
+			fhirBundle.put(MpiConstants.FIELD_TYPE, MpiConstants.BATCH);
+			fhirBundle.put(MpiConstants.FIELD_ENTRY, fhirPatients);
+			
+			mpiHttpClient.submitBatchBundle(mapper.writeValueAsString(fhirBundle), fhirPatients.size());
+			
+		} else if (mpiContext.getMpiSystem().isSanteMPI()) {
+			Map<String, Object> fhirMessageHeaderEntry = generateMessageHeader();
+			
+			//The entry of resource in message bundle message
+			Map<String, Object> fhirResourceEntry = new HashMap<>(2);
+			
+			fhirResourceEntry.put("fullUrl", ReferenceData.get().getSanteMessageHeaderFocusReference());
+			fhirResourceEntry.put("resource", new HashMap<>(3));
+			
+			getObjectInMapAsMap("resource", fhirResourceEntry).put(MpiConstants.FIELD_RESOURCE_TYPE, MpiConstants.BUNDLE);
+			
+			getObjectInMapAsMap("resource", fhirResourceEntry).put(MpiConstants.FIELD_TYPE,
+			    MpiConstants.FIELD_TYPE_HISTORY);
+			
+			List<Map<String, Object>> fhirPatientsPlusRequest = new ArrayList<Map<String, Object>>(fhirPatients.size());
+			
+			for (Map<String, Object> fhirPatient : fhirPatients) {
+				Map<String, Object> resourceEntry = getObjectInMapAsMap(MpiConstants.FIELD_RESOURCE, fhirPatient);
+				
+				Object patientUuid = getObjectOnMapAsListOfMap(MpiConstants.FIELD_IDENTIFIER, resourceEntry).get(0)
+				        .get("value");
+				
+				Map<String, Object> patientEntry = fastCreateMap(MpiConstants.FIELD_RESOURCE, resourceEntry, "request",
+				    fastCreateMap("method", "POST", "url", "Patient/" + patientUuid), "fullUrl", "Patient/" + patientUuid);
+				
+				fhirPatientsPlusRequest.add(patientEntry);
+			}
+			
+			getObjectInMapAsMap("resource", fhirResourceEntry).put(MpiConstants.FIELD_ENTRY, fhirPatientsPlusRequest);
+			
+			Map<String, Object> messageBundle = new HashMap<String, Object>();
+			messageBundle.put("resourceType", "Bundle");
+			messageBundle.put("type", "message");
+			messageBundle.put(MpiConstants.FIELD_ENTRY, new ArrayList<Map<String, Object>>(2));
+			
+			getObjectOnMapAsListOfMap(MpiConstants.FIELD_ENTRY, messageBundle).add(fhirMessageHeaderEntry);
+			getObjectOnMapAsListOfMap(MpiConstants.FIELD_ENTRY, messageBundle).add(fhirResourceEntry);
+			
+			mpiHttpClient.submitBundle("fhir/Bundle", mapper.writeValueAsString(messageBundle), Map.class);
+		} else {
+			throw new APIException("Unkown MPISystem [" + mpiContext.getMpiSystem() + "]");
+		}
 	}
 	
 	/**
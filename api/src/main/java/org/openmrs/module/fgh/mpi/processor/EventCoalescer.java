@@ -0,0 +1,177 @@
+package org.openmrs.module.fgh.mpi.processor;
+
+import static org.openmrs.module.debezium.DatabaseOperation.CREATE;
+import static org.openmrs.module.debezium.DatabaseOperation.DELETE;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openmrs.module.debezium.DatabaseEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds database events keyed by the id of the affected patient for a configured window so that a
+ * burst of events for the same patient e.g. the person, patient, name, address, identifier and
+ * attribute rows inserted when a patient is registered results in a single rebuild and submission
+ * of the patient. For each patient only the event that is representative of the final state is
+ * kept, this is the most recent event except that a person delete event is never replaced since the
+ * person row no longer exists and the patient uuid can only be read from the event's previous state.
+ */
+public class EventCoalescer {
+	
+	private static final Logger log = LoggerFactory.getLogger(EventCoalescer.class);
+	
+	private final long window;
+	
+	private final Map<Integer, PendingEvent> pendingEvents = new LinkedHashMap();
+	
+	private long coalescedCount;
+	
+	public EventCoalescer(long window) {
+		this.window = window;
+	}
+	
+	/**
+	 * Adds the specified event for the patient with the specified id, if there is already a pending
+	 * event for the same patient, the two are merged into one.
+	 *
+	 * @param patientId the patient id
+	 * @param event the {@link DatabaseEvent} object
+	 */
+	public void add(Integer patientId, DatabaseEvent event) {
+		add(patientId, event, null);
+	}
+	
+	/**
+	 * Adds the specified event for the patient with the specified id along with the sequence number
+	 * assigned to it by an {@link EventWatermark}, the sequence numbers of all merged events are kept
+	 * so that they can all be marked as complete when the patient is processed.
+	 *
+	 * @param patientId the patient id
+	 * @param event the {@link DatabaseEvent} object
+	 * @param sequence the sequence number of the event, can be null
+	 */
+	public synchronized void add(Integer patientId, DatabaseEvent event, Long sequence) {
+		PendingEvent existing = pendingEvents.get(patientId);
+		if (existing == null) {
+			existing = new PendingEvent(patientId, event, System.currentTimeMillis());
+			if (sequence != null) {
+				existing.getSequences().add(sequence);
+			}
+			
+			pendingEvents.put(patientId, existing);
+			return;
+		}
+		
+		coalescedCount++;
+		if (sequence != null) {
+			existing.getSequences().add(sequence);
+		}
+		
+		if (isPersonDeleteEvent(existing.getEvent()) || isPersonInsertEvent(event)) {
+			if (log.isDebugEnabled()) {
+				log.debug("Discarding event " + event + " for patient with id " + patientId + " in favor of "
+				        + existing.getEvent());
+			}
+			
+			return;
+		}
+		
+		existing.setEvent(event);
+	}
+	
+	/**
+	 * Removes and returns all the pending events that have been held for at least the window
+	 *
+	 * @param now the current time in milliseconds
+	 * @return list of due pending events in the order they were first received
+	 */
+	public synchronized List<PendingEvent> drainDue(long now) {
+		List<PendingEvent> due = new ArrayList();
+		Iterator<PendingEvent> it = pendingEvents.values().iterator();
+		while (it.hasNext()) {
+			PendingEvent pending = it.next();
+			//Entries are in insertion order, so the rest were received later
+			if (now - pending.getReceivedAt() < window) {
+				break;
+			}
+			
+			due.add(pending);
+			it.remove();
+		}
+		
+		return due;
+	}
+	
+	/**
+	 * Gets the count of pending events
+	 *
+	 * @return the count
+	 */
+	public synchronized int size() {
+		return pendingEvents.size();
+	}
+	
+	/**
+	 * Gets the total count of events that were merged into another pending event for the same patient
+	 *
+	 * @return the count
+	 */
+	public synchronized long getCoalescedCount() {
+		return coalescedCount;
+	}
+	
+	private boolean isPersonDeleteEvent(DatabaseEvent event) {
+		return "person".equalsIgnoreCase(event.getTableName()) && event.getOperation() == DELETE;
+	}
+	
+	private boolean isPersonInsertEvent(DatabaseEvent event) {
+		return "person".equalsIgnoreCase(event.getTableName()) && event.getOperation() == CREATE;
+	}
+	
+	/**
+	 * Represents an event held for a single patient
+	 */
+	public static class PendingEvent {
+		
+		private final Integer patientId;
+		
+		private final long receivedAt;
+		
+		private final List<Long> sequences = new ArrayList();
+		
+		private DatabaseEvent event;
+		
+		public PendingEvent(Integer patientId, DatabaseEvent event, long receivedAt) {
+			this.patientId = patientId;
+			this.event = event;
+			this.receivedAt = receivedAt;
+		}
+		
+		public Integer getPatientId() {
+			return patientId;
+		}
+		
+		public DatabaseEvent getEvent() {
+			return event;
+		}
+		
+		public void setEvent(DatabaseEvent event) {
+			this.event = event;
+		}
+		
+		public long getReceivedAt() {
+			return receivedAt;
+		}
+		
+		public List<Long> getSequences() {
+			return sequences;
+		}
+		
+	}
+	
+}
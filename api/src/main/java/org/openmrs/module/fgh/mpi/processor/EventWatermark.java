@@ -0,0 +1,96 @@
+package org.openmrs.module.fgh.mpi.processor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the events that are being processed asynchronously, each event is assigned a sequence
+ * number in the order it was received and is considered complete when all the patient work items it
+ * was split into have been submitted to the MPI or recorded in the failure ledger. It is used to
+ * bound the count of events that are not yet complete, the low watermark is the sequence number of
+ * the oldest of them. Note that it does not make events durable, debezium already considers an
+ * event as handled once the listener returns so incomplete events are lost on a crash, the
+ * {@link org.openmrs.module.fgh.mpi.journal.EventJournal} has to be used for that.
+ */
+public class EventWatermark {
+	
+	private final AtomicLong sequence = new AtomicLong();
+	
+	private final ConcurrentSkipListMap<Long, AtomicInteger> inFlight = new ConcurrentSkipListMap();
+	
+	/**
+	 * Registers a new event
+	 *
+	 * @param parts the number of work items the event was split into
+	 * @return the sequence number assigned to the event
+	 */
+	public long register(int parts) {
+		long seq = sequence.incrementAndGet();
+		if (parts > 0) {
+			inFlight.put(seq, new AtomicInteger(parts));
+		}
+		
+		return seq;
+	}
+	
+	/**
+	 * Marks one work item of the event with the specified sequence number as complete
+	 *
+	 * @param seq the sequence number
+	 */
+	public void complete(long seq) {
+		AtomicInteger remaining = inFlight.get(seq);
+		if (remaining != null && remaining.decrementAndGet() <= 0) {
+			inFlight.remove(seq);
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Gets the sequence number of the oldest event that is not yet complete, if all events are complete
+	 * the returned value is the sequence number that will be assigned to the next event.
+	 *
+	 * @return the low watermark
+	 */
+	public long getLowWatermark() {
+		Map.Entry<Long, AtomicInteger> oldest = inFlight.firstEntry();
+		return oldest != null ? oldest.getKey() : sequence.get() + 1;
+	}
+	
+	/**
+	 * Gets the count of events that are not yet complete
+	 *
+	 * @return the count
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+	
+	/**
+	 * Blocks the calling thread until the count of events that are not yet complete is below the
+	 * specified maximum or the specified timeout elapses
+	 *
+	 * @param max the maximum count of events that are not yet complete
+	 * @param timeout the maximum time to wait in milliseconds
+	 * @return true if the count is below the maximum otherwise false
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitCapacity(int max, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (inFlight.size() >= max) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			
+			wait(remaining);
+		}
+		
+		return true;
+	}
+	
+}
@@ -2,57 +2,869 @@ package org.openmrs.module.fgh.mpi.processor;
 
 import static java.lang.System.currentTimeMillis;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.openmrs.api.APIException;
 import org.openmrs.module.debezium.DatabaseEvent;
+import org.openmrs.module.fgh.mpi.entity.FailedSubmission;
+import org.openmrs.module.fgh.mpi.handler.BaseEventHandler;
+import org.openmrs.module.fgh.mpi.integ.CircuitBreaker;
+import org.openmrs.module.fgh.mpi.integ.CircuitBreakerOpenException;
+import org.openmrs.module.fgh.mpi.integ.MpiContext;
+import org.openmrs.module.fgh.mpi.integ.MpiHttpException;
+import org.openmrs.module.fgh.mpi.journal.EventJournal;
+import org.openmrs.module.fgh.mpi.journal.JournalEntry;
+import org.openmrs.module.fgh.mpi.ledger.FailureLedger;
+import org.openmrs.module.fgh.mpi.projection.LocationCache;
+import org.openmrs.module.fgh.mpi.projection.PatientFacilityTable;
 import org.openmrs.module.fgh.mpi.utils.MpiConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Processes incremental events, one at a time
+ * Processes incremental events, by default one at a time, when configured with a batch size greater
+ * than 1 the generated patient resources are buffered and submitted to the MPI in a single bundle
+ * when the buffer is full or when the oldest buffered patient has waited for the configured maximum
+ * wait time. When configured with a coalescing window, events are first held per patient for the
+ * window by an {@link EventCoalescer} so that each patient is rebuilt at most once per window. When
+ * configured with more than 1 lane, each event is split into a work item per affected patient and
+ * each work item is processed on the lane of a {@link StripedExecutor} matching the patient id, this
+ * way different patients are processed concurrently while the events for the same patient are
+ * processed strictly in the order they were received.
+ * <p>
+ * In the last 2 modes events are completed asynchronously, an {@link EventWatermark} keeps track of
+ * the oldest event that is not yet complete and the consumer thread is blocked once the count of
+ * incomplete events reaches {@link #MAX_IN_FLIGHT_PER_LANE} per lane, because debezium considers an
+ * event as handled as soon as the listener returns, this only bounds the events that are lost on a
+ * crash, which is why the module always enables the {@link EventJournal} for these modes and for
+ * batching.
+ * <p>
+ * When configured with an {@link EventJournal}, the listener only durably records a work item per
+ * affected patient in the journal and returns, a separate submitter thread periodically reads the
+ * recorded work items, compacts them to keep only the latest work item per patient, submits the
+ * patients and then moves the journal checkpoint. A patient that fails to be submitted is recorded
+ * in the failure ledger like in the other modes, except if the MPI as a whole is unavailable e.g.
+ * the circuit breaker is open or it can't be reached, in that case the checkpoint is held and the
+ * same work items are retried with an exponential backoff for as long as the MPI is unavailable
+ * while the listener keeps recording new ones, this way reading the binlog is never blocked by the
+ * MPI being slow or unavailable.
+ * <p>
+ * In all modes, a patient that fails to be submitted is recorded in the {@link FailureLedger} and
+ * processing moves on to the next patient, a separate retrier thread periodically submits again the
+ * patients in the ledger that are due for a retry. Any error that occurs while recording a failure
+ * in the ledger is thrown on the consumer thread when the next event is received since the patient
+ * would otherwise be lost.
  */
 public class IncrementalEventProcessor extends BaseEventProcessor {
 	
 	private static final Logger log = LoggerFactory.getLogger(IncrementalEventProcessor.class);
 	
+	protected static final int MAX_IN_FLIGHT_PER_LANE = 100;
+	
+	private static final long CAPACITY_WAIT = 1000;
+	
+	protected static final int JOURNAL_READ_SIZE = 1000;
+	
+	private static final long JOURNAL_PERIOD = 1000;
+	
+	private static final long JOURNAL_MAX_BACKOFF = 60000;
+	
+	protected static final int RETRY_BATCH_SIZE = 100;
+	
+	private static final long RETRY_PERIOD = 60000;
+	
+	private int batchSize;
+	
+	private long maxWait;
+	
+	private List<Map<String, Object>> pendingPatients;
+	
+	private List<EventCoalescer.PendingEvent> pendingSources;
+	
+	private List<Long> pendingSequences;
+	
+	private Long pendingSince;
+	
+	private EventCoalescer coalescer;
+	
+	private StripedExecutor lanes;
+	
+	private EventWatermark watermark;
+	
+	private int maxInFlight;
+	
+	private ScheduledExecutorService scheduler;
+	
+	private volatile Throwable asyncFailure;
+	
+	private EventJournal journal;
+	
+	private ScheduledExecutorService journalSubmitter;
+	
+	private int journalFailureCount;
+	
+	private long nextJournalAttempt;
+	
+	private volatile boolean paused;
+	
+	private ScheduledExecutorService retrier;
+	
 	public IncrementalEventProcessor() {
+		this(1, 0, 0);
+	}
+	
+	public IncrementalEventProcessor(int batchSize, long maxWait, long coalescingWindow) {
+		this(batchSize, maxWait, coalescingWindow, 1);
+	}
+	
+	public IncrementalEventProcessor(int batchSize, long maxWait, long coalescingWindow, int laneCount) {
+		this(batchSize, maxWait, coalescingWindow, laneCount, null);
+	}
+	
+	public IncrementalEventProcessor(int batchSize, long maxWait, long coalescingWindow, int laneCount,
+	    EventJournal journal) {
 		super(false);
+		this.journal = journal;
+		this.batchSize = batchSize;
+		this.maxWait = maxWait;
+		if (isBatchingEnabled()) {
+			log.info("Incremental batching enabled with batch size: " + batchSize + " and max wait: " + maxWait + "ms");
+			
+			resetBatch();
+		}
+		
+		if (coalescingWindow > 0 && journal != null) {
+			log.info("Ignoring the coalescing window since work items are compacted in the journal");
+		} else if (coalescingWindow > 0) {
+			log.info("Incremental event coalescing enabled with window: " + coalescingWindow + "ms");
+			
+			coalescer = new EventCoalescer(coalescingWindow);
+		}
+		
+		if (laneCount > 1) {
+			log.info("Incremental parallel processing enabled with lane count: " + laneCount);
+			
+			lanes = new StripedExecutor(laneCount, "mpi-incremental-lane");
+		}
+		
+		if (journal != null) {
+			log.info("Incremental event journaling enabled");
+			
+			journalSubmitter = createScheduler("mpi-journal-submitter");
+			journalSubmitter.scheduleWithFixedDelay(() -> {
+				try {
+					drainJournal();
+				}
+				catch (Throwable t) {
+					log.error("An error occurred while draining the journal", t);
+				}
+			}, JOURNAL_PERIOD, JOURNAL_PERIOD, TimeUnit.MILLISECONDS);
+		} else if (isAsync()) {
+			watermark = new EventWatermark();
+			maxInFlight = MAX_IN_FLIGHT_PER_LANE * Math.max(laneCount, 1);
+		}
+		
+		//With a journal, the submitter flushes the batch after each read from the journal
+		if ((isBatchingEnabled() && journal == null) || coalescer != null) {
+			scheduler = createScheduler("mpi-incremental-scheduler");
+			
+			long period = 1000;
+			if (isBatchingEnabled()) {
+				period = Math.min(period, maxWait);
+			}
+			
+			if (coalescer != null) {
+				period = Math.min(period, coalescingWindow);
+			}
+			
+			period = Math.max(period, 50);
+			scheduler.scheduleWithFixedDelay(this::runScheduledTasks, period, period, TimeUnit.MILLISECONDS);
+		}
+		
+		try {
+			PatientFacilityTable.initialize();
+		}
+		catch (Exception e) {
+			log.warn("Failed to initialize the patient health facility table, all encounter events will be processed", e);
+		}
+		
+		retrier = createScheduler("mpi-failure-retrier");
+		retrier.scheduleWithFixedDelay(() -> {
+			try {
+				retryFailedSubmissions();
+			}
+			catch (Throwable t) {
+				log.error("An error occurred while retrying failed patient submissions", t);
+			}
+		}, RETRY_PERIOD, RETRY_PERIOD, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stops submitting the work items in the journal and retrying failed submissions until
+	 * {@link #resume()} is called, events are still recorded in the journal in the meantime.
+	 */
+	public void pause() {
+		paused = true;
+	}
+	
+	/**
+	 * Resumes submitting the work items in the journal and retrying failed submissions.
+	 */
+	public void resume() {
+		paused = false;
+		log.info("Resumed submitting the incremental journal and retrying failed submissions");
 	}
 	
 	@Override
 	public void process(DatabaseEvent event) {
 		
+		if ("location".equalsIgnoreCase(event.getTableName())) {
+			//Location rows are only watched to keep the cached health facility uuids and names current
+			LocationCache.invalidate(Integer.valueOf(event.getPrimaryKeyId().toString()));
+			return;
+		}
+		
+		if ("encounter".equalsIgnoreCase(event.getTableName()) && !isHealthFacilityChanged(event)) {
+			log.debug("Ignoring encounter event that does not change the patient's health facility -> " + event);
+			return;
+		}
+		
+		if (journal != null) {
+			record(event);
+			return;
+		}
+		
+		checkForAsyncFailure();
+		
+		List<Integer> patientIds = getPatientIds(event);
+		if (patientIds.isEmpty()) {
+			return;
+		}
+		
+		if (isAsync()) {
+			dispatch(event, patientIds);
+			return;
+		}
+		
+		log.info("Processing database event -> " + event);
+		
+		final long start = System.currentTimeMillis();
+		
+		for (Integer patientId : patientIds) {
+			try {
+				processOrRecordFailure(patientId, event, Collections.emptyList());
+			}
+			catch (Throwable t) {
+				log.error("Failed to record failed submission of patient with id: " + patientId, t);
+				throw new APIException(t);
+			}
+		}
+		
+		log.info("Done processing database event -> " + event);
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Duration: " + (currentTimeMillis() - start) + "ms");
+		}
+		
+	}
+	
+	/**
+	 * Gets the ids of the patients affected by the specified event, an event that can't be attributed
+	 * to any patient is logged and skipped since processing it again would fail the same way.
+	 *
+	 * @param event the {@link DatabaseEvent} object
+	 * @return list of patient ids
+	 */
+	private List<Integer> getPatientIds(DatabaseEvent event) {
+		BaseEventHandler handler = getEventHandler(event);
+		if (handler == null) {
+			return Collections.emptyList();
+		}
+		
+		try {
+			return handler.getPatientIds(event);
+		}
+		catch (Exception e) {
+			log.error("Skipping event because the affected patient ids could not be determined -> " + event, e);
+			return Collections.emptyList();
+		}
+	}
+	
+	/**
+	 * Applies the specified encounter event to the patient health facility table, if the table can't
+	 * be updated it is cleared so that it is reloaded on restart and the event is processed since its
+	 * effect is unknown.
+	 *
+	 * @param event the encounter {@link DatabaseEvent} object
+	 * @return true if the health facility of the patient may have changed otherwise false
+	 */
+	private boolean isHealthFacilityChanged(DatabaseEvent event) {
+		if (!PatientFacilityTable.isInitialized()) {
+			return true;
+		}
+		
 		try {
-			log.info("Processing database event -> " + event);
+			return PatientFacilityTable.apply(event);
+		}
+		catch (Exception e) {
+			log.warn("Failed to update the patient health facility table, it will be reloaded on restart", e);
+			try {
+				PatientFacilityTable.clear();
+			}
+			catch (Exception ex) {
+				log.warn("Failed to clear the patient health facility table", ex);
+			}
 			
-			final long start = System.currentTimeMillis();
+			return true;
+		}
+	}
+	
+	/**
+	 * Either holds a work item for each of the specified patients in the coalescer or hands it over to
+	 * the lane matching the patient id.
+	 *
+	 * @param event the {@link DatabaseEvent} object
+	 * @param patientIds the ids of the patients affected by the event
+	 */
+	private void dispatch(DatabaseEvent event, List<Integer> patientIds) {
+		try {
+			while (!watermark.awaitCapacity(maxInFlight, CAPACITY_WAIT)) {
+				checkForAsyncFailure();
+				
+				log.info("Waiting for in flight event count to go below " + maxInFlight + ", oldest incomplete event: "
+				        + watermark.getLowWatermark());
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new APIException("Interrupted while waiting for in flight events to complete", e);
+		}
+		
+		final long sequence = watermark.register(patientIds.size());
+		for (Integer patientId : patientIds) {
+			if (coalescer != null) {
+				coalescer.add(patientId, event, sequence);
+			} else {
+				execute(patientId, event, Collections.singletonList(sequence), Collections.emptyMap());
+			}
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("In flight event count: " + watermark.getInFlightCount() + " after adding event -> " + event);
+		}
+	}
+	
+	/**
+	 * Records a work item in the journal for each patient affected by the specified event
+	 *
+	 * @param event the {@link DatabaseEvent} object
+	 */
+	private void record(DatabaseEvent event) {
+		for (Integer patientId : getPatientIds(event)) {
+			journal.append(new JournalEntry(patientId, event));
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Recorded work items in the journal for event -> " + event);
+		}
+	}
+	
+	/**
+	 * Reads the next work items from the journal, submits the latest work item for each patient and
+	 * moves the journal checkpoint, patients that fail to be submitted are recorded in the failure
+	 * ledger. The checkpoint is only held if the MPI is unavailable or a failure can't be recorded, this
+	 * is called periodically by the journal submitter.
+	 */
+	protected void drainJournal() {
+		if (paused || currentTimeMillis() < nextJournalAttempt) {
+			return;
+		}
+		
+		EventJournal.Batch batch = journal.read(JOURNAL_READ_SIZE);
+		if (batch.getEntries().isEmpty()) {
+			return;
+		}
+		
+		EventCoalescer compactor = new EventCoalescer(0);
+		for (JournalEntry entry : batch.getEntries()) {
+			compactor.add(entry.getPatientId(), entry.toEvent());
+		}
+		
+		List<EventCoalescer.PendingEvent> items = compactor.drainDue(Long.MAX_VALUE);
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Submitting " + items.size() + " patient(s) for " + batch.getEntries().size() + " journal entries");
+		}
+		
+		final Map<String, Map<String, Object>> mpiPatients = prefetchMpiPatients(getPatientIds(items));
+		Throwable failure = null;
+		List<Future<Void>> futures = new ArrayList(items.size());
+		for (EventCoalescer.PendingEvent item : items) {
+			if (lanes != null) {
+				futures.add(lanes.submit(item.getPatientId(), () -> {
+					processJournalItem(item, mpiPatients);
+					return null;
+				}));
+			} else if (failure == null) {
+				try {
+					processJournalItem(item, mpiPatients);
+				}
+				catch (Throwable t) {
+					failure = t;
+				}
+			}
+		}
+		
+		//Wait for all the lanes even after a failure so that none is still adding to the batch
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			}
+			catch (ExecutionException e) {
+				failure = failure == null ? e.getCause() : failure;
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure = failure == null ? e : failure;
+			}
+		}
+		
+		try {
+			if (failure == null && isBatchingEnabled()) {
+				flushPending();
+			}
+		}
+		catch (Throwable t) {
+			failure = t;
+		}
+		
+		if (failure != null) {
+			if (isBatchingEnabled()) {
+				discardPending();
+			}
 			
-			Map<String, Object> fhirResource = createFhirResource(event);
-			if (fhirResource != null) {
-				//Because a relationship references 2 persons, process all
-				if (MpiConstants.BUNDLE.equals(fhirResource.get((MpiConstants.FIELD_RESOURCE_TYPE)))) {
-					for (Map<String, Object> fhirPatient : (List<Map>) fhirResource.get(MpiConstants.FIELD_ENTRY)) {
-						mpiHttpClient.submitPatient(mapper.writeValueAsString(fhirPatient));
-					}
-				} else {
-					mpiHttpClient.submitPatient(mapper.writeValueAsString(fhirResource));
+			//Patients that were already submitted are sent again, the content hash ledger suppresses them
+			journalFailureCount++;
+			long backoff = Math.min(JOURNAL_PERIOD << Math.min(journalFailureCount, 16), JOURNAL_MAX_BACKOFF);
+			nextJournalAttempt = currentTimeMillis() + backoff;
+			log.error("Failed to submit patients recorded in the journal, will retry in " + backoff + "ms", failure);
+			return;
+		}
+		
+		journal.commit(batch);
+		journalFailureCount = 0;
+		nextJournalAttempt = 0;
+	}
+	
+	/**
+	 * Processes the specified work item read from the journal and records the patient in the failure
+	 * ledger if it fails, unless the MPI is unavailable in which case the error is rethrown so that the
+	 * work items are kept in the journal.
+	 *
+	 * @param item the work item
+	 * @param mpiPatients the MPI patient records prefetched for the batch the patient belongs to
+	 * @throws Exception
+	 */
+	private void processJournalItem(EventCoalescer.PendingEvent item, Map<String, Map<String, Object>> mpiPatients)
+	    throws Exception {
+		try {
+			processPatient(item.getPatientId(), item.getEvent(), Collections.emptyList(), mpiPatients);
+		}
+		catch (Throwable t) {
+			if (isMpiUnavailable(t)) {
+				throw t instanceof Exception ? (Exception) t : new APIException(t);
+			}
+			
+			log.error("An error occurred while processing patient with id: " + item.getPatientId() + " for event -> "
+			        + item.getEvent(), t);
+			
+			FailureLedger.record(item.getPatientId(), item.getEvent(), t);
+		}
+	}
+	
+	/**
+	 * Checks if the specified error means that the MPI as a whole can't be reached as opposed to an
+	 * error specific to the submitted patient(s)
+	 *
+	 * @param error the error to check
+	 * @return true if the MPI is unavailable otherwise false
+	 */
+	protected static boolean isMpiUnavailable(Throwable error) {
+		Throwable cause = error;
+		while (cause != null) {
+			if (cause instanceof CircuitBreakerOpenException || cause instanceof IOException) {
+				return true;
+			} else if (cause instanceof MpiHttpException) {
+				int statusCode = ((MpiHttpException) cause).getStatusCode();
+				return statusCode == 502 || statusCode == 503 || statusCode == 504;
+			}
+			
+			cause = cause.getCause() == cause ? null : cause.getCause();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Submits again the patients in the failure ledger that are due for a retry, each patient is
+	 * submitted on its own so that a single bad patient can't fail the others, this is called
+	 * periodically by the failure retrier. The pass is skipped while the circuit breaker is open and
+	 * stops without recording the attempt as soon as the MPI is found to be unavailable so that an MPI
+	 * outage does not use up the attempts of the patients.
+	 */
+	protected void retryFailedSubmissions() {
+		if (paused || mpiHttpClient.getCircuitBreaker().getState() == CircuitBreaker.State.OPEN) {
+			return;
+		}
+		
+		List<FailedSubmission> failures = FailureLedger.getDueFailedSubmissions(RETRY_BATCH_SIZE);
+		if (failures.isEmpty()) {
+			return;
+		}
+		
+		log.info("Retrying " + failures.size() + " failed patient submission(s)");
+		
+		for (FailedSubmission failure : failures) {
+			DatabaseEvent event = FailureLedger.toEvent(failure);
+			try {
+				Map<String, Object> fhirPatient = buildPatient(failure.getPatientId(), event);
+				if (fhirPatient != null) {
+					mpiHttpClient.submitPatient(mapper.writeValueAsString(fhirPatient));
+				}
+				
+				FailureLedger.resolve(failure.getPatientId());
+				
+				log.info("Successfully retried submission of patient with id: " + failure.getPatientId());
+			}
+			catch (Throwable t) {
+				if (isMpiUnavailable(t)) {
+					log.warn("Stopped retrying failed patient submissions since the MPI is unavailable", t);
+					return;
+				}
+				
+				log.error("Retry failed for patient with id: " + failure.getPatientId(), t);
+				FailureLedger.record(failure.getPatientId(), event, t);
+			}
+		}
+	}
+	
+	/**
+	 * Processes the pending events for all patients that have been held for the coalescing window and
+	 * submits any due batch, this is called periodically by the scheduler.
+	 */
+	protected void runScheduledTasks() {
+		if (asyncFailure != null) {
+			return;
+		}
+		
+		try {
+			if (coalescer != null) {
+				List<EventCoalescer.PendingEvent> due = coalescer.drainDue(currentTimeMillis());
+				Map<String, Map<String, Object>> mpiPatients = prefetchMpiPatients(getPatientIds(due));
+				for (EventCoalescer.PendingEvent pending : due) {
+					execute(pending.getPatientId(), pending.getEvent(), pending.getSequences(), mpiPatients);
 				}
 			}
 			
-			log.info("Done processing database event -> " + event);
+			if (isBatchingEnabled()) {
+				flushIfDue();
+			}
+		}
+		catch (Throwable t) {
+			log.error("An error occurred while processing pending patients", t);
+			asyncFailure = t;
+		}
+	}
+	
+	/**
+	 * Processes the specified event for the patient with the specified id on the lane matching the
+	 * patient id or on the calling thread if parallel processing is disabled.
+	 *
+	 * @param patientId the patient id
+	 * @param event the {@link DatabaseEvent} object
+	 * @param sequences the sequence numbers of the events to mark as complete after submission
+	 * @param mpiPatients the MPI patient records prefetched for the batch the patient belongs to
+	 */
+	private void execute(Integer patientId, DatabaseEvent event, List<Long> sequences,
+	    Map<String, Map<String, Object>> mpiPatients) {
+		Runnable task = () -> {
+			if (asyncFailure != null) {
+				return;
+			}
 			
-			if (log.isDebugEnabled()) {
-				log.debug("Duration: " + (currentTimeMillis() - start) + "ms");
+			try {
+				PrefetchedMpiPatients.set(mpiPatients);
+				processOrRecordFailure(patientId, event, sequences);
+			}
+			catch (Throwable t) {
+				log.error("Failed to record failed submission of patient with id: " + patientId, t);
+				asyncFailure = t;
 			}
+			finally {
+				PrefetchedMpiPatients.clear();
+			}
+		};
+		
+		if (lanes != null) {
+			lanes.execute(patientId, task);
+		} else {
+			task.run();
+		}
+	}
+	
+	/**
+	 * Processes the specified event for the patient with the specified id and records the patient in
+	 * the failure ledger if it fails
+	 *
+	 * @param patientId the patient id
+	 * @param event the {@link DatabaseEvent} object
+	 * @param sequences the sequence numbers of the events to mark as complete after submission
+	 */
+	private void processOrRecordFailure(Integer patientId, DatabaseEvent event, List<Long> sequences) {
+		try {
+			processPatient(patientId, event, sequences);
 		}
 		catch (Throwable t) {
-			log.error("An error occurred while processing event -> " + event, t);
+			log.error("An error occurred while processing patient with id: " + patientId + " for event -> " + event, t);
+			
+			FailureLedger.record(patientId, event, t);
+			complete(sequences);
+		}
+	}
+	
+	/**
+	 * Creates the resource of the patient with the specified id and submits it to the MPI
+	 *
+	 * @param patientId the patient id
+	 * @param event the {@link DatabaseEvent} object
+	 * @param sequences the sequence numbers of the events to mark as complete after submission
+	 * @throws Exception
+	 */
+	private void processPatient(Integer patientId, DatabaseEvent event, List<Long> sequences) throws Exception {
+		log.info("Processing patient with id: " + patientId + " for database event -> " + event);
+		
+		Map<String, Object> fhirPatient = buildPatient(patientId, event);
+		if (fhirPatient != null) {
+			submit(patientId, event, fhirPatient, sequences);
+		} else {
+			FailureLedger.resolve(patientId);
+			complete(sequences);
+		}
+	}
+	
+	/**
+	 * Same as {@link #processPatient(Integer, DatabaseEvent, List)} except that the MPI record of the
+	 * patient is looked up from the specified prefetched records if present
+	 *
+	 * @param patientId the patient id
+	 * @param event the {@link DatabaseEvent} object
+	 * @param sequences the sequence numbers of the events to mark as complete after submission
+	 * @param mpiPatients the MPI patient records prefetched for the batch the patient belongs to
+	 * @throws Exception
+	 */
+	private void processPatient(Integer patientId, DatabaseEvent event, List<Long> sequences,
+	    Map<String, Map<String, Object>> mpiPatients) throws Exception {
+		try {
+			PrefetchedMpiPatients.set(mpiPatients);
+			processPatient(patientId, event, sequences);
+		}
+		finally {
+			PrefetchedMpiPatients.clear();
+		}
+	}
+	
+	private List<Integer> getPatientIds(List<EventCoalescer.PendingEvent> items) {
+		List<Integer> patientIds = new ArrayList(items.size());
+		for (EventCoalescer.PendingEvent item : items) {
+			patientIds.add(item.getPatientId());
+		}
+		
+		return patientIds;
+	}
+	
+	private Map<String, Object> buildPatient(Integer patientId, DatabaseEvent event) throws Exception {
+		try {
+			return createFhirResource(patientId, event);
+		}
+		catch (Throwable t) {
+			//Only errors are wrapped so that the failure ledger records the original exception
+			if (t instanceof Exception) {
+				throw (Exception) t;
+			}
+			
 			throw new APIException(t);
 		}
+	}
+	
+	/**
+	 * Submits the specified patient resource to the MPI or adds it to the pending batch if batching is
+	 * enabled
+	 *
+	 * @param patientId the patient id
+	 * @param event the {@link DatabaseEvent} object
+	 * @param fhirPatient the patient resource to submit
+	 * @param sequences the sequence numbers of the events to mark as complete after submission
+	 * @throws Exception
+	 */
+	private void submit(Integer patientId, DatabaseEvent event, Map<String, Object> fhirPatient, List<Long> sequences)
+	    throws Exception {
+		if (isBatchingEnabled()) {
+			addToBatch(patientId, event, fhirPatient, sequences);
+		} else {
+			mpiHttpClient.submitPatient(mapper.writeValueAsString(fhirPatient));
+			FailureLedger.resolve(patientId);
+			complete(sequences);
+		}
+	}
+	
+	/**
+	 * Adds the specified patient resource to the pending batch and submits the batch if it is full
+	 *
+	 * @param patientId the patient id
+	 * @param event the {@link DatabaseEvent} object
+	 * @param fhirPatient the patient resource to add
+	 * @param sequences the sequence numbers of the events to mark as complete after submission
+	 * @throws Exception
+	 */
+	private synchronized void addToBatch(Integer patientId, DatabaseEvent event, Map<String, Object> fhirPatient,
+	        List<Long> sequences) throws Exception {
+		if (pendingPatients.isEmpty()) {
+			pendingSince = currentTimeMillis();
+		}
+		
+		pendingPatients.add(Collections.singletonMap(MpiConstants.FIELD_RESOURCE, fhirPatient));
+		pendingSources.add(new EventCoalescer.PendingEvent(patientId, event, currentTimeMillis()));
+		pendingSequences.addAll(sequences);
+		if (pendingPatients.size() >= batchSize) {
+			flushOrRecordFailure();
+		}
+	}
+	
+	/**
+	 * Submits the pending batch if the oldest patient in it has waited for at least the configured
+	 * maximum wait time so that a partially filled batch is not held back during quiet periods.
+	 *
+	 * @throws Exception
+	 */
+	private synchronized void flushIfDue() throws Exception {
+		if (pendingPatients.isEmpty() || currentTimeMillis() - pendingSince < maxWait) {
+			return;
+		}
+		
+		flushOrRecordFailure();
+	}
+	
+	/**
+	 * Submits the pending batch if it is not empty
+	 *
+	 * @throws Exception
+	 */
+	private synchronized void flushPending() throws Exception {
+		if (!pendingPatients.isEmpty()) {
+			flushOrRecordFailure();
+		}
+	}
+	
+	/**
+	 * Discards the pending batch, this is called after a failed submission of work items from the
+	 * journal since they will be read again from the journal.
+	 */
+	private synchronized void discardPending() {
+		resetBatch();
+	}
+	
+	/**
+	 * Submits the pending batch and if it fails records all the patients in it in the failure ledger,
+	 * with a journal the error is rethrown instead if the MPI is unavailable since the patients are
+	 * still in the journal.
+	 *
+	 * @throws Exception
+	 */
+	private void flushOrRecordFailure() throws Exception {
+		try {
+			flush();
+		}
+		catch (Exception e) {
+			if (journal != null && isMpiUnavailable(e)) {
+				throw e;
+			}
+			
+			log.error("Failed to submit batch of " + pendingPatients.size() + " patient(s) to the MPI", e);
+			
+			for (EventCoalescer.PendingEvent source : pendingSources) {
+				FailureLedger.record(source.getPatientId(), source.getEvent(), e);
+			}
+			
+			complete(pendingSequences);
+			resetBatch();
+		}
+	}
+	
+	/**
+	 * Submits all the pending patients to the MPI in a single bundle, the pending patients are only
+	 * discarded after a successful submission.
+	 *
+	 * @throws Exception
+	 */
+	private void flush() throws Exception {
+		if (log.isDebugEnabled()) {
+			log.debug("Submitting batch of " + pendingPatients.size() + " patient(s) to the MPI");
+		}
+		
+		submitPatientBundle(pendingPatients, MpiContext.initIfNecessary());
+		
+		log.info("Successfully submitted batch of " + pendingPatients.size() + " patient(s) to the MPI");
+		
+		for (EventCoalescer.PendingEvent source : pendingSources) {
+			FailureLedger.resolve(source.getPatientId());
+		}
 		
+		complete(pendingSequences);
+		resetBatch();
+	}
+	
+	private void resetBatch() {
+		pendingPatients = new ArrayList(batchSize);
+		pendingSources = new ArrayList(batchSize);
+		pendingSequences = new ArrayList(batchSize);
+		pendingSince = null;
+	}
+	
+	private void complete(List<Long> sequences) {
+		for (Long sequence : sequences) {
+			watermark.complete(sequence);
+		}
+	}
+	
+	private void checkForAsyncFailure() {
+		if (asyncFailure != null) {
+			throw new APIException("Failed to record a failed patient submission to the MPI", asyncFailure);
+		}
+	}
+	
+	private ScheduledExecutorService createScheduler(String threadName) {
+		return Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, threadName);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	private boolean isAsync() {
+		return coalescer != null || lanes != null;
+	}
+	
+	private boolean isBatchingEnabled() {
+		return batchSize > 1;
 	}
 	
 }
@@ -0,0 +1,136 @@
+package org.openmrs.module.fgh.mpi.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openmrs.module.debezium.DatabaseEvent;
+import org.openmrs.module.debezium.DatabaseOperation;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the ids of the non voided patients directly from the database for initial loading as an
+ * alternative to the Debezium snapshot, the ids are read in pages using keyset pagination on the
+ * primary key so that each page is an index range scan regardless of how far the reader is, and are
+ * fed in batches to the {@link SnapshotEventProcessor}. The reader resumes after the id of the
+ * patient that was last submitted to the MPI and switches the module to incremental loading when
+ * it is done. If reading fails, it is retried with an exponential backoff from the patient that was
+ * last submitted to the MPI.
+ */
+public class JdbcSnapshotReader implements Runnable {
+	
+	private static final Logger log = LoggerFactory.getLogger(JdbcSnapshotReader.class);
+	
+	protected static final String PAGE_QUERY = "SELECT patient_id FROM patient WHERE patient_id > ? AND voided = 0 "
+	        + "ORDER BY patient_id LIMIT ?";
+	
+	protected static final String THREAD_NAME = "mpi-jdbc-snapshot";
+	
+	private static final long MAX_RETRY_DELAY = 300000;
+	
+	private SnapshotEventProcessor processor;
+	
+	private int batchSize;
+	
+	private int pageSize;
+	
+	private Runnable completionCallback;
+	
+	private long retryDelay = 1000;
+	
+	/**
+	 * @param processor the processor to feed the batches of patients to
+	 * @param batchSize the number of patients per batch
+	 * @param pageSize the maximum number of patient ids to read per query
+	 */
+	public JdbcSnapshotReader(SnapshotEventProcessor processor, int batchSize, int pageSize) {
+		this(processor, batchSize, pageSize, null);
+	}
+	
+	/**
+	 * @param processor the processor to feed the batches of patients to
+	 * @param batchSize the number of patients per batch
+	 * @param pageSize the maximum number of patient ids to read per query
+	 * @param completionCallback called once all the patients were read and processed, can be null
+	 */
+	public JdbcSnapshotReader(SnapshotEventProcessor processor, int batchSize, int pageSize,
+	    Runnable completionCallback) {
+		this.processor = processor;
+		this.batchSize = batchSize;
+		this.pageSize = pageSize;
+		this.completionCallback = completionCallback;
+	}
+	
+	/**
+	 * Starts reading on a background thread
+	 */
+	public void start() {
+		Thread thread = new Thread(this, THREAD_NAME);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	@Override
+	public void run() {
+		long delay = retryDelay;
+		while (true) {
+			try {
+				readPatients();
+				break;
+			}
+			catch (Exception e) {
+				log.error("JDBC snapshot of patients failed, retrying in " + delay + "ms from the patient that was "
+				        + "last submitted to the MPI",
+				    e);
+			}
+			
+			try {
+				Thread.sleep(delay);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				log.warn("JDBC snapshot of patients interrupted, it will resume from the patient that was last "
+				        + "submitted to the MPI on restart");
+				return;
+			}
+			
+			delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+		}
+		
+		if (completionCallback != null) {
+			completionCallback.run();
+		}
+	}
+	
+	private void readPatients() {
+		Integer lastSubmittedPatientId = MpiUtils.getLastSubmittedPatientId();
+		int lastPatientId = lastSubmittedPatientId != null ? lastSubmittedPatientId : 0;
+		log.info("Starting JDBC snapshot of patients with id greater than: " + lastPatientId);
+		
+		List<DatabaseEvent> batch = new ArrayList(batchSize);
+		List<List<Object>> rows;
+		do {
+			rows = MpiUtils.executeQuery(PAGE_QUERY, lastPatientId, pageSize);
+			for (List<Object> row : rows) {
+				lastPatientId = ((Number) row.get(0)).intValue();
+				batch.add(new DatabaseEvent(lastPatientId, "patient", DatabaseOperation.READ, DatabaseEvent.Snapshot.TRUE,
+				        null, null));
+				
+				if (batch.size() == batchSize) {
+					processor.processBatch(batch);
+					batch = new ArrayList(batchSize);
+				}
+			}
+		} while (rows.size() == pageSize);
+		
+		if (!batch.isEmpty()) {
+			processor.processBatch(batch);
+		}
+		
+		log.info("JDBC snapshot of patients completed");
+		
+		processor.complete();
+	}
+	
+}
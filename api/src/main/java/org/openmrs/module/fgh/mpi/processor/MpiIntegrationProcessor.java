@@ -14,8 +14,10 @@ import java.util.Map;
 
 import org.openmrs.module.debezium.DatabaseEvent;
 import org.openmrs.module.fgh.mpi.integ.MpiHttpClient;
+import org.openmrs.module.fgh.mpi.ledger.ContentHashLedger;
+import org.openmrs.module.fgh.mpi.projection.PatientProjection;
+import org.openmrs.module.fgh.mpi.projection.PatientProjectionLoader;
 import org.openmrs.module.fgh.mpi.utils.FhirUtils;
-import org.openmrs.module.fgh.mpi.utils.MpiUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -34,11 +36,6 @@ public class MpiIntegrationProcessor {
 	
 	public final static String ID_PLACEHOLDER = "{PATIENT_ID}";
 	
-	public final static String PATIENT_QUERY = "SELECT voided FROM patient WHERE patient_id = " + ID_PLACEHOLDER;
-	
-	public final static String PERSON_QUERY = "SELECT gender, birthdate, dead, death_date, uuid, voided FROM person WHERE "
-	        + "person_id = " + ID_PLACEHOLDER;
-	
 	@Autowired
 	private MpiHttpClient mpiHttpClient;
 	
@@ -65,21 +62,46 @@ public class MpiIntegrationProcessor {
 		
 		String id = patientId.toString();
 		boolean isPersonDeletedEvent = "person".equalsIgnoreCase(e.getTableName()) && e.getOperation() == DELETE;
-		List<List<Object>> person = null;
+		PatientProjection projection = null;
 		String patientUud;
 		if (isPersonDeletedEvent) {
 			patientUud = e.getPreviousState().get("uuid").toString();
 		} else {
-			person = MpiUtils.executeQuery(PERSON_QUERY.replace(ID_PLACEHOLDER, id));
-			if (person.isEmpty()) {
+			if (PrefetchedPatientProjections.contains(patientId)) {
+				projection = PrefetchedPatientProjections.get(patientId);
+			} else {
+				projection = PatientProjectionLoader.load(patientId);
+			}
+			
+			if (projection == null) {
 				log.info("Ignoring event because no person was found with id: " + id);
 				return null;
 			} else {
-				patientUud = person.get(0).get(4).toString();
+				patientUud = projection.getUuid();
+			}
+		}
+		
+		boolean isPatientDeletedEvent = "patient".equalsIgnoreCase(e.getTableName()) && e.getOperation() == DELETE;
+		if (!isPersonDeletedEvent && !isPatientDeletedEvent && !isSnapshotEvent(e)
+		        && !PrefetchedMpiPatients.contains(patientUud) && mpiHttpClient.isConditionalUpdateEnabled()) {
+			if (submitWithConditionalUpdate(projection)) {
+				return null;
+			}
+		}
+		
+		Map<String, Object> mpiPatient;
+		if (PrefetchedMpiPatients.contains(patientUud)) {
+			mpiPatient = PrefetchedMpiPatients.get(patientUud);
+		} else if (mpiHttpClient.isAbsentFromMpi(patientUud)) {
+			if (log.isDebugEnabled()) {
+				log.debug("Skipping MPI lookup for patient that was never submitted to the MPI");
 			}
+			
+			mpiPatient = null;
+		} else {
+			mpiPatient = mpiHttpClient.getPatient(patientUud);
 		}
 		
-		Map<String, Object> mpiPatient = mpiHttpClient.getPatient(patientUud);
 		if (mpiPatient != null) {
 			log.info("Found existing patient record in the MPI");
 		} else {
@@ -89,7 +111,6 @@ public class MpiIntegrationProcessor {
 		}
 		
 		boolean isMpiPatientActive = mpiPatient == null ? false : valueOf(mpiPatient.get(FIELD_ACTIVE).toString());
-		boolean isPatientDeletedEvent = "patient".equalsIgnoreCase(e.getTableName()) && e.getOperation() == DELETE;
 		
 		if ((mpiPatient == null || !isMpiPatientActive) && (isPatientDeletedEvent || isPersonDeletedEvent)) {
 			if (mpiPatient == null) {
@@ -108,8 +129,7 @@ public class MpiIntegrationProcessor {
 			fhirResource.put(FIELD_ACTIVE, false);
 			return fhirResource;
 		} else {
-			List<List<Object>> patient = MpiUtils.executeQuery(PATIENT_QUERY.replace(ID_PLACEHOLDER, id));
-			if (patient.isEmpty()) {
+			if (!projection.hasPatient()) {
 				if (mpiPatient == null || !isMpiPatientActive) {
 					log.info("Ignoring event because there is no patient record both in OpenMRS and MPI");
 					if (mpiPatient == null) {
@@ -125,12 +145,8 @@ public class MpiIntegrationProcessor {
 				fhirResource.put(FIELD_ACTIVE, false);
 				return fhirResource;
 			} else {
-				List<Object> patientDetails = patient.get(0);
-				List<Object> personDetails = person.get(0);
-				boolean patientVoided = Boolean.valueOf(patientDetails.get(0).toString());
-				
 				if (mpiPatient == null) {
-					if (patientVoided || Boolean.valueOf(personDetails.get(5).toString())) {
+					if (projection.isPatientVoided() || projection.isPersonVoided()) {
 						
 						//This should effectively skip placeholder patient and person rows
 						log.info("Not submitting the patient to the MPI because the person or patient is voided");
@@ -141,7 +157,7 @@ public class MpiIntegrationProcessor {
 				
 				//TODO May be we should not build a new resource and instead update the mpiPatient if one exists
 				//And we will need to be aware of placeholder rows
-				Map<String, Object> generated = FhirUtils.buildPatient(id, patientVoided, personDetails, mpiPatient);
+				Map<String, Object> generated = FhirUtils.buildPatient(projection, mpiPatient);
 				
 				if (generated.get("name") == null) {
 					log.warn("Skipping patient with no name");
@@ -149,6 +165,13 @@ public class MpiIntegrationProcessor {
 					return null;
 				}
 				
+				//Checked before clearing the contact relationships, otherwise the cleared record would be submitted
+				if (mpiPatient != null && isUnchanged(patientUud, generated)) {
+					log.info("Not submitting the patient to the MPI because it is unchanged since the last submission");
+					
+					return null;
+				}
+				
 				//There is a bug in the MPI where contact.relationship field is never updated for existing contacts,
 				//Clear it in the MPI for existing contacts and we will later update it when we resubmit the patient
 				if (generated != null && mpiPatient != null) {
@@ -182,4 +205,69 @@ public class MpiIntegrationProcessor {
 		}
 	}
 	
+	/**
+	 * Builds the patient resource without looking up the patient from the MPI and submits it as a
+	 * conditional update, this is only possible if the patient is not voided and has no contacts,
+	 * otherwise the existing MPI record is required to decide whether to submit the patient or to clear
+	 * the relationships of its existing contacts.
+	 *
+	 * @param projection the {@link PatientProjection} of the patient
+	 * @return true if the patient was handled otherwise false if it should be processed with a lookup
+	 * @throws Exception
+	 */
+	private boolean submitWithConditionalUpdate(PatientProjection projection) throws Exception {
+		if (!projection.hasPatient() || projection.isPatientVoided() || projection.isPersonVoided()) {
+			return false;
+		}
+		
+		String patientUuid = projection.getUuid();
+		Map<String, Object> generated = FhirUtils.buildPatient(projection, null);
+		if (generated.get("name") == null || hasContacts(generated)) {
+			return false;
+		}
+		
+		if (isUnchanged(patientUuid, generated)) {
+			log.info("Not submitting the patient to the MPI because it is unchanged since the last submission");
+			
+			return true;
+		}
+		
+		return mpiHttpClient.updatePatient(patientUuid, MAPPER.writeValueAsString(generated));
+	}
+	
+	private boolean hasContacts(Map<String, Object> fhirPatient) {
+		if (fhirPatient.get(FIELD_CONTACT) != null) {
+			for (Object contact : (List) fhirPatient.get(FIELD_CONTACT)) {
+				if (contact != null) {
+					return true;
+				}
+			}
+		}
+		
+		return false;
+	}
+	
+	private boolean isSnapshotEvent(DatabaseEvent e) {
+		return e.getSnapshot() == DatabaseEvent.Snapshot.TRUE || e.getSnapshot() == DatabaseEvent.Snapshot.LAST;
+	}
+	
+	/**
+	 * Checks if the specified generated patient resource is identical to the one last successfully
+	 * submitted to the MPI for the patient with the specified uuid, a failure to check is logged and
+	 * the resource is considered changed.
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @param resource the generated patient resource
+	 * @return true if the resource is unchanged otherwise false
+	 */
+	private boolean isUnchanged(String patientUuid, Map<String, Object> resource) {
+		try {
+			return ContentHashLedger.isUnchanged(patientUuid, ContentHashLedger.hash(resource));
+		}
+		catch (Exception e) {
+			log.warn("Failed to check the content hash of the patient with uuid: " + patientUuid, e);
+			return false;
+		}
+	}
+	
 }
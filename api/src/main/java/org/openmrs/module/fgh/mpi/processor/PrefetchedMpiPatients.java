@@ -0,0 +1,56 @@
+package org.openmrs.module.fgh.mpi.processor;
+
+import java.util.Map;
+
+/**
+ * Holds the MPI patient records that were looked up in bulk for a batch of patients being processed
+ * on the current thread so that {@link MpiIntegrationProcessor} does not look them up one by one.
+ */
+public final class PrefetchedMpiPatients {
+	
+	private static final ThreadLocal<Map<String, Map<String, Object>>> PATIENTS = new ThreadLocal();
+	
+	private PrefetchedMpiPatients() {
+	}
+	
+	/**
+	 * Sets the patient records prefetched for the current thread, callers must call {@link #clear()}
+	 * when done processing the batch.
+	 *
+	 * @param patients map of OpenMRS uuids to MPI patient records, a null value means no patient was
+	 *            found in the MPI
+	 */
+	public static void set(Map<String, Map<String, Object>> patients) {
+		PATIENTS.set(patients);
+	}
+	
+	/**
+	 * Clears the patient records prefetched for the current thread
+	 */
+	public static void clear() {
+		PATIENTS.remove();
+	}
+	
+	/**
+	 * Checks if the patient with the specified OpenMRS uuid was prefetched for the current thread
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @return true if the patient was prefetched otherwise false
+	 */
+	public static boolean contains(String patientUuid) {
+		Map<String, Map<String, Object>> patients = PATIENTS.get();
+		return patients != null && patients.containsKey(patientUuid);
+	}
+	
+	/**
+	 * Gets the prefetched MPI record of the patient with the specified OpenMRS uuid
+	 *
+	 * @param patientUuid the patient's OpenMRS uuid
+	 * @return the MPI patient record or null if none exists
+	 */
+	public static Map<String, Object> get(String patientUuid) {
+		Map<String, Map<String, Object>> patients = PATIENTS.get();
+		return patients == null ? null : patients.get(patientUuid);
+	}
+	
+}
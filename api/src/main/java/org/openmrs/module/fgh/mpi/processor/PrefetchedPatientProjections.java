@@ -0,0 +1,60 @@
+package org.openmrs.module.fgh.mpi.processor;
+
+import java.util.Map;
+
+import org.openmrs.module.fgh.mpi.projection.PatientProjection;
+
+/**
+ * Holds the {@link PatientProjection} objects that were loaded in bulk for a batch of patients being
+ * processed on the current thread so that {@link MpiIntegrationProcessor} does not load them one by
+ * one.
+ */
+public final class PrefetchedPatientProjections {
+	
+	private static final ThreadLocal<Map<Integer, PatientProjection>> PROJECTIONS = new ThreadLocal();
+	
+	private PrefetchedPatientProjections() {
+	}
+	
+	/**
+	 * Sets the projections prefetched for the current thread, callers must call {@link #clear()} when
+	 * done processing the batch.
+	 *
+	 * @param projections map of patient ids to projections, a null value means no person exists with
+	 *            the id
+	 */
+	public static void set(Map<Integer, PatientProjection> projections) {
+		PROJECTIONS.set(projections);
+	}
+	
+	/**
+	 * Clears the projections prefetched for the current thread
+	 */
+	public static void clear() {
+		PROJECTIONS.remove();
+	}
+	
+	/**
+	 * Checks if the projection of the patient with the specified id was prefetched for the current
+	 * thread
+	 *
+	 * @param patientId the patient id
+	 * @return true if the projection was prefetched otherwise false
+	 */
+	public static boolean contains(Integer patientId) {
+		Map<Integer, PatientProjection> projections = PROJECTIONS.get();
+		return projections != null && projections.containsKey(patientId);
+	}
+	
+	/**
+	 * Gets the prefetched projection of the patient with the specified id
+	 *
+	 * @param patientId the patient id
+	 * @return the projection or null if no person exists with the id
+	 */
+	public static PatientProjection get(Integer patientId) {
+		Map<Integer, PatientProjection> projections = PROJECTIONS.get();
+		return projections == null ? null : projections.get(patientId);
+	}
+	
+}
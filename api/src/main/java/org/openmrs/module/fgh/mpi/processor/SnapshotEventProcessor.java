@@ -1,16 +1,11 @@
 package org.openmrs.module.fgh.mpi.processor;
 
-import static org.openmrs.module.fgh.mpi.utils.FhirUtils.fastCreateMap;
-import static org.openmrs.module.fgh.mpi.utils.FhirUtils.generateMessageHeader;
-import static org.openmrs.module.fgh.mpi.utils.FhirUtils.getObjectInMapAsMap;
-import static org.openmrs.module.fgh.mpi.utils.FhirUtils.getObjectOnMapAsListOfMap;
 import static java.lang.System.currentTimeMillis;
 import static java.util.Collections.synchronizedList;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
@@ -24,13 +19,16 @@ import org.openmrs.module.debezium.DatabaseEvent;
 import org.openmrs.module.debezium.Utils;
 import org.openmrs.module.fgh.mpi.utils.MpiConstants;
 import org.openmrs.module.fgh.mpi.integ.MpiContext;
-import org.openmrs.module.fgh.mpi.utils.FhirUtils;
+import org.openmrs.module.fgh.mpi.ledger.FailureLedger;
+import org.openmrs.module.fgh.mpi.projection.PatientProjection;
 import org.openmrs.module.fgh.mpi.utils.MpiUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Processes snapshot events in parallel
+ * Processes snapshot events in batches, the data of all the patients in a batch is loaded in bulk
+ * and their resources are then built in parallel, patients that fail to be submitted are recorded in
+ * the {@link FailureLedger} to be retried later instead of halting the initial loading.
  */
 public class SnapshotEventProcessor extends BaseEventProcessor {
 	
@@ -40,26 +38,85 @@ public class SnapshotEventProcessor extends BaseEventProcessor {
 	
 	private List<CompletableFuture<Map<String, Object>>> futures;
 	
+	private List<DatabaseEvent> batchEvents;
+	
 	private AtomicInteger successCount;
 	
+	private AtomicInteger failureCount;
+	
 	private Long start;
 	
 	private Integer lastSubmittedPatientId;
 	
 	private int threadCount;
 	
+	private int batchSize;
+	
 	public SnapshotEventProcessor(int threadCount) {
+		this(threadCount, threadCount);
+	}
+	
+	/**
+	 * @param threadCount the number of threads on which patient resources are built
+	 * @param batchSize the number of patients to load in bulk and submit to the MPI in a single bundle
+	 */
+	public SnapshotEventProcessor(int threadCount, int batchSize) {
 		super(true);
 		this.threadCount = threadCount;
+		this.batchSize = batchSize;
 		executor = Executors.newFixedThreadPool(threadCount);
-		futures = synchronizedList(new ArrayList(threadCount));
+		futures = synchronizedList(new ArrayList(batchSize));
+		batchEvents = synchronizedList(new ArrayList(batchSize));
 		successCount = new AtomicInteger();
+		failureCount = new AtomicInteger();
 		start = null;
 		lastSubmittedPatientId = MpiUtils.getLastSubmittedPatientId();
+		if (lastSubmittedPatientId == null) {
+			mpiHttpClient.startPatientFilterForInitialLoading();
+		}
 	}
 	
 	@Override
 	public void process(DatabaseEvent event) {
+		boolean isLastPatient = event.getSnapshot() == DatabaseEvent.Snapshot.LAST;
+		Integer curPatientId = Integer.valueOf(event.getPrimaryKeyId().toString());
+		if (lastSubmittedPatientId != null && lastSubmittedPatientId >= curPatientId) {
+			if (log.isDebugEnabled()) {
+				log.debug("Skipping patient with id: " + curPatientId + " that was already submitted to the MPI");
+			}
+			
+			//TODO test this logic in a deployed env
+			if (isLastPatient) {
+				MpiUtils.deletePatientIdOffsetFile();
+			}
+			
+			return;
+		}
+		
+		batchEvents.add(event);
+		
+		if (batchEvents.size() == batchSize || isLastPatient) {
+			try {
+				processBatch(new ArrayList(batchEvents));
+			}
+			finally {
+				batchEvents.clear();
+			}
+			
+			if (isLastPatient) {
+				complete();
+			}
+		}
+	}
+	
+	/**
+	 * Builds the patient resources for the specified batch of snapshot events in parallel and submits
+	 * them to the MPI in a single bundle, the id of the patient of the last event is saved as the offset
+	 * to resume from.
+	 *
+	 * @param events the snapshot events ordered by patient id
+	 */
+	public void processBatch(List<DatabaseEvent> events) {
 		MpiContext mpiContext = null;
 		
 		try {
@@ -74,180 +131,148 @@ public class SnapshotEventProcessor extends BaseEventProcessor {
 			log.info("Patient full sync started at: " + new Date());
 		}
 		
-		boolean isLastPatient = event.getSnapshot() == DatabaseEvent.Snapshot.LAST;
-		Integer curPatientId = Integer.valueOf(event.getPrimaryKeyId().toString());
-		if (lastSubmittedPatientId != null && lastSubmittedPatientId >= curPatientId) {
-			if (log.isDebugEnabled()) {
-				log.debug("Skipping patient with id: " + curPatientId + " that was already submitted to the MPI");
+		try {
+			List<Integer> batchPatientIds = new ArrayList(events.size());
+			for (DatabaseEvent batchEvent : events) {
+				batchPatientIds.add(Integer.valueOf(batchEvent.getPrimaryKeyId().toString()));
 			}
 			
-			//TODO test this logic in a deployed env
-			if (isLastPatient) {
-				MpiUtils.deletePatientIdOffsetFile();
+			//Load the OpenMRS data and resolve the MPI records for the entire batch in a few round trips instead
+			//of several per patient
+			final Map<Integer, PatientProjection> projections = prefetchPatientProjections(batchPatientIds);
+			final Map<String, Map<String, Object>> mpiPatients = prefetchMpiPatients(batchPatientIds);
+			for (DatabaseEvent batchEvent : events) {
+				futures.add(CompletableFuture.supplyAsync(() -> createFhirResource(batchEvent, projections, mpiPatients),
+				    executor));
 			}
 			
-			return;
-		}
-		
-		futures.add(CompletableFuture.supplyAsync(() -> {
-			try {
-				Thread.currentThread().setName(event.getTableName() + "-" + event.getPrimaryKeyId());
-				log.info("Processing database event -> " + event);
-				final long startSingle = System.currentTimeMillis();
-				
-				Map<String, Object> fhirPatient = createFhirResource(event);
-				
-				log.info("Done generating fhir patient for database event -> " + event);
-				
-				if (log.isDebugEnabled()) {
-					log.debug("Duration: " + (currentTimeMillis() - startSingle) + "ms");
-				}
-				
-				return fhirPatient;
+			if (log.isDebugEnabled()) {
+				log.debug("Waiting for " + futures.size() + " event processor thread(s) to terminate");
 			}
-			catch (Throwable e) {
-				log.error("An error occurred while processing event -> " + event);
-				throw new APIException(e);
-				//TODO We should record the failed patient details and generate a report so that when we have a way to
-				// sync a single patient, we sync only the failed patients instead of all
+			
+			CompletableFuture<Void> allFuture = CompletableFuture
+			        .allOf(futures.toArray(new CompletableFuture[futures.size()]));
+			
+			allFuture.get();
+			
+			if (log.isDebugEnabled()) {
+				log.debug("Processor event thread(s) terminated");
 			}
 			
-		}, executor));
-		
-		if (futures.size() == threadCount || isLastPatient) {
-			try {
-				if (log.isDebugEnabled()) {
-					log.debug("Waiting for " + futures.size() + " event processor thread(s) to terminate");
+			List<Map<String, Object>> fhirPatients = new ArrayList(futures.size());
+			List<DatabaseEvent> submittedEvents = new ArrayList(futures.size());
+			for (int i = 0; i < futures.size(); i++) {
+				Map<String, Object> returnedPatient;
+				try {
+					returnedPatient = futures.get(i).get();
 				}
-				
-				CompletableFuture<Void> allFuture = CompletableFuture
-				        .allOf(futures.toArray(new CompletableFuture[futures.size()]));
-				
-				allFuture.get();
-				
-				if (log.isDebugEnabled()) {
-					log.debug("Processor event thread(s) terminated");
+				catch (Exception e) {
+					throw new APIException("Failed to get patient resource from future", e);
 				}
 				
-				List<Map<String, Object>> fhirPatients = Collections.synchronizedList(new ArrayList(futures.size()));
-				futures.parallelStream().forEach(p -> {
-					if (p != null) {
-						try {
-							Map<String, Object> returnedPatient = p.get();
-							if (returnedPatient != null) {
-								fhirPatients.add(Collections.singletonMap(MpiConstants.FIELD_RESOURCE, returnedPatient));
-							}
-						}
-						catch (Exception e) {
-							throw new APIException("Failed to get patient resource from future", e);
-						}
-					}
-				});
-				
-				if (!fhirPatients.isEmpty()) {
-					int successPatientCount = 0;
-					
-					if (mpiContext.getMpiSystem().isOpenCr()) {
-						Map<String, Object> fhirBundle = new HashMap(3);
-						fhirBundle.put(MpiConstants.FIELD_RESOURCE_TYPE, MpiConstants.BUNDLE);
-						fhirBundle.put(MpiConstants.FIELD_TYPE, MpiConstants.BATCH);
-						fhirBundle.put(MpiConstants.FIELD_ENTRY, fhirPatients);
-						
-						List<Object> response = mpiHttpClient.submitBundle("fhir", mapper.writeValueAsString(fhirBundle),
-						    List.class);
-						
-						successPatientCount = response.size() / 2;
-						
-						if (fhirPatients.size() == successPatientCount) {
-							if (log.isDebugEnabled()) {
-								log.debug("All patients in the batch were successfully processed by the MPI");
-							}
-							
-						} else {
-							//TODO Loop through all patients in the batch and check which records were problematic
-							throw new APIException((fhirPatients.size() - successPatientCount)
-							        + " patient(s) in the batch were not successfully processed by the MPI");
-						}
-						
-					} else if (mpiContext.getMpiSystem().isSanteMPI()) {
-						Map<String, Object> fhirMessageHeaderEntry = generateMessageHeader();
-						
-						//The entry of resource in message bundle message
-						Map<String, Object> fhirResourceEntry = new HashMap<>(2);
-						
-						fhirResourceEntry.put("fullUrl", FhirUtils.santeMessageHeaderFocusReference);
-						fhirResourceEntry.put("resource", new HashMap<>(3));
-						
-						getObjectInMapAsMap("resource", fhirResourceEntry).put(MpiConstants.FIELD_RESOURCE_TYPE,
-						    MpiConstants.BUNDLE);
-						
-						getObjectInMapAsMap("resource", fhirResourceEntry).put(MpiConstants.FIELD_TYPE,
-						    MpiConstants.FIELD_TYPE_HISTORY);
-						
-						List<Map<String, Object>> fhirPatientsPlusRequest = new ArrayList<Map<String, Object>>(
-						        fhirPatients.size());
-						
-						for (Map<String, Object> fhirPatient : fhirPatients) {
-							Map<String, Object> resourceEntry = getObjectInMapAsMap(MpiConstants.FIELD_RESOURCE,
-							    fhirPatient);
-							
-							Object patientUuid = getObjectOnMapAsListOfMap(MpiConstants.FIELD_IDENTIFIER, resourceEntry)
-							        .get(0).get("value");
-							
-							Map<String, Object> patientEntry = fastCreateMap(MpiConstants.FIELD_RESOURCE, resourceEntry,
-							    "request", fastCreateMap("method", "POST", "url", "Patient/" + patientUuid), "fullUrl",
-							    "Patient/" + patientUuid);
-							
-							fhirPatientsPlusRequest.add(patientEntry);
-						}
-						
-						getObjectInMapAsMap("resource", fhirResourceEntry).put(MpiConstants.FIELD_ENTRY,
-						    fhirPatientsPlusRequest);
-						
-						Map<String, Object> messageBundle = new HashMap<String, Object>();
-						messageBundle.put("resourceType", "Bundle");
-						messageBundle.put("type", "message");
-						messageBundle.put(MpiConstants.FIELD_ENTRY, new ArrayList<Map<String, Object>>(2));
-						
-						getObjectOnMapAsListOfMap(MpiConstants.FIELD_ENTRY, messageBundle).add(fhirMessageHeaderEntry);
-						getObjectOnMapAsListOfMap(MpiConstants.FIELD_ENTRY, messageBundle).add(fhirResourceEntry);
-						
-						mpiHttpClient.submitBundle("fhir/Bundle", mapper.writeValueAsString(messageBundle), Map.class);
-					} else {
-						throw new APIException("Unkown MPISystem [" + mpiContext.getMpiSystem() + "]");
-					}
-					successCount.addAndGet(fhirPatients.size());
-					MpiUtils.saveLastSubmittedPatientId(Integer.valueOf(event.getPrimaryKeyId().toString()));
+				if (returnedPatient != null) {
+					fhirPatients.add(Collections.singletonMap(MpiConstants.FIELD_RESOURCE, returnedPatient));
+					submittedEvents.add(events.get(i));
 				}
 			}
-			catch (Exception e) {
-				//TODO We should record the failed patients in this batch and generate a report
-				throw new APIException("An error occurred while processing patient batch", e);
-			}
-			finally {
-				futures.clear();
-			}
 			
-			if (isLastPatient) {
-				log.info("============================= Statistics =============================");
-				log.info("Patients submitted: " + successCount.get());
-				log.info("Started at        : " + new Date(start));
-				log.info("Ended at          : " + new Date());
-				
-				long duration = currentTimeMillis() - start;
-				
-				log.info("Duration          : " + DurationFormatUtils.formatDuration(duration, "HH:mm:ss", true));
-				log.info("======================================================================");
-				
+			if (!fhirPatients.isEmpty()) {
 				try {
-					MpiUtils.deletePatientIdOffsetFile();
+					submitPatientBundle(fhirPatients, mpiContext);
+					
+					successCount.addAndGet(fhirPatients.size());
+					for (DatabaseEvent submittedEvent : submittedEvents) {
+						FailureLedger.resolve(Integer.valueOf(submittedEvent.getPrimaryKeyId().toString()));
+					}
 				}
-				finally {
-					log.info("Switching to incremental loading");
+				catch (Exception e) {
+					log.error("Failed to submit batch of " + fhirPatients.size() + " patient(s) to the MPI", e);
+					for (DatabaseEvent submittedEvent : submittedEvents) {
+						FailureLedger.record(Integer.valueOf(submittedEvent.getPrimaryKeyId().toString()),
+						    submittedEvent, e);
+					}
 					
-					Utils.updateGlobalProperty(MpiConstants.GP_INITIAL, "false");
+					failureCount.addAndGet(submittedEvents.size());
 				}
 			}
+			
+			//Failed patients are in the ledger so they should not be processed again when resuming
+			Object lastPatientId = events.get(events.size() - 1).getPrimaryKeyId();
+			MpiUtils.saveLastSubmittedPatientId(Integer.valueOf(lastPatientId.toString()));
+		}
+		catch (Exception e) {
+			throw new APIException("An error occurred while processing patient batch", e);
+		}
+		finally {
+			futures.clear();
+		}
+	}
+	
+	/**
+	 * Logs the statistics of the initial loading, deletes the offset file and switches to incremental
+	 * loading, this must be called after the last batch is processed.
+	 */
+	public void complete() {
+		if (start == null) {
+			start = currentTimeMillis();
+		}
+		
+		log.info("============================= Statistics =============================");
+		log.info("Patients submitted: " + successCount.get());
+		log.info("Patients failed   : " + failureCount.get());
+		log.info("Started at        : " + new Date(start));
+		log.info("Ended at          : " + new Date());
+		
+		long duration = currentTimeMillis() - start;
+		
+		log.info("Duration          : " + DurationFormatUtils.formatDuration(duration, "HH:mm:ss", true));
+		log.info("======================================================================");
+		
+		try {
+			MpiUtils.markInitialLoadingDone();
+			MpiUtils.deletePatientIdOffsetFile();
+		}
+		finally {
+			log.info("Switching to incremental loading");
+			
+			Utils.updateGlobalProperty(MpiConstants.GP_INITIAL, "false");
+		}
+	}
+	
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	private Map<String, Object> createFhirResource(DatabaseEvent event, Map<Integer, PatientProjection> projections,
+	        Map<String, Map<String, Object>> mpiPatients) {
+		Integer patientId = Integer.valueOf(event.getPrimaryKeyId().toString());
+		try {
+			Thread.currentThread().setName(event.getTableName() + "-" + event.getPrimaryKeyId());
+			log.info("Processing database event -> " + event);
+			final long startSingle = System.currentTimeMillis();
+			
+			PrefetchedPatientProjections.set(projections);
+			PrefetchedMpiPatients.set(mpiPatients);
+			Map<String, Object> fhirPatient = createFhirResource(event);
+			
+			log.info("Done generating fhir patient for database event -> " + event);
+			
+			if (log.isDebugEnabled()) {
+				log.debug("Duration: " + (currentTimeMillis() - startSingle) + "ms");
+			}
+			
+			return fhirPatient;
+		}
+		catch (Throwable e) {
+			log.error("An error occurred while processing event -> " + event, e);
+			FailureLedger.record(patientId, event, e);
+			failureCount.incrementAndGet();
+			return null;
+		}
+		finally {
+			PrefetchedPatientProjections.clear();
+			PrefetchedMpiPatients.clear();
 		}
 	}
+	
 }
@@ -0,0 +1,73 @@
+package org.openmrs.module.fgh.mpi.processor;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Executes tasks on a fixed number of lanes where each lane is backed by a single thread, a task is
+ * always assigned to the lane matching the hash of its key so that tasks with different keys run
+ * concurrently while those with the same key run strictly in the order they were submitted.
+ */
+public class StripedExecutor {
+	
+	private final ExecutorService[] lanes;
+	
+	public StripedExecutor(int laneCount, String threadNamePrefix) {
+		lanes = new ExecutorService[laneCount];
+		for (int i = 0; i < laneCount; i++) {
+			final String threadName = threadNamePrefix + "-" + i;
+			lanes[i] = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, threadName);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+	
+	/**
+	 * Executes the specified task on the lane matching the specified key
+	 *
+	 * @param key the key
+	 * @param task the task to execute
+	 */
+	public void execute(Object key, Runnable task) {
+		lanes[getLaneIndex(key)].execute(task);
+	}
+	
+	/**
+	 * Submits the specified task for execution on the lane matching the specified key
+	 *
+	 * @param key the key
+	 * @param task the task to execute
+	 * @return a Future representing the pending result of the task
+	 */
+	public <T> Future<T> submit(Object key, Callable<T> task) {
+		return lanes[getLaneIndex(key)].submit(task);
+	}
+	
+	/**
+	 * Gets the index of the lane for the specified key
+	 *
+	 * @param key the key
+	 * @return the lane index
+	 */
+	public int getLaneIndex(Object key) {
+		return Math.floorMod(key.hashCode(), lanes.length);
+	}
+	
+	public int getLaneCount() {
+		return lanes.length;
+	}
+	
+	/**
+	 * Stops all the lanes from accepting new tasks
+	 */
+	public void shutdown() {
+		for (ExecutorService lane : lanes) {
+			lane.shutdown();
+		}
+	}
+	
+}
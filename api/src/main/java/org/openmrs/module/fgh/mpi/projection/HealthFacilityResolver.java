@@ -0,0 +1,67 @@
+package org.openmrs.module.fgh.mpi.projection;
+
+import java.util.List;
+
+import org.openmrs.module.fgh.mpi.projection.LocationCache.CachedLocation;
+import org.openmrs.module.fgh.mpi.refdata.ReferenceData;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+
+/**
+ * Resolves the health facility of a patient as the location of the oldest encounter of type Ficha
+ * Resumo, falling back to that of the oldest adult process encounter and then to that of the oldest
+ * child process encounter, with a single query that ranks the encounters by the precedence of their
+ * type and their date.
+ */
+public final class HealthFacilityResolver {
+	
+	protected static final String QUERY = "SELECT location_id FROM encounter WHERE patient_id = ? AND encounter_type IN "
+	        + "(?, ?, ?) AND voided = 0 AND location_id IS NOT NULL ORDER BY CASE encounter_type WHEN ? THEN 0 WHEN ? "
+	        + "THEN 1 ELSE 2 END, encounter_datetime ASC LIMIT 1";
+	
+	private HealthFacilityResolver() {
+	}
+	
+	/**
+	 * Gets the ids of the Ficha Resumo, adult process and child process encounter types in order of
+	 * precedence from the current {@link ReferenceData} snapshot
+	 *
+	 * @return list of encounter type ids
+	 */
+	public static List<Integer> getEncounterTypeIds() {
+		return ReferenceData.get().getHealthFacilityEncounterTypeIds();
+	}
+	
+	/**
+	 * Gets the id of the health facility of the patient with the specified id, it is read from the
+	 * {@link PatientFacilityTable} when it is initialized otherwise from the encounter table.
+	 *
+	 * @param patientId the patient id
+	 * @return the location id or null if the patient has no matching encounter with a location
+	 */
+	public static Integer getHealthFacilityId(Integer patientId) {
+		if (PatientFacilityTable.isInitialized()) {
+			return PatientFacilityTable.getHealthFacilityId(patientId);
+		}
+		
+		List<Integer> typeIds = getEncounterTypeIds();
+		List<List<Object>> rows = MpiUtils.executeQuery(QUERY, patientId, typeIds.get(0), typeIds.get(1), typeIds.get(2),
+		    typeIds.get(0), typeIds.get(1));
+		if (rows.isEmpty()) {
+			return null;
+		}
+		
+		return ((Number) rows.get(0).get(0)).intValue();
+	}
+	
+	/**
+	 * Gets the health facility of the patient with the specified id
+	 *
+	 * @param patientId the patient id
+	 * @return the {@link CachedLocation} or null if the patient has no health facility
+	 */
+	public static CachedLocation getHealthFacility(Integer patientId) {
+		Integer locationId = getHealthFacilityId(patientId);
+		return locationId != null ? LocationCache.get(locationId) : null;
+	}
+	
+}
@@ -0,0 +1,94 @@
+package org.openmrs.module.fgh.mpi.projection;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+
+/**
+ * In memory cache of the uuids and names of locations by location id so that the health facility of
+ * a patient can be added to its resource without loading the location through hibernate, an entry
+ * is invalidated when a change to its location row is received.
+ */
+public final class LocationCache {
+	
+	protected static final String QUERY = "SELECT uuid, name FROM location WHERE location_id = ?";
+	
+	private static final Map<Integer, CachedLocation> cache = new ConcurrentHashMap();
+	
+	private LocationCache() {
+	}
+	
+	/**
+	 * Gets the location with the specified id, loading it from the database if it is not cached
+	 *
+	 * @param locationId the location id
+	 * @return the {@link CachedLocation} or null if no location exists with the id
+	 */
+	public static CachedLocation get(Integer locationId) {
+		//A change received while the location is being loaded waits for the load to complete before the
+		//entry is removed so a stale entry can't outlive the change
+		return cache.computeIfAbsent(locationId, id -> {
+			List<List<Object>> rows = MpiUtils.executeQuery(QUERY, id);
+			if (rows.isEmpty()) {
+				return null;
+			}
+			
+			return new CachedLocation(id, (String) rows.get(0).get(0), (String) rows.get(0).get(1));
+		});
+	}
+	
+	/**
+	 * Removes the location with the specified id from the cache
+	 *
+	 * @param locationId the location id
+	 */
+	public static void invalidate(Integer locationId) {
+		cache.remove(locationId);
+	}
+	
+	/**
+	 * Removes all the locations from the cache
+	 */
+	public static void clear() {
+		cache.clear();
+	}
+	
+	/**
+	 * The id, uuid and name of a location
+	 */
+	public static final class CachedLocation {
+		
+		private final Integer id;
+		
+		private final String uuid;
+		
+		private final String name;
+		
+		public CachedLocation(Integer id, String uuid, String name) {
+			this.id = id;
+			this.uuid = uuid;
+			this.name = name;
+		}
+		
+		public Integer getId() {
+			return id;
+		}
+		
+		public String getUuid() {
+			return uuid;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		@Override
+		public String toString() {
+			return "CachedLocation {id=" + id + ", uuid=" + uuid + ", name=" + name + "}";
+		}
+		
+	}
+	
+}
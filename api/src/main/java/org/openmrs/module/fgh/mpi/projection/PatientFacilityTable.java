@@ -0,0 +1,332 @@
+package org.openmrs.module.fgh.mpi.projection;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.openmrs.module.debezium.DatabaseEvent;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Materialized table of the oldest qualifying encounter of each patient per encounter type used to
+ * resolve health facilities, the priority of a row is the precedence of the encounter type as
+ * returned by {@link HealthFacilityResolver#getEncounterTypeIds()} and the health facility of a
+ * patient is the location of the row with the lowest priority. The table is bulk loaded once with
+ * a grouped query and is then kept current from the row images of encounter events, it is cleared
+ * whenever encounter changes are not streamed e.g. during a Debezium snapshot and reloaded on the
+ * next start of incremental loading.
+ */
+public final class PatientFacilityTable {
+	
+	private static final Logger log = LoggerFactory.getLogger(PatientFacilityTable.class);
+	
+	protected static final String EXISTS = "SELECT 1 FROM mpi_patient_facility LIMIT 1";
+	
+	protected static final String DELETE_ALL = "DELETE FROM mpi_patient_facility";
+	
+	protected static final String LOAD = "INSERT IGNORE INTO mpi_patient_facility (patient_id, priority, encounter_id, "
+	        + "encounter_datetime, location_id) SELECT e.patient_id, CASE e.encounter_type WHEN ? THEN 0 WHEN ? THEN 1 "
+	        + "ELSE 2 END, e.encounter_id, e.encounter_datetime, e.location_id FROM encounter e INNER JOIN (SELECT "
+	        + "patient_id, encounter_type, MIN(encounter_datetime) AS oldest FROM encounter WHERE encounter_type IN "
+	        + "(?, ?, ?) AND voided = 0 AND location_id IS NOT NULL GROUP BY patient_id, encounter_type) o ON "
+	        + "e.patient_id = o.patient_id AND e.encounter_type = o.encounter_type AND e.encounter_datetime = o.oldest "
+	        + "WHERE e.voided = 0 AND e.location_id IS NOT NULL ORDER BY e.encounter_id";
+	
+	protected static final String SELECT = "SELECT priority, encounter_id, encounter_datetime, location_id FROM "
+	        + "mpi_patient_facility WHERE patient_id = ?";
+	
+	protected static final String HEALTH_FACILITY_QUERY = "SELECT location_id FROM mpi_patient_facility WHERE "
+	        + "patient_id = ? ORDER BY priority LIMIT 1";
+	
+	protected static final String OLDEST_ENCOUNTER_QUERY = "SELECT encounter_id, encounter_datetime, location_id FROM "
+	        + "encounter WHERE patient_id = ? AND encounter_type = ? AND voided = 0 AND location_id IS NOT NULL ORDER BY "
+	        + "encounter_datetime, encounter_id LIMIT 1";
+	
+	protected static final String UPSERT = "INSERT INTO mpi_patient_facility (patient_id, priority, encounter_id, "
+	        + "encounter_datetime, location_id) VALUES (?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE encounter_id = "
+	        + "VALUES(encounter_id), encounter_datetime = VALUES(encounter_datetime), location_id = VALUES(location_id)";
+	
+	protected static final String DELETE = "DELETE FROM mpi_patient_facility WHERE patient_id = ? AND priority = ?";
+	
+	private static volatile boolean initialized;
+	
+	private PatientFacilityTable() {
+	}
+	
+	/**
+	 * Loads the table if it is empty and marks it as initialized, after this call encounter events
+	 * must be passed to {@link #apply(DatabaseEvent)} in the order they occur to keep it current.
+	 */
+	public static synchronized void initialize() {
+		if (MpiUtils.executeQuery(EXISTS).isEmpty()) {
+			rebuild();
+		}
+		
+		initialized = true;
+	}
+	
+	/**
+	 * Replaces the contents of the table with the oldest qualifying encounters of all the patients,
+	 * encounters with the same date are resolved in favor of the one with the lowest id.
+	 */
+	public static synchronized void rebuild() {
+		log.info("Loading the patient health facility table");
+		
+		final long start = System.currentTimeMillis();
+		List<Integer> typeIds = HealthFacilityResolver.getEncounterTypeIds();
+		MpiUtils.executeUpdate(DELETE_ALL);
+		int count = MpiUtils.executeUpdate(LOAD, typeIds.get(0), typeIds.get(1), typeIds.get(0), typeIds.get(1),
+		    typeIds.get(2));
+		
+		log.info("Loaded " + count + " patient health facility rows in " + (System.currentTimeMillis() - start) + "ms");
+	}
+	
+	/**
+	 * Empties the table and marks it as not initialized, this must be called before encounter changes
+	 * stop being passed to {@link #apply(DatabaseEvent)} so that the table is reloaded on the next
+	 * call to {@link #initialize()}.
+	 */
+	public static synchronized void clear() {
+		initialized = false;
+		MpiUtils.executeUpdate(DELETE_ALL);
+	}
+	
+	/**
+	 * Checks if the table is initialized and current
+	 *
+	 * @return true if initialized otherwise false
+	 */
+	public static boolean isInitialized() {
+		return initialized;
+	}
+	
+	/**
+	 * Gets the id of the health facility of the patient with the specified id from the table
+	 *
+	 * @param patientId the patient id
+	 * @return the location id or null if the patient has no matching encounter with a location
+	 */
+	public static Integer getHealthFacilityId(Integer patientId) {
+		List<List<Object>> rows = MpiUtils.executeQuery(HEALTH_FACILITY_QUERY, patientId);
+		return rows.isEmpty() ? null : ((Number) rows.get(0).get(0)).intValue();
+	}
+	
+	/**
+	 * Updates the table with the row images of the specified encounter event, when the previous image
+	 * is the oldest encounter recorded for the patient and its type, the row is recomputed from the
+	 * encounter table since the encounter may have been voided, moved or deleted. The new image
+	 * replaces the recorded row if it qualifies and is older.
+	 *
+	 * @param event the encounter {@link DatabaseEvent}
+	 * @return true if the health facility of the patient may have changed otherwise false
+	 */
+	public static synchronized boolean apply(DatabaseEvent event) {
+		List<Integer> typeIds = HealthFacilityResolver.getEncounterTypeIds();
+		EncounterImage previous = EncounterImage.from(event.getPreviousState(), typeIds);
+		EncounterImage current = EncounterImage.from(event.getNewState(), typeIds);
+		if (previous == null && current == null) {
+			return false;
+		}
+		
+		if (previous != null && current != null && !previous.patientId.equals(current.patientId)) {
+			applyPrevious(previous, getRows(previous.patientId));
+			applyCurrent(current, getRows(current.patientId));
+			return true;
+		}
+		
+		Integer patientId = previous != null ? previous.patientId : current.patientId;
+		Map<Integer, FacilityRow> rows = getRows(patientId);
+		Integer before = getHealthFacilityId(rows);
+		if (previous != null) {
+			applyPrevious(previous, rows);
+		}
+		
+		if (current != null) {
+			applyCurrent(current, rows);
+		}
+		
+		return !Objects.equals(before, getHealthFacilityId(rows));
+	}
+	
+	private static void applyPrevious(EncounterImage previous, Map<Integer, FacilityRow> rows) {
+		FacilityRow row = rows.get(previous.priority);
+		if (row == null || !row.encounterId.equals(previous.encounterId)) {
+			return;
+		}
+		
+		Integer typeId = HealthFacilityResolver.getEncounterTypeIds().get(previous.priority);
+		List<List<Object>> oldest = MpiUtils.executeQuery(OLDEST_ENCOUNTER_QUERY, previous.patientId, typeId);
+		if (oldest.isEmpty()) {
+			MpiUtils.executeUpdate(DELETE, previous.patientId, previous.priority);
+			rows.remove(previous.priority);
+		} else {
+			FacilityRow newRow = new FacilityRow(((Number) oldest.get(0).get(0)).intValue(),
+			        toLocalDateTime(oldest.get(0).get(1)), ((Number) oldest.get(0).get(2)).intValue());
+			save(previous.patientId, previous.priority, newRow);
+			rows.put(previous.priority, newRow);
+		}
+	}
+	
+	private static void applyCurrent(EncounterImage current, Map<Integer, FacilityRow> rows) {
+		if (!current.qualifies()) {
+			return;
+		}
+		
+		FacilityRow row = rows.get(current.priority);
+		FacilityRow newRow = new FacilityRow(current.encounterId, current.encounterDatetime, current.locationId);
+		if (row == null || newRow.isOlderThan(row)) {
+			save(current.patientId, current.priority, newRow);
+			rows.put(current.priority, newRow);
+		}
+	}
+	
+	private static void save(Integer patientId, Integer priority, FacilityRow row) {
+		MpiUtils.executeUpdate(UPSERT, patientId, priority, row.encounterId, Timestamp.valueOf(row.encounterDatetime),
+		    row.locationId);
+	}
+	
+	private static Map<Integer, FacilityRow> getRows(Integer patientId) {
+		Map<Integer, FacilityRow> rows = new HashMap();
+		for (List<Object> row : MpiUtils.executeQuery(SELECT, patientId)) {
+			rows.put(((Number) row.get(0)).intValue(), new FacilityRow(((Number) row.get(1)).intValue(),
+			        toLocalDateTime(row.get(2)), ((Number) row.get(3)).intValue()));
+		}
+		
+		return rows;
+	}
+	
+	private static Integer getHealthFacilityId(Map<Integer, FacilityRow> rows) {
+		for (int priority = 0; priority < 3; priority++) {
+			FacilityRow row = rows.get(priority);
+			if (row != null) {
+				return row.locationId;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Converts a datetime column value to a LocalDateTime, numeric values are epoch milliseconds of the
+	 * wall clock time in UTC as emitted by Debezium for DATETIME columns.
+	 *
+	 * @param value the value to convert
+	 * @return the LocalDateTime or null if the value is null
+	 */
+	protected static LocalDateTime toLocalDateTime(Object value) {
+		if (value == null || value instanceof LocalDateTime) {
+			return (LocalDateTime) value;
+		} else if (value instanceof Timestamp) {
+			return ((Timestamp) value).toLocalDateTime();
+		} else if (value instanceof Date) {
+			return LocalDateTime.ofInstant(((Date) value).toInstant(), ZoneId.systemDefault());
+		} else if (value instanceof Number) {
+			long millis = ((Number) value).longValue();
+			return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000), (int) Math.floorMod(millis, 1000) * 1000000,
+			    ZoneOffset.UTC);
+		}
+		
+		return Timestamp.valueOf(value.toString().trim()).toLocalDateTime();
+	}
+	
+	private static Integer toInteger(Object value) {
+		if (value == null) {
+			return null;
+		}
+		
+		return value instanceof Number ? ((Number) value).intValue() : Integer.valueOf(value.toString().trim());
+	}
+	
+	private static boolean toBoolean(Object value) {
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		} else if (value instanceof Number) {
+			return ((Number) value).intValue() != 0;
+		}
+		
+		return value != null && ("1".equals(value.toString()) || Boolean.parseBoolean(value.toString()));
+	}
+	
+	/**
+	 * The fields of an encounter row image that determine the health facility of the patient
+	 */
+	private static class EncounterImage {
+		
+		private Integer encounterId;
+		
+		private Integer patientId;
+		
+		private Integer priority;
+		
+		private LocalDateTime encounterDatetime;
+		
+		private Integer locationId;
+		
+		private boolean voided;
+		
+		/**
+		 * Creates an image from the specified row state
+		 *
+		 * @param state the row state
+		 * @param typeIds the encounter type ids in order of precedence
+		 * @return the image or null if the state is null or the encounter type has no precedence
+		 */
+		private static EncounterImage from(Map<String, Object> state, List<Integer> typeIds) {
+			if (state == null) {
+				return null;
+			}
+			
+			int priority = typeIds.indexOf(toInteger(state.get("encounter_type")));
+			if (priority < 0) {
+				return null;
+			}
+			
+			EncounterImage image = new EncounterImage();
+			image.encounterId = toInteger(state.get("encounter_id"));
+			image.patientId = toInteger(state.get("patient_id"));
+			image.priority = priority;
+			image.encounterDatetime = toLocalDateTime(state.get("encounter_datetime"));
+			image.locationId = toInteger(state.get("location_id"));
+			image.voided = toBoolean(state.get("voided"));
+			return image;
+		}
+		
+		private boolean qualifies() {
+			return !voided && locationId != null && encounterDatetime != null;
+		}
+		
+	}
+	
+	/**
+	 * A row of the table for a patient and priority
+	 */
+	private static class FacilityRow {
+		
+		private final Integer encounterId;
+		
+		private final LocalDateTime encounterDatetime;
+		
+		private final Integer locationId;
+		
+		private FacilityRow(Integer encounterId, LocalDateTime encounterDatetime, Integer locationId) {
+			this.encounterId = encounterId;
+			this.encounterDatetime = encounterDatetime;
+			this.locationId = locationId;
+		}
+		
+		private boolean isOlderThan(FacilityRow other) {
+			int result = encounterDatetime.compareTo(other.encounterDatetime);
+			return result < 0 || (result == 0 && encounterId < other.encounterId);
+		}
+		
+	}
+	
+}
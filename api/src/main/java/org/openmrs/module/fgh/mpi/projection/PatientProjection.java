@@ -0,0 +1,212 @@
+package org.openmrs.module.fgh.mpi.projection;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds all the OpenMRS data needed to build the fhir resource of a single patient, it is loaded by
+ * {@link PatientProjectionLoader} in a single round trip to the database. The rows of the identifiers,
+ * names, addresses and phones have the same columns as their respective sections of the projection
+ * query.
+ */
+public class PatientProjection {
+	
+	private final Integer patientId;
+	
+	private String uuid;
+	
+	private String gender;
+	
+	private String birthdate;
+	
+	private boolean dead;
+	
+	private LocalDateTime deathDate;
+	
+	private boolean personVoided;
+	
+	private Boolean patientVoided;
+	
+	private final List<List<Object>> identifiers = new ArrayList();
+	
+	private final List<List<Object>> names = new ArrayList();
+	
+	private final List<List<Object>> addresses = new ArrayList();
+	
+	private final List<List<Object>> mobilePhones = new ArrayList();
+	
+	private final List<List<Object>> homePhones = new ArrayList();
+	
+	private boolean healthFacilityLoaded;
+	
+	private Integer healthFacilityId;
+	
+	public PatientProjection(Integer patientId) {
+		this.patientId = patientId;
+	}
+	
+	public Integer getPatientId() {
+		return patientId;
+	}
+	
+	public String getUuid() {
+		return uuid;
+	}
+	
+	public void setUuid(String uuid) {
+		this.uuid = uuid;
+	}
+	
+	public String getGender() {
+		return gender;
+	}
+	
+	public void setGender(String gender) {
+		this.gender = gender;
+	}
+	
+	public String getBirthdate() {
+		return birthdate;
+	}
+	
+	public void setBirthdate(String birthdate) {
+		this.birthdate = birthdate;
+	}
+	
+	public boolean isDead() {
+		return dead;
+	}
+	
+	public void setDead(boolean dead) {
+		this.dead = dead;
+	}
+	
+	public LocalDateTime getDeathDate() {
+		return deathDate;
+	}
+	
+	public void setDeathDate(LocalDateTime deathDate) {
+		this.deathDate = deathDate;
+	}
+	
+	public boolean isPersonVoided() {
+		return personVoided;
+	}
+	
+	public void setPersonVoided(boolean personVoided) {
+		this.personVoided = personVoided;
+	}
+	
+	/**
+	 * Checks if a patient row exists for the person
+	 *
+	 * @return true if the patient row exists otherwise false
+	 */
+	public boolean hasPatient() {
+		return patientVoided != null;
+	}
+	
+	/**
+	 * Checks if the patient row is voided
+	 *
+	 * @return true if the patient row exists and is voided otherwise false
+	 */
+	public boolean isPatientVoided() {
+		return Boolean.TRUE.equals(patientVoided);
+	}
+	
+	/**
+	 * Sets the voided flag of the patient row, null means there is no patient row
+	 *
+	 * @param patientVoided the voided flag
+	 */
+	public void setPatientVoided(Boolean patientVoided) {
+		this.patientVoided = patientVoided;
+	}
+	
+	/**
+	 * Gets the rows of the non voided identifiers with the preferred first, each row has the identifier,
+	 * identifier type uuid and identifier uuid
+	 *
+	 * @return list of rows
+	 */
+	public List<List<Object>> getIdentifiers() {
+		return identifiers;
+	}
+	
+	/**
+	 * Gets the rows of the non voided names with the preferred first, each row has the prefix, given
+	 * name, middle name, family name and name uuid
+	 *
+	 * @return list of rows
+	 */
+	public List<List<Object>> getNames() {
+		return names;
+	}
+	
+	/**
+	 * Gets the rows of the non voided addresses with the preferred first, each row has the address1,
+	 * address2, address3, address5, address6, county district, state province, country, start date, end
+	 * date and address uuid
+	 *
+	 * @return list of rows
+	 */
+	public List<List<Object>> getAddresses() {
+		return addresses;
+	}
+	
+	/**
+	 * Gets the rows of the non voided mobile phone attributes, each row has the value and attribute uuid
+	 *
+	 * @return list of rows
+	 */
+	public List<List<Object>> getMobilePhones() {
+		return mobilePhones;
+	}
+	
+	/**
+	 * Gets the rows of the non voided home phone attributes, each row has the value and attribute uuid
+	 *
+	 * @return list of rows
+	 */
+	public List<List<Object>> getHomePhones() {
+		return homePhones;
+	}
+	
+	/**
+	 * Checks if the health facility of the patient was loaded along with the projection, if not it has to
+	 * be looked up separately
+	 *
+	 * @return true if the health facility was loaded otherwise false
+	 */
+	public boolean isHealthFacilityLoaded() {
+		return healthFacilityLoaded;
+	}
+	
+	/**
+	 * Gets the id of the location of the health facility of the patient, only applicable if the health
+	 * facility was loaded
+	 *
+	 * @return the location id or null if the patient has no health facility
+	 */
+	public Integer getHealthFacilityId() {
+		return healthFacilityId;
+	}
+	
+	/**
+	 * Sets the id of the location of the health facility of the patient and marks it as loaded
+	 *
+	 * @param healthFacilityId the location id, null means the patient has no health facility
+	 */
+	public void setHealthFacilityId(Integer healthFacilityId) {
+		this.healthFacilityId = healthFacilityId;
+		healthFacilityLoaded = true;
+	}
+	
+	@Override
+	public String toString() {
+		return "{patientId=" + patientId + ", uuid=" + uuid + "}";
+	}
+	
+}
@@ -0,0 +1,291 @@
+package org.openmrs.module.fgh.mpi.projection;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.module.fgh.mpi.utils.FhirUtils;
+import org.openmrs.module.fgh.mpi.utils.MpiConstants;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+import org.openmrs.module.fgh.mpi.utils.Row;
+import org.openmrs.module.fgh.mpi.utils.RowHandler;
+
+/**
+ * Loads the {@link PatientProjection} of one or more patients with a single query, the person,
+ * patient, identifier, name, address and phone attribute rows are combined with UNION ALL into one
+ * result set where the first column is the patient id, the second identifies the section each row
+ * belongs to and the rest of the columns are padded with nulls to the width of the widest section.
+ * The rows are streamed to a {@link ProjectionCollector} and since a union column has a single type,
+ * the values of the person and patient rows are read back with their types.
+ */
+public final class PatientProjectionLoader {
+	
+	protected static final int SECTION_PERSON = 0;
+	
+	protected static final int SECTION_PATIENT = 1;
+	
+	protected static final int SECTION_IDENTIFIER = 2;
+	
+	protected static final int SECTION_NAME = 3;
+	
+	protected static final int SECTION_ADDRESS = 4;
+	
+	protected static final int SECTION_MOBILE_PHONE = 5;
+	
+	protected static final int SECTION_HOME_PHONE = 6;
+	
+	//The patient id, section and sort columns precede the section values
+	private static final int VALUE_OFFSET = 3;
+	
+	private static final String COLUMN_OWNER_ID = "owner_id";
+	
+	private static final String COLUMN_SECTION = "section";
+	
+	protected static final int ADDRESS_START_DATE = 8;
+	
+	protected static final int ADDRESS_END_DATE = 9;
+	
+	private static final String IDS_PLACEHOLDER = "{IDS}";
+	
+	protected static final String QUERY = "SELECT person_id AS owner_id, " + SECTION_PERSON + " AS section, 0 AS "
+	        + "sort_order, gender, birthdate, dead, death_date, uuid, voided, NULL, NULL, NULL, NULL, NULL FROM person "
+	        + "WHERE person_id IN (" + IDS_PLACEHOLDER + ") "
+	        + "UNION ALL SELECT patient_id, " + SECTION_PATIENT + ", 0, voided, NULL, NULL, NULL, NULL, NULL, NULL, NULL, "
+	        + "NULL, NULL, NULL FROM patient WHERE patient_id IN (" + IDS_PLACEHOLDER + ") "
+	        + "UNION ALL SELECT i.patient_id, " + SECTION_IDENTIFIER + ", i.preferred, i.identifier, t.uuid, i.uuid, NULL, "
+	        + "NULL, NULL, NULL, NULL, NULL, NULL, NULL FROM patient_identifier i, patient_identifier_type t WHERE "
+	        + "i.identifier_type = t.patient_identifier_type_id AND i.patient_id IN (" + IDS_PLACEHOLDER + ") AND "
+	        + "i.voided = 0 "
+	        + "UNION ALL SELECT person_id, " + SECTION_NAME + ", preferred, prefix, given_name, middle_name, family_name, "
+	        + "uuid, NULL, NULL, NULL, NULL, NULL, NULL FROM person_name WHERE person_id IN (" + IDS_PLACEHOLDER + ") AND "
+	        + "voided = 0 "
+	        + "UNION ALL SELECT person_id, " + SECTION_ADDRESS + ", preferred, address1, address2, address3, address5, "
+	        + "address6, county_district, state_province, country, start_date, end_date, uuid FROM person_address WHERE "
+	        + "person_id IN (" + IDS_PLACEHOLDER + ") AND voided = 0 "
+	        + "UNION ALL SELECT person_id, " + SECTION_MOBILE_PHONE + ", 0, value, uuid, NULL, NULL, NULL, NULL, NULL, NULL, "
+	        + "NULL, NULL, NULL FROM person_attribute WHERE person_id IN (" + IDS_PLACEHOLDER + ") AND "
+	        + "person_attribute_type_id = ? AND voided = 0 "
+	        + "UNION ALL SELECT person_id, " + SECTION_HOME_PHONE + ", 0, value, uuid, NULL, NULL, NULL, NULL, NULL, NULL, "
+	        + "NULL, NULL, NULL FROM person_attribute WHERE person_id IN (" + IDS_PLACEHOLDER + ") AND "
+	        + "person_attribute_type_id = ? AND voided = 0 "
+	        + "ORDER BY owner_id, section, sort_order DESC";
+	
+	protected static final String HEALTH_FACILITY_QUERY = "SELECT patient_id, encounter_type, location_id FROM encounter "
+	        + "WHERE patient_id IN (" + IDS_PLACEHOLDER + ") AND encounter_type IN (?, ?, ?) AND voided = 0 AND "
+	        + "location_id IS NOT NULL ORDER BY patient_id, encounter_datetime ASC";
+	
+	private static final int[] SECTION_WIDTHS = { 6, 1, 3, 5, 11, 2, 2 };
+	
+	private PatientProjectionLoader() {
+	}
+	
+	/**
+	 * Loads the projection of the patient with the specified id
+	 *
+	 * @param patientId the patient id
+	 * @return the {@link PatientProjection} or null if no person exists with the id
+	 */
+	public static PatientProjection load(Integer patientId) {
+		return loadAll(Collections.singletonList(patientId), false).get(patientId);
+	}
+	
+	/**
+	 * Loads the projections of all the patients with the specified ids with a single query, optionally
+	 * the health facilities of the patients are also loaded with one more query in which case the
+	 * location of the oldest encounter of type Ficha Resumo takes precedence over that of the oldest
+	 * adult process encounter which in turn takes precedence over that of the oldest child process
+	 * encounter.
+	 *
+	 * @param patientIds the patient ids
+	 * @param includeHealthFacility specifies if the health facilities should be loaded
+	 * @return map of the patient ids to their {@link PatientProjection}, every specified id is a key and
+	 *         the value is null if no person exists with the id
+	 */
+	public static Map<Integer, PatientProjection> loadAll(Collection<Integer> patientIds, boolean includeHealthFacility) {
+		Integer mobileAttrTypeId = FhirUtils.getAttributeTypeId(MpiConstants.GP_PHONE_MOBILE);
+		Integer homeAttrTypeId = FhirUtils.getAttributeTypeId(MpiConstants.GP_PHONE_HOME);
+		List<Object> params = new ArrayList(patientIds.size() * 7 + 2);
+		for (int section = SECTION_PERSON; section <= SECTION_HOME_PHONE; section++) {
+			params.addAll(patientIds);
+			if (section == SECTION_MOBILE_PHONE) {
+				params.add(mobileAttrTypeId);
+			} else if (section == SECTION_HOME_PHONE) {
+				params.add(homeAttrTypeId);
+			}
+		}
+		
+		ProjectionCollector collector = new ProjectionCollector(patientIds);
+		MpiUtils.forEachRow(QUERY.replace(IDS_PLACEHOLDER, getPlaceholders(patientIds)), collector, params.toArray());
+		Map<Integer, PatientProjection> projections = collector.getProjections();
+		if (includeHealthFacility) {
+			loadHealthFacilities(projections);
+		}
+		
+		return projections;
+	}
+	
+	private static void loadHealthFacilities(Map<Integer, PatientProjection> projections) {
+		List<Integer> patientIds = new ArrayList(projections.size());
+		for (PatientProjection projection : projections.values()) {
+			if (projection != null) {
+				patientIds.add(projection.getPatientId());
+			}
+		}
+		
+		if (patientIds.isEmpty()) {
+			return;
+		}
+		
+		List<Integer> encTypeIds = HealthFacilityResolver.getEncounterTypeIds();
+		List<Object> params = new ArrayList(patientIds);
+		params.addAll(encTypeIds);
+		Map<Integer, Map<Integer, Integer>> patientTypeLocations = new HashMap();
+		MpiUtils.forEachRow(HEALTH_FACILITY_QUERY.replace(IDS_PLACEHOLDER, getPlaceholders(patientIds)),
+		    row -> addEncounterLocation(patientTypeLocations, row), params.toArray());
+		
+		setHealthFacilities(projections, patientTypeLocations, encTypeIds);
+	}
+	
+	/**
+	 * Adds the location of the encounter in the specified row returned by the health facility query if
+	 * it is the oldest encounter of its type for the patient
+	 *
+	 * @param patientTypeLocations map of patient ids to maps of encounter type ids to location ids
+	 * @param row the row returned by the health facility query ordered by encounter date
+	 */
+	protected static void addEncounterLocation(Map<Integer, Map<Integer, Integer>> patientTypeLocations, Row row) {
+		Map<Integer, Integer> typeLocations = patientTypeLocations.computeIfAbsent(row.getInteger("patient_id"),
+		    k -> new HashMap());
+		typeLocations.putIfAbsent(row.getInteger("encounter_type"), row.getInteger("location_id"));
+	}
+	
+	/**
+	 * Sets the health facility of each projection to the location of the oldest encounter of the type
+	 * with the highest precedence
+	 *
+	 * @param projections map of the patient ids to their projections
+	 * @param patientTypeLocations map of patient ids to maps of encounter type ids to location ids
+	 * @param encTypeIds the encounter type ids in order of precedence
+	 */
+	protected static void setHealthFacilities(Map<Integer, PatientProjection> projections,
+	        Map<Integer, Map<Integer, Integer>> patientTypeLocations, List<Integer> encTypeIds) {
+		for (PatientProjection projection : projections.values()) {
+			if (projection == null) {
+				continue;
+			}
+			
+			Integer locationId = null;
+			Map<Integer, Integer> typeLocations = patientTypeLocations.get(projection.getPatientId());
+			if (typeLocations != null) {
+				for (Integer encTypeId : encTypeIds) {
+					locationId = typeLocations.get(encTypeId);
+					if (locationId != null) {
+						break;
+					}
+				}
+			}
+			
+			projection.setHealthFacilityId(locationId);
+		}
+	}
+	
+	private static String getPlaceholders(Collection<Integer> patientIds) {
+		return StringUtils.repeat("?", ", ", patientIds.size());
+	}
+	
+	/**
+	 * Collects the rows streamed by the projection query into the projection of each patient, the
+	 * values of the person and patient rows are read with their types while those of the other
+	 * sections are copied with the dates of addresses converted to {@link LocalDateTime} values.
+	 */
+	protected static class ProjectionCollector implements RowHandler {
+		
+		private final Collection<Integer> patientIds;
+		
+		private final Map<Integer, PatientProjection> projections;
+		
+		private final Set<Integer> foundPersons;
+		
+		protected ProjectionCollector(Collection<Integer> patientIds) {
+			this.patientIds = patientIds;
+			projections = new HashMap(patientIds.size());
+			for (Integer patientId : patientIds) {
+				projections.put(patientId, new PatientProjection(patientId));
+			}
+			
+			foundPersons = new HashSet(patientIds.size());
+		}
+		
+		@Override
+		public void handle(Row row) {
+			Integer patientId = row.getInteger(COLUMN_OWNER_ID);
+			PatientProjection projection = projections.get(patientId);
+			if (projection == null) {
+				return;
+			}
+			
+			int section = row.getInt(COLUMN_SECTION);
+			switch (section) {
+				case SECTION_PERSON:
+					foundPersons.add(patientId);
+					projection.setGender(row.getString(VALUE_OFFSET));
+					projection.setBirthdate(row.getString(VALUE_OFFSET + 1));
+					projection.setDead(row.getBoolean(VALUE_OFFSET + 2));
+					projection.setDeathDate(row.getLocalDateTime(VALUE_OFFSET + 3));
+					projection.setUuid(row.getString(VALUE_OFFSET + 4));
+					projection.setPersonVoided(row.getBoolean(VALUE_OFFSET + 5));
+					break;
+				case SECTION_PATIENT:
+					projection.setPatientVoided(row.getBoolean(VALUE_OFFSET));
+					break;
+				case SECTION_IDENTIFIER:
+					projection.getIdentifiers().add(getSectionValues(row, section));
+					break;
+				case SECTION_NAME:
+					projection.getNames().add(getSectionValues(row, section));
+					break;
+				case SECTION_ADDRESS:
+					List<Object> address = getSectionValues(row, section);
+					address.set(ADDRESS_START_DATE, row.getLocalDateTime(VALUE_OFFSET + ADDRESS_START_DATE));
+					address.set(ADDRESS_END_DATE, row.getLocalDateTime(VALUE_OFFSET + ADDRESS_END_DATE));
+					projection.getAddresses().add(address);
+					break;
+				case SECTION_MOBILE_PHONE:
+					projection.getMobilePhones().add(getSectionValues(row, section));
+					break;
+				case SECTION_HOME_PHONE:
+					projection.getHomePhones().add(getSectionValues(row, section));
+					break;
+			}
+		}
+		
+		/**
+		 * Gets the collected projections
+		 *
+		 * @return map of the patient ids to their {@link PatientProjection}, the value is null if there
+		 *         was no person row for the patient
+		 */
+		protected Map<Integer, PatientProjection> getProjections() {
+			for (Integer patientId : patientIds) {
+				if (!foundPersons.contains(patientId)) {
+					projections.put(patientId, null);
+				}
+			}
+			
+			return projections;
+		}
+		
+		private List<Object> getSectionValues(Row row, int section) {
+			return row.getValues(VALUE_OFFSET, VALUE_OFFSET + SECTION_WIDTHS[section]);
+		}
+		
+	}
+	
+}
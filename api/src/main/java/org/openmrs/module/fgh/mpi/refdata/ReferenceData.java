@@ -0,0 +1,243 @@
+package org.openmrs.module.fgh.mpi.refdata;
+
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_ADULT_PROCESS_ENC_TYPE_UUID;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_CHILD_PROCESS_ENC_TYPE_UUID;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_FICHA_RESUMO_ENC_TYPE_UUID;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HEALTH_FACILITY_SYSTEM;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_ID_TYPE_SYSTEM_MAP;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_MPI_SYSTEM;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_PHONE_HOME;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_PHONE_MOBILE;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_SANTE_MESSAGE_HEADER_EVENT_URI;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_SANTE_MESSAGE_HEADER_FOCUS_REFERENCE;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_UUID_SYSTEM;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.PersonAttributeType;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.fgh.mpi.entity.MpiSystemType;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable snapshot of the reference data used to build patient resources i.e. the values of the
+ * module global properties and the ids of the metadata they point to. The current snapshot is held
+ * in an {@link AtomicReference} so that reads are lock free, it is built on first use and replaced
+ * as a whole by {@link #reload()} whenever a module global property changes, threads that are
+ * building a patient resource keep using the snapshot they started with.
+ * <p>
+ * Metadata that can't be looked up does not fail the snapshot, instead the error is thrown when the
+ * missing value is read so that only the features depending on it are affected.
+ */
+public final class ReferenceData {
+	
+	private static final Logger log = LoggerFactory.getLogger(ReferenceData.class);
+	
+	private static final AtomicReference<ReferenceData> current = new AtomicReference();
+	
+	private final String openmrsUuidSystem;
+	
+	private final Map<String, String> idSystemMap;
+	
+	private final String mpiSystem;
+	
+	private final String healthFacilitySystem;
+	
+	private final String santeMessageHeaderFocusReference;
+	
+	private final String santeMessageHeaderEventUri;
+	
+	private final Map<String, Lookup<Integer>> attributeTypeIds;
+	
+	private final Lookup<List<Integer>> encounterTypeIds;
+	
+	private ReferenceData() {
+		openmrsUuidSystem = MpiUtils.getGlobalPropertyValue(GP_UUID_SYSTEM);
+		idSystemMap = Collections.unmodifiableMap(parseIdSystemMap(MpiUtils.getGlobalPropertyValue(GP_ID_TYPE_SYSTEM_MAP)));
+		mpiSystem = MpiUtils.getGlobalPropertyValue(GP_MPI_SYSTEM);
+		healthFacilitySystem = MpiUtils.getGlobalPropertyValue(GP_HEALTH_FACILITY_SYSTEM);
+		santeMessageHeaderFocusReference = MpiUtils.getGlobalPropertyValue(GP_SANTE_MESSAGE_HEADER_FOCUS_REFERENCE);
+		santeMessageHeaderEventUri = MpiUtils.getGlobalPropertyValue(GP_SANTE_MESSAGE_HEADER_EVENT_URI);
+		Map<String, Lookup<Integer>> attributeTypes = new HashMap(2);
+		for (String globalProperty : Arrays.asList(GP_PHONE_MOBILE, GP_PHONE_HOME)) {
+			attributeTypes.put(globalProperty, Lookup.of(() -> lookUpAttributeTypeId(globalProperty)));
+		}
+		
+		attributeTypeIds = Collections.unmodifiableMap(attributeTypes);
+		encounterTypeIds = Lookup.of(() -> Collections.unmodifiableList(
+		    Arrays.asList(MpiUtils.getEncounterTypeByGlobalProperty(GP_FICHA_RESUMO_ENC_TYPE_UUID).getId(),
+		        MpiUtils.getEncounterTypeByGlobalProperty(GP_ADULT_PROCESS_ENC_TYPE_UUID).getId(),
+		        MpiUtils.getEncounterTypeByGlobalProperty(GP_CHILD_PROCESS_ENC_TYPE_UUID).getId())));
+	}
+	
+	/**
+	 * Gets the current snapshot, building it if necessary
+	 *
+	 * @return the {@link ReferenceData} snapshot
+	 */
+	public static ReferenceData get() {
+		ReferenceData data = current.get();
+		if (data == null) {
+			data = new ReferenceData();
+			if (!current.compareAndSet(null, data)) {
+				data = current.get();
+			}
+		}
+		
+		return data;
+	}
+	
+	/**
+	 * Builds a new snapshot and replaces the current one with it, if building fails the current
+	 * snapshot is discarded so that the next read builds it again.
+	 */
+	public static void reload() {
+		try {
+			current.set(new ReferenceData());
+			log.info("Reloaded the MPI reference data");
+		}
+		catch (RuntimeException e) {
+			current.set(null);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Discards the current snapshot, the next read builds a new one
+	 */
+	public static void clear() {
+		current.set(null);
+	}
+	
+	public String getOpenmrsUuidSystem() {
+		return openmrsUuidSystem;
+	}
+	
+	/**
+	 * Gets the system uri of the identifier type with the specified uuid
+	 *
+	 * @param identifierTypeUuid the identifier type uuid
+	 * @return the system uri or null if none is mapped
+	 */
+	public String getIdSystem(String identifierTypeUuid) {
+		return idSystemMap.get(identifierTypeUuid);
+	}
+	
+	public String getMpiSystem() {
+		return mpiSystem;
+	}
+	
+	/**
+	 * Checks if the configured MPI system is SanteMPI
+	 *
+	 * @return true if the MPI system is SanteMPI otherwise false
+	 */
+	public boolean isSanteMpi() {
+		return MpiSystemType.SANTEMPI.toString().equals(mpiSystem);
+	}
+	
+	public String getHealthFacilitySystem() {
+		return healthFacilitySystem;
+	}
+	
+	public String getSanteMessageHeaderFocusReference() {
+		return santeMessageHeaderFocusReference;
+	}
+	
+	public String getSanteMessageHeaderEventUri() {
+		return santeMessageHeaderEventUri;
+	}
+	
+	/**
+	 * Gets the id of the person attribute type with a uuid matching the value of the specified global
+	 * property name, attribute types for global properties other than the phone ones are looked up on
+	 * each call.
+	 *
+	 * @param globalProperty the global property name
+	 * @return the person attribute type id
+	 */
+	public Integer getAttributeTypeId(String globalProperty) {
+		Lookup<Integer> lookup = attributeTypeIds.get(globalProperty);
+		return lookup != null ? lookup.get() : lookUpAttributeTypeId(globalProperty);
+	}
+	
+	/**
+	 * Gets the ids of the Ficha Resumo, adult process and child process encounter types in order of
+	 * precedence for health facility resolution
+	 *
+	 * @return list of encounter type ids
+	 */
+	public List<Integer> getHealthFacilityEncounterTypeIds() {
+		return encounterTypeIds.get();
+	}
+	
+	private static Integer lookUpAttributeTypeId(String globalProperty) {
+		if (log.isDebugEnabled()) {
+			log.debug("Loading person attribute type associated to the global property named: " + globalProperty);
+		}
+		
+		String attTypeUuid = MpiUtils.getGlobalPropertyValue(globalProperty);
+		PersonAttributeType attributeType = Context.getPersonService().getPersonAttributeTypeByUuid(attTypeUuid);
+		if (attributeType == null) {
+			throw new APIException("No person attribute type found with uuid: " + attTypeUuid);
+		}
+		
+		return attributeType.getId();
+	}
+	
+	private static Map<String, String> parseIdSystemMap(String maps) {
+		Map<String, String> idSystemMap = new HashMap();
+		if (StringUtils.isNotBlank(maps)) {
+			for (String map : maps.trim().split(",")) {
+				String[] details = map.trim().split("\\^");
+				idSystemMap.put(details[0].trim(), details[1].trim());
+			}
+		}
+		
+		return idSystemMap;
+	}
+	
+	/**
+	 * The result of a metadata lookup, either the value or the error that occurred
+	 */
+	private static final class Lookup<T> {
+		
+		private final T value;
+		
+		private final RuntimeException error;
+		
+		private Lookup(T value, RuntimeException error) {
+			this.value = value;
+			this.error = error;
+		}
+		
+		private static <T> Lookup<T> of(Supplier<T> supplier) {
+			try {
+				return new Lookup(supplier.get(), null);
+			}
+			catch (RuntimeException e) {
+				return new Lookup(null, e);
+			}
+		}
+		
+		private T get() {
+			if (error != null) {
+				throw error;
+			}
+			
+			return value;
+		}
+		
+	}
+	
+}
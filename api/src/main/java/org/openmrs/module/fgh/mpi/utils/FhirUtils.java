@@ -1,6 +1,5 @@
 package org.openmrs.module.fgh.mpi.utils;
 
-import static org.openmrs.module.fgh.mpi.utils.MpiConstants.DATETIME_FORMATTER;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.FIELD_ADDRESS;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.FIELD_END;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.FIELD_EXTENSION;
@@ -15,12 +14,6 @@ import static org.openmrs.module.fgh.mpi.utils.MpiConstants.FIELD_USE;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.FIELD_VALUE;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.FIELD_VALUE_STR;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.FIELD_VALUE_UUID;
-import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HEALTH_FACILITY_SYSTEM;
-import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_ID_TYPE_SYSTEM_MAP;
-import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_MPI_SYSTEM;
-import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_SANTE_MESSAGE_HEADER_EVENT_URI;
-import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_SANTE_MESSAGE_HEADER_FOCUS_REFERENCE;
-import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_UUID_SYSTEM;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.HEALTH_CENTER_ATTRIB_TYPE_UUID;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.IDENTIFIER;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.NAME;
@@ -35,10 +28,11 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
-import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -48,14 +42,14 @@ import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import org.apache.commons.lang3.StringUtils;
 import org.openmrs.Location;
-import org.openmrs.Patient;
-import org.openmrs.PersonAttributeType;
 import org.openmrs.api.APIException;
 import org.openmrs.api.LocationService;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.fgh.mpi.integ.MpiContext;
-import org.openmrs.module.fgh.mpi.entity.MpiSystemType;
-import org.openmrs.module.fgh.mpi.api.MpiService;
+import org.openmrs.module.fgh.mpi.projection.HealthFacilityResolver;
+import org.openmrs.module.fgh.mpi.projection.LocationCache;
+import org.openmrs.module.fgh.mpi.projection.LocationCache.CachedLocation;
+import org.openmrs.module.fgh.mpi.projection.PatientProjection;
+import org.openmrs.module.fgh.mpi.refdata.ReferenceData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -66,86 +60,63 @@ public class FhirUtils {
 	
 	private static final Logger log = LoggerFactory.getLogger(FhirUtils.class);
 	
-	public final static String ATTR_TYPE_ID_PLACEHOLDER = "{ATTR_TYPE_ID}";
-	
-	protected final static String ID_QUERY = "SELECT i.identifier, t.uuid, i.uuid FROM patient_identifier i, "
-	        + "patient_identifier_type t WHERE i.identifier_type = t.patient_identifier_type_id AND i.patient_id " + "= "
-	        + ID_PLACEHOLDER + " AND i.voided = 0 ORDER BY preferred DESC";
-	
-	protected final static String NAME_QUERY = "SELECT prefix, given_name, middle_name, family_name, uuid FROM person_name "
-	        + "WHERE " + "person_id = " + ID_PLACEHOLDER + " AND voided = 0 ORDER BY preferred DESC";
+	//Unlike SimpleDateFormat, this is safe to share between the threads building patient resources
+	private static final DateTimeFormatter DATETIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssXXX");
 	
-	protected final static String ADDRESS_QUERY = "SELECT address1, address2, address3, address5, address6, "
-	        + "county_district, state_province, country, start_date, end_date, uuid FROM person_address WHERE "
-	        + "person_id = " + ID_PLACEHOLDER + " AND voided = 0 ORDER BY preferred DESC";
+	public final static String ATTR_TYPE_ID_PLACEHOLDER = "{ATTR_TYPE_ID}";
 	
 	protected final static String ATTR_QUERY = "SELECT value, uuid FROM person_attribute WHERE person_id = " + ID_PLACEHOLDER
 	        + " AND person_attribute_type_id = " + ATTR_TYPE_ID_PLACEHOLDER + " AND voided = 0";
 	
-	private final static Map<String, String> ATTR_TYPE_GP_ID_MAP = new HashMap(2);
-	
-	private static String openmrsUuidSystem;
-	
-	private static Map<String, String> idSystemMap;
-	
-	public static String santeMessageHeaderFocusReference;
-	
-	public static String santeMessageHeaderEventUri;
-	
 	/**
 	 * Builds a map of fields and values with patient details that can be serialized as a fhir json
-	 * message. This method looks up the up to date patient details from the DB bypassing any hibernate
-	 * caches which might be outdated since DB sync is operating outside of the OpenMRS API.
+	 * message. The patient details are read from the specified projection which is loaded from the DB
+	 * bypassing any hibernate caches which might be outdated since DB sync is operating outside of the
+	 * OpenMRS API.
 	 * 
-	 * @param id the patient id
-	 * @param patientVoided specifies if patient is voided or not
-	 * @param person a list of column values from the person table
+	 * @param patient the {@link PatientProjection} of the patient
 	 * @param mpiPatient a map of patient fields and values from the MPI
 	 * @return field and value map of the patient details
 	 */
-	public static Map<String, Object> buildPatient(String id, boolean patientVoided, List<Object> person,
-	        Map<String, Object> mpiPatient) {
+	public static Map<String, Object> buildPatient(PatientProjection patient, Map<String, Object> mpiPatient) {
 		
-		initializeCachesIfNecessary();
+		ReferenceData referenceData = ReferenceData.get();
 		Map<String, Object> fhirRes = new HashMap();
 		fhirRes.put(MpiConstants.FIELD_RESOURCE_TYPE, MpiConstants.PATIENT);
-		fhirRes.put(MpiConstants.FIELD_ACTIVE, !patientVoided);
+		fhirRes.put(MpiConstants.FIELD_ACTIVE, !patient.isPatientVoided());
 		
-		String fhirGender = convertToFhirGender(person.get(0) != null ? person.get(0).toString() : null);
+		String fhirGender = convertToFhirGender(patient.getGender());
 		fhirRes.put(MpiConstants.FIELD_GENDER, fhirGender);
 		
-		String birthDate = person.get(1) != null ? person.get(1).toString() : "";
+		String birthDate = patient.getBirthdate() != null ? patient.getBirthdate() : "";
 		fhirRes.put(MpiConstants.FIELD_BIRTHDATE, birthDate);
 		
-		String dead = person.get(2).toString();
-		if (Boolean.valueOf(dead)) {
-			String deathDateStr = person.get(3) != null ? person.get(3).toString() : null;
-			if (StringUtils.isBlank(deathDateStr)) {
-				fhirRes.put(MpiConstants.FIELD_DECEASED, Boolean.valueOf(dead));
+		if (patient.isDead()) {
+			if (patient.getDeathDate() == null) {
+				fhirRes.put(MpiConstants.FIELD_DECEASED, true);
 			} else {
-				Date deathDate = Timestamp.valueOf(deathDateStr);
-				fhirRes.put(MpiConstants.FIELD_DECEASED_DATE, DATETIME_FORMATTER.format(deathDate));
+				fhirRes.put(MpiConstants.FIELD_DECEASED_DATE, formatDateTime(patient.getDeathDate()));
 			}
 		} else {
-			fhirRes.put(MpiConstants.FIELD_DECEASED, Boolean.valueOf(dead));
+			fhirRes.put(MpiConstants.FIELD_DECEASED, false);
 			fhirRes.put(MpiConstants.FIELD_DECEASED_DATE, null);
 		}
 		
-		fhirRes.put(MpiConstants.FIELD_IDENTIFIER, getIds(id, person, mpiPatient));
+		fhirRes.put(MpiConstants.FIELD_IDENTIFIER, getIds(patient, mpiPatient, referenceData));
 		Integer existingNameCount = null;
 		if (mpiPatient != null && mpiPatient.get(FIELD_NAME) != null) {
 			existingNameCount = ((List) mpiPatient.get(FIELD_NAME)).size();
 		}
 		
-		fhirRes.put(FIELD_NAME, getNames(id, existingNameCount, true));
+		fhirRes.put(FIELD_NAME, getNames(patient.getNames(), existingNameCount, referenceData));
 		
 		Integer existingAddressCount = null;
 		if (mpiPatient != null && mpiPatient.get(FIELD_ADDRESS) != null) {
 			existingAddressCount = ((List) mpiPatient.get(FIELD_ADDRESS)).size();
 		}
 		
-		fhirRes.put(FIELD_ADDRESS, getAddresses(id, existingAddressCount, true));
-		fhirRes.put(FIELD_TELECOM, getPhones(id, mpiPatient));
+		fhirRes.put(FIELD_ADDRESS, getAddresses(patient.getAddresses(), existingAddressCount));
+		fhirRes.put(FIELD_TELECOM, getPhones(patient, mpiPatient));
 		
 		/*List<Map<String, Object>> heathCenter = getHealthCenter(id, mpiPatient);
 		if (heathCenter != null) {
@@ -158,39 +129,46 @@ public class FhirUtils {
 	/**
 	 * Generates and returns the patient identifier list
 	 * 
-	 * @param patientId id the patient id
-	 * @param person a list of column values from the person table
+	 * @param patient the {@link PatientProjection} of the patient
 	 * @param mpiPatient a map of patient fields and values from the MPI
+	 * @param referenceData the {@link ReferenceData} snapshot to use
 	 * @return list of the patient identifiers
 	 */
-	private static List<Map<String, Object>> getIds(String patientId, List<Object> person, Map<String, Object> mpiPatient) {
+	private static List<Map<String, Object>> getIds(PatientProjection patient, Map<String, Object> mpiPatient,
+	        ReferenceData referenceData) {
 		Map<String, Object> sourceIdRes = new HashMap();
-		sourceIdRes.put(FIELD_SYSTEM, openmrsUuidSystem);
-		sourceIdRes.put(FIELD_VALUE, person.get(4));
+		sourceIdRes.put(FIELD_SYSTEM, referenceData.getOpenmrsUuidSystem());
+		sourceIdRes.put(FIELD_VALUE, patient.getUuid());
 		List<Map<String, Object>> identifiers = new ArrayList();
 		identifiers.add(sourceIdRes);
 		
-		List<List<Object>> idRows = executeQuery(ID_QUERY.replace(ID_PLACEHOLDER, patientId));
-		idRows.stream().forEach(idRow -> {
+		patient.getIdentifiers().stream().forEach(idRow -> {
 			Map<String, Object> idResource = new HashMap();
 			idResource.put(FIELD_ID, idRow.get(2));
 			final String identifierTypeUuid = idRow.get(1).toString();
-			if (StringUtils.isBlank(idSystemMap.get(identifierTypeUuid))) {
+			final String idSystem = referenceData.getIdSystem(identifierTypeUuid);
+			if (StringUtils.isBlank(idSystem)) {
 				throw new APIException("No id system uri defined for identifier type with uuid: " + identifierTypeUuid);
 			}
 			
-			idResource.put(FIELD_SYSTEM, idSystemMap.get(identifierTypeUuid));
+			idResource.put(FIELD_SYSTEM, idSystem);
 			idResource.put(FIELD_VALUE, idRow.get(0));
 			identifiers.add(idResource);
 		});
 		
-		if (MpiContext.mpiContext.getMpiSystem().isSanteMPI()) {
-			Patient patient = Context.getPatientService().getPatient(Integer.valueOf(patientId));
-			Location location = Context.getService(MpiService.class).getHealthFacility(patient);
+		if (referenceData.isSanteMpi()) {
+			CachedLocation location;
+			if (patient.isHealthFacilityLoaded()) {
+				Integer locationId = patient.getHealthFacilityId();
+				location = locationId != null ? LocationCache.get(locationId) : null;
+			} else {
+				location = HealthFacilityResolver.getHealthFacility(patient.getPatientId());
+			}
+			
 			if (location != null) {
 				Map<String, Object> healthCenterIdResource = new HashMap();
 				healthCenterIdResource.put(FIELD_ID, location.getUuid());
-				healthCenterIdResource.put(FIELD_SYSTEM, MpiUtils.getGlobalPropertyValue(GP_HEALTH_FACILITY_SYSTEM));
+				healthCenterIdResource.put(FIELD_SYSTEM, referenceData.getHealthFacilitySystem());
 				healthCenterIdResource.put(FIELD_VALUE, location.getName());
 				identifiers.add(healthCenterIdResource);
 			}
@@ -212,15 +190,15 @@ public class FhirUtils {
 	/**
 	 * Generates and returns the person name list
 	 *
-	 * @param personId id the person id
+	 * @param nameRows the name rows of the person
 	 * @param existingNameCount the count of names of the person record fetched from the MPI
+	 * @param referenceData the {@link ReferenceData} snapshot to use
 	 * @return list of the person names
 	 */
-	private static List<Map<String, Object>> getNames(String personId, Integer existingNameCount, boolean getAll) {
-		final String query = getAll ? NAME_QUERY : NAME_QUERY + " LIMIT 1";
-		List<List<Object>> nameRows = executeQuery(query.replace(ID_PLACEHOLDER, personId));
+	private static List<Map<String, Object>> getNames(List<List<Object>> nameRows, Integer existingNameCount,
+	        ReferenceData referenceData) {
 		List<Map<String, Object>> names = new ArrayList();
-		String mpiSystem = MpiUtils.getGlobalPropertyValue(GP_MPI_SYSTEM);
+		final boolean isSanteMpi = referenceData.isSanteMpi();
 		
 		boolean foundPreferred = false;
 		for (List<Object> nameRow : nameRows) {
@@ -237,7 +215,7 @@ public class FhirUtils {
 				givenNames.add(nameRow.get(2));
 			}
 			
-			if (!StringUtils.isEmpty(mpiSystem) && mpiSystem.equals(MpiSystemType.SANTEMPI.toString())) {
+			if (isSanteMpi) {
 				
 				// Workaround because of treatments that sante has with given and middle names in match feature
 				List<String> convertedGivenNames = givenNames.stream().map(Object::toString).collect(Collectors.toList());
@@ -273,13 +251,11 @@ public class FhirUtils {
 	/**
 	 * Generates and returns the patient address list
 	 *
-	 * @param personId id the person id
+	 * @param addressRows the address rows of the person
 	 * @param existingAddressCount the count of addresses of the patient record fetched from the MPI
 	 * @return list of the person's addresses
 	 */
-	private static List<Map<String, Object>> getAddresses(String personId, Integer existingAddressCount, boolean getAll) {
-		final String query = getAll ? ADDRESS_QUERY : ADDRESS_QUERY + " LIMIT 1";
-		List<List<Object>> addressRows = executeQuery(query.replace(ID_PLACEHOLDER, personId));
+	private static List<Map<String, Object>> getAddresses(List<List<Object>> addressRows, Integer existingAddressCount) {
 		List<Map<String, Object>> addresses = new ArrayList();
 		for (List<Object> addressRow : addressRows) {
 			Map<String, Object> addressResource = new HashMap();
@@ -296,18 +272,8 @@ public class FhirUtils {
 			addressResource.put(MpiConstants.FIELD_COUNTRY, addressRow.get(7));
 			
 			Map<String, Object> period = new HashMap();
-			String startDate = null;
-			if (addressRow.get(8) != null && StringUtils.isNotBlank(addressRow.get(8).toString())) {
-				startDate = DATETIME_FORMATTER.format(Timestamp.valueOf(addressRow.get(8).toString()));
-			}
-			
-			String endDate = null;
-			if (addressRow.get(9) != null && StringUtils.isNotBlank(addressRow.get(9).toString())) {
-				endDate = DATETIME_FORMATTER.format(Timestamp.valueOf(addressRow.get(9).toString()));
-			}
-			
-			period.put(FIELD_START, startDate);
-			period.put(FIELD_END, endDate);
+			period.put(FIELD_START, formatDateTime((LocalDateTime) addressRow.get(8)));
+			period.put(FIELD_END, formatDateTime((LocalDateTime) addressRow.get(9)));
 			addressResource.put(FIELD_PERIOD, period);
 			
 			addresses.add(addressResource);
@@ -322,18 +288,26 @@ public class FhirUtils {
 		return addresses;
 	}
 	
+	/**
+	 * Formats the specified date time in the system time zone
+	 *
+	 * @param dateTime the date time to format
+	 * @return the formatted date time or null if the date time is null
+	 */
+	private static String formatDateTime(LocalDateTime dateTime) {
+		return dateTime != null ? dateTime.atZone(ZoneId.systemDefault()).format(DATETIME_FORMAT) : null;
+	}
+	
 	/**
 	 * Generates and returns the person phone number list
 	 *
-	 * @param personId id the person id
+	 * @param person the {@link PatientProjection} of the person
 	 * @param mpiPerson a map of person fields and values from the MPI
 	 * @return list of the person's telephones
 	 */
-	private static List<Map<String, Object>> getPhones(String personId, Map<String, Object> mpiPerson) {
-		List<List<Object>> mobilePhoneRows = getAttributes(personId, MpiConstants.GP_PHONE_MOBILE);
-		List<List<Object>> homePhoneRows = getAttributes(personId, MpiConstants.GP_PHONE_HOME);
+	private static List<Map<String, Object>> getPhones(PatientProjection person, Map<String, Object> mpiPerson) {
 		List<Map<String, Object>> phones = new ArrayList();
-		for (List<Object> phoneRow : mobilePhoneRows) {
+		for (List<Object> phoneRow : person.getMobilePhones()) {
 			Map<String, Object> phoneResource = new HashMap();
 			phoneResource.put(FIELD_ID, phoneRow.get(1));
 			phoneResource.put(FIELD_SYSTEM, MpiConstants.PHONE);
@@ -342,7 +316,7 @@ public class FhirUtils {
 			phones.add(phoneResource);
 		}
 		
-		for (List<Object> phoneRow : homePhoneRows) {
+		for (List<Object> phoneRow : person.getHomePhones()) {
 			Map<String, Object> phoneResource = new HashMap();
 			phoneResource.put(FIELD_ID, phoneRow.get(1));
 			phoneResource.put(FIELD_SYSTEM, MpiConstants.PHONE);
@@ -412,31 +386,14 @@ public class FhirUtils {
 	}
 	
 	/**
-	 * Gets person attributes for the patient with the specified id and the attribute type with a uuid
-	 * matching the value of the specified global property name.
+	 * Gets the id of the person attribute type with a uuid matching the value of the specified global
+	 * property name.
 	 * 
-	 * @param patientId the patient id
 	 * @param globalProperty the global property name
-	 * @return list of person attributes
+	 * @return the person attribute type id
 	 */
-	private static List<List<Object>> getAttributes(String patientId, String globalProperty) {
-		String attTypeId = ATTR_TYPE_GP_ID_MAP.get(globalProperty);
-		if (attTypeId == null) {
-			if (log.isDebugEnabled()) {
-				log.debug("Loading person attribute type associated to the global property named: " + globalProperty);
-			}
-			
-			String attTypeUuid = MpiUtils.getGlobalPropertyValue(globalProperty);
-			PersonAttributeType attributeType = Context.getPersonService().getPersonAttributeTypeByUuid(attTypeUuid);
-			if (attributeType == null) {
-				throw new APIException("No person attribute type found with uuid: " + attTypeUuid);
-			}
-			
-			attTypeId = attributeType.getId().toString();
-			ATTR_TYPE_GP_ID_MAP.put(globalProperty, attTypeId);
-		}
-		
-		return executeQuery(ATTR_QUERY.replace(ID_PLACEHOLDER, patientId).replace(ATTR_TYPE_ID_PLACEHOLDER, attTypeId));
+	public static Integer getAttributeTypeId(String globalProperty) {
+		return ReferenceData.get().getAttributeTypeId(globalProperty);
 	}
 	
 	/**
@@ -479,47 +436,20 @@ public class FhirUtils {
 		return null;
 	}
 	
-	/**
-	 * Loads and caches the necessary global property values
-	 */
-	protected synchronized static void initializeCachesIfNecessary() {
-		if (openmrsUuidSystem == null) {
-			openmrsUuidSystem = MpiUtils.getGlobalPropertyValue(GP_UUID_SYSTEM);
-		}
-		
-		if (idSystemMap == null) {
-			idSystemMap = new HashMap();
-			String maps = MpiUtils.getGlobalPropertyValue(GP_ID_TYPE_SYSTEM_MAP);
-			if (StringUtils.isNotBlank(maps)) {
-				for (String map : maps.trim().split(",")) {
-					String[] details = map.trim().split("\\^");
-					idSystemMap.put(details[0].trim(), details[1].trim());
-				}
-			}
-		}
-		
-		if (santeMessageHeaderEventUri == null) {
-			santeMessageHeaderEventUri = MpiUtils.getGlobalPropertyValue(GP_SANTE_MESSAGE_HEADER_EVENT_URI);
-		}
-		
-		if (santeMessageHeaderFocusReference == null) {
-			santeMessageHeaderFocusReference = MpiUtils.getGlobalPropertyValue(GP_SANTE_MESSAGE_HEADER_FOCUS_REFERENCE);
-		}
-	}
-	
 	/**
 	 * Generates a fhir map for Message Header needed by santeMPI when submit a bundle
 	 * 
 	 * @return a map containing the message header objects
 	 */
 	public static Map<String, Object> generateMessageHeader() {
+		ReferenceData referenceData = ReferenceData.get();
 		Map<String, Object> messageHeader = new HashMap<String, Object>();
 		
 		List<Map<String, Object>> focus = new ArrayList<Map<String, Object>>();
-		focus.add(fastCreateMap("reference", santeMessageHeaderFocusReference));
+		focus.add(fastCreateMap("reference", referenceData.getSanteMessageHeaderFocusReference()));
 		
 		Map<String, Object> resourceMap = fastCreateMap("resourceType", "MessageHeader", "id", "1", "eventUri",
-		    santeMessageHeaderEventUri, "focus", focus);
+		    referenceData.getSanteMessageHeaderEventUri(), "focus", focus);
 		
 		messageHeader.put("resource", resourceMap);
 		
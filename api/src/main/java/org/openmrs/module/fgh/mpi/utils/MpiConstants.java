@@ -10,12 +10,18 @@ public class MpiConstants {
 	public final static String MODULE_ID = "mpi";
 	
 	public final static String[] WATCHED_TABLES = new String[] { "person", "patient", "person_name", "person_address",
-	        "patient_identifier", "person_attribute", "encounter" };
+	        "patient_identifier", "person_attribute", "encounter", "location" };
 	
 	public final static String GP_INITIAL = MODULE_ID + ".initial.loading";
 	
 	public final static String PATIENT_ID_OFFSET_FILE = ".patientIdOffset.txt";
 	
+	public final static String JOURNAL_DIR = "journal";
+	
+	public final static String PATIENT_FILTER_FILE = ".mpiPatientFilter";
+	
+	public final static String INITIAL_LOADING_DONE_FILE = ".initialLoadingDone";
+	
 	public final static String GP_MPI_BASE_URL = MODULE_ID + ".server.base.url";
 	
 	public final static String GP_KEYSTORE_PATH = MODULE_ID + ".keystore.path";
@@ -34,6 +40,74 @@ public class MpiConstants {
 	
 	public final static String GP_INITIAL_BATCH_SIZE = MODULE_ID + ".initial.loading.batch.size";
 	
+	public final static String GP_INITIAL_THREAD_COUNT = MODULE_ID + ".initial.loading.thread.count";
+	
+	public final static String GP_INITIAL_ENGINE = MODULE_ID + ".initial.loading.engine";
+	
+	public final static String GP_INITIAL_PAGE_SIZE = MODULE_ID + ".initial.loading.page.size";
+	
+	public final static String INITIAL_ENGINE_JDBC = "jdbc";
+	
+	public final static String GP_INCREMENTAL_BATCH_SIZE = MODULE_ID + ".incremental.batch.size";
+	
+	public final static String GP_INCREMENTAL_BATCH_MAX_WAIT = MODULE_ID + ".incremental.batch.max.wait";
+	
+	public final static String GP_INCREMENTAL_COALESCING_WINDOW = MODULE_ID + ".incremental.coalescing.window";
+	
+	public final static String GP_INCREMENTAL_LANE_COUNT = MODULE_ID + ".incremental.lane.count";
+	
+	public final static String GP_INCREMENTAL_JOURNAL_ENABLED = MODULE_ID + ".incremental.journal.enabled";
+	
+	public final static String GP_HTTP_TRANSPORT = MODULE_ID + ".http.transport";
+	
+	public final static String GP_HTTP_POOL_MAX_TOTAL = MODULE_ID + ".http.pool.max.total";
+	
+	public final static String GP_HTTP_POOL_MAX_PER_ROUTE = MODULE_ID + ".http.pool.max.per.route";
+	
+	public final static String GP_HTTP_POOL_IDLE_TIMEOUT = MODULE_ID + ".http.pool.idle.timeout";
+	
+	public final static String GP_HTTP_POOL_VALIDATE_AFTER_INACTIVITY = MODULE_ID + ".http.pool.validate.after.inactivity";
+	
+	public final static String GP_HTTP_ASYNC_THREAD_COUNT = MODULE_ID + ".http.async.thread.count";
+	
+	public final static String GP_HTTP_CONNECT_TIMEOUT = MODULE_ID + ".http.connect.timeout";
+	
+	public final static String GP_HTTP_RETRY_MAX_ATTEMPTS = MODULE_ID + ".http.retry.max.attempts";
+	
+	public final static String GP_HTTP_RETRY_INITIAL_DELAY = MODULE_ID + ".http.retry.initial.delay";
+	
+	public final static String GP_HTTP_RETRY_MAX_DELAY = MODULE_ID + ".http.retry.max.delay";
+	
+	public final static String GP_HTTP_CONCURRENCY_INITIAL_LIMIT = MODULE_ID + ".http.concurrency.initial.limit";
+	
+	public final static String GP_HTTP_CONCURRENCY_MAX_LIMIT = MODULE_ID + ".http.concurrency.max.limit";
+	
+	public final static String GP_HTTP_RATE_LIMIT = MODULE_ID + ".http.rate.limit";
+	
+	public final static String GP_PIX_BATCH_SIZE = MODULE_ID + ".pix.batch.size";
+	
+	public final static String GP_PATIENT_CACHE_MAX_SIZE = MODULE_ID + ".patient.cache.max.size";
+	
+	public final static String GP_PATIENT_CACHE_TTL = MODULE_ID + ".patient.cache.ttl";
+	
+	public final static String GP_PATIENT_FILTER_EXPECTED_SIZE = MODULE_ID + ".patient.filter.expected.size";
+	
+	public final static String GP_CONDITIONAL_UPDATE_SYSTEMS = MODULE_ID + ".conditional.update.systems";
+	
+	public final static String GP_CIRCUIT_BREAKER_WINDOW_SIZE = MODULE_ID + ".circuit.breaker.window.size";
+	
+	public final static String GP_CIRCUIT_BREAKER_MINIMUM_CALLS = MODULE_ID + ".circuit.breaker.minimum.calls";
+	
+	public final static String GP_CIRCUIT_BREAKER_FAILURE_RATE = MODULE_ID + ".circuit.breaker.failure.rate.threshold";
+	
+	public final static String GP_CIRCUIT_BREAKER_SLOW_CALL_DURATION = MODULE_ID + ".circuit.breaker.slow.call.duration";
+	
+	public final static String GP_CIRCUIT_BREAKER_OPEN_DURATION = MODULE_ID + ".circuit.breaker.open.duration";
+	
+	public final static String HTTP_TRANSPORT_POOLED = "POOLED";
+	
+	public final static String HTTP_TRANSPORT_HTTP2 = "HTTP2";
+	
 	public final static String OPENMRS_UUID = "OpenMRS Internal UUID";
 	
 	public final static String HEALTH_CENTER_ATTRIB_TYPE_UUID = "8d87236c-c2cc-11de-8d13-0010c6dffd0f";
@@ -42,6 +116,10 @@ public class MpiConstants {
 	
 	public final static String FIELD_ID = "id";
 	
+	public final static String FIELD_META = "meta";
+	
+	public final static String FIELD_VERSION_ID = "versionId";
+	
 	public final static String FIELD_IDENTIFIER = "identifier";
 	
 	public final static String FIELD_ACTIVE = "active";
@@ -144,6 +222,8 @@ public class MpiConstants {
 	
 	public final static String GP_SANTE_CLIENT_SECRET = MODULE_ID + ".sante.db.client.secret";
 	
+	public final static String GP_SANTE_TOKEN_REFRESH_MARGIN = MODULE_ID + ".sante.token.refresh.margin";
+	
 	public final static String GP_MPI_SYSTEM = MODULE_ID + ".system";
 	
 	public final static String GP_MPI_APP_CONTENT_TYPE = MODULE_ID + ".application.content.type";
@@ -1,5 +1,6 @@
 package org.openmrs.module.fgh.mpi.utils;
 
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.INITIAL_LOADING_DONE_FILE;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.MODULE_ID;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.PATIENT_ID_OFFSET_FILE;
 import static org.openmrs.util.OpenmrsUtil.getApplicationDataDirectory;
@@ -14,7 +15,6 @@ import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
@@ -127,6 +127,40 @@ public class MpiUtils {
 		}
 	}
 	
+	/**
+	 * Checks if the module has ever completed or skipped initial loading i.e. patients may have been
+	 * submitted to the MPI by a previous run
+	 *
+	 * @return true if initial loading was done otherwise false
+	 */
+	public static boolean isInitialLoadingDone() {
+		return getInitialLoadingDoneFile().exists();
+	}
+	
+	/**
+	 * Records that initial loading was completed or skipped, the marker is never removed since the
+	 * patients submitted since then remain in the MPI
+	 */
+	public static void markInitialLoadingDone() {
+		File file = getInitialLoadingDoneFile();
+		if (file.exists()) {
+			return;
+		}
+		
+		try {
+			FileUtils.touch(file);
+			
+			log.info("Recorded that initial loading was done");
+		}
+		catch (IOException e) {
+			log.error("Failed to record that initial loading was done", e);
+		}
+	}
+	
+	private static File getInitialLoadingDoneFile() {
+		return Paths.get(getApplicationDataDirectory(), MODULE_ID, INITIAL_LOADING_DONE_FILE).toFile();
+	}
+	
 	/**
 	 * Executes the specified query
 	 * 
@@ -135,27 +169,81 @@ public class MpiUtils {
 	 * @throws SQLException
 	 */
 	public static List<List<Object>> executeQuery(String query) {
+		return executeQuery(query, new Object[0]);
+	}
+	
+	/**
+	 * Executes the specified parameterized query
+	 *
+	 * @param query the query to execute
+	 * @param params the values of the query parameters in order
+	 * @return results
+	 */
+	public static List<List<Object>> executeQuery(String query, Object... params) {
 		List<List<Object>> results = new ArrayList();
-		
-		try (Connection conn = getDataSource().getConnection(); PreparedStatement stmt = conn.prepareStatement(query)) {
+		forEachRow(query, row -> results.add(row.getValues(0, row.getColumnCount())), params);
+		return results;
+	}
+	
+	/**
+	 * Executes the specified parameterized query and passes each row of the result to the specified
+	 * handler as it is read instead of materializing the entire result, with MySQL the driver is asked
+	 * to stream the rows so the handler should be quick since the connection is held until all rows are
+	 * read.
+	 *
+	 * @param query the query to execute
+	 * @param handler the {@link RowHandler} to invoke for each row
+	 * @param params the values of the query parameters in order
+	 */
+	public static void forEachRow(String query, RowHandler handler, Object... params) {
+		try (Connection conn = getDataSource().getConnection();
+		        PreparedStatement stmt = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY,
+		            ResultSet.CONCUR_READ_ONLY)) {
+			if (isMySql(conn)) {
+				//With MySQL, this is the only fetch size that streams rows instead of reading the entire result
+				stmt.setFetchSize(Integer.MIN_VALUE);
+			}
+			
+			setParameters(stmt, params);
 			try (ResultSet resultSet = stmt.executeQuery()) {
-				ResultSetMetaData rmd = resultSet.getMetaData();
-				int columnCount = rmd.getColumnCount();
-				
+				Row row = Row.forResultSet(resultSet);
 				while (resultSet.next()) {
-					List<Object> rowObjects = new ArrayList<>();
-					for (int x = 1; x <= columnCount; x++) {
-						rowObjects.add(resultSet.getObject(x));
-					}
-					results.add(rowObjects);
+					row.load(resultSet);
+					handler.handle(row);
 				}
 			}
 		}
 		catch (SQLException e) {
 			throw new DAOException(e);
 		}
-		
-		return results;
+	}
+	
+	/**
+	 * Executes the specified parameterized insert, update or delete statement
+	 *
+	 * @param statement the statement to execute
+	 * @param params the values of the statement parameters in order
+	 * @return the count of affected rows
+	 */
+	public static int executeUpdate(String statement, Object... params) {
+		try (Connection conn = getDataSource().getConnection(); PreparedStatement stmt = conn.prepareStatement(statement)) {
+			setParameters(stmt, params);
+			return stmt.executeUpdate();
+		}
+		catch (SQLException e) {
+			throw new DAOException(e);
+		}
+	}
+	
+	private static boolean isMySql(Connection conn) throws SQLException {
+		String product = conn.getMetaData().getDatabaseProductName();
+		return product != null && (product.toLowerCase().contains("mysql") || product.toLowerCase().contains("mariadb"));
+	}
+	
+	private static void setParameters(PreparedStatement stmt, Object... params) throws SQLException {
+		for (int i = 0; i < params.length; i++) {
+			stmt.setObject(i + 1, params[i]);
+		}
 	}
 	
 	/**
@@ -173,6 +261,27 @@ public class MpiUtils {
 		return value;
 	}
 	
+	/**
+	 * Retrieves the value of a global property with the specified name as an integer
+	 *
+	 * @param gpName the global property name
+	 * @param defaultValue the value to return if the global property has no value
+	 * @return the global property value
+	 */
+	public static int getGlobalPropertyAsInt(String gpName, int defaultValue) {
+		String value = Context.getAdministrationService().getGlobalProperty(gpName);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+		
+		try {
+			return Integer.valueOf(value.trim());
+		}
+		catch (NumberFormatException e) {
+			throw new APIException("The value of the global property named " + gpName + " must be an integer", e);
+		}
+	}
+	
 	/**
 	 * Gets the encounter type matching the uuid defined as the value of the specified global property
 	 * name.
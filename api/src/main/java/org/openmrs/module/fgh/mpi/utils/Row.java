@@ -0,0 +1,248 @@
+package org.openmrs.module.fgh.mpi.utils;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openmrs.api.APIException;
+
+/**
+ * A row of a query result with typed access to the column values by index or label, the same
+ * instance is reused for all the rows of a result set passed to a {@link RowHandler} so it must not
+ * be kept beyond the call to the handler, values that need to outlive the call should be copied
+ * with {@link #getValues(int, int)}. Column indices are zero based.
+ */
+public final class Row {
+	
+	private final Map<String, Integer> columnIndices;
+	
+	private final Object[] values;
+	
+	/**
+	 * @param columnLabels the column labels in order
+	 */
+	public Row(List<String> columnLabels) {
+		Map<String, Integer> indices = new HashMap(columnLabels.size());
+		for (int i = 0; i < columnLabels.size(); i++) {
+			indices.putIfAbsent(columnLabels.get(i).toLowerCase(), i);
+		}
+		
+		columnIndices = Collections.unmodifiableMap(indices);
+		values = new Object[columnLabels.size()];
+	}
+	
+	/**
+	 * Creates a row for the columns of the specified result set
+	 *
+	 * @param resultSet the result set
+	 * @return the row
+	 * @throws SQLException
+	 */
+	protected static Row forResultSet(ResultSet resultSet) throws SQLException {
+		int columnCount = resultSet.getMetaData().getColumnCount();
+		List<String> columnLabels = new ArrayList(columnCount);
+		for (int i = 1; i <= columnCount; i++) {
+			columnLabels.add(resultSet.getMetaData().getColumnLabel(i));
+		}
+		
+		return new Row(columnLabels);
+	}
+	
+	/**
+	 * Replaces the values of this row with those of the current row of the specified result set
+	 *
+	 * @param resultSet the result set
+	 * @throws SQLException
+	 */
+	protected void load(ResultSet resultSet) throws SQLException {
+		for (int i = 0; i < values.length; i++) {
+			values[i] = resultSet.getObject(i + 1);
+		}
+	}
+	
+	/**
+	 * Replaces the values of this row with the specified values
+	 *
+	 * @param newValues the column values in order
+	 * @return this row
+	 */
+	public Row setValues(Object... newValues) {
+		if (newValues.length != values.length) {
+			throw new APIException("Expected " + values.length + " column values but found " + newValues.length);
+		}
+		
+		System.arraycopy(newValues, 0, values, 0, values.length);
+		return this;
+	}
+	
+	public int getColumnCount() {
+		return values.length;
+	}
+	
+	public Object getObject(int index) {
+		return values[index];
+	}
+	
+	public Object getObject(String label) {
+		return values[getIndex(label)];
+	}
+	
+	public boolean isNull(int index) {
+		return values[index] == null;
+	}
+	
+	public String getString(int index) {
+		Object value = values[index];
+		return value != null ? value.toString() : null;
+	}
+	
+	public String getString(String label) {
+		return getString(getIndex(label));
+	}
+	
+	/**
+	 * Gets the value of the column at the specified index as an int
+	 *
+	 * @param index the column index
+	 * @return the value or 0 if it is null
+	 */
+	public int getInt(int index) {
+		Object value = values[index];
+		if (value == null) {
+			return 0;
+		}
+		
+		return value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString().trim());
+	}
+	
+	public int getInt(String label) {
+		return getInt(getIndex(label));
+	}
+	
+	/**
+	 * Gets the value of the column at the specified index as an Integer
+	 *
+	 * @param index the column index
+	 * @return the value or null if it is null
+	 */
+	public Integer getInteger(int index) {
+		return values[index] != null ? getInt(index) : null;
+	}
+	
+	public Integer getInteger(String label) {
+		return getInteger(getIndex(label));
+	}
+	
+	/**
+	 * Gets the value of the column at the specified index as a boolean, numeric values other than 0
+	 * and the strings 1 and true are considered true.
+	 *
+	 * @param index the column index
+	 * @return the value or false if it is null
+	 */
+	public boolean getBoolean(int index) {
+		Object value = values[index];
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		} else if (value instanceof Number) {
+			return ((Number) value).intValue() != 0;
+		}
+		
+		return value != null && ("1".equals(value.toString()) || Boolean.parseBoolean(value.toString()));
+	}
+	
+	public boolean getBoolean(String label) {
+		return getBoolean(getIndex(label));
+	}
+	
+	/**
+	 * Gets the value of the column at the specified index as a LocalDateTime, string values are
+	 * expected to be in the JDBC timestamp escape format i.e. yyyy-mm-dd hh:mm:ss[.f...]
+	 *
+	 * @param index the column index
+	 * @return the value or null if it is null or blank
+	 */
+	public LocalDateTime getLocalDateTime(int index) {
+		Object value = values[index];
+		if (value == null || value instanceof LocalDateTime) {
+			return (LocalDateTime) value;
+		} else if (value instanceof Timestamp) {
+			return ((Timestamp) value).toLocalDateTime();
+		} else if (value instanceof java.sql.Date) {
+			return ((java.sql.Date) value).toLocalDate().atStartOfDay();
+		} else if (value instanceof Date) {
+			return LocalDateTime.ofInstant(((Date) value).toInstant(), ZoneId.systemDefault());
+		} else if (value instanceof LocalDate) {
+			return ((LocalDate) value).atStartOfDay();
+		}
+		
+		String text = value.toString().trim();
+		return !text.isEmpty() ? Timestamp.valueOf(text).toLocalDateTime() : null;
+	}
+	
+	public LocalDateTime getLocalDateTime(String label) {
+		return getLocalDateTime(getIndex(label));
+	}
+	
+	/**
+	 * Gets the value of the column at the specified index as a LocalDate, string values are expected
+	 * to start with a date in the format yyyy-mm-dd
+	 *
+	 * @param index the column index
+	 * @return the value or null if it is null or blank
+	 */
+	public LocalDate getLocalDate(int index) {
+		Object value = values[index];
+		if (value == null || value instanceof LocalDate) {
+			return (LocalDate) value;
+		} else if (value instanceof java.sql.Date) {
+			return ((java.sql.Date) value).toLocalDate();
+		} else if (value instanceof String) {
+			String text = value.toString().trim();
+			return !text.isEmpty() ? LocalDate.parse(text.substring(0, Math.min(10, text.length()))) : null;
+		}
+		
+		LocalDateTime dateTime = getLocalDateTime(index);
+		return dateTime != null ? dateTime.toLocalDate() : null;
+	}
+	
+	public LocalDate getLocalDate(String label) {
+		return getLocalDate(getIndex(label));
+	}
+	
+	/**
+	 * Copies the values of the columns in the specified range
+	 *
+	 * @param fromIndex the index of the first column, inclusive
+	 * @param toIndex the index of the last column, exclusive
+	 * @return a new list of the values
+	 */
+	public List<Object> getValues(int fromIndex, int toIndex) {
+		return new ArrayList(Arrays.asList(values).subList(fromIndex, toIndex));
+	}
+	
+	private int getIndex(String label) {
+		Integer index = columnIndices.get(label.toLowerCase());
+		if (index == null) {
+			throw new APIException("No column found with label: " + label);
+		}
+		
+		return index;
+	}
+	
+	@Override
+	public String toString() {
+		return Arrays.toString(values);
+	}
+	
+}
@@ -0,0 +1,18 @@
+package org.openmrs.module.fgh.mpi.utils;
+
+/**
+ * Callback invoked for each row of a query result streamed by
+ * {@link MpiUtils#forEachRow(String, RowHandler, Object...)}
+ */
+@FunctionalInterface
+public interface RowHandler {
+	
+	/**
+	 * Handles the specified row, the row is reused for the next row of the result so it must not be
+	 * kept beyond this call
+	 *
+	 * @param row the current row
+	 */
+	void handle(Row row);
+	
+}
@@ -0,0 +1,98 @@
+package org.openmrs.module.fgh.mpi;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.module.fgh.mpi.ledger.ContentHashLedger;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.core.classloader.annotations.SuppressStaticInitializationFor;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(MpiUtils.class)
+@SuppressStaticInitializationFor("org.openmrs.module.fgh.mpi.utils.MpiUtils")
+public class ContentHashLedgerTest {
+	
+	@Before
+	public void setup() {
+		PowerMockito.mockStatic(MpiUtils.class);
+	}
+	
+	@Test
+	public void hash_shouldIgnoreTheFieldOrderingAndNullPaddingEntries() {
+		Map<String, Object> resource = new LinkedHashMap();
+		resource.put("resourceType", "Patient");
+		resource.put("gender", "male");
+		resource.put("identifier", asList(singletonMap("value", "uuid"), null, null));
+		resource.put("deceasedDateTime", null);
+		Map<String, Object> reordered = new LinkedHashMap();
+		reordered.put("identifier", asList(null, singletonMap("value", "uuid")));
+		reordered.put("gender", "male");
+		reordered.put("resourceType", "Patient");
+		
+		assertEquals(ContentHashLedger.hash(resource), ContentHashLedger.hash(reordered));
+		assertEquals(64, ContentHashLedger.hash(resource).length());
+	}
+	
+	@Test
+	public void hash_shouldChangeIfAFieldValueChanges() {
+		Map<String, Object> resource = new HashMap();
+		resource.put("gender", "male");
+		Map<String, Object> changed = new HashMap();
+		changed.put("gender", "female");
+		
+		assertNotEquals(ContentHashLedger.hash(resource), ContentHashLedger.hash(changed));
+	}
+	
+	@Test
+	public void isUnchanged_shouldReturnTrueAndCountTheSuppressionIfTheHashMatches() {
+		final String hash = ContentHashLedger.hash(singletonMap("gender", "male"));
+		when(MpiUtils.executeQuery(anyString(), eq("patient-uuid"))).thenReturn(singletonList(singletonList(hash)));
+		long count = ContentHashLedger.getSuppressedCount();
+		
+		assertTrue(ContentHashLedger.isUnchanged("patient-uuid", hash));
+		assertEquals(count + 1, ContentHashLedger.getSuppressedCount());
+	}
+	
+	@Test
+	public void isUnchanged_shouldReturnFalseIfThereIsNoHashForThePatient() {
+		long count = ContentHashLedger.getSuppressedCount();
+		
+		assertFalse(ContentHashLedger.isUnchanged("patient-uuid", "hash"));
+		assertEquals(count, ContentHashLedger.getSuppressedCount());
+	}
+	
+	@Test
+	public void saveAll_shouldUpsertTheHashesWithASingleStatement() {
+		Map<String, String> uuidAndHashes = new LinkedHashMap();
+		uuidAndHashes.put("uuid-1", "hash-1");
+		uuidAndHashes.put("uuid-2", "hash-2");
+		
+		ContentHashLedger.saveAll(uuidAndHashes);
+		
+		PowerMockito.verifyStatic(MpiUtils.class);
+		MpiUtils.executeUpdate(eq("INSERT INTO mpi_patient_content_hash (patient_uuid, content_hash, date_submitted) "
+		        + "VALUES (?, ?, ?), (?, ?, ?) ON DUPLICATE KEY UPDATE content_hash = VALUES(content_hash), "
+		        + "date_submitted = VALUES(date_submitted)"),
+		    eq("uuid-1"), eq("hash-1"), any(), eq("uuid-2"), eq("hash-2"), any());
+	}
+	
+}
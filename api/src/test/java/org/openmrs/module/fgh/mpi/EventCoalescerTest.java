@@ -0,0 +1,74 @@
+package org.openmrs.module.fgh.mpi;
+
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.openmrs.module.debezium.DatabaseOperation.CREATE;
+import static org.openmrs.module.debezium.DatabaseOperation.DELETE;
+import static org.openmrs.module.debezium.DatabaseOperation.UPDATE;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.openmrs.module.debezium.DatabaseEvent;
+import org.openmrs.module.debezium.DatabaseOperation;
+import org.openmrs.module.fgh.mpi.processor.EventCoalescer;
+import org.openmrs.module.fgh.mpi.processor.EventCoalescer.PendingEvent;
+
+public class EventCoalescerTest {
+	
+	private DatabaseEvent createEvent(String table, DatabaseOperation op) {
+		return new DatabaseEvent(1, table, op, null, singletonMap("uuid", "person-uuid"), null);
+	}
+	
+	@Test
+	public void add_shouldKeepOnlyTheMostRecentEventForTheSamePatient() {
+		EventCoalescer coalescer = new EventCoalescer(0);
+		DatabaseEvent patientEvent = createEvent("patient", CREATE);
+		DatabaseEvent nameEvent = createEvent("person_name", CREATE);
+		DatabaseEvent idEvent = createEvent("patient_identifier", CREATE);
+		coalescer.add(1, patientEvent);
+		coalescer.add(1, nameEvent);
+		coalescer.add(1, idEvent);
+		
+		List<PendingEvent> due = coalescer.drainDue(System.currentTimeMillis());
+		
+		assertEquals(1, due.size());
+		assertEquals(1, due.get(0).getPatientId().intValue());
+		assertEquals(idEvent, due.get(0).getEvent());
+		assertEquals(2, coalescer.getCoalescedCount());
+		assertEquals(0, coalescer.size());
+	}
+	
+	@Test
+	public void add_shouldNotReplaceAPersonDeleteEvent() {
+		EventCoalescer coalescer = new EventCoalescer(0);
+		DatabaseEvent deleteEvent = createEvent("person", DELETE);
+		coalescer.add(1, deleteEvent);
+		coalescer.add(1, createEvent("person_name", DELETE));
+		
+		assertEquals(deleteEvent, coalescer.drainDue(System.currentTimeMillis()).get(0).getEvent());
+	}
+	
+	@Test
+	public void add_shouldNotReplaceAnEventWithAPersonInsertEvent() {
+		EventCoalescer coalescer = new EventCoalescer(0);
+		DatabaseEvent nameEvent = createEvent("person_name", UPDATE);
+		coalescer.add(1, nameEvent);
+		coalescer.add(1, createEvent("person", CREATE));
+		
+		assertEquals(nameEvent, coalescer.drainDue(System.currentTimeMillis()).get(0).getEvent());
+	}
+	
+	@Test
+	public void drainDue_shouldNotReturnEventsThatHaveNotBeenHeldForTheWindow() {
+		EventCoalescer coalescer = new EventCoalescer(60000);
+		coalescer.add(1, createEvent("patient", UPDATE));
+		coalescer.add(2, createEvent("patient", UPDATE));
+		
+		assertTrue(coalescer.drainDue(System.currentTimeMillis()).isEmpty());
+		assertEquals(2, coalescer.size());
+		assertEquals(2, coalescer.drainDue(System.currentTimeMillis() + 60000).size());
+	}
+	
+}
@@ -0,0 +1,96 @@
+package org.openmrs.module.fgh.mpi;
+
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.openmrs.module.debezium.DatabaseOperation.DELETE;
+import static org.openmrs.module.debezium.DatabaseOperation.UPDATE;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openmrs.module.debezium.DatabaseEvent;
+import org.openmrs.module.fgh.mpi.journal.EventJournal;
+import org.openmrs.module.fgh.mpi.journal.JournalEntry;
+
+public class EventJournalTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private JournalEntry createEntry(Integer patientId) {
+		return new JournalEntry(patientId, new DatabaseEvent(patientId, "patient", UPDATE, null, null, null));
+	}
+	
+	@Test
+	public void read_shouldReturnTheEntriesAfterTheLastCommit() {
+		EventJournal journal = new EventJournal(folder.getRoot(), 1024);
+		journal.append(createEntry(1));
+		journal.append(createEntry(2));
+		
+		EventJournal.Batch batch = journal.read(10);
+		assertEquals(2, batch.getEntries().size());
+		assertEquals(1, batch.getEntries().get(0).getPatientId().intValue());
+		assertEquals(2, batch.getEntries().get(1).getPatientId().intValue());
+		journal.commit(batch);
+		assertFalse(journal.hasPendingEntries());
+		
+		journal.append(createEntry(3));
+		List<JournalEntry> entries = journal.read(10).getEntries();
+		assertEquals(1, entries.size());
+		assertEquals(3, entries.get(0).getPatientId().intValue());
+	}
+	
+	@Test
+	public void read_shouldReturnUncommittedEntriesAfterTheJournalIsReopened() {
+		File dir = folder.getRoot();
+		EventJournal journal = new EventJournal(dir, 1024);
+		journal.append(createEntry(1));
+		journal.commit(journal.read(10));
+		journal.append(createEntry(2));
+		journal.read(10);
+		
+		journal = new EventJournal(dir, 1024);
+		assertTrue(journal.hasPendingEntries());
+		List<JournalEntry> entries = journal.read(10).getEntries();
+		assertEquals(1, entries.size());
+		assertEquals(2, entries.get(0).getPatientId().intValue());
+	}
+	
+	@Test
+	public void read_shouldReadEntriesAcrossSegments() {
+		EventJournal journal = new EventJournal(folder.getRoot(), 256);
+		final int count = 20;
+		for (int i = 1; i <= count; i++) {
+			journal.append(createEntry(i));
+		}
+		
+		EventJournal.Batch batch = journal.read(100);
+		assertEquals(count, batch.getEntries().size());
+		for (int i = 1; i <= count; i++) {
+			assertEquals(i, batch.getEntries().get(i - 1).getPatientId().intValue());
+		}
+		
+		journal.commit(batch);
+		journal.append(createEntry(21));
+		assertEquals(21, journal.read(100).getEntries().get(0).getPatientId().intValue());
+	}
+	
+	@Test
+	public void toEvent_shouldRestoreTheEventFields() {
+		DatabaseEvent event = new DatabaseEvent(5, "person", DELETE, null, singletonMap("uuid", "person-uuid"), null);
+		EventJournal journal = new EventJournal(folder.getRoot(), 1024);
+		journal.append(new JournalEntry(5, event));
+		
+		DatabaseEvent restored = journal.read(1).getEntries().get(0).toEvent();
+		assertEquals("5", restored.getPrimaryKeyId().toString());
+		assertEquals("person", restored.getTableName());
+		assertEquals(DELETE, restored.getOperation());
+		assertEquals("person-uuid", restored.getPreviousState().get("uuid"));
+	}
+	
+}
@@ -0,0 +1,44 @@
+package org.openmrs.module.fgh.mpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.openmrs.module.fgh.mpi.processor.EventWatermark;
+
+public class EventWatermarkTest {
+	
+	@Test
+	public void getLowWatermark_shouldReturnTheOldestIncompleteEvent() {
+		EventWatermark watermark = new EventWatermark();
+		long first = watermark.register(1);
+		long second = watermark.register(2);
+		long third = watermark.register(1);
+		assertEquals(first, watermark.getLowWatermark());
+		
+		watermark.complete(third);
+		assertEquals(first, watermark.getLowWatermark());
+		
+		watermark.complete(first);
+		assertEquals(second, watermark.getLowWatermark());
+		
+		watermark.complete(second);
+		assertEquals(second, watermark.getLowWatermark());
+		
+		watermark.complete(second);
+		assertEquals(third + 1, watermark.getLowWatermark());
+		assertEquals(0, watermark.getInFlightCount());
+	}
+	
+	@Test
+	public void awaitCapacity_shouldReturnFalseIfTheMaxIsStillReachedAfterTheTimeout() throws Exception {
+		EventWatermark watermark = new EventWatermark();
+		long seq = watermark.register(1);
+		
+		assertFalse(watermark.awaitCapacity(1, 10));
+		watermark.complete(seq);
+		assertTrue(watermark.awaitCapacity(1, 10));
+	}
+	
+}
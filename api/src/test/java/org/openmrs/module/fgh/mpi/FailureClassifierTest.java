@@ -0,0 +1,39 @@
+package org.openmrs.module.fgh.mpi;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ConnectException;
+
+import org.junit.Test;
+import org.openmrs.api.APIException;
+import org.openmrs.module.fgh.mpi.ledger.FailureClassifier;
+
+public class FailureClassifierTest {
+	
+	@Test
+	public void isPermanent_shouldReturnTrueForAnIdentifierTypeWithNoSystemUri() {
+		APIException e = new APIException("No id system uri defined for identifier type with uuid: some-uuid");
+		assertTrue(FailureClassifier.isPermanent(new APIException(e)));
+	}
+	
+	@Test
+	public void isPermanent_shouldReturnFalseForAConnectionError() {
+		assertFalse(FailureClassifier.isPermanent(new APIException(new ConnectException("Connection refused"))));
+	}
+	
+	@Test
+	public void isPermanent_shouldClassifyErrorResponsesFromTheMpi() {
+		assertTrue(FailureClassifier.isPermanent(new APIException("Unexpected response 400 Bad Request from MPI")));
+		assertTrue(FailureClassifier.isPermanent(new APIException("Unexpected response 422 Unprocessable from MPI")));
+		assertFalse(FailureClassifier.isPermanent(new APIException("Unexpected response 401 Unauthorized from MPI")));
+		assertFalse(FailureClassifier.isPermanent(new APIException("Unexpected response 429 Too Many Requests from MPI")));
+		assertFalse(FailureClassifier.isPermanent(new APIException("Unexpected response 503 Unavailable from MPI")));
+	}
+	
+	@Test
+	public void isPermanent_shouldReturnFalseForAnUnknownError() {
+		assertFalse(FailureClassifier.isPermanent(new RuntimeException("test")));
+	}
+	
+}
@@ -0,0 +1,97 @@
+package org.openmrs.module.fgh.mpi;
+
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.when;
+import static org.openmrs.module.debezium.DatabaseOperation.DELETE;
+import static org.openmrs.module.debezium.DatabaseOperation.UPDATE;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.api.APIException;
+import org.openmrs.module.debezium.DatabaseEvent;
+import org.openmrs.module.fgh.mpi.entity.FailedSubmission;
+import org.openmrs.module.fgh.mpi.ledger.FailureLedger;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.core.classloader.annotations.SuppressStaticInitializationFor;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(MpiUtils.class)
+@SuppressStaticInitializationFor("org.openmrs.module.fgh.mpi.utils.MpiUtils")
+public class FailureLedgerTest {
+	
+	@Before
+	public void setup() {
+		PowerMockito.mockStatic(MpiUtils.class);
+		Whitebox.setInternalState(FailureLedger.class, "openPatientIds", (Object) null);
+	}
+	
+	@Test
+	public void record_shouldInsertAPermanentFailureWithNoNextRetryTime() {
+		final Integer patientId = 1;
+		when(MpiUtils.executeQuery(anyString(), eq(patientId))).thenReturn(Collections.emptyList());
+		DatabaseEvent event = new DatabaseEvent(patientId, "person", DELETE, null, singletonMap("uuid", "person-uuid"), null);
+		
+		FailureLedger.record(patientId, event, new APIException("No id system uri defined for identifier type"));
+		
+		PowerMockito.verifyStatic(MpiUtils.class);
+		MpiUtils.executeUpdate(anyString(), eq(patientId), eq("person-uuid"), eq("person"), eq("DELETE"),
+		    eq(APIException.class.getName()), eq("No id system uri defined for identifier type"), eq(1), eq(true),
+		    isNull(), any());
+	}
+	
+	@Test
+	public void resolve_shouldNotDeleteAnythingForAPatientWithNoFailure() {
+		when(MpiUtils.executeQuery("SELECT patient_id FROM mpi_failed_submission"))
+		        .thenReturn(singletonList(singletonList((Object) 2)));
+		
+		assertFalse(FailureLedger.resolve(1));
+		
+		PowerMockito.verifyStatic(MpiUtils.class, never());
+		MpiUtils.executeUpdate(anyString(), any());
+	}
+	
+	@Test
+	public void toEvent_shouldKeepAPersonDeleteEvent() {
+		FailedSubmission failure = new FailedSubmission();
+		failure.setPatientId(1);
+		failure.setPatientUuid("person-uuid");
+		failure.setTableName("person");
+		failure.setOperation(DELETE.name());
+		
+		DatabaseEvent event = FailureLedger.toEvent(failure);
+		
+		assertEquals("person", event.getTableName());
+		assertEquals(DELETE, event.getOperation());
+		assertEquals("person-uuid", event.getPreviousState().get("uuid"));
+	}
+	
+	@Test
+	public void toEvent_shouldReturnAPatientUpdateEventForOtherEvents() {
+		FailedSubmission failure = new FailedSubmission();
+		failure.setPatientId(1);
+		failure.setTableName("person_name");
+		failure.setOperation(UPDATE.name());
+		
+		DatabaseEvent event = FailureLedger.toEvent(failure);
+		
+		assertEquals("patient", event.getTableName());
+		assertEquals(UPDATE, event.getOperation());
+		assertEquals(1, event.getPrimaryKeyId());
+	}
+	
+}
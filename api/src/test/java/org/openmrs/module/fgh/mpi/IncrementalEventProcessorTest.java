@@ -0,0 +1,423 @@
+package org.openmrs.module.fgh.mpi;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.openmrs.api.context.Context.getRegisteredComponents;
+import static org.openmrs.module.debezium.DatabaseOperation.UPDATE;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.debezium.DatabaseEvent;
+import org.openmrs.module.fgh.mpi.entity.FailedSubmission;
+import org.openmrs.module.fgh.mpi.entity.MpiSystemType;
+import org.openmrs.module.fgh.mpi.handler.AssociationEventHandler;
+import org.openmrs.module.fgh.mpi.handler.PatientAndPersonEventHandler;
+import org.openmrs.module.fgh.mpi.handler.RelationshipEventHandler;
+import org.openmrs.module.fgh.mpi.integ.CircuitBreaker;
+import org.openmrs.module.fgh.mpi.integ.MpiContext;
+import org.openmrs.module.fgh.mpi.integ.MpiHttpClient;
+import org.openmrs.module.fgh.mpi.journal.EventJournal;
+import org.openmrs.module.fgh.mpi.journal.JournalEntry;
+import org.openmrs.module.fgh.mpi.ledger.FailureLedger;
+import org.openmrs.module.fgh.mpi.processor.IncrementalEventProcessor;
+import org.openmrs.module.fgh.mpi.projection.PatientFacilityTable;
+import org.openmrs.module.fgh.mpi.projection.PatientProjectionLoader;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Context.class, MpiUtils.class, MpiContext.class, FailureLedger.class, PatientFacilityTable.class,
+        PatientProjectionLoader.class })
+public class IncrementalEventProcessorTest {
+	
+	private static final long TIMEOUT = 5000;
+	
+	@Mock
+	private PatientAndPersonEventHandler mockPatientHandler;
+	
+	@Mock
+	private AssociationEventHandler mockAssociationHandler;
+	
+	@Mock
+	private RelationshipEventHandler mockRelationshipHandler;
+	
+	@Mock
+	private MpiHttpClient mockMpiHttpClient;
+	
+	@Mock
+	private CircuitBreaker mockCircuitBreaker;
+	
+	@Mock
+	private MpiContext mpiContext;
+	
+	@Mock
+	private EventJournal mockJournal;
+	
+	private Map<String, Object> fhirResource;
+	
+	@Before
+	public void setup() throws Exception {
+		PowerMockito.mockStatic(Context.class);
+		PowerMockito.mockStatic(MpiUtils.class);
+		PowerMockito.mockStatic(MpiContext.class);
+		PowerMockito.mockStatic(FailureLedger.class);
+		PowerMockito.mockStatic(PatientFacilityTable.class);
+		PowerMockito.mockStatic(PatientProjectionLoader.class);
+		when(getRegisteredComponents(PatientAndPersonEventHandler.class)).thenReturn(singletonList(mockPatientHandler));
+		when(getRegisteredComponents(AssociationEventHandler.class)).thenReturn(singletonList(mockAssociationHandler));
+		when(getRegisteredComponents(RelationshipEventHandler.class)).thenReturn(singletonList(mockRelationshipHandler));
+		when(getRegisteredComponents(MpiHttpClient.class)).thenReturn(singletonList(mockMpiHttpClient));
+		when(mockMpiHttpClient.getCircuitBreaker()).thenReturn(mockCircuitBreaker);
+		when(mockCircuitBreaker.getState()).thenReturn(CircuitBreaker.State.CLOSED);
+		when(MpiContext.initIfNecessary()).thenReturn(mpiContext);
+		when(mpiContext.getMpiSystem()).thenReturn(MpiSystemType.OPENCR);
+		when(mockPatientHandler.getPatientIds(any(DatabaseEvent.class)))
+		        .thenAnswer(invocation -> singletonList(((DatabaseEvent) invocation.getArgument(0)).getPrimaryKeyId()));
+		fhirResource = new HashMap();
+		fhirResource.put("resourceType", "Patient");
+		when(mockPatientHandler.handle(anyInt(), any(DatabaseEvent.class))).thenReturn(fhirResource);
+	}
+	
+	private DatabaseEvent createEvent(Integer patientId) {
+		return createEvent(patientId, 0);
+	}
+	
+	private DatabaseEvent createEvent(Integer patientId, Integer seq) {
+		Map<String, Object> newState = Collections.singletonMap("seq", seq);
+		return new DatabaseEvent(patientId, "person", UPDATE, null, null, newState);
+	}
+	
+	private EventJournal.Batch createBatch(JournalEntry... entries) {
+		EventJournal.Batch batch = mock(EventJournal.Batch.class);
+		when(batch.getEntries()).thenReturn(Arrays.asList(entries));
+		return batch;
+	}
+	
+	private IncrementalEventProcessor createJournalProcessor() {
+		IncrementalEventProcessor processor = new IncrementalEventProcessor(1, 0, 0, 1, mockJournal);
+		//The journal is drained by the tests on the calling thread
+		((ScheduledExecutorService) Whitebox.getInternalState(processor, "journalSubmitter")).shutdownNow();
+		return processor;
+	}
+	
+	private void waitForAsyncFailure(IncrementalEventProcessor processor) throws Exception {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (Whitebox.getInternalState(processor, "asyncFailure") == null) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Timed out waiting for the failure to be recorded");
+			}
+			
+			Thread.sleep(10);
+		}
+	}
+	
+	@Test
+	public void process_shouldSubmitEachPatientToTheMpiIfBatchingIsDisabled() throws Exception {
+		IncrementalEventProcessor processor = new IncrementalEventProcessor();
+		
+		processor.process(createEvent(1));
+		
+		verify(mockMpiHttpClient).submitPatient(anyString());
+		verify(mockMpiHttpClient, never()).submitBatchBundle(anyString(), anyInt());
+		PowerMockito.verifyStatic(FailureLedger.class);
+		FailureLedger.resolve(1);
+	}
+	
+	@Test
+	public void process_shouldSubmitTheBatchWhenItIsFull() throws Exception {
+		IncrementalEventProcessor processor = new IncrementalEventProcessor(2, 60000, 0);
+		
+		processor.process(createEvent(1));
+		verify(mockMpiHttpClient, never()).submitBatchBundle(anyString(), anyInt());
+		
+		processor.process(createEvent(2));
+		
+		verify(mockMpiHttpClient).submitBatchBundle(anyString(), eq(2));
+		verify(mockMpiHttpClient, never()).submitPatient(anyString());
+		PowerMockito.verifyStatic(FailureLedger.class);
+		FailureLedger.resolve(1);
+		PowerMockito.verifyStatic(FailureLedger.class);
+		FailureLedger.resolve(2);
+	}
+	
+	@Test
+	public void process_shouldSubmitAPartiallyFilledBatchAfterTheMaxWait() throws Exception {
+		IncrementalEventProcessor processor = new IncrementalEventProcessor(10, 50, 0);
+		
+		processor.process(createEvent(1));
+		
+		verify(mockMpiHttpClient, timeout(TIMEOUT)).submitBatchBundle(anyString(), eq(1));
+	}
+	
+	@Test
+	public void process_shouldRecordAllThePatientsInAFailedBatchInTheFailureLedger() throws Exception {
+		IncrementalEventProcessor processor = new IncrementalEventProcessor(2, 60000, 0);
+		APIException error = new APIException("test");
+		doThrow(error).when(mockMpiHttpClient).submitBatchBundle(anyString(), anyInt());
+		
+		processor.process(createEvent(1));
+		processor.process(createEvent(2));
+		
+		PowerMockito.verifyStatic(FailureLedger.class);
+		FailureLedger.record(eq(1), any(DatabaseEvent.class), eq(error));
+		PowerMockito.verifyStatic(FailureLedger.class);
+		FailureLedger.record(eq(2), any(DatabaseEvent.class), eq(error));
+		PowerMockito.verifyStatic(FailureLedger.class, never());
+		FailureLedger.resolve(anyInt());
+	}
+	
+	@Test
+	public void process_shouldFailTheNextEventIfAFailedSubmissionCannotBeRecorded() throws Exception {
+		IncrementalEventProcessor processor = new IncrementalEventProcessor(1, 0, 0, 2);
+		doThrow(new APIException("test")).when(mockMpiHttpClient).submitPatient(anyString());
+		APIException ledgerError = new APIException("ledger");
+		PowerMockito.doThrow(ledgerError).when(FailureLedger.class);
+		FailureLedger.record(anyInt(), any(DatabaseEvent.class), any(Throwable.class));
+		
+		processor.process(createEvent(1));
+		waitForAsyncFailure(processor);
+		
+		try {
+			processor.process(createEvent(2));
+			fail("Expected the recorded failure to be thrown");
+		}
+		catch (APIException e) {
+			assertEquals("Failed to record a failed patient submission to the MPI", e.getMessage());
+			assertEquals(ledgerError, e.getCause());
+		}
+		
+		verify(mockPatientHandler, never()).handle(eq(2), any(DatabaseEvent.class));
+	}
+	
+	@Test
+	public void process_shouldProcessTheEventsForTheSamePatientInOrder() throws Exception {
+		final List<Integer> processed = Collections.synchronizedList(new ArrayList());
+		when(mockPatientHandler.handle(eq(1), any(DatabaseEvent.class))).thenAnswer(invocation -> {
+			processed.add((Integer) ((DatabaseEvent) invocation.getArgument(1)).getNewState().get("seq"));
+			Thread.sleep(1);
+			return fhirResource;
+		});
+		IncrementalEventProcessor processor = new IncrementalEventProcessor(1, 0, 0, 4);
+		final int count = 20;
+		List<Integer> expected = new ArrayList(count);
+		
+		for (int i = 0; i < count; i++) {
+			processor.process(createEvent(1, i));
+			processor.process(createEvent(2, i));
+			expected.add(i);
+		}
+		
+		verify(mockMpiHttpClient, timeout(TIMEOUT).times(count * 2)).submitPatient(anyString());
+		assertEquals(expected, processed);
+	}
+	
+	@Test
+	public void process_shouldBlockWhenTheInFlightEventLimitIsReached() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		when(mockPatientHandler.handle(anyInt(), any(DatabaseEvent.class))).thenAnswer(invocation -> {
+			release.await();
+			return fhirResource;
+		});
+		IncrementalEventProcessor processor = new IncrementalEventProcessor(1, 0, 0, 2);
+		//The in flight limit is 100 events per lane
+		final int maxInFlight = 200;
+		for (int i = 1; i <= maxInFlight; i++) {
+			processor.process(createEvent(i));
+		}
+		
+		Thread consumer = new Thread(() -> processor.process(createEvent(maxInFlight + 1)));
+		consumer.start();
+		consumer.join(500);
+		assertTrue(consumer.isAlive());
+		
+		release.countDown();
+		consumer.join(TIMEOUT);
+		
+		assertFalse(consumer.isAlive());
+		verify(mockMpiHttpClient, timeout(TIMEOUT).times(maxInFlight + 1)).submitPatient(anyString());
+	}
+	
+	@Test
+	public void process_shouldOnlyRecordTheEventInTheJournal() throws Exception {
+		IncrementalEventProcessor processor = createJournalProcessor();
+		
+		processor.process(createEvent(1));
+		
+		verify(mockJournal).append(any(JournalEntry.class));
+		verify(mockPatientHandler, never()).handle(anyInt(), any(DatabaseEvent.class));
+		verify(mockMpiHttpClient, never()).submitPatient(anyString());
+	}
+	
+	@Test
+	public void drainJournal_shouldSubmitTheLatestWorkItemPerPatientAndCommitTheBatch() throws Exception {
+		IncrementalEventProcessor processor = createJournalProcessor();
+		EventJournal.Batch batch = createBatch(new JournalEntry(1, createEvent(1, 0)), new JournalEntry(2, createEvent(2)),
+		    new JournalEntry(1, createEvent(1, 1)));
+		when(mockJournal.read(anyInt())).thenReturn(batch);
+		final List<Integer> processed = Collections.synchronizedList(new ArrayList());
+		when(mockPatientHandler.handle(eq(1), any(DatabaseEvent.class))).thenAnswer(invocation -> {
+			processed.add((Integer) ((DatabaseEvent) invocation.getArgument(1)).getNewState().get("seq"));
+			return fhirResource;
+		});
+		
+		Whitebox.invokeMethod(processor, "drainJournal");
+		
+		assertEquals(singletonList(1), processed);
+		verify(mockMpiHttpClient, times(2)).submitPatient(anyString());
+		verify(mockJournal).commit(batch);
+	}
+	
+	@Test
+	public void drainJournal_shouldRecordAFailedPatientInTheFailureLedgerAndCommitTheBatch() throws Exception {
+		IncrementalEventProcessor processor = createJournalProcessor();
+		EventJournal.Batch batch = createBatch(new JournalEntry(1, createEvent(1)), new JournalEntry(2, createEvent(2)));
+		when(mockJournal.read(anyInt())).thenReturn(batch);
+		APIException error = new APIException("test");
+		when(mockPatientHandler.handle(eq(1), any(DatabaseEvent.class))).thenThrow(error);
+		
+		Whitebox.invokeMethod(processor, "drainJournal");
+		
+		PowerMockito.verifyStatic(FailureLedger.class);
+		FailureLedger.record(eq(1), any(DatabaseEvent.class), eq(error));
+		verify(mockMpiHttpClient).submitPatient(anyString());
+		verify(mockJournal).commit(batch);
+	}
+	
+	@Test
+	public void drainJournal_shouldHoldTheCheckpointIfTheMpiIsUnavailable() throws Exception {
+		IncrementalEventProcessor processor = createJournalProcessor();
+		EventJournal.Batch batch = createBatch(new JournalEntry(1, createEvent(1)));
+		when(mockJournal.read(anyInt())).thenReturn(batch);
+		doThrow(new IOException("test")).when(mockMpiHttpClient).submitPatient(anyString());
+		
+		Whitebox.invokeMethod(processor, "drainJournal");
+		
+		verify(mockJournal, never()).commit(any(EventJournal.Batch.class));
+		PowerMockito.verifyStatic(FailureLedger.class, never());
+		FailureLedger.record(anyInt(), any(DatabaseEvent.class), any(Throwable.class));
+		
+		//The next attempt is backed off
+		Whitebox.invokeMethod(processor, "drainJournal");
+		verify(mockJournal, times(1)).read(anyInt());
+	}
+	
+	@Test
+	public void drainJournal_shouldNotSubmitTheJournalWhilePaused() throws Exception {
+		IncrementalEventProcessor processor = createJournalProcessor();
+		EventJournal.Batch batch = createBatch(new JournalEntry(1, createEvent(1)));
+		when(mockJournal.read(anyInt())).thenReturn(batch);
+		processor.pause();
+		
+		Whitebox.invokeMethod(processor, "drainJournal");
+		
+		verify(mockJournal, never()).read(anyInt());
+		verify(mockMpiHttpClient, never()).submitPatient(anyString());
+		
+		processor.resume();
+		Whitebox.invokeMethod(processor, "drainJournal");
+		
+		verify(mockMpiHttpClient).submitPatient(anyString());
+		verify(mockJournal).commit(batch);
+	}
+	
+	@Test
+	public void retryFailedSubmissions_shouldSubmitTheDuePatientsAndResolveThem() throws Exception {
+		IncrementalEventProcessor processor = new IncrementalEventProcessor();
+		FailedSubmission failure = new FailedSubmission();
+		failure.setPatientId(1);
+		DatabaseEvent event = createEvent(1);
+		when(FailureLedger.getDueFailedSubmissions(anyInt())).thenReturn(singletonList(failure));
+		when(FailureLedger.toEvent(failure)).thenReturn(event);
+		
+		Whitebox.invokeMethod(processor, "retryFailedSubmissions");
+		
+		verify(mockPatientHandler).handle(1, event);
+		verify(mockMpiHttpClient).submitPatient(anyString());
+		PowerMockito.verifyStatic(FailureLedger.class);
+		FailureLedger.resolve(1);
+	}
+	
+	@Test
+	public void retryFailedSubmissions_shouldRecordThePatientAgainIfTheRetryFails() throws Exception {
+		IncrementalEventProcessor processor = new IncrementalEventProcessor();
+		FailedSubmission failure = new FailedSubmission();
+		failure.setPatientId(1);
+		DatabaseEvent event = createEvent(1);
+		when(FailureLedger.getDueFailedSubmissions(anyInt())).thenReturn(singletonList(failure));
+		when(FailureLedger.toEvent(failure)).thenReturn(event);
+		APIException error = new APIException("test");
+		doThrow(error).when(mockMpiHttpClient).submitPatient(anyString());
+		
+		Whitebox.invokeMethod(processor, "retryFailedSubmissions");
+		
+		PowerMockito.verifyStatic(FailureLedger.class);
+		FailureLedger.record(1, event, error);
+		PowerMockito.verifyStatic(FailureLedger.class, never());
+		FailureLedger.resolve(anyInt());
+	}
+	
+	@Test
+	public void retryFailedSubmissions_shouldSkipThePassIfTheCircuitBreakerIsOpen() throws Exception {
+		IncrementalEventProcessor processor = new IncrementalEventProcessor();
+		when(mockCircuitBreaker.getState()).thenReturn(CircuitBreaker.State.OPEN);
+		
+		Whitebox.invokeMethod(processor, "retryFailedSubmissions");
+		
+		PowerMockito.verifyStatic(FailureLedger.class, never());
+		FailureLedger.getDueFailedSubmissions(anyInt());
+		verify(mockMpiHttpClient, never()).submitPatient(anyString());
+	}
+	
+	@Test
+	public void retryFailedSubmissions_shouldStopWithoutRecordingTheAttemptIfTheMpiIsUnavailable() throws Exception {
+		IncrementalEventProcessor processor = new IncrementalEventProcessor();
+		FailedSubmission failure1 = new FailedSubmission();
+		failure1.setPatientId(1);
+		FailedSubmission failure2 = new FailedSubmission();
+		failure2.setPatientId(2);
+		when(FailureLedger.getDueFailedSubmissions(anyInt())).thenReturn(Arrays.asList(failure1, failure2));
+		when(FailureLedger.toEvent(failure1)).thenReturn(createEvent(1));
+		when(FailureLedger.toEvent(failure2)).thenReturn(createEvent(2));
+		doThrow(new IOException("test")).when(mockMpiHttpClient).submitPatient(anyString());
+		
+		Whitebox.invokeMethod(processor, "retryFailedSubmissions");
+		
+		verify(mockMpiHttpClient).submitPatient(anyString());
+		PowerMockito.verifyStatic(FailureLedger.class, never());
+		FailureLedger.record(anyInt(), any(DatabaseEvent.class), any(Throwable.class));
+		PowerMockito.verifyStatic(FailureLedger.class, never());
+		FailureLedger.resolve(anyInt());
+	}
+	
+}
@@ -0,0 +1,177 @@
+package org.openmrs.module.fgh.mpi;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.openmrs.api.APIException;
+import org.openmrs.module.debezium.DatabaseEvent;
+import org.openmrs.module.debezium.DatabaseOperation;
+import org.openmrs.module.fgh.mpi.processor.JdbcSnapshotReader;
+import org.openmrs.module.fgh.mpi.processor.SnapshotEventProcessor;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(MpiUtils.class)
+public class JdbcSnapshotReaderTest {
+	
+	@Mock
+	private SnapshotEventProcessor mockProcessor;
+	
+	private String pageQuery;
+	
+	@Before
+	public void setup() {
+		PowerMockito.mockStatic(MpiUtils.class);
+		pageQuery = Whitebox.getInternalState(JdbcSnapshotReader.class, "PAGE_QUERY");
+	}
+	
+	private List<List<Object>> rows(Integer... patientIds) {
+		List<List<Object>> rows = new ArrayList();
+		for (Integer patientId : patientIds) {
+			rows.add(singletonList(patientId));
+		}
+		
+		return rows;
+	}
+	
+	@Test
+	public void run_shouldReadThePatientsInPagesAndProcessThemInBatches() {
+		when(MpiUtils.executeQuery(pageQuery, 0, 3)).thenReturn(rows(1, 2, 4));
+		when(MpiUtils.executeQuery(pageQuery, 4, 3)).thenReturn(rows(5, 7, 8));
+		when(MpiUtils.executeQuery(pageQuery, 8, 3)).thenReturn(rows(9));
+		ArgumentCaptor<List<DatabaseEvent>> captor = ArgumentCaptor.forClass(List.class);
+		
+		new JdbcSnapshotReader(mockProcessor, 2, 3).run();
+		
+		InOrder inOrder = inOrder(mockProcessor);
+		inOrder.verify(mockProcessor, times(4)).processBatch(captor.capture());
+		inOrder.verify(mockProcessor).complete();
+		List<List<DatabaseEvent>> batches = captor.getAllValues();
+		assertEquals(asList(1, 2), getPatientIds(batches.get(0)));
+		assertEquals(asList(4, 5), getPatientIds(batches.get(1)));
+		assertEquals(asList(7, 8), getPatientIds(batches.get(2)));
+		assertEquals(asList(9), getPatientIds(batches.get(3)));
+		DatabaseEvent event = batches.get(0).get(0);
+		assertEquals("patient", event.getTableName());
+		assertEquals(DatabaseOperation.READ, event.getOperation());
+		assertEquals(DatabaseEvent.Snapshot.TRUE, event.getSnapshot());
+	}
+	
+	@Test
+	public void run_shouldStopWhenAFullPageIsFollowedByAnEmptyPage() {
+		when(MpiUtils.executeQuery(pageQuery, 0, 2)).thenReturn(rows(1, 2));
+		when(MpiUtils.executeQuery(pageQuery, 2, 2)).thenReturn(emptyList());
+		
+		new JdbcSnapshotReader(mockProcessor, 2, 2).run();
+		
+		verify(mockProcessor).processBatch(anyList());
+		verify(mockProcessor).complete();
+	}
+	
+	@Test
+	public void run_shouldResumeAfterThePatientThatWasLastSubmitted() {
+		when(MpiUtils.getLastSubmittedPatientId()).thenReturn(10);
+		when(MpiUtils.executeQuery(pageQuery, 10, 5)).thenReturn(rows(11));
+		
+		new JdbcSnapshotReader(mockProcessor, 5, 5).run();
+		
+		verify(mockProcessor).processBatch(anyList());
+		verify(mockProcessor).complete();
+		PowerMockito.verifyStatic(MpiUtils.class, never());
+		MpiUtils.executeQuery(eq(pageQuery), eq(0), eq(5));
+	}
+	
+	@Test
+	public void run_shouldNotSwitchToIncrementalLoadingIfABatchFails() throws Exception {
+		when(MpiUtils.executeQuery(pageQuery, 0, 5)).thenReturn(rows(1, 2));
+		doThrow(new APIException()).when(mockProcessor).processBatch(anyList());
+		Runnable mockCallback = mock(Runnable.class);
+		Thread thread = new Thread(new JdbcSnapshotReader(mockProcessor, 5, 5, mockCallback));
+		
+		thread.start();
+		verify(mockProcessor, timeout(5000)).processBatch(anyList());
+		thread.interrupt();
+		thread.join(5000);
+		
+		verify(mockProcessor, never()).complete();
+		verify(mockCallback, never()).run();
+	}
+	
+	@Test
+	public void run_shouldRetryFromThePatientThatWasLastSubmittedIfABatchFails() {
+		when(MpiUtils.getLastSubmittedPatientId()).thenReturn(null, 2);
+		when(MpiUtils.executeQuery(pageQuery, 0, 2)).thenReturn(rows(1, 2));
+		when(MpiUtils.executeQuery(pageQuery, 2, 2)).thenReturn(rows(3));
+		doNothing().doThrow(new APIException()).doNothing().when(mockProcessor).processBatch(anyList());
+		Runnable mockCallback = mock(Runnable.class);
+		JdbcSnapshotReader reader = new JdbcSnapshotReader(mockProcessor, 2, 2, mockCallback);
+		Whitebox.setInternalState(reader, "retryDelay", 1L);
+		
+		reader.run();
+		
+		InOrder inOrder = inOrder(mockProcessor, mockCallback);
+		inOrder.verify(mockProcessor, times(3)).processBatch(anyList());
+		inOrder.verify(mockProcessor).complete();
+		inOrder.verify(mockCallback).run();
+		PowerMockito.verifyStatic(MpiUtils.class, times(2));
+		MpiUtils.executeQuery(eq(pageQuery), eq(2), eq(2));
+	}
+	
+	@Test
+	public void run_shouldCallTheCompletionCallbackAfterSwitchingToIncrementalLoading() {
+		when(MpiUtils.executeQuery(pageQuery, 0, 5)).thenReturn(rows(1));
+		Runnable mockCallback = mock(Runnable.class);
+		
+		new JdbcSnapshotReader(mockProcessor, 5, 5, mockCallback).run();
+		
+		InOrder inOrder = inOrder(mockProcessor, mockCallback);
+		inOrder.verify(mockProcessor).complete();
+		inOrder.verify(mockCallback).run();
+	}
+	
+	@Test
+	public void run_shouldCompleteIfThereAreNoPatients() {
+		when(MpiUtils.executeQuery(pageQuery, 0, 5)).thenReturn(emptyList());
+		
+		new JdbcSnapshotReader(mockProcessor, 5, 5).run();
+		
+		verify(mockProcessor, never()).processBatch(anyList());
+		verify(mockProcessor).complete();
+	}
+	
+	private List<Integer> getPatientIds(List<DatabaseEvent> events) {
+		List<Integer> patientIds = new ArrayList(events.size());
+		for (DatabaseEvent event : events) {
+			patientIds.add((Integer) event.getPrimaryKeyId());
+		}
+		
+		return patientIds;
+	}
+	
+}
@@ -0,0 +1,104 @@
+package org.openmrs.module.fgh.mpi;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.module.fgh.mpi.crosswalk.MpiCrosswalk;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.core.classloader.annotations.SuppressStaticInitializationFor;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(MpiUtils.class)
+@SuppressStaticInitializationFor("org.openmrs.module.fgh.mpi.utils.MpiUtils")
+public class MpiCrosswalkTest {
+	
+	@Before
+	public void setup() {
+		PowerMockito.mockStatic(MpiUtils.class);
+	}
+	
+	@Test
+	public void getMpiId_shouldReturnTheRecordedMpiId() {
+		when(MpiUtils.executeQuery(anyString(), eq("patient-uuid")))
+		        .thenReturn(singletonList(asList("patient-uuid", "mpi-id")));
+		
+		assertEquals("mpi-id", MpiCrosswalk.getMpiId("patient-uuid"));
+	}
+	
+	@Test
+	public void getMpiId_shouldReturnNullForAPatientWithNoRecordedMpiId() {
+		when(MpiUtils.executeQuery(anyString(), eq("patient-uuid"))).thenReturn(emptyList());
+		
+		assertNull(MpiCrosswalk.getMpiId("patient-uuid"));
+	}
+	
+	@Test
+	public void getMpiIds_shouldLookUpAllThePatientsWithASingleQuery() {
+		final String query = "SELECT patient_uuid, mpi_id FROM mpi_patient_crosswalk WHERE patient_uuid IN (?,?)";
+		when(MpiUtils.executeQuery(query, "uuid-1", "uuid-2")).thenReturn(singletonList(asList("uuid-2", "mpi-id-2")));
+		
+		Map<String, String> mpiIds = MpiCrosswalk.getMpiIds(asList("uuid-1", "uuid-2"));
+		
+		assertEquals(1, mpiIds.size());
+		assertEquals("mpi-id-2", mpiIds.get("uuid-2"));
+	}
+	
+	@Test
+	public void getMpiIds_shouldNotQueryTheDatabaseForAnEmptyCollection() {
+		assertTrue(MpiCrosswalk.getMpiIds(emptyList()).isEmpty());
+		
+		PowerMockito.verifyStatic(MpiUtils.class, never());
+		MpiUtils.executeQuery(anyString(), any());
+	}
+	
+	@Test
+	public void saveAll_shouldUpsertAllThePatientsWithASingleStatement() {
+		Map<String, String> uuidAndMpiIds = new LinkedHashMap();
+		uuidAndMpiIds.put("uuid-1", "mpi-id-1");
+		uuidAndMpiIds.put("uuid-2", "mpi-id-2");
+		
+		MpiCrosswalk.saveAll(uuidAndMpiIds);
+		
+		PowerMockito.verifyStatic(MpiUtils.class);
+		MpiUtils.executeUpdate(eq("INSERT INTO mpi_patient_crosswalk (patient_uuid, mpi_id, date_created) VALUES "
+		        + "(?, ?, ?), (?, ?, ?) ON DUPLICATE KEY UPDATE date_changed = IF(mpi_id = VALUES(mpi_id), date_changed, "
+		        + "VALUES(date_created)), mpi_id = VALUES(mpi_id)"),
+		    eq("uuid-1"), eq("mpi-id-1"), any(), eq("uuid-2"), eq("mpi-id-2"), any());
+	}
+	
+	@Test
+	public void saveAll_shouldNotUpdateTheDatabaseForAnEmptyMap() {
+		MpiCrosswalk.saveAll(Collections.emptyMap());
+		
+		PowerMockito.verifyStatic(MpiUtils.class, never());
+		MpiUtils.executeUpdate(anyString(), any());
+	}
+	
+	@Test
+	public void remove_shouldDeleteTheMpiIdOfThePatient() {
+		MpiCrosswalk.remove("patient-uuid");
+		
+		PowerMockito.verifyStatic(MpiUtils.class);
+		MpiUtils.executeUpdate("DELETE FROM mpi_patient_crosswalk WHERE patient_uuid = ?", "patient-uuid");
+	}
+	
+}
@@ -4,6 +4,10 @@ import static java.util.Collections.singletonList;
 import static org.mockito.Mockito.when;
 import static org.openmrs.api.context.Context.getRegisteredComponents;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -77,4 +81,49 @@ public class MpiDebeziumEngineConfigTest {
 		Assert.assertEquals(BATCH_SIZE.intValue(), threadCount);
 	}
 	
+	@Test
+	public void init_shouldUseTheConfiguredThreadCountIndependentlyOfTheBatchSize() {
+		config = Mockito.spy(config);
+		Mockito.doAnswer(i -> MySqlSnapshotMode.INITIAL).when(config).getSnapshotMode();
+		final Integer BATCH_SIZE = 500;
+		final Integer THREAD_COUNT = 4;
+		when(mockAdminService.getGlobalProperty(MpiConstants.GP_INITIAL_BATCH_SIZE)).thenReturn(BATCH_SIZE.toString());
+		when(mockAdminService.getGlobalProperty(MpiConstants.GP_INITIAL_THREAD_COUNT)).thenReturn(THREAD_COUNT.toString());
+		
+		config.init();
+		
+		SnapshotEventProcessor processor = Whitebox.getInternalState(config, "eventProcessor");
+		int threadCount = Whitebox.getInternalState(processor, "threadCount");
+		int batchSize = Whitebox.getInternalState(processor, "batchSize");
+		Assert.assertEquals(THREAD_COUNT.intValue(), threadCount);
+		Assert.assertEquals(BATCH_SIZE.intValue(), batchSize);
+	}
+	
+	@Test
+	public void getSnapshotMode_shouldReturnInitialIfInitialLoadingIsEnabledWithTheDefaultEngine() {
+		when(mockAdminService.getGlobalProperty(MpiConstants.GP_INITIAL)).thenReturn("true");
+		
+		Assert.assertEquals(MySqlSnapshotMode.INITIAL, config.getSnapshotMode());
+		Assert.assertEquals(Collections.singleton("patient"), config.getTablesToInclude());
+	}
+	
+	@Test
+	public void getSnapshotMode_shouldReturnSchemaOnlyIfInitialLoadingIsDoneByTheJdbcEngine() {
+		when(mockAdminService.getGlobalProperty(MpiConstants.GP_INITIAL)).thenReturn("true");
+		when(mockAdminService.getGlobalProperty(MpiConstants.GP_INITIAL_ENGINE)).thenReturn("jdbc");
+		
+		Assert.assertTrue(config.isJdbcInitialLoading());
+		Assert.assertEquals(MySqlSnapshotMode.SCHEMA_ONLY, config.getSnapshotMode());
+		Assert.assertEquals(new HashSet(Arrays.asList(MpiConstants.WATCHED_TABLES)), config.getTablesToInclude());
+	}
+	
+	@Test
+	public void isJdbcInitialLoading_shouldReturnFalseIfInitialLoadingIsDisabled() {
+		when(mockAdminService.getGlobalProperty(MpiConstants.GP_INITIAL)).thenReturn("false");
+		when(mockAdminService.getGlobalProperty(MpiConstants.GP_INITIAL_ENGINE)).thenReturn("jdbc");
+		
+		Assert.assertFalse(config.isJdbcInitialLoading());
+		Assert.assertEquals(MySqlSnapshotMode.SCHEMA_ONLY, config.getSnapshotMode());
+	}
+	
 }
@@ -0,0 +1,102 @@
+package org.openmrs.module.fgh.mpi;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.when;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_FICHA_RESUMO_ENC_TYPE_UUID;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_MPI_BASE_URL;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_MPI_SYSTEM;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.APIException;
+import org.openmrs.module.fgh.mpi.integ.MpiContext;
+import org.openmrs.module.fgh.mpi.listener.MpiGlobalPropertyListener;
+import org.openmrs.module.fgh.mpi.projection.PatientFacilityTable;
+import org.openmrs.module.fgh.mpi.refdata.ReferenceData;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ ReferenceData.class, PatientFacilityTable.class, MpiContext.class })
+public class MpiGlobalPropertyListenerTest {
+	
+	private MpiGlobalPropertyListener listener = new MpiGlobalPropertyListener();
+	
+	@Before
+	public void setup() {
+		PowerMockito.mockStatic(ReferenceData.class);
+		PowerMockito.mockStatic(PatientFacilityTable.class);
+		PowerMockito.mockStatic(MpiContext.class);
+	}
+	
+	@Test
+	public void supportsPropertyName_shouldOnlySupportModuleGlobalProperties() {
+		assertTrue(listener.supportsPropertyName(GP_MPI_SYSTEM));
+		assertFalse(listener.supportsPropertyName("mpisomething.system"));
+		assertFalse(listener.supportsPropertyName("locale.allowed.list"));
+	}
+	
+	@Test
+	public void globalPropertyChanged_shouldReloadTheReferenceData() {
+		listener.globalPropertyChanged(new GlobalProperty(GP_MPI_SYSTEM, "SANTEMPI"));
+		
+		PowerMockito.verifyStatic(ReferenceData.class);
+		ReferenceData.reload();
+		PowerMockito.verifyStatic(PatientFacilityTable.class, never());
+		PatientFacilityTable.clear();
+	}
+	
+	@Test
+	public void globalPropertyDeleted_shouldReloadTheReferenceData() {
+		listener.globalPropertyDeleted(GP_MPI_SYSTEM);
+		
+		PowerMockito.verifyStatic(ReferenceData.class);
+		ReferenceData.reload();
+	}
+	
+	@Test
+	public void globalPropertyChanged_shouldClearThePatientFacilityTableIfAnEncounterTypeChanges() {
+		when(PatientFacilityTable.isInitialized()).thenReturn(true);
+		
+		listener.globalPropertyChanged(new GlobalProperty(GP_FICHA_RESUMO_ENC_TYPE_UUID, "new-type-uuid"));
+		
+		PowerMockito.verifyStatic(PatientFacilityTable.class);
+		PatientFacilityTable.clear();
+	}
+	
+	@Test
+	public void globalPropertyChanged_shouldNotFailIfTheReferenceDataCannotBeReloaded() throws Exception {
+		PowerMockito.doThrow(new RuntimeException("test")).when(ReferenceData.class, "reload");
+		
+		listener.globalPropertyChanged(new GlobalProperty(GP_MPI_SYSTEM, "SANTEMPI"));
+	}
+	
+	@Test
+	public void globalPropertyChanged_shouldReloadTheMpiContextIfAConnectionSettingChanges() throws Exception {
+		listener.globalPropertyChanged(new GlobalProperty(GP_MPI_BASE_URL, "https://new.mpi.test"));
+		
+		PowerMockito.verifyStatic(MpiContext.class);
+		MpiContext.reload();
+	}
+	
+	@Test
+	public void globalPropertyChanged_shouldNotReloadTheMpiContextForOtherGlobalProperties() throws Exception {
+		listener.globalPropertyChanged(new GlobalProperty(GP_FICHA_RESUMO_ENC_TYPE_UUID, "new-type-uuid"));
+		
+		PowerMockito.verifyStatic(MpiContext.class, never());
+		MpiContext.reload();
+	}
+	
+	@Test
+	public void globalPropertyChanged_shouldNotFailIfTheMpiContextCannotBeReloaded() throws Exception {
+		PowerMockito.doThrow(new APIException("test")).when(MpiContext.class, "reload");
+		
+		listener.globalPropertyChanged(new GlobalProperty(GP_MPI_BASE_URL, " "));
+	}
+	
+}
@@ -1,16 +1,15 @@
 package org.openmrs.module.fgh.mpi;
 
 import static java.util.Arrays.asList;
-import static java.util.Collections.emptyList;
 import static java.util.Collections.emptyMap;
 import static java.util.Collections.singletonList;
 import static java.util.Collections.singletonMap;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
-import static org.mockito.Matchers.anyBoolean;
-import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.openmrs.module.debezium.DatabaseOperation.CREATE;
@@ -22,9 +21,6 @@ import static org.openmrs.module.fgh.mpi.utils.MpiConstants.FIELD_CONTACT;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.FIELD_ID;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.FIELD_NAME;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.FIELD_RELATIONSHIP;
-import static org.openmrs.module.fgh.mpi.processor.MpiIntegrationProcessor.ID_PLACEHOLDER;
-import static org.openmrs.module.fgh.mpi.processor.MpiIntegrationProcessor.PATIENT_QUERY;
-import static org.openmrs.module.fgh.mpi.processor.MpiIntegrationProcessor.PERSON_QUERY;
 
 import java.util.HashMap;
 import java.util.List;
@@ -38,7 +34,12 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.openmrs.module.debezium.DatabaseEvent;
 import org.openmrs.module.fgh.mpi.integ.MpiHttpClient;
+import org.openmrs.module.fgh.mpi.ledger.ContentHashLedger;
 import org.openmrs.module.fgh.mpi.processor.MpiIntegrationProcessor;
+import org.openmrs.module.fgh.mpi.processor.PrefetchedMpiPatients;
+import org.openmrs.module.fgh.mpi.processor.PrefetchedPatientProjections;
+import org.openmrs.module.fgh.mpi.projection.PatientProjection;
+import org.openmrs.module.fgh.mpi.projection.PatientProjectionLoader;
 import org.openmrs.module.fgh.mpi.utils.FhirUtils;
 import org.openmrs.module.fgh.mpi.utils.MpiUtils;
 import org.powermock.api.mockito.PowerMockito;
@@ -51,7 +52,7 @@ import org.slf4j.Logger;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({ MpiUtils.class, FhirUtils.class })
+@PrepareForTest({ MpiUtils.class, FhirUtils.class, PatientProjectionLoader.class })
 @PowerMockIgnore("javax.management.*")
 public class MpiIntegrationProcessorTest {
 	
@@ -67,6 +68,7 @@ public class MpiIntegrationProcessorTest {
 	public void setup() {
 		PowerMockito.mockStatic(MpiUtils.class);
 		PowerMockito.mockStatic(FhirUtils.class);
+		PowerMockito.mockStatic(PatientProjectionLoader.class);
 		Whitebox.setInternalState(MpiIntegrationProcessor.class, Logger.class, mockLogger);
 		Whitebox.setInternalState(processor, MpiHttpClient.class, mockMpiHttpClient);
 	}
@@ -105,8 +107,7 @@ public class MpiIntegrationProcessorTest {
 		final Integer patientId = 1;
 		final String patientUuid = "patient-uuid";
 		when(mockMpiHttpClient.getPatient(patientUuid)).thenReturn(null);
-		when(MpiUtils.executeQuery(PERSON_QUERY.replace(ID_PLACEHOLDER, patientId.toString())))
-		        .thenReturn(asList(asList(null, null, null, null, patientUuid, null)));
+		mockProjection(patientId, patientUuid, null);
 		Map prevState = singletonMap("uuid", patientUuid);
 		assertNull(processor.process(patientId, new DatabaseEvent(null, "patient", DELETE, null, prevState, null)));
 		verify(mockLogger).info("Ignoring event because there is no record in the MPI to update for deleted patient");
@@ -127,8 +128,7 @@ public class MpiIntegrationProcessorTest {
 		final Integer patientId = 1;
 		final String patientUuid = "patient-uuid";
 		when(mockMpiHttpClient.getPatient(patientUuid)).thenReturn(singletonMap(FIELD_ACTIVE, false));
-		when(MpiUtils.executeQuery(PERSON_QUERY.replace(ID_PLACEHOLDER, patientId.toString())))
-		        .thenReturn(asList(asList(null, null, null, null, patientUuid, null)));
+		mockProjection(patientId, patientUuid, null);
 		Map prevState = singletonMap("uuid", patientUuid);
 		assertNull(processor.process(patientId, new DatabaseEvent(null, "patient", DELETE, null, prevState, null)));
 		verify(mockLogger)
@@ -155,8 +155,7 @@ public class MpiIntegrationProcessorTest {
 		Map mpiPatient = new HashMap();
 		mpiPatient.put(FIELD_ACTIVE, true);
 		when(mockMpiHttpClient.getPatient(patientUuid)).thenReturn(mpiPatient);
-		when(MpiUtils.executeQuery(PERSON_QUERY.replace(ID_PLACEHOLDER, patientId.toString())))
-		        .thenReturn(asList(asList(null, null, null, null, patientUuid, null)));
+		mockProjection(patientId, patientUuid, null);
 		Map prevState = singletonMap("uuid", patientUuid);
 		
 		Map fhirPatient = processor.process(1, new DatabaseEvent(null, "patient", DELETE, null, prevState, null));
@@ -169,8 +168,7 @@ public class MpiIntegrationProcessorTest {
 		final Integer patientId = 1;
 		final String patientUuid = "patient-uuid";
 		when(mockMpiHttpClient.getPatient(patientUuid)).thenReturn(null);
-		when(MpiUtils.executeQuery(PERSON_QUERY.replace(ID_PLACEHOLDER, patientId.toString())))
-		        .thenReturn(asList(asList(null, null, null, null, patientUuid, null)));
+		mockProjection(patientId, patientUuid, null);
 		
 		assertNull(processor.process(1, new DatabaseEvent(null, "patient", UPDATE, null, null, null)));
 		
@@ -183,8 +181,7 @@ public class MpiIntegrationProcessorTest {
 		final Integer patientId = 1;
 		final String patientUuid = "patient-uuid";
 		when(mockMpiHttpClient.getPatient(patientUuid)).thenReturn(singletonMap(FIELD_ACTIVE, false));
-		when(MpiUtils.executeQuery(PERSON_QUERY.replace(ID_PLACEHOLDER, patientId.toString())))
-		        .thenReturn(asList(asList(null, null, null, null, patientUuid, null)));
+		mockProjection(patientId, patientUuid, null);
 		
 		assertNull(processor.process(1, new DatabaseEvent(null, "patient", UPDATE, null, null, null)));
 		
@@ -199,9 +196,7 @@ public class MpiIntegrationProcessorTest {
 		Map res = new HashMap();
 		res.put(FIELD_ACTIVE, true);
 		when(mockMpiHttpClient.getPatient(patientUuid)).thenReturn(res);
-		when(MpiUtils.executeQuery(PERSON_QUERY.replace(ID_PLACEHOLDER, patientId.toString())))
-		        .thenReturn(asList(asList(null, null, null, null, patientUuid, null)));
-		when(MpiUtils.executeQuery(PATIENT_QUERY.replace(ID_PLACEHOLDER, patientId.toString()))).thenReturn(emptyList());
+		mockProjection(patientId, patientUuid, null);
 		
 		res = processor.process(1, new DatabaseEvent(null, "patient", UPDATE, null, null, null));
 		
@@ -212,10 +207,7 @@ public class MpiIntegrationProcessorTest {
 	public void process_shouldClearTheRelationTypeForContactsToUpdateInTheMpi() throws Exception {
 		final Integer patientId = 1;
 		final String patientUuid = "patient-uuid";
-		when(MpiUtils.executeQuery(PERSON_QUERY.replace(ID_PLACEHOLDER, patientId.toString())))
-		        .thenReturn(asList(asList(null, null, false, null, patientUuid, false)));
-		when(MpiUtils.executeQuery(PATIENT_QUERY.replace(ID_PLACEHOLDER, patientId.toString())))
-		        .thenReturn(singletonList(singletonList(false)));
+		mockProjection(patientId, patientUuid, false);
 		
 		final String relationshipUuid1 = "relationship-uuid-1";
 		final String relationshipUuid2 = "relationship-uuid-2";
@@ -240,7 +232,7 @@ public class MpiIntegrationProcessorTest {
 		Map newPatient = new HashMap();
 		newPatient.put(FIELD_CONTACT, asList(newContact1, singletonMap(FIELD_ID, "relationship-uuid-3"), newContact2));
 		newPatient.put(FIELD_NAME, "patient-name");
-		when(FhirUtils.buildPatient(anyString(), anyBoolean(), anyList(), anyMap())).thenReturn(newPatient);
+		when(FhirUtils.buildPatient(any(PatientProjection.class), anyMap())).thenReturn(newPatient);
 		
 		processor.process(1, new DatabaseEvent(null, "patient", UPDATE, null, null, null));
 		
@@ -269,10 +261,7 @@ public class MpiIntegrationProcessorTest {
 	public void process_shouldNotClearTheRelationTypeIfThereAreNoContactsToUpdateInTheMpi() throws Exception {
 		final Integer patientId = 1;
 		final String patientUuid = "patient-uuid";
-		when(MpiUtils.executeQuery(PERSON_QUERY.replace(ID_PLACEHOLDER, patientId.toString())))
-		        .thenReturn(asList(asList(null, null, false, null, patientUuid, false)));
-		when(MpiUtils.executeQuery(PATIENT_QUERY.replace(ID_PLACEHOLDER, patientId.toString())))
-		        .thenReturn(singletonList(singletonList(false)));
+		mockProjection(patientId, patientUuid, false);
 		
 		final String relationshipUuid1 = "relationship-uuid-1";
 		final String relationshipUuid2 = "relationship-uuid-2";
@@ -294,7 +283,7 @@ public class MpiIntegrationProcessorTest {
 		newContact2.put(FIELD_ID, "relationship-uuid-4");
 		newContact2.put(FIELD_RELATIONSHIP, emptyMap());
 		Map newPatient = singletonMap(FIELD_CONTACT, asList(newContact1, newContact2));
-		when(FhirUtils.buildPatient(anyString(), anyBoolean(), anyList(), anyMap())).thenReturn(newPatient);
+		when(FhirUtils.buildPatient(any(PatientProjection.class), anyMap())).thenReturn(newPatient);
 		processor.process(1, new DatabaseEvent(null, "patient", UPDATE, null, null, null));
 		Mockito.verify(mockMpiHttpClient, Mockito.never()).submitPatient(anyString());
 	}
@@ -303,10 +292,7 @@ public class MpiIntegrationProcessorTest {
 	public void process_shouldIgnoreContactsReplacedWithNull() throws Exception {
 		final Integer patientId = 1;
 		final String patientUuid = "patient-uuid";
-		when(MpiUtils.executeQuery(PERSON_QUERY.replace(ID_PLACEHOLDER, patientId.toString())))
-		        .thenReturn(asList(asList(null, null, false, null, patientUuid, false)));
-		when(MpiUtils.executeQuery(PATIENT_QUERY.replace(ID_PLACEHOLDER, patientId.toString())))
-		        .thenReturn(singletonList(singletonList(false)));
+		mockProjection(patientId, patientUuid, false);
 		
 		final String relationshipUuid1 = "relationship-uuid-1";
 		final String relationshipUuid2 = "relationship-uuid-2";
@@ -328,7 +314,7 @@ public class MpiIntegrationProcessorTest {
 		Map newPatient = new HashMap();
 		newPatient.put(FIELD_CONTACT, asList(newContact1, null));
 		newPatient.put(FIELD_NAME, "patient-name");
-		when(FhirUtils.buildPatient(anyString(), anyBoolean(), anyList(), anyMap())).thenReturn(newPatient);
+		when(FhirUtils.buildPatient(any(PatientProjection.class), anyMap())).thenReturn(newPatient);
 		
 		processor.process(1, new DatabaseEvent(null, "patient", UPDATE, null, null, null));
 		
@@ -373,12 +359,152 @@ public class MpiIntegrationProcessorTest {
 	public void process_shouldSkipPatientWithNoName() throws Exception {
 		String patientId = "1";
 		String patientUuid = "patient-uuid";
-		when(MpiUtils.executeQuery(PERSON_QUERY.replace(ID_PLACEHOLDER, patientId.toString())))
-		        .thenReturn(asList(asList(null, null, null, null, patientUuid, null)));
+		mockProjection(patientId, patientUuid, false);
 		when(mockMpiHttpClient.getPatient(patientUuid)).thenReturn(singletonMap(FIELD_ACTIVE, false));
-		when(MpiUtils.executeQuery(PATIENT_QUERY.replace(ID_PLACEHOLDER, patientId.toString())))
-		        .thenReturn(singletonList(singletonList(false)));
 		Map<String, Object> patientData = processor.process(1, new DatabaseEvent(null, null, null, null, null, null));
 		assertNull(patientData);
 	}
+	
+	@Test
+	public void process_shouldUseThePrefetchedMpiPatientRecordIfAny() throws Exception {
+		final String patientUuid = "patient-uuid";
+		Map mpiPatient = new HashMap();
+		mpiPatient.put(FIELD_ACTIVE, true);
+		Map prevState = singletonMap("uuid", patientUuid);
+		PrefetchedMpiPatients.set(singletonMap(patientUuid, mpiPatient));
+		try {
+			Map fhirPatient = processor.process(1, new DatabaseEvent(null, "person", DELETE, null, prevState, null));
+			
+			assertEquals(mpiPatient, fhirPatient);
+			assertEquals(false, fhirPatient.get(FIELD_ACTIVE));
+			verify(mockMpiHttpClient, never()).getPatient(anyString());
+		}
+		finally {
+			PrefetchedMpiPatients.clear();
+		}
+	}
+	
+	@Test
+	public void process_shouldSkipTheMpiLookupForAPatientThatIsAbsentFromTheMpi() throws Exception {
+		final String patientUuid = "patient-uuid";
+		Map prevState = singletonMap("uuid", patientUuid);
+		when(mockMpiHttpClient.isAbsentFromMpi(patientUuid)).thenReturn(true);
+		
+		assertNull(processor.process(1, new DatabaseEvent(null, "person", DELETE, null, prevState, null)));
+		
+		verify(mockMpiHttpClient, never()).getPatient(anyString());
+	}
+	
+	@Test
+	public void process_shouldNotSubmitAPatientThatIsUnchangedSinceTheLastSubmission() throws Exception {
+		final Integer patientId = 1;
+		final String patientUuid = "patient-uuid";
+		mockProjection(patientId, patientUuid, false);
+		Map mpiPatient = new HashMap();
+		mpiPatient.put(FIELD_ACTIVE, true);
+		when(mockMpiHttpClient.getPatient(patientUuid)).thenReturn(mpiPatient);
+		Map newPatient = new HashMap();
+		newPatient.put(FIELD_NAME, "patient-name");
+		newPatient.put(FIELD_CONTACT, asList(null, null));
+		when(FhirUtils.buildPatient(any(PatientProjection.class), anyMap())).thenReturn(newPatient);
+		final String hash = ContentHashLedger.hash(singletonMap(FIELD_NAME, "patient-name"));
+		when(MpiUtils.executeQuery(anyString(), ArgumentMatchers.eq(patientUuid)))
+		        .thenReturn(singletonList(singletonList(hash)));
+		
+		assertNull(processor.process(patientId, new DatabaseEvent(null, "patient", UPDATE, null, null, null)));
+		
+		verify(mockLogger).info("Not submitting the patient to the MPI because it is unchanged since the last submission");
+	}
+	
+	@Test
+	public void process_shouldNotClearTheRelationTypeForContactsOfAPatientThatIsUnchanged() throws Exception {
+		final Integer patientId = 1;
+		final String patientUuid = "patient-uuid";
+		mockProjection(patientId, patientUuid, false);
+		final String relationshipUuid = "relationship-uuid-1";
+		Map mpiContact = new HashMap();
+		mpiContact.put(FIELD_ID, relationshipUuid);
+		mpiContact.put(FIELD_RELATIONSHIP, emptyMap());
+		Map mpiPatient = new HashMap();
+		mpiPatient.put(FIELD_ACTIVE, true);
+		mpiPatient.put(FIELD_CONTACT, singletonList(mpiContact));
+		when(mockMpiHttpClient.getPatient(patientUuid)).thenReturn(mpiPatient);
+		Map newContact = new HashMap();
+		newContact.put(FIELD_ID, relationshipUuid);
+		newContact.put(FIELD_RELATIONSHIP, emptyMap());
+		Map newPatient = new HashMap();
+		newPatient.put(FIELD_NAME, "patient-name");
+		newPatient.put(FIELD_CONTACT, singletonList(newContact));
+		when(FhirUtils.buildPatient(any(PatientProjection.class), anyMap())).thenReturn(newPatient);
+		final String hash = ContentHashLedger.hash(newPatient);
+		when(MpiUtils.executeQuery(anyString(), ArgumentMatchers.eq(patientUuid)))
+		        .thenReturn(singletonList(singletonList(hash)));
+		
+		assertNull(processor.process(patientId, new DatabaseEvent(null, "patient", UPDATE, null, null, null)));
+		
+		verify(mockMpiHttpClient, never()).submitPatient(anyString());
+		assertEquals(emptyMap(), mpiContact.get(FIELD_RELATIONSHIP));
+	}
+	
+	@Test
+	public void process_shouldSubmitThePatientAsAConditionalUpdateWithoutLookingItUpIfEnabled() throws Exception {
+		final Integer patientId = 1;
+		final String patientUuid = "patient-uuid";
+		mockProjection(patientId, patientUuid, false);
+		Map newPatient = new HashMap();
+		newPatient.put(FIELD_NAME, "patient-name");
+		newPatient.put(FIELD_CONTACT, asList(null, null));
+		when(FhirUtils.buildPatient(any(PatientProjection.class), ArgumentMatchers.isNull())).thenReturn(newPatient);
+		when(mockMpiHttpClient.isConditionalUpdateEnabled()).thenReturn(true);
+		when(mockMpiHttpClient.updatePatient(ArgumentMatchers.eq(patientUuid), anyString())).thenReturn(true);
+		
+		assertNull(processor.process(patientId, new DatabaseEvent(null, "patient", UPDATE, null, null, null)));
+		
+		verify(mockMpiHttpClient).updatePatient(ArgumentMatchers.eq(patientUuid), anyString());
+		verify(mockMpiHttpClient, never()).getPatient(anyString());
+	}
+	
+	@Test
+	public void process_shouldFallBackToALookupIfTheMpiRejectsTheConditionalUpdate() throws Exception {
+		final Integer patientId = 1;
+		final String patientUuid = "patient-uuid";
+		mockProjection(patientId, patientUuid, false);
+		Map newPatient = new HashMap();
+		newPatient.put(FIELD_NAME, "patient-name");
+		when(FhirUtils.buildPatient(any(PatientProjection.class), ArgumentMatchers.isNull())).thenReturn(newPatient);
+		when(mockMpiHttpClient.isConditionalUpdateEnabled()).thenReturn(true);
+		
+		assertEquals(newPatient, processor.process(patientId, new DatabaseEvent(null, "patient", UPDATE, null, null, null)));
+		
+		verify(mockMpiHttpClient).getPatient(patientUuid);
+	}
+	
+	@Test
+	public void process_shouldUseThePrefetchedProjectionOfThePatient() throws Exception {
+		final Integer patientId = 1;
+		PatientProjection projection = new PatientProjection(patientId);
+		projection.setUuid("patient-uuid");
+		projection.setPatientVoided(false);
+		Map newPatient = singletonMap(FIELD_NAME, "patient-name");
+		when(FhirUtils.buildPatient(projection, null)).thenReturn(newPatient);
+		PrefetchedPatientProjections.set(singletonMap(patientId, projection));
+		
+		try {
+			assertEquals(newPatient, processor.process(patientId, new DatabaseEvent(null, "patient", READ, null, null, null)));
+		}
+		finally {
+			PrefetchedPatientProjections.clear();
+		}
+		
+		PowerMockito.verifyStatic(PatientProjectionLoader.class, never());
+		PatientProjectionLoader.load(patientId);
+	}
+	
+	private void mockProjection(Integer patientId, String patientUuid, Boolean patientVoided) {
+		PatientProjection projection = new PatientProjection(patientId);
+		projection.setUuid(patientUuid);
+		projection.setPatientVoided(patientVoided);
+		when(PatientProjectionLoader.load(patientId)).thenReturn(projection);
+	}
+	
 }
@@ -0,0 +1,101 @@
+package org.openmrs.module.fgh.mpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.openmrs.module.fgh.mpi.crosswalk.MpiPatientFilter;
+
+public class MpiPatientFilterTest {
+	
+	@Test
+	public void mightContain_shouldReturnTrueForAllPatientsIfTheFilterIsNotComplete() {
+		MpiPatientFilter filter = new MpiPatientFilter(100, 0.01);
+		
+		assertTrue(filter.mightContain(UUID.randomUUID().toString()));
+	}
+	
+	@Test
+	public void mightContain_shouldReturnFalseForAPatientThatWasNeverAddedToACompleteFilter() {
+		MpiPatientFilter filter = new MpiPatientFilter(100, 0.01);
+		filter.put("uuid-1");
+		filter.markComplete();
+		
+		assertTrue(filter.mightContain("uuid-1"));
+		assertFalse(filter.mightContain("uuid-2"));
+		assertEquals(1, filter.getCount());
+	}
+	
+	@Test
+	public void mightContain_shouldNeverReturnFalseForAnAddedPatient() {
+		MpiPatientFilter filter = new MpiPatientFilter(1000, 0.01);
+		filter.markComplete();
+		String[] uuids = new String[1000];
+		for (int i = 0; i < uuids.length; i++) {
+			uuids[i] = UUID.randomUUID().toString();
+			filter.put(uuids[i]);
+		}
+		
+		for (String uuid : uuids) {
+			assertTrue(filter.mightContain(uuid));
+		}
+		
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (filter.mightContain(UUID.randomUUID().toString())) {
+				falsePositives++;
+			}
+		}
+		
+		assertTrue("Too many false positives: " + falsePositives, falsePositives < 300);
+	}
+	
+	@Test
+	public void mightContain_shouldReturnTrueForAllPatientsIfTheFilterIsDisabled() {
+		MpiPatientFilter filter = new MpiPatientFilter(0, 0.01);
+		filter.put("uuid-1");
+		filter.markComplete();
+		
+		assertFalse(filter.isEnabled());
+		assertTrue(filter.mightContain("uuid-2"));
+	}
+	
+	@Test
+	public void merge_shouldAddThePatientsInTheOtherFilter() {
+		MpiPatientFilter filter = new MpiPatientFilter(100, 0.01);
+		MpiPatientFilter other = new MpiPatientFilter(100, 0.01);
+		other.put("uuid-1");
+		filter.markComplete();
+		
+		assertTrue(filter.merge(other));
+		assertTrue(filter.mightContain("uuid-1"));
+		assertFalse(filter.merge(new MpiPatientFilter(10000, 0.01)));
+	}
+	
+	@Test
+	public void readFrom_shouldReadAFilterWrittenToAFile() throws Exception {
+		File file = Files.createTempFile("mpi-patient-filter", ".dat").toFile();
+		try {
+			MpiPatientFilter filter = new MpiPatientFilter(100, 0.01);
+			filter.put("uuid-1");
+			filter.markComplete();
+			filter.writeTo(file);
+			
+			MpiPatientFilter loaded = MpiPatientFilter.readFrom(file);
+			
+			assertTrue(loaded.isComplete());
+			assertEquals(1, loaded.getCount());
+			assertTrue(loaded.mightContain("uuid-1"));
+			assertFalse(loaded.mightContain("uuid-2"));
+		}
+		finally {
+			file.delete();
+		}
+	}
+	
+}
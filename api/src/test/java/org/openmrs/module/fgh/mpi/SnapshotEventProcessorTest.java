@@ -15,17 +15,11 @@ import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_SANTE_MESSAGE_HEA
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_SANTE_MESSAGE_HEADER_FOCUS_REFERENCE;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_UUID_SYSTEM;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.OPENMRS_UUID;
-import static org.openmrs.module.fgh.mpi.processor.MpiIntegrationProcessor.ID_PLACEHOLDER;
-import static org.openmrs.module.fgh.mpi.processor.MpiIntegrationProcessor.PATIENT_QUERY;
-import static org.openmrs.module.fgh.mpi.processor.MpiIntegrationProcessor.PERSON_QUERY;
-import static java.util.Arrays.asList;
 import static java.util.Collections.singletonMap;
 
 import java.security.KeyStore;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import javax.net.ssl.KeyManagerFactory;
@@ -46,6 +40,8 @@ import org.openmrs.module.fgh.mpi.integ.MpiContext;
 import org.openmrs.module.fgh.mpi.integ.MpiHttpClient;
 import org.openmrs.module.fgh.mpi.processor.BaseEventProcessor;
 import org.openmrs.module.fgh.mpi.processor.SnapshotEventProcessor;
+import org.openmrs.module.fgh.mpi.projection.PatientProjection;
+import org.openmrs.module.fgh.mpi.projection.PatientProjectionLoader;
 import org.openmrs.module.fgh.mpi.utils.FhirUtils;
 import org.openmrs.module.fgh.mpi.utils.MpiUtils;
 import org.powermock.api.mockito.PowerMockito;
@@ -54,7 +50,7 @@ import org.powermock.modules.junit4.PowerMockRunner;
 
 @RunWith(PowerMockRunner.class)
 @PrepareForTest({ Context.class, MpiUtils.class, FhirUtils.class, MpiContext.class, BaseEventProcessor.class,
-        KeyManagerFactory.class })
+        KeyManagerFactory.class, PatientProjectionLoader.class })
 public class SnapshotEventProcessorTest {
 	
 	@Mock
@@ -95,6 +91,7 @@ public class SnapshotEventProcessorTest {
 		PowerMockito.mockStatic(Context.class);
 		PowerMockito.mockStatic(MpiUtils.class);
 		PowerMockito.mockStatic(FhirUtils.class);
+		PowerMockito.mockStatic(PatientProjectionLoader.class);
 		PowerMockito.mockStatic(MpiContext.class);
 		PowerMockito.mockStatic(KeyStore.class);
 		PowerMockito.mockStatic(KeyManagerFactory.class);
@@ -110,7 +107,7 @@ public class SnapshotEventProcessorTest {
 		when(adminService.getGlobalProperty(GP_SANTE_CLIENT_SECRET)).thenReturn(SANTE_CLIENT_SECRET);
 		when(MpiUtils.getGlobalPropertyValue(GP_UUID_SYSTEM)).thenReturn(UUID_SYSTEM);
 		when(MpiContext.initIfNecessary()).thenReturn(mpiContext);
-		mpiContext.setAuthenticationType(AUTHENTICATION_TYPE);
+		when(mpiContext.getAuthenticationType()).thenReturn(AUTHENTICATION_TYPE);
 	}
 	
 	@Test
@@ -133,16 +130,13 @@ public class SnapshotEventProcessorTest {
 		Map prevState = singletonMap("uuid", patientUuid);
 		final Integer patientId = 1;
 		
-		when(MpiUtils.executeQuery(PERSON_QUERY.replace(ID_PLACEHOLDER, patientId.toString())))
-		        .thenReturn(asList(asList(null, null, null, null, patientUuid, null)));
-		
-		List<List<Object>> expectedPatient = new ArrayList<>();
-		expectedPatient.add(asList(patientUuid));
-		when(MpiUtils.executeQuery(PATIENT_QUERY.replace(ID_PLACEHOLDER, patientId.toString()))).thenReturn(expectedPatient);
+		PatientProjection projection = new PatientProjection(patientId);
+		projection.setUuid(patientUuid);
+		projection.setPatientVoided(false);
+		when(PatientProjectionLoader.load(patientId)).thenReturn(projection);
 		Map<String, Object> patinetGeneratedPayload = new HashMap<>();
 		patinetGeneratedPayload.put("name", "mpi");
-		when(FhirUtils.buildPatient(patientId.toString(), false, expectedPatient.get(0), patinetGeneratedPayload))
-		        .thenReturn(patinetGeneratedPayload);
+		when(FhirUtils.buildPatient(projection, patinetGeneratedPayload)).thenReturn(patinetGeneratedPayload);
 		snapshotEventProcessor = Mockito.spy(snapshotEventProcessor);
 		snapshotEventProcessor.process(new DatabaseEvent(patientId, "person", UPDATE, null, prevState, null));
 		
@@ -175,16 +169,13 @@ public class SnapshotEventProcessorTest {
 		Map prevState = singletonMap("uuid", patientUuid);
 		final Integer patientId = 1;
 		
-		when(MpiUtils.executeQuery(PERSON_QUERY.replace(ID_PLACEHOLDER, patientId.toString())))
-		        .thenReturn(asList(asList(null, null, null, null, patientUuid, null)));
-		
-		List<List<Object>> expectedPatient = new ArrayList<>();
-		expectedPatient.add(asList(patientUuid));
-		when(MpiUtils.executeQuery(PATIENT_QUERY.replace(ID_PLACEHOLDER, patientId.toString()))).thenReturn(expectedPatient);
+		PatientProjection projection = new PatientProjection(patientId);
+		projection.setUuid(patientUuid);
+		projection.setPatientVoided(false);
+		when(PatientProjectionLoader.load(patientId)).thenReturn(projection);
 		Map<String, Object> patinetGeneratedPayload = new HashMap<>();
 		patinetGeneratedPayload.put("name", "mpi");
-		when(FhirUtils.buildPatient(patientId.toString(), false, expectedPatient.get(0), patinetGeneratedPayload))
-		        .thenReturn(patinetGeneratedPayload);
+		when(FhirUtils.buildPatient(projection, patinetGeneratedPayload)).thenReturn(patinetGeneratedPayload);
 		snapshotEventProcessor = Mockito.spy(snapshotEventProcessor);
 		snapshotEventProcessor.process(new DatabaseEvent(patientId, "person", UPDATE, null, prevState, null));
 		
@@ -0,0 +1,47 @@
+package org.openmrs.module.fgh.mpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.openmrs.module.fgh.mpi.processor.StripedExecutor;
+
+public class StripedExecutorTest {
+	
+	@Test
+	public void execute_shouldRunTasksWithTheSameKeyInSubmissionOrder() throws Exception {
+		StripedExecutor executor = new StripedExecutor(4, "test-lane");
+		final int count = 100;
+		List<Integer> executed = new CopyOnWriteArrayList();
+		CountDownLatch latch = new CountDownLatch(count);
+		for (int i = 0; i < count; i++) {
+			final int value = i;
+			executor.execute(7, () -> {
+				executed.add(value);
+				latch.countDown();
+			});
+		}
+		
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < count; i++) {
+			assertEquals(i, executed.get(i).intValue());
+		}
+		
+		executor.shutdown();
+	}
+	
+	@Test
+	public void getLaneIndex_shouldAlwaysReturnTheSameLaneForTheSameKey() {
+		StripedExecutor executor = new StripedExecutor(3, "test-lane");
+		assertEquals(executor.getLaneIndex(-5), executor.getLaneIndex(-5));
+		assertEquals(1, executor.getLaneIndex(4));
+		assertTrue(executor.getLaneIndex(-5) >= 0);
+		executor.shutdown();
+	}
+	
+}
@@ -0,0 +1,101 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+import org.openmrs.module.fgh.mpi.integ.AdaptiveLimiter.Outcome;
+
+public class AdaptiveLimiterTest {
+	
+	/**
+	 * Keeps the limiter fully used by replacing every completed request with a new one
+	 */
+	private void run(AdaptiveLimiter limiter, int requests, Outcome outcome, long latency) {
+		while (limiter.getInFlight() < limiter.getLimit()) {
+			limiter.acquire();
+		}
+		
+		for (int i = 0; i < requests; i++) {
+			limiter.release(outcome, latency);
+			limiter.acquire();
+		}
+	}
+	
+	@Test
+	public void acquire_shouldQueueRequestsThatExceedTheLimitUntilAPermitIsReleased() {
+		AdaptiveLimiter limiter = new AdaptiveLimiter("test", 2, 10, Runnable::run);
+		assertTrue(limiter.acquire().isDone());
+		assertTrue(limiter.acquire().isDone());
+		
+		CompletableFuture<Void> waiter = limiter.acquire();
+		
+		assertFalse(waiter.isDone());
+		assertEquals(1, limiter.getWaiting());
+		limiter.release(Outcome.IGNORED, 10);
+		assertTrue(waiter.isDone());
+		assertEquals(0, limiter.getWaiting());
+		assertEquals(2, limiter.getInFlight());
+	}
+	
+	@Test
+	public void release_shouldGrowTheLimitAdditivelyWhileLatencyStaysNearTheMinimum() {
+		AdaptiveLimiter limiter = new AdaptiveLimiter("test", 2, 4, Runnable::run);
+		
+		run(limiter, 1, Outcome.SUCCESS, 10);
+		assertEquals(2, limiter.getLimit());
+		run(limiter, 2, Outcome.SUCCESS, 15);
+		assertEquals(3, limiter.getLimit());
+		run(limiter, 20, Outcome.SUCCESS, 10);
+		assertEquals(4, limiter.getLimit());
+	}
+	
+	@Test
+	public void release_shouldNotGrowTheLimitWhenLatencyIsWellAboveTheMinimum() {
+		AdaptiveLimiter limiter = new AdaptiveLimiter("test", 2, 10, Runnable::run);
+		limiter.acquire();
+		limiter.release(Outcome.SUCCESS, 10);
+		int limit = limiter.getLimit();
+		
+		run(limiter, 20, Outcome.SUCCESS, 100);
+		
+		assertEquals(limit, limiter.getLimit());
+	}
+	
+	@Test
+	public void release_shouldCutTheLimitMultiplicativelyWhenARequestIsDropped() {
+		AdaptiveLimiter limiter = new AdaptiveLimiter("test", 8, 10, Runnable::run);
+		
+		limiter.acquire();
+		limiter.release(Outcome.DROPPED, 10);
+		assertEquals(4, limiter.getLimit());
+		limiter.acquire();
+		limiter.release(Outcome.DROPPED, 10);
+		limiter.acquire();
+		limiter.release(Outcome.DROPPED, 10);
+		limiter.acquire();
+		limiter.release(Outcome.DROPPED, 10);
+		assertEquals(1, limiter.getLimit());
+	}
+	
+	@Test
+	public void acquire_shouldNotLimitRequestsIfTheMaxLimitIsZero() {
+		AdaptiveLimiter limiter = new AdaptiveLimiter("test", 0, 0, Runnable::run);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(limiter.acquire().isDone());
+		}
+		
+		assertEquals(0, limiter.getWaiting());
+	}
+	
+	@Test
+	public void of_shouldClassifyRequestsByEndpoint() {
+		assertEquals(EndpointClass.PIX_LOOKUP, EndpointClass.of("fhir/Patient/$ihe-pix?sourceIdentifier=x", null));
+		assertEquals(EndpointClass.PATIENT_GET, EndpointClass.of("fhir/Patient/123", null));
+		assertEquals(EndpointClass.SUBMISSION, EndpointClass.of("fhir", "{}"));
+	}
+	
+}
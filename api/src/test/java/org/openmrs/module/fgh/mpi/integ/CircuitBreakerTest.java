@@ -0,0 +1,86 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+	
+	@Test
+	public void onResult_shouldOpenTheCircuitWhenTheFailureRateReachesTheThreshold() {
+		CircuitBreaker breaker = new CircuitBreaker(10, 4, 50, 0, 60000, 1);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(breaker.tryAcquire());
+			breaker.onResult(true, 10);
+		}
+		
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		
+		assertTrue(breaker.tryAcquire());
+		breaker.onResult(false, 10);
+		
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.tryAcquire());
+		assertEquals(1, breaker.getRejectedCalls());
+	}
+	
+	@Test
+	public void onResult_shouldCountSlowCallsAsFailures() {
+		CircuitBreaker breaker = new CircuitBreaker(2, 2, 100, 1000, 60000, 1);
+		breaker.tryAcquire();
+		breaker.onResult(false, 1500);
+		breaker.tryAcquire();
+		breaker.onResult(false, 2000);
+		
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+	
+	@Test
+	public void tryAcquire_shouldLetTrialCallsThroughAfterTheOpenDurationAndCloseIfTheySucceed() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(2, 2, 50, 0, 50, 2);
+		breaker.tryAcquire();
+		breaker.onResult(true, 10);
+		breaker.tryAcquire();
+		breaker.onResult(true, 10);
+		assertFalse(breaker.tryAcquire());
+		
+		Thread.sleep(60);
+		
+		assertTrue(breaker.tryAcquire());
+		assertTrue(breaker.tryAcquire());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.tryAcquire());
+		breaker.onResult(false, 10);
+		breaker.onResult(false, 10);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(0, breaker.getFailureRate(), 0);
+	}
+	
+	@Test
+	public void onResult_shouldReopenTheCircuitIfATrialCallFails() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(1, 1, 50, 0, 50, 1);
+		breaker.tryAcquire();
+		breaker.onResult(true, 10);
+		Thread.sleep(60);
+		
+		assertTrue(breaker.tryAcquire());
+		breaker.onResult(true, 10);
+		
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.tryAcquire());
+	}
+	
+	@Test
+	public void tryAcquire_shouldAlwaysPermitCallsIfTheWindowSizeIsZero() {
+		CircuitBreaker breaker = new CircuitBreaker(0, 0, 50, 0, 60000, 1);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(breaker.tryAcquire());
+			breaker.onResult(true, 10);
+		}
+		
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+	
+}
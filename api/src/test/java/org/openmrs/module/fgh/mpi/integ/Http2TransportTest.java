@@ -0,0 +1,76 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class Http2TransportTest {
+	
+	private HttpServer server;
+	
+	private Http2Transport transport;
+	
+	private String baseUrl;
+	
+	@Before
+	public void setup() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/fhir/Patient", exchange -> {
+			byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+			byte[] response = ("{\"method\":\"" + exchange.getRequestMethod() + "\",\"length\":" + body.length + "}")
+			        .getBytes();
+			exchange.sendResponseHeaders(200, response.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(response);
+			}
+		});
+		server.start();
+		baseUrl = "http://localhost:" + server.getAddress().getPort();
+		transport = new Http2Transport(null, 2, 30000);
+	}
+	
+	@After
+	public void tearDown() {
+		transport.close();
+		server.stop(0);
+	}
+	
+	@Test
+	public void executeAsync_shouldCompleteAllConcurrentRequests() throws Exception {
+		List<CompletableFuture<MpiHttpResponse>> futures = new ArrayList();
+		for (int i = 0; i < 20; i++) {
+			futures.add(transport.executeAsync(new MpiHttpRequest("GET", baseUrl + "/fhir/Patient")));
+		}
+		
+		for (CompletableFuture<MpiHttpResponse> future : futures) {
+			try (MpiHttpResponse response = future.get()) {
+				assertEquals(200, response.getStatusCode());
+				assertEquals("{\"method\":\"GET\",\"length\":0}", IOUtils.toString(response.getBody(), "UTF-8"));
+			}
+		}
+	}
+	
+	@Test
+	public void execute_shouldPostTheRequestBodyAndIgnoreRestrictedHeaders() throws Exception {
+		MpiHttpRequest request = new MpiHttpRequest("POST", baseUrl + "/fhir/Patient");
+		request.setHeader("Content-Type", "application/fhir+json").setHeader("Content-Length", "7").setBody("{\"a\":1}");
+		
+		try (MpiHttpResponse response = transport.execute(request)) {
+			assertEquals(200, response.getStatusCode());
+			assertEquals("{\"method\":\"POST\",\"length\":7}", IOUtils.toString(response.getBody(), "UTF-8"));
+		}
+	}
+	
+}
@@ -1,7 +1,12 @@
 package org.openmrs.module.fgh.mpi.integ;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.when;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_AUTHENTICATION_TYPE;
@@ -18,20 +23,24 @@ import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_SANTE_MESSAGE_HEA
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_UUID_SYSTEM;
 
 import java.security.KeyStore;
+import java.time.LocalDateTime;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.openmrs.api.APIException;
 import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.fgh.mpi.processor.BaseEventProcessor;
 import org.openmrs.module.fgh.mpi.processor.SnapshotEventProcessor;
 import org.openmrs.module.fgh.mpi.entity.AuthenticationType;
 import org.openmrs.module.fgh.mpi.entity.MpiSystemType;
+import org.openmrs.module.fgh.mpi.entity.TokenInfo;
 import org.openmrs.module.fgh.mpi.utils.FhirUtils;
 import org.openmrs.module.fgh.mpi.utils.MpiUtils;
 import org.powermock.api.mockito.PowerMockito;
@@ -95,13 +104,17 @@ public class MpiContextTest {
 		when(MpiUtils.getGlobalPropertyValue(GP_UUID_SYSTEM)).thenReturn(UUID_SYSTEM);
 	}
 	
+	@After
+	public void tearDown() {
+		Whitebox.setInternalState(MpiContext.class, "mpiContext", (MpiContext) null);
+	}
+	
 	@Test
 	public void init_shouldInitOauth() throws Exception {
 		AuthenticationType OUAUTH = AuthenticationType.OAUTH;
 		when(adminService.getGlobalProperty(GP_AUTHENTICATION_TYPE)).thenReturn(OUAUTH.toString());
 		when(adminService.getGlobalProperty(GP_MPI_SYSTEM)).thenReturn(MPI_SYSTEM.toString());
-		MpiContext initOauthContext = new MpiContext();
-		initOauthContext.init();
+		MpiContext initOauthContext = new MpiContext.Builder().load().build();
 		
 		assertEquals(OUAUTH, initOauthContext.getAuthenticationType());
 		assertEquals(MPI_BASE_URL, initOauthContext.getServerBaseUrl());
@@ -128,10 +141,9 @@ public class MpiContextTest {
 		    adminService.getGlobalProperty(GP_KEYSTORE_PASS).toCharArray())).thenReturn(keyStoreMock);
 		when(FhirUtils.getKeyManagerFactoryInstance("SunX509")).thenReturn(keyManagerFactoryMock);
 		when(FhirUtils.getSslContextByProtocol("TLSv1.2")).thenReturn(sslContextMock);
-		MpiContext initSSLContext = new MpiContext();
-		initSSLContext = Mockito.spy(initSSLContext);
-		doNothing().when(initSSLContext).initSSLContext(sslContextMock, keyManagerFactoryMock);
-		initSSLContext.init();
+		MpiContext.Builder builder = Mockito.spy(new MpiContext.Builder());
+		doNothing().when(builder).initSSLContext(sslContextMock, keyManagerFactoryMock);
+		MpiContext initSSLContext = builder.load().build();
 		
 		assertEquals(CERTIFICATE, initSSLContext.getAuthenticationType());
 		assertEquals(MPI_BASE_URL, initSSLContext.getServerBaseUrl());
@@ -139,4 +151,80 @@ public class MpiContextTest {
 		assertEquals(UUID_SYSTEM, initSSLContext.getOpenmrsUuidSystem());
 		assertTrue(initSSLContext.isContextInitialized());
 	}
+	
+	@Test
+	public void initToken_shouldComputeTheExpiryDateFromTheLifetimeInSeconds() {
+		MpiContext mpiContext = new MpiContext.Builder().build();
+		TokenInfo tokenInfo = new TokenInfo();
+		tokenInfo.setExpiresIn(3600);
+		
+		mpiContext.initToken(tokenInfo);
+		
+		assertEquals(tokenInfo, mpiContext.getTokenInfo());
+		assertTrue(tokenInfo.isValid(LocalDateTime.now().plusMinutes(59)));
+		assertFalse(tokenInfo.isValid(LocalDateTime.now().plusMinutes(61)));
+	}
+	
+	@Test
+	public void reload_shouldReplaceTheContextAndKeepTheTokenIfTheCredentialsAreUnchanged() throws Exception {
+		PowerMockito.doCallRealMethod().when(MpiContext.class, "reload");
+		MpiContext previous = new MpiContext.Builder().load().build();
+		TokenInfo tokenInfo = new TokenInfo();
+		tokenInfo.setExpiresIn(3600);
+		previous.initToken(tokenInfo);
+		Whitebox.setInternalState(MpiContext.class, "mpiContext", previous);
+		when(adminService.getGlobalProperty(GP_MPI_APP_CONTENT_TYPE)).thenReturn("application/json");
+		
+		MpiContext.reload();
+		
+		MpiContext current = Whitebox.getInternalState(MpiContext.class, "mpiContext");
+		assertNotSame(previous, current);
+		assertEquals("application/json", current.getContentType());
+		assertEquals(MPI_APP_CONTENT_TYPE, previous.getContentType());
+		assertSame(tokenInfo, current.getTokenInfo());
+	}
+	
+	@Test
+	public void reload_shouldNotKeepTheTokenIfTheClientCredentialsChanged() throws Exception {
+		PowerMockito.doCallRealMethod().when(MpiContext.class, "reload");
+		MpiContext previous = new MpiContext.Builder().load().build();
+		previous.initToken(new TokenInfo());
+		Whitebox.setInternalState(MpiContext.class, "mpiContext", previous);
+		when(adminService.getGlobalProperty(GP_SANTE_CLIENT_SECRET)).thenReturn("new-secret");
+		
+		MpiContext.reload();
+		
+		MpiContext current = Whitebox.getInternalState(MpiContext.class, "mpiContext");
+		assertEquals("new-secret", current.getClientSecret());
+		assertNull(current.getTokenInfo());
+	}
+	
+	@Test
+	public void reload_shouldKeepTheCurrentContextIfTheNewOneCannotBeBuilt() throws Exception {
+		PowerMockito.doCallRealMethod().when(MpiContext.class, "reload");
+		MpiContext previous = new MpiContext.Builder().load().build();
+		Whitebox.setInternalState(MpiContext.class, "mpiContext", previous);
+		when(adminService.getGlobalProperty(GP_MPI_BASE_URL)).thenReturn(" ");
+		
+		try {
+			MpiContext.reload();
+			fail("Expected the reload to fail");
+		}
+		catch (APIException e) {
+			assertEquals(GP_MPI_BASE_URL + " global property value is not set", e.getMessage());
+		}
+		
+		assertSame(previous, Whitebox.getInternalState(MpiContext.class, "mpiContext"));
+	}
+	
+	@Test
+	public void reload_shouldDoNothingIfNoContextWasBuilt() throws Exception {
+		PowerMockito.doCallRealMethod().when(MpiContext.class, "reload");
+		
+		MpiContext.reload();
+		
+		assertNull(Whitebox.getInternalState(MpiContext.class, "mpiContext"));
+		Mockito.verifyZeroInteractions(adminService);
+	}
+	
 }
@@ -2,13 +2,24 @@ package org.openmrs.module.fgh.mpi.integ;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
 import static java.util.Collections.singletonMap;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.FIELD_ACTIVE;
@@ -16,21 +27,40 @@ import static org.openmrs.module.fgh.mpi.utils.MpiConstants.FIELD_CONTACT;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.FIELD_RELATIONSHIP;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.FIELD_VALUE_UUID;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_AUTHENTICATION_TYPE;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_CIRCUIT_BREAKER_FAILURE_RATE;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_CIRCUIT_BREAKER_MINIMUM_CALLS;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_CIRCUIT_BREAKER_OPEN_DURATION;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_CIRCUIT_BREAKER_WINDOW_SIZE;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_CONDITIONAL_UPDATE_SYSTEMS;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_ASYNC_THREAD_COUNT;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_CONCURRENCY_INITIAL_LIMIT;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_CONCURRENCY_MAX_LIMIT;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_POOL_MAX_PER_ROUTE;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_POOL_MAX_TOTAL;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_RETRY_MAX_ATTEMPTS;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_HTTP_TRANSPORT;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_MPI_APP_CONTENT_TYPE;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_MPI_BASE_URL;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_MPI_SYSTEM;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_PATIENT_CACHE_MAX_SIZE;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_PATIENT_CACHE_TTL;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_PATIENT_FILTER_EXPECTED_SIZE;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_SANTE_CLIENT_ID;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_SANTE_CLIENT_SECRET;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_SANTE_MESSAGE_HEADER_EVENT_URI;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_SANTE_MESSAGE_HEADER_FOCUS_REFERENCE;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_UUID_SYSTEM;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.HTTP_TRANSPORT_HTTP2;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.OPENMRS_UUID;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.RESPONSE_FIELD_PARAM;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.RESPONSE_FIELD_VALUE_REF;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.time.LocalDateTime;
@@ -39,6 +69,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -48,6 +82,7 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
@@ -55,6 +90,7 @@ import org.mockito.Mockito;
 import org.openmrs.api.APIException;
 import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.fgh.mpi.crosswalk.MpiPatientFilter;
 import org.openmrs.module.fgh.mpi.entity.AuthenticationType;
 import org.openmrs.module.fgh.mpi.entity.MpiSystemType;
 import org.openmrs.module.fgh.mpi.entity.TokenInfo;
@@ -68,10 +104,13 @@ import org.powermock.modules.junit4.PowerMockRunner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
 @RunWith(PowerMockRunner.class)
 @PrepareForTest({ Context.class, MpiUtils.class, MpiContext.class, URL.class, LoggerFactory.class })
 @SuppressStaticInitializationFor({ "org.openmrs.module.fgh.mpi.integ.MpiContext", "" })
-@PowerMockIgnore("javax.management.*")
+@PowerMockIgnore({ "javax.management.*", "com.sun.net.httpserver.*" })
 public class MpiHttpClientTest {
 	
 	private MpiHttpClient mpiHttpClient;
@@ -112,6 +151,9 @@ public class MpiHttpClientTest {
 	@Rule
 	public ExpectedException expectedException = ExpectedException.none();
 	
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
 	@Mock
 	private MpiContext mpiContextMock;
 	
@@ -141,8 +183,7 @@ public class MpiHttpClientTest {
 	@Test
 	public void doAuthentication_shouldDoAuthenticationForNonLoggedUser() throws Exception {
 		// Mock for HttpURLConnection
-		MpiContext mpiContext = new MpiContext();
-		mpiContext.setServerBaseUrl(MPI_BASE_URL);
+		MpiContext mpiContext = new MpiContext.Builder().setServerBaseUrl(MPI_BASE_URL).build();
 		when(MpiContext.initIfNecessary()).thenReturn(mpiContext);
 		when(MpiUtils.openConnection("sante.fake/auth/oauth2_token")).thenReturn(httpURLConnectionMock);
 		OutputStream outputStreamMock = PowerMockito.mock(OutputStream.class);
@@ -616,7 +657,6 @@ public class MpiHttpClientTest {
 		when(mpiContextMock.getMpiSystem()).thenReturn(MpiSystemType.OPENCR);
 		
 		SSLContext sslContextMock = PowerMockito.mock(SSLContext.class);
-		mpiContextMock.setSslContext(sslContextMock);
 		when(mpiContextMock.getSslContext()).thenReturn(sslContextMock);
 		
 		ObjectMapper objectMapper = new ObjectMapper();
@@ -645,4 +685,534 @@ public class MpiHttpClientTest {
 		assertEquals(patientData.get(FIELD_ACTIVE), submitedData.get(FIELD_ACTIVE));
 		assertEquals(patientData.get(OPENMRS_UUID), submitedData.get(OPENMRS_UUID));
 	}
+	
+	@Test
+	public void getPatientAsync_shouldReturnNullIfNoPatientIsFoundInOpenCR() throws Exception {
+		when(MpiContext.initIfNecessary()).thenReturn(mpiContextMock);
+		when(mpiContextMock.getAuthenticationType()).thenReturn(AUTHENTICATION_TYPE.CERTIFICATE);
+		when(mpiContextMock.getServerBaseUrl()).thenReturn("opencr.fake");
+		when(mpiContextMock.getMpiSystem()).thenReturn(MpiSystemType.OPENCR);
+		when(MpiUtils.openConnectionForSSL("opencr.fake/fhir/Patient/$ihe-pix?sourceIdentifier=null|some-uuid",
+		    mpiContextMock)).thenReturn(httpsURLConnectionMock);
+		when(httpsURLConnectionMock.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+		when(httpsURLConnectionMock.getInputStream()).thenReturn(new ByteArrayInputStream("{}".getBytes()));
+		
+		assertNull(mpiHttpClient.getPatientAsync("some-uuid").get());
+	}
+	
+	@Test
+	public void submitPatientAsync_shouldCompleteExceptionallyIfAnEmptyResponseIsReceived() throws Exception {
+		when(MpiContext.initIfNecessary()).thenReturn(mpiContextMock);
+		when(mpiContextMock.getAuthenticationType()).thenReturn(AUTHENTICATION_TYPE.CERTIFICATE);
+		when(mpiContextMock.getServerBaseUrl()).thenReturn(MPI_BASE_URL);
+		when(mpiContextMock.getMpiSystem()).thenReturn(MpiSystemType.SANTEMPI);
+		when(MpiUtils.openConnectionForSSL("sante.fake/fhir/Patient", mpiContextMock)).thenReturn(httpsURLConnectionMock);
+		when(httpsURLConnectionMock.getOutputStream()).thenReturn(PowerMockito.mock(OutputStream.class));
+		when(httpsURLConnectionMock.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+		when(httpsURLConnectionMock.getInputStream()).thenAnswer(invocation -> new ByteArrayInputStream("{}".getBytes()));
+		
+		CompletableFuture<Void> future = mpiHttpClient.submitPatientAsync("{}");
+		
+		assertTrue(future.isCompletedExceptionally());
+		expectedException.expect(APIException.class);
+		expectedException.expectMessage(equalTo("An empty response was received when the patient was submitted"));
+		mpiHttpClient.submitPatient("{}");
+	}
+	
+	@Test
+	public void submitRequest_shouldRefreshTheTokenAndReplayTheRequestWhenSanteMpiReturns401() throws Exception {
+		when(MpiContext.initIfNecessary()).thenReturn(mpiContextMock);
+		when(mpiContextMock.getAuthenticationType()).thenReturn(AUTHENTICATION_TYPE.OAUTH);
+		when(mpiContextMock.getServerBaseUrl()).thenReturn(MPI_BASE_URL);
+		when(mpiContextMock.getMpiSystem()).thenReturn(MpiSystemType.SANTEMPI);
+		when(mpiContextMock.getClientId()).thenReturn(SANTE_CLIENT_ID);
+		when(mpiContextMock.getClientSecret()).thenReturn(SANTE_CLIENT_SECRET);
+		when(MpiUtils.openConnection("sante.fake/fhir/Patient")).thenReturn(httpURLConnectionMock);
+		when(httpURLConnectionMock.getResponseCode()).thenReturn(HttpURLConnection.HTTP_UNAUTHORIZED,
+		    HttpURLConnection.HTTP_OK);
+		when(httpURLConnectionMock.getInputStream()).thenReturn(new ByteArrayInputStream("{\"id\":1}".getBytes()));
+		
+		TokenInfo tokenInfo = new TokenInfo();
+		tokenInfo.setAccessToken(ACCESS_TOKEN);
+		tokenInfo.setRefreshToken(REFRESH_TOKEN);
+		tokenInfo.setTokenExpirationDateTime(LocalDateTime.now().plus(1, ChronoUnit.HOURS));
+		tokenInfo.setExpiresIn(3600l);
+		when(mpiContextMock.getTokenInfo()).thenReturn(tokenInfo);
+		
+		final String refreshData = "grant_type=refresh_token&refresh_token=REFRESH_TOKEN&client_secret="
+		        + SANTE_CLIENT_SECRET + "&client_id=" + SANTE_CLIENT_ID;
+		mpiHttpClient = Mockito.spy(mpiHttpClient);
+		doNothing().when(mpiHttpClient).doAuthentication(refreshData);
+		
+		Map<String, Object> response = mpiHttpClient.submitRequest("fhir/Patient", null, Map.class);
+		
+		assertEquals(1, response.get("id"));
+		verify(mpiHttpClient).doAuthentication(refreshData);
+	}
+	
+	@Test
+	public void submitRequest_shouldFailFastWithoutSendingTheRequestWhileTheCircuitBreakerIsOpen() throws Exception {
+		when(MpiContext.initIfNecessary()).thenReturn(mpiContextMock);
+		when(mpiContextMock.getAuthenticationType()).thenReturn(AUTHENTICATION_TYPE.CERTIFICATE);
+		when(mpiContextMock.getServerBaseUrl()).thenReturn("opencr.fake");
+		when(mpiContextMock.getMpiSystem()).thenReturn(MpiSystemType.OPENCR);
+		when(MpiUtils.getGlobalPropertyAsInt(GP_CIRCUIT_BREAKER_WINDOW_SIZE, 20)).thenReturn(1);
+		when(MpiUtils.getGlobalPropertyAsInt(GP_CIRCUIT_BREAKER_MINIMUM_CALLS, 10)).thenReturn(1);
+		when(MpiUtils.getGlobalPropertyAsInt(GP_CIRCUIT_BREAKER_FAILURE_RATE, 50)).thenReturn(50);
+		when(MpiUtils.getGlobalPropertyAsInt(GP_CIRCUIT_BREAKER_OPEN_DURATION, 10000)).thenReturn(60000);
+		when(MpiUtils.openConnectionForSSL("opencr.fake/fhir/Patient", mpiContextMock)).thenReturn(httpsURLConnectionMock);
+		when(httpsURLConnectionMock.getResponseCode()).thenReturn(HttpURLConnection.HTTP_UNAVAILABLE);
+		try {
+			mpiHttpClient.submitRequest("fhir/Patient", null, Map.class);
+			fail("Expected the request to fail");
+		}
+		catch (MpiHttpException e) {
+			assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, e.getStatusCode());
+		}
+		
+		expectedException.expect(CircuitBreakerOpenException.class);
+		try {
+			mpiHttpClient.submitRequest("fhir/Patient", null, Map.class);
+		}
+		finally {
+			assertEquals(CircuitBreaker.State.OPEN, mpiHttpClient.getCircuitBreaker().getState());
+			verify(httpsURLConnectionMock, Mockito.times(1)).connect();
+		}
+	}
+	
+	@Test
+	public void submitRequest_shouldRetryAGetRequestThatFailedWithARetryableError() throws Exception {
+		when(MpiContext.initIfNecessary()).thenReturn(mpiContextMock);
+		when(mpiContextMock.getAuthenticationType()).thenReturn(AUTHENTICATION_TYPE.CERTIFICATE);
+		when(mpiContextMock.getServerBaseUrl()).thenReturn("opencr.fake");
+		when(mpiContextMock.getMpiSystem()).thenReturn(MpiSystemType.OPENCR);
+		when(MpiUtils.getGlobalPropertyAsInt(GP_HTTP_RETRY_MAX_ATTEMPTS, 3)).thenReturn(3);
+		when(MpiUtils.openConnectionForSSL("opencr.fake/fhir/Patient", mpiContextMock)).thenReturn(httpsURLConnectionMock);
+		when(httpsURLConnectionMock.getResponseCode()).thenReturn(HttpURLConnection.HTTP_GATEWAY_TIMEOUT);
+		expectedException.expect(MpiHttpException.class);
+		
+		try {
+			mpiHttpClient.submitRequest("fhir/Patient", null, Map.class);
+		}
+		finally {
+			verify(httpsURLConnectionMock, Mockito.times(3)).connect();
+		}
+	}
+	
+	@Test
+	public void submitRequest_shouldNotRetryAPostRequestThatReachedTheMpi() throws Exception {
+		when(MpiContext.initIfNecessary()).thenReturn(mpiContextMock);
+		when(mpiContextMock.getAuthenticationType()).thenReturn(AUTHENTICATION_TYPE.CERTIFICATE);
+		when(mpiContextMock.getServerBaseUrl()).thenReturn("opencr.fake");
+		when(mpiContextMock.getMpiSystem()).thenReturn(MpiSystemType.OPENCR);
+		when(MpiUtils.getGlobalPropertyAsInt(GP_HTTP_RETRY_MAX_ATTEMPTS, 3)).thenReturn(3);
+		when(MpiUtils.openConnectionForSSL("opencr.fake/fhir/Patient", mpiContextMock)).thenReturn(httpsURLConnectionMock);
+		when(httpsURLConnectionMock.getOutputStream()).thenReturn(PowerMockito.mock(OutputStream.class));
+		when(httpsURLConnectionMock.getResponseCode()).thenReturn(HttpURLConnection.HTTP_GATEWAY_TIMEOUT);
+		expectedException.expect(MpiHttpException.class);
+		
+		try {
+			mpiHttpClient.submitRequest("fhir/Patient", "{}", Map.class);
+		}
+		finally {
+			verify(httpsURLConnectionMock, Mockito.times(1)).connect();
+		}
+	}
+	
+	@Test
+	public void getTransport_shouldUseThePooledTransportInsteadOfHttp2WithCertificateAuthentication() throws Exception {
+		when(adminService.getGlobalProperty(GP_HTTP_TRANSPORT)).thenReturn(HTTP_TRANSPORT_HTTP2);
+		when(MpiUtils.getGlobalPropertyAsInt(GP_HTTP_POOL_MAX_TOTAL, 20)).thenReturn(20);
+		when(MpiUtils.getGlobalPropertyAsInt(GP_HTTP_POOL_MAX_PER_ROUTE, 10)).thenReturn(10);
+		when(mpiContextMock.getAuthenticationType()).thenReturn(AUTHENTICATION_TYPE.CERTIFICATE);
+		when(mpiContextMock.getSslContext()).thenReturn(SSLContext.getDefault());
+		
+		assertTrue(mpiHttpClient.getTransport(mpiContextMock) instanceof PooledHttpTransport);
+	}
+	
+	@Test
+	public void getPatients_shouldResolveThePatientsUsingBatchBundlesOfGetEntries() throws Exception {
+		when(MpiContext.initIfNecessary()).thenReturn(mpiContextMock);
+		when(mpiContextMock.getMpiSystem()).thenReturn(MpiSystemType.OPENCR);
+		Map pixFound = singletonMap(RESPONSE_FIELD_PARAM, asList(singletonMap(RESPONSE_FIELD_VALUE_REF, "Patient/ref-1")));
+		Map pixBundle = singletonMap("entry",
+		    asList(createBatchEntry(pixFound, "200 OK"), createBatchEntry(null, "404 Not Found"),
+		        createBatchEntry(null, "500 Internal Server Error")));
+		Map mpiPatient = singletonMap("id", "ref-1");
+		Map patientBundle = singletonMap("entry", asList(createBatchEntry(mpiPatient, "200 OK")));
+		List<Map> requestBundles = new ArrayList();
+		List<EndpointClass> endpointClasses = new ArrayList();
+		mpiHttpClient = Mockito.spy(mpiHttpClient);
+		doAnswer(invocation -> {
+			Map bundle = new ObjectMapper().readValue(invocation.getArgument(1).toString(), Map.class);
+			requestBundles.add(bundle);
+			endpointClasses.add(invocation.getArgument(2));
+			return requestBundles.size() == 1 ? pixBundle : patientBundle;
+		}).when(mpiHttpClient).submitReadRequest(eq("fhir"), anyString(), any(EndpointClass.class), eq(Object.class));
+		
+		Map<String, Map<String, Object>> patients = mpiHttpClient.getPatients(asList("uuid-1", "uuid-2", "uuid-3"));
+		
+		assertEquals(2, requestBundles.size());
+		assertEquals(asList(EndpointClass.PIX_LOOKUP, EndpointClass.PATIENT_GET), endpointClasses);
+		assertEquals("batch", requestBundles.get(0).get("type"));
+		List<Map> pixEntries = (List) requestBundles.get(0).get("entry");
+		assertEquals(3, pixEntries.size());
+		assertEquals("GET", ((Map) pixEntries.get(0).get("request")).get("method"));
+		assertEquals("Patient/$ihe-pix?sourceIdentifier=null|uuid-1", ((Map) pixEntries.get(0).get("request")).get("url"));
+		List<Map> patientEntries = (List) requestBundles.get(1).get("entry");
+		assertEquals(1, patientEntries.size());
+		assertEquals("Patient/ref-1", ((Map) patientEntries.get(0).get("request")).get("url"));
+		assertEquals(mpiPatient, patients.get("uuid-1"));
+		assertTrue(patients.containsKey("uuid-2"));
+		assertNull(patients.get("uuid-2"));
+		assertFalse(patients.containsKey("uuid-3"));
+	}
+	
+	@Test
+	public void submitPatient_shouldCacheTheSubmittedPatientAndInvalidateItIfASubmissionFails() throws Exception {
+		final String patientUuid = "patient-uuid";
+		when(MpiContext.initIfNecessary()).thenReturn(mpiContextMock);
+		when(mpiContextMock.getMpiSystem()).thenReturn(MpiSystemType.SANTEMPI);
+		when(mpiContextMock.getOpenmrsUuidSystem()).thenReturn(UUID_SYSTEM);
+		when(MpiUtils.getGlobalPropertyAsInt(GP_PATIENT_CACHE_MAX_SIZE, 10485760)).thenReturn(10000);
+		when(MpiUtils.getGlobalPropertyAsInt(GP_PATIENT_CACHE_TTL, 300000)).thenReturn(60000);
+		Map<String, Object> uuidId = new HashMap();
+		uuidId.put("system", UUID_SYSTEM);
+		uuidId.put("value", patientUuid);
+		Map<String, Object> patient = new HashMap();
+		patient.put("resourceType", "Patient");
+		patient.put("identifier", asList(uuidId, null));
+		final String patientData = new ObjectMapper().writeValueAsString(patient);
+		mpiHttpClient = Mockito.spy(mpiHttpClient);
+		doAnswer(invocation -> singletonMap("id", 1)).when(mpiHttpClient).submitRequest("fhir/Patient", patientData,
+		    Map.class);
+		
+		mpiHttpClient.submitPatient(patientData);
+		
+		assertEquals(patient, mpiHttpClient.getPatient(patientUuid));
+		verify(mpiHttpClient, never()).submitRequest(anyString(), eq(null), eq(Map.class));
+		doThrow(new MpiHttpException(500, "Internal Server Error")).when(mpiHttpClient).submitRequest("fhir/Patient",
+		    patientData, Map.class);
+		try {
+			mpiHttpClient.submitPatient(patientData);
+			fail("Expected the submission to fail");
+		}
+		catch (MpiHttpException e) {}
+		
+		assertNull(mpiHttpClient.getPatientCache().get(patientUuid));
+	}
+	
+	@Test
+	public void submitBatchBundle_shouldNotRecordAnyPatientIfTheMpiDidNotProcessAllOfThem() throws Exception {
+		final String patientUuid = "patient-uuid";
+		when(MpiContext.initIfNecessary()).thenReturn(mpiContextMock);
+		when(mpiContextMock.getMpiSystem()).thenReturn(MpiSystemType.OPENCR);
+		when(mpiContextMock.getOpenmrsUuidSystem()).thenReturn(UUID_SYSTEM);
+		when(MpiUtils.getGlobalPropertyAsInt(GP_PATIENT_CACHE_MAX_SIZE, 10485760)).thenReturn(10000);
+		when(MpiUtils.getGlobalPropertyAsInt(GP_PATIENT_CACHE_TTL, 300000)).thenReturn(60000);
+		Map<String, Object> uuidId = new HashMap();
+		uuidId.put("system", UUID_SYSTEM);
+		uuidId.put("value", patientUuid);
+		Map<String, Object> patient = new HashMap();
+		patient.put("resourceType", "Patient");
+		patient.put("identifier", singletonList(uuidId));
+		Map<String, Object> otherPatient = new HashMap();
+		otherPatient.put("resourceType", "Patient");
+		Map<String, Object> bundle = new HashMap();
+		bundle.put("resourceType", "Bundle");
+		bundle.put("type", "batch");
+		bundle.put("entry", asList(singletonMap("resource", patient), singletonMap("resource", otherPatient)));
+		final String bundleData = new ObjectMapper().writeValueAsString(bundle);
+		mpiHttpClient.getPatientCache().put(patientUuid, patient);
+		mpiHttpClient = Mockito.spy(mpiHttpClient);
+		doReturn(asList(new HashMap(), new HashMap())).when(mpiHttpClient).submitRequest("fhir", bundleData, List.class);
+		
+		try {
+			mpiHttpClient.submitBatchBundle(bundleData, 2);
+			fail("Expected the submission to fail");
+		}
+		catch (APIException e) {
+			assertEquals("1 patient(s) in the batch were not successfully processed by the MPI", e.getMessage());
+		}
+		
+		assertNull(mpiHttpClient.getPatientCache().get(patientUuid));
+		PowerMockito.verifyStatic(MpiUtils.class, never());
+		MpiUtils.executeUpdate(startsWith("INSERT INTO mpi_patient_content_hash"), any());
+	}
+	
+	@Test
+	public void getPatient_shouldFetchThePatientByIdIfItsMpiIdIsInTheCrosswalk() throws Exception {
+		final String patientUuid = "patient-uuid";
+		when(MpiContext.initIfNecessary()).thenReturn(mpiContextMock);
+		when(mpiContextMock.getMpiSystem()).thenReturn(MpiSystemType.OPENCR);
+		when(MpiUtils.executeQuery(anyString(), eq(patientUuid))).thenReturn(singletonList(asList(patientUuid, "mpi-id")));
+		Map<String, Object> patient = singletonMap("id", "mpi-id");
+		mpiHttpClient = Mockito.spy(mpiHttpClient);
+		doReturn(patient).when(mpiHttpClient).submitRequest("fhir/Patient/mpi-id", null, Map.class);
+		
+		assertEquals(patient, mpiHttpClient.getPatient(patientUuid));
+		
+		verify(mpiHttpClient, never()).submitRequest(startsWith("fhir/Patient/$ihe-pix"), eq(null), eq(Map.class));
+	}
+	
+	@Test
+	public void getPatient_shouldRemoveAStaleMpiIdFromTheCrosswalkAndFallBackToAPixQuery() throws Exception {
+		final String patientUuid = "patient-uuid";
+		when(MpiContext.initIfNecessary()).thenReturn(mpiContextMock);
+		when(mpiContextMock.getMpiSystem()).thenReturn(MpiSystemType.OPENCR);
+		when(MpiUtils.executeQuery(anyString(), eq(patientUuid))).thenReturn(singletonList(asList(patientUuid, "old-id")));
+		Map pixResponse = singletonMap(RESPONSE_FIELD_PARAM, asList(singletonMap(RESPONSE_FIELD_VALUE_REF, "Patient/new-id")));
+		Map<String, Object> patient = singletonMap("id", "new-id");
+		mpiHttpClient = Mockito.spy(mpiHttpClient);
+		doThrow(new MpiHttpException(404, "Not Found")).when(mpiHttpClient).submitRequest("fhir/Patient/old-id", null,
+		    Map.class);
+		doReturn(pixResponse).when(mpiHttpClient).submitRequest(startsWith("fhir/Patient/$ihe-pix"), eq(null),
+		    eq(Map.class));
+		doReturn(patient).when(mpiHttpClient).submitRequest("fhir/Patient/new-id", null, Map.class);
+		
+		assertEquals(patient, mpiHttpClient.getPatient(patientUuid));
+		
+		PowerMockito.verifyStatic(MpiUtils.class);
+		MpiUtils.executeUpdate("DELETE FROM mpi_patient_crosswalk WHERE patient_uuid = ?", patientUuid);
+		PowerMockito.verifyStatic(MpiUtils.class);
+		MpiUtils.executeUpdate(startsWith("INSERT INTO mpi_patient_crosswalk"), eq(patientUuid), eq("new-id"), any());
+	}
+	
+	@Test
+	public void updatePatient_shouldSubmitThePatientAsAConditionalUpdateOnTheUuidIdentifier() throws Exception {
+		final String patientUuid = "patient-uuid";
+		final String patientData = "{}";
+		when(MpiContext.initIfNecessary()).thenReturn(mpiContextMock);
+		when(mpiContextMock.getMpiSystem()).thenReturn(MpiSystemType.OPENCR);
+		when(mpiContextMock.getOpenmrsUuidSystem()).thenReturn(UUID_SYSTEM);
+		mpiHttpClient = Mockito.spy(mpiHttpClient);
+		doReturn(null).when(mpiHttpClient).submitRequest("PUT", "fhir/Patient?identifier=" + UUID_SYSTEM + "|" + patientUuid,
+		    patientData, Object.class);
+		
+		assertTrue(mpiHttpClient.updatePatient(patientUuid, patientData));
+		
+		verify(mpiHttpClient, never()).submitRequest(anyString(), eq(null), eq(Map.class));
+	}
+	
+	@Test
+	public void updatePatient_shouldDisableConditionalUpdatesIfTheMpiDoesNotSupportThem() throws Exception {
+		final String patientUuid = "patient-uuid";
+		final String patientData = "{}";
+		when(MpiContext.initIfNecessary()).thenReturn(mpiContextMock);
+		when(mpiContextMock.getMpiSystem()).thenReturn(MpiSystemType.SANTEMPI);
+		when(mpiContextMock.getOpenmrsUuidSystem()).thenReturn(UUID_SYSTEM);
+		when(MpiUtils.getGlobalPropertyValue(GP_CONDITIONAL_UPDATE_SYSTEMS)).thenReturn("SANTEMPI");
+		mpiHttpClient = Mockito.spy(mpiHttpClient);
+		doThrow(new MpiHttpException(405, "Method Not Allowed")).when(mpiHttpClient).submitRequest("PUT",
+		    "fhir/Patient?identifier=" + UUID_SYSTEM + "|" + patientUuid, patientData, Object.class);
+		assertTrue(mpiHttpClient.isConditionalUpdateEnabled());
+		
+		assertFalse(mpiHttpClient.updatePatient(patientUuid, patientData));
+		
+		assertFalse(mpiHttpClient.isConditionalUpdateEnabled());
+	}
+	
+	@Test
+	public void updatePatient_shouldFailThePatientAndKeepConditionalUpdatesEnabledIfTheMpiReturns400() throws Exception {
+		final String patientUuid = "patient-uuid";
+		final String patientData = "{}";
+		when(MpiContext.initIfNecessary()).thenReturn(mpiContextMock);
+		when(mpiContextMock.getMpiSystem()).thenReturn(MpiSystemType.SANTEMPI);
+		when(mpiContextMock.getOpenmrsUuidSystem()).thenReturn(UUID_SYSTEM);
+		when(MpiUtils.getGlobalPropertyValue(GP_CONDITIONAL_UPDATE_SYSTEMS)).thenReturn("SANTEMPI");
+		mpiHttpClient = Mockito.spy(mpiHttpClient);
+		doThrow(new MpiHttpException(400, "Bad Request")).when(mpiHttpClient).submitRequest("PUT",
+		    "fhir/Patient?identifier=" + UUID_SYSTEM + "|" + patientUuid, patientData, Object.class);
+		
+		try {
+			mpiHttpClient.updatePatient(patientUuid, patientData);
+			fail();
+		}
+		catch (MpiHttpException e) {
+			assertEquals(400, e.getStatusCode());
+		}
+		
+		assertTrue(mpiHttpClient.isConditionalUpdateEnabled());
+	}
+	
+	@Test
+	public void updatePatient_shouldFallBackAndNotRecordThePatientIfSanteMpiReturns404() throws Exception {
+		final String patientUuid = "patient-uuid";
+		when(MpiContext.initIfNecessary()).thenReturn(mpiContextMock);
+		when(mpiContextMock.getAuthenticationType()).thenReturn(AUTHENTICATION_TYPE.CERTIFICATE);
+		when(mpiContextMock.getServerBaseUrl()).thenReturn(MPI_BASE_URL);
+		when(mpiContextMock.getMpiSystem()).thenReturn(MpiSystemType.SANTEMPI);
+		when(mpiContextMock.getOpenmrsUuidSystem()).thenReturn(UUID_SYSTEM);
+		when(MpiUtils.getGlobalPropertyValue(GP_CONDITIONAL_UPDATE_SYSTEMS)).thenReturn("SANTEMPI");
+		when(MpiUtils.openConnectionForSSL(MPI_BASE_URL + "/fhir/Patient?identifier=" + UUID_SYSTEM + "|" + patientUuid,
+		    mpiContextMock)).thenReturn(httpsURLConnectionMock);
+		when(httpsURLConnectionMock.getOutputStream()).thenReturn(PowerMockito.mock(OutputStream.class));
+		when(httpsURLConnectionMock.getResponseCode()).thenReturn(HttpURLConnection.HTTP_NOT_FOUND);
+		assertTrue(mpiHttpClient.isConditionalUpdateEnabled());
+		
+		assertFalse(mpiHttpClient.updatePatient(patientUuid, "{}"));
+		
+		assertFalse(mpiHttpClient.isConditionalUpdateEnabled());
+	}
+	
+	@Test
+	public void getPatient_shouldRevalidateAnExpiredCachedPatientWithAConditionalRead() throws Exception {
+		final String patientUuid = "patient-uuid";
+		when(MpiContext.initIfNecessary()).thenReturn(mpiContextMock);
+		when(mpiContextMock.getMpiSystem()).thenReturn(MpiSystemType.OPENCR);
+		when(MpiUtils.getGlobalPropertyAsInt(GP_PATIENT_CACHE_MAX_SIZE, 10485760)).thenReturn(10000);
+		when(MpiUtils.getGlobalPropertyAsInt(GP_PATIENT_CACHE_TTL, 300000)).thenReturn(1);
+		when(MpiUtils.executeQuery(anyString(), eq(patientUuid))).thenReturn(singletonList(asList(patientUuid, "mpi-id")));
+		Map<String, Object> patient = new HashMap();
+		patient.put("id", "mpi-id");
+		patient.put("meta", singletonMap("versionId", "2"));
+		mpiHttpClient.getPatientCache().put(patientUuid, patient);
+		Thread.sleep(10);
+		mpiHttpClient = Mockito.spy(mpiHttpClient);
+		doReturn(new ConditionalReadResult("2", null)).when(mpiHttpClient).submitRequest("GET", "fhir/Patient/mpi-id",
+		    null, singletonMap("If-None-Match", "W/\"2\""), ConditionalReadResult.class);
+		
+		assertEquals(patient, mpiHttpClient.getPatient(patientUuid));
+		
+		verify(mpiHttpClient, never()).submitRequest("fhir/Patient/mpi-id", null, Map.class);
+		assertEquals(1, mpiHttpClient.getPatientCache().getStats().getNotModifiedCount());
+	}
+	
+	@Test
+	public void startPatientFilterForInitialLoading_shouldMarkTheFilterCompleteIfInitialLoadingWasNeverDone() {
+		when(MpiUtils.getGlobalPropertyAsInt(GP_PATIENT_FILTER_EXPECTED_SIZE, 1000000)).thenReturn(1000);
+		
+		mpiHttpClient.startPatientFilterForInitialLoading();
+		
+		assertTrue(mpiHttpClient.getPatientFilter().isComplete());
+	}
+	
+	@Test
+	public void startPatientFilterForInitialLoading_shouldNotMarkTheFilterCompleteIfInitialLoadingWasDoneBefore() {
+		when(MpiUtils.getGlobalPropertyAsInt(GP_PATIENT_FILTER_EXPECTED_SIZE, 1000000)).thenReturn(1000);
+		when(MpiUtils.isInitialLoadingDone()).thenReturn(true);
+		
+		mpiHttpClient.startPatientFilterForInitialLoading();
+		
+		assertFalse(mpiHttpClient.getPatientFilter().isComplete());
+	}
+	
+	@Test
+	public void getPatientFilter_shouldCatchUpASavedCompleteFilterWithThePatientsRecordedInTheCrosswalk() throws Exception {
+		when(MpiUtils.getGlobalPropertyAsInt(GP_PATIENT_FILTER_EXPECTED_SIZE, 1000000)).thenReturn(1000);
+		File file = temporaryFolder.newFile();
+		MpiPatientFilter savedFilter = new MpiPatientFilter(1000, 0.01);
+		savedFilter.put("saved-uuid");
+		savedFilter.markComplete();
+		savedFilter.writeTo(file);
+		List<List<Object>> rows = singletonList(singletonList("recorded-uuid"));
+		when(MpiUtils.executeQuery(anyString(), any())).thenReturn(rows);
+		mpiHttpClient = Mockito.spy(mpiHttpClient);
+		doReturn(file).when(mpiHttpClient).getPatientFilterFile();
+		
+		MpiPatientFilter filter = mpiHttpClient.getPatientFilter();
+		
+		assertTrue(filter.isComplete());
+		assertTrue(filter.mightContain("saved-uuid"));
+		assertTrue(filter.mightContain("recorded-uuid"));
+		assertTrue(file.exists());
+		mpiHttpClient.destroy();
+	}
+	
+	@Test
+	public void getPatientFilter_shouldStartAnIncompleteFilterIfTheCrosswalkCannotBeRead() throws Exception {
+		when(MpiUtils.getGlobalPropertyAsInt(GP_PATIENT_FILTER_EXPECTED_SIZE, 1000000)).thenReturn(1000);
+		File file = temporaryFolder.newFile();
+		MpiPatientFilter savedFilter = new MpiPatientFilter(1000, 0.01);
+		savedFilter.markComplete();
+		savedFilter.writeTo(file);
+		when(MpiUtils.executeQuery(anyString(), any())).thenThrow(new APIException("test"));
+		mpiHttpClient = Mockito.spy(mpiHttpClient);
+		doReturn(file).when(mpiHttpClient).getPatientFilterFile();
+		
+		assertFalse(mpiHttpClient.getPatientFilter().isComplete());
+		mpiHttpClient.destroy();
+	}
+	
+	@Test
+	public void savePatientFilter_shouldWriteTheFilterToItsFile() throws Exception {
+		when(MpiUtils.getGlobalPropertyAsInt(GP_PATIENT_FILTER_EXPECTED_SIZE, 1000000)).thenReturn(1000);
+		File file = new File(temporaryFolder.getRoot(), "filter");
+		mpiHttpClient = Mockito.spy(mpiHttpClient);
+		doReturn(file).when(mpiHttpClient).getPatientFilterFile();
+		MpiPatientFilter filter = mpiHttpClient.getPatientFilter();
+		filter.put("patient-uuid");
+		filter.markComplete();
+		
+		mpiHttpClient.savePatientFilter();
+		
+		MpiPatientFilter savedFilter = MpiPatientFilter.readFrom(file);
+		assertTrue(savedFilter.isComplete());
+		assertTrue(savedFilter.mightContain("patient-uuid"));
+		mpiHttpClient.destroy();
+	}
+	
+	@Test
+	public void submitRequestAsync_shouldNotBlockTheTransportThreadsWhenMoreRequestsThanThreadsGet401() throws Exception {
+		final AtomicInteger tokenRequestCount = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/auth/oauth2_token", exchange -> {
+			tokenRequestCount.incrementAndGet();
+			respond(exchange, 200, "{\"access_token\":\"NEW_TOKEN\",\"expires_in\":3600}");
+		});
+		server.createContext("/fhir/Patient", exchange -> {
+			if ("bearer NEW_TOKEN".equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+				respond(exchange, 200, "{\"id\":1}");
+			} else {
+				respond(exchange, 401, "");
+			}
+		});
+		server.start();
+		try {
+			when(adminService.getGlobalProperty(GP_HTTP_TRANSPORT)).thenReturn(HTTP_TRANSPORT_HTTP2);
+			when(MpiUtils.getGlobalPropertyAsInt(GP_HTTP_ASYNC_THREAD_COUNT, 4)).thenReturn(2);
+			when(MpiUtils.getGlobalPropertyAsInt(GP_HTTP_CONCURRENCY_INITIAL_LIMIT, 10)).thenReturn(10);
+			when(MpiUtils.getGlobalPropertyAsInt(GP_HTTP_CONCURRENCY_MAX_LIMIT, 50)).thenReturn(50);
+			MpiContext mpiContext = new MpiContext.Builder().setAuthenticationType(AuthenticationType.OAUTH)
+			        .setServerBaseUrl("http://localhost:" + server.getAddress().getPort()).setMpiSystem(MpiSystemType.SANTEMPI)
+			        .setOpenmrsUuidSystem(UUID_SYSTEM).setContentType(MPI_APP_CONTENT_TYPE).setClientId(SANTE_CLIENT_ID)
+			        .setClientSecret(SANTE_CLIENT_SECRET).build();
+			TokenInfo revokedToken = new TokenInfo();
+			revokedToken.setAccessToken("REVOKED_TOKEN");
+			revokedToken.setExpiresIn(3600);
+			mpiContext.initToken(revokedToken);
+			when(MpiContext.initIfNecessary()).thenReturn(mpiContext);
+			List<CompletableFuture<Map>> futures = new ArrayList();
+			for (int i = 0; i < 8; i++) {
+				futures.add(mpiHttpClient.submitRequestAsync("fhir/Patient", null, Map.class));
+			}
+			
+			for (CompletableFuture<Map> future : futures) {
+				assertEquals(1, future.get(30, TimeUnit.SECONDS).get("id"));
+			}
+			
+			assertEquals(1, tokenRequestCount.get());
+		}
+		finally {
+			mpiHttpClient.destroy();
+			server.stop(0);
+		}
+	}
+	
+	private void respond(HttpExchange exchange, int statusCode, String body) throws IOException {
+		byte[] bytes = body.getBytes();
+		exchange.sendResponseHeaders(statusCode, bytes.length == 0 ? -1 : bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+	
+	private Map createBatchEntry(Map resource, String status) {
+		Map entry = new HashMap();
+		entry.put("resource", resource);
+		entry.put("response", singletonMap("status", status));
+		return entry;
+	}
+	
 }
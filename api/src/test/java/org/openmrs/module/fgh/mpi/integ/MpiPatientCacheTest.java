@@ -0,0 +1,136 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MpiPatientCacheTest {
+	
+	//The length of the json of a patient returned by createPatient
+	private static final int PATIENT_WEIGHT = 24;
+	
+	private Map<String, Object> createPatient(String id) {
+		Map<String, Object> patient = new HashMap();
+		patient.put("id", id);
+		patient.put("active", true);
+		return patient;
+	}
+	
+	@Test
+	public void get_shouldReturnACopyOfTheCachedPatient() {
+		MpiPatientCache cache = new MpiPatientCache(1000, 60000);
+		Map<String, Object> patient = createPatient("1");
+		cache.put("uuid-1", patient);
+		
+		Map<String, Object> cached = cache.get("uuid-1");
+		cached.put("active", false);
+		
+		assertNotSame(patient, cached);
+		assertEquals(patient, cache.get("uuid-1"));
+		assertNull(cache.get("uuid-2"));
+		assertEquals(2, cache.getStats().getHitCount());
+		assertEquals(1, cache.getStats().getMissCount());
+	}
+	
+	@Test
+	public void put_shouldEvictTheLeastRecentlyUsedPatientsWhenTheMaximumWeightIsExceeded() {
+		Map<String, Object> patient = createPatient("1");
+		MpiPatientCache cache = new MpiPatientCache(PATIENT_WEIGHT * 2, 60000);
+		cache.put("uuid-1", patient);
+		cache.put("uuid-2", createPatient("2"));
+		cache.get("uuid-1");
+		
+		cache.put("uuid-3", createPatient("3"));
+		
+		assertEquals(patient, cache.get("uuid-1"));
+		assertNull(cache.get("uuid-2"));
+		assertEquals(createPatient("3"), cache.get("uuid-3"));
+		assertEquals(1, cache.getStats().getEvictionCount());
+		assertEquals(2, cache.getStats().getSize());
+		assertEquals(PATIENT_WEIGHT * 2, cache.getStats().getWeight());
+	}
+	
+	@Test
+	public void get_shouldNotReturnAnExpiredPatient() throws Exception {
+		MpiPatientCache cache = new MpiPatientCache(1000, 50);
+		cache.put("uuid-1", createPatient("1"));
+		
+		Thread.sleep(100);
+		
+		assertNull(cache.get("uuid-1"));
+		assertEquals(1, cache.getStats().getExpirationCount());
+		assertEquals(0, cache.getStats().getSize());
+	}
+	
+	@Test
+	public void invalidate_shouldRemoveThePatient() {
+		MpiPatientCache cache = new MpiPatientCache(1000, 60000);
+		cache.put("uuid-1", createPatient("1"));
+		
+		cache.invalidate("uuid-1");
+		
+		assertNull(cache.get("uuid-1"));
+		assertEquals(0, cache.getStats().getWeight());
+	}
+	
+	@Test
+	public void put_shouldNotCacheAnythingIfTheMaximumWeightIsZero() {
+		MpiPatientCache cache = new MpiPatientCache(0, 60000);
+		cache.put("uuid-1", createPatient("1"));
+		
+		assertFalse(cache.isEnabled());
+		assertNull(cache.get("uuid-1"));
+		assertEquals(0, cache.getStats().getSize());
+	}
+	
+	@Test
+	public void get_shouldRetainAnExpiredPatientWithAVersionForRevalidation() throws Exception {
+		MpiPatientCache cache = new MpiPatientCache(1000, 50);
+		Map<String, Object> patient = createPatient("1");
+		patient.put("meta", singletonMap("versionId", "2"));
+		cache.put("uuid-1", patient);
+		
+		Thread.sleep(100);
+		
+		assertNull(cache.get("uuid-1"));
+		assertEquals("2", cache.getVersion("uuid-1"));
+		assertEquals(1, cache.getStats().getExpirationCount());
+		assertEquals(1, cache.getStats().getSize());
+	}
+	
+	@Test
+	public void revalidate_shouldRenewThePatientIfTheVersionIsUnchanged() throws Exception {
+		MpiPatientCache cache = new MpiPatientCache(1000, 50);
+		Map<String, Object> patient = createPatient("1");
+		cache.put("uuid-1", patient, "2");
+		Thread.sleep(100);
+		assertNull(cache.get("uuid-1"));
+		
+		assertEquals(patient, cache.revalidate("uuid-1", "2"));
+		
+		assertEquals(patient, cache.get("uuid-1"));
+		assertEquals(1, cache.getStats().getRevalidationCount());
+		assertEquals(1, cache.getStats().getNotModifiedCount());
+	}
+	
+	@Test
+	public void revalidate_shouldReturnNullIfTheVersionChanged() {
+		MpiPatientCache cache = new MpiPatientCache(1000, 60000);
+		cache.put("uuid-1", createPatient("1"), "2");
+		
+		assertNull(cache.revalidate("uuid-1", "3"));
+		assertNull(cache.revalidate("uuid-2", "1"));
+		
+		assertEquals(2, cache.getStats().getRevalidationCount());
+		assertEquals(0, cache.getStats().getNotModifiedCount());
+		assertEquals(0.0, cache.getStats().getNotModifiedRate(), 0);
+	}
+	
+}
@@ -0,0 +1,132 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.fgh.mpi.entity.TokenInfo;
+
+public class OAuthTokenManagerTest {
+	
+	private MpiContext mpiContext;
+	
+	private List<String> authenticationRequests;
+	
+	private OAuthTokenManager tokenManager;
+	
+	private class TestMpiHttpClient extends MpiHttpClient {
+		
+		@Override
+		protected void doAuthentication(String data) throws Exception {
+			synchronized (authenticationRequests) {
+				authenticationRequests.add(data);
+			}
+			
+			Thread.sleep(100);
+			TokenInfo tokenInfo = new TokenInfo();
+			tokenInfo.setAccessToken("token-" + authenticationRequests.size());
+			tokenInfo.setRefreshToken("refresh-" + authenticationRequests.size());
+			tokenInfo.setExpiresIn(3600);
+			mpiContext.initToken(tokenInfo);
+		}
+		
+	}
+	
+	@Before
+	public void setup() {
+		mpiContext = new MpiContext.Builder().build();
+		authenticationRequests = new ArrayList();
+		tokenManager = new OAuthTokenManager(new TestMpiHttpClient(), 60000);
+	}
+	
+	@After
+	public void tearDown() {
+		tokenManager.shutdown();
+	}
+	
+	@Test
+	public void getToken_shouldAuthenticateOnlyOnceWhenCalledConcurrentlyWithoutAToken() throws Exception {
+		final int threadCount = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		CountDownLatch latch = new CountDownLatch(1);
+		List<Future<TokenInfo>> futures = new ArrayList();
+		for (int i = 0; i < threadCount; i++) {
+			futures.add(executor.submit(() -> {
+				latch.await();
+				return tokenManager.getToken(mpiContext);
+			}));
+		}
+		
+		latch.countDown();
+		for (Future<TokenInfo> future : futures) {
+			assertEquals("token-1", future.get().getAccessToken());
+		}
+		
+		executor.shutdown();
+		assertEquals(1, authenticationRequests.size());
+		assertTrue(authenticationRequests.get(0).startsWith("grant_type=client_credentials"));
+	}
+	
+	@Test
+	public void getToken_shouldReturnTheCurrentTokenAndRefreshItInTheBackgroundWhenItIsAboutToExpire() throws Exception {
+		TokenInfo token = tokenManager.getToken(mpiContext);
+		token.setTokenExpirationDateTime(LocalDateTime.now().plusSeconds(10));
+		
+		assertSame(token, tokenManager.getToken(mpiContext));
+		
+		long deadline = System.currentTimeMillis() + 5000;
+		while (mpiContext.getTokenInfo() == token && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		
+		assertEquals("token-2", mpiContext.getTokenInfo().getAccessToken());
+		assertEquals("grant_type=refresh_token&refresh_token=refresh-1&client_secret=null&client_id=null",
+		    authenticationRequests.get(1));
+	}
+	
+	@Test
+	public void refresh_shouldNotAuthenticateAgainIfAnotherThreadAlreadyReplacedTheToken() throws Exception {
+		TokenInfo staleToken = tokenManager.getToken(mpiContext);
+		TokenInfo newToken = tokenManager.refresh(mpiContext, staleToken);
+		
+		assertNotSame(staleToken, newToken);
+		assertSame(newToken, tokenManager.refresh(mpiContext, staleToken));
+		assertEquals(2, authenticationRequests.size());
+	}
+	
+	@Test
+	public void rebind_shouldScheduleTheRefreshOfTheTokenCarriedOverToTheNewContext() throws Exception {
+		tokenManager.getToken(mpiContext);
+		MpiContext newContext = new MpiContext.Builder().build();
+		TokenInfo carriedToken = new TokenInfo();
+		carriedToken.setAccessToken("carried-token");
+		carriedToken.setRefreshToken("carried-refresh");
+		carriedToken.setExpiresIn(2);
+		newContext.initToken(carriedToken);
+		mpiContext = newContext;
+		
+		tokenManager.rebind(newContext);
+		
+		long deadline = System.currentTimeMillis() + 5000;
+		while (newContext.getTokenInfo() == carriedToken && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		
+		assertEquals("token-2", newContext.getTokenInfo().getAccessToken());
+		assertEquals("grant_type=refresh_token&refresh_token=carried-refresh&client_secret=null&client_id=null",
+		    authenticationRequests.get(1));
+	}
+	
+}
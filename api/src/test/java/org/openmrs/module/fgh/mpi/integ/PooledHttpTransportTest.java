@@ -0,0 +1,89 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class PooledHttpTransportTest {
+	
+	private HttpServer server;
+	
+	private PooledHttpTransport transport;
+	
+	private Set<Integer> clientPorts = new HashSet();
+	
+	private String baseUrl;
+	
+	@Before
+	public void setup() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/fhir/Patient", exchange -> {
+			clientPorts.add(exchange.getRemoteAddress().getPort());
+			byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+			byte[] response = ("{\"method\":\"" + exchange.getRequestMethod() + "\",\"length\":" + body.length + "}")
+			        .getBytes();
+			exchange.sendResponseHeaders(200, response.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(response);
+			}
+		});
+		server.start();
+		baseUrl = "http://localhost:" + server.getAddress().getPort();
+		transport = new PooledHttpTransport(null, 5, 5, 30000, 2000);
+	}
+	
+	@After
+	public void tearDown() {
+		transport.close();
+		server.stop(0);
+	}
+	
+	@Test
+	public void execute_shouldReuseTheSameConnectionForSubsequentRequests() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			try (MpiHttpResponse response = transport.execute(new MpiHttpRequest("GET", baseUrl + "/fhir/Patient"))) {
+				assertEquals(200, response.getStatusCode());
+			}
+		}
+		
+		assertEquals(1, clientPorts.size());
+		assertEquals(0, transport.getPoolStats().getLeased());
+		assertEquals(1, transport.getPoolStats().getAvailable());
+	}
+	
+	@Test
+	public void execute_shouldPostTheRequestBody() throws Exception {
+		MpiHttpRequest request = new MpiHttpRequest("POST", baseUrl + "/fhir/Patient");
+		request.setHeader("Content-Type", "application/fhir+json").setHeader("Content-Length", "7").setBody("{\"a\":1}");
+		
+		try (MpiHttpResponse response = transport.execute(request)) {
+			assertEquals(200, response.getStatusCode());
+			try (InputStream in = response.getBody()) {
+				assertEquals("{\"method\":\"POST\",\"length\":7}", IOUtils.toString(in, "UTF-8"));
+			}
+		}
+	}
+	
+	@Test
+	public void execute_shouldReturnTheConnectionToThePoolWhenTheBodyIsNotRead() throws Exception {
+		try (MpiHttpResponse response = transport.execute(new MpiHttpRequest("GET", baseUrl + "/fhir/Patient"))) {
+			assertEquals(200, response.getStatusCode());
+		}
+		
+		assertEquals(0, transport.getPoolStats().getLeased());
+		assertEquals(1, transport.getPoolStats().getAvailable());
+	}
+	
+}
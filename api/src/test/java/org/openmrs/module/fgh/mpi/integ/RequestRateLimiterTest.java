@@ -0,0 +1,32 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RequestRateLimiterTest {
+	
+	@Test
+	public void reserve_shouldAllowABurstUpToTheRateThenDelayRequests() {
+		RequestRateLimiter limiter = new RequestRateLimiter(5);
+		for (int i = 0; i < 5; i++) {
+			assertEquals(0, limiter.reserve());
+		}
+		
+		long first = limiter.reserve();
+		long second = limiter.reserve();
+		
+		assertTrue(first > 0 && first <= 200);
+		assertTrue(second > first && second <= 400);
+	}
+	
+	@Test
+	public void reserve_shouldNotDelayRequestsIfTheRateIsZero() {
+		RequestRateLimiter limiter = new RequestRateLimiter(0);
+		for (int i = 0; i < 100; i++) {
+			assertEquals(0, limiter.reserve());
+		}
+	}
+	
+}
@@ -0,0 +1,52 @@
+package org.openmrs.module.fgh.mpi.integ;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+import org.openmrs.api.APIException;
+
+public class RetryPolicyTest {
+	
+	@Test
+	public void shouldRetry_shouldRetryIoErrorsAndTemporaryErrorResponsesUpToTheMaximumAttempts() {
+		RetryPolicy policy = new RetryPolicy(3, 100, 1000);
+		
+		assertTrue(policy.shouldRetry(new APIException(new SocketTimeoutException()), 1));
+		assertTrue(policy.shouldRetry(new MpiHttpException(503, "Service Unavailable"), 2));
+		assertTrue(policy.shouldRetry(new MpiHttpException(429, "Too Many Requests"), 1));
+		assertFalse(policy.shouldRetry(new MpiHttpException(503, "Service Unavailable"), 3));
+		assertFalse(policy.shouldRetry(new MpiHttpException(400, "Bad Request"), 1));
+		assertFalse(policy.shouldRetry(new APIException("No id system uri defined"), 1));
+		assertFalse(policy.shouldRetry(new CircuitBreakerOpenException("open"), 1));
+	}
+	
+	@Test
+	public void shouldRetry_shouldOnlyRetryConnectionFailuresForARequestThatIsNotIdempotent() {
+		RetryPolicy policy = new RetryPolicy(3, 100, 1000);
+		
+		assertTrue(policy.shouldRetry(new APIException(new ConnectException("Connection refused")), 1, false));
+		assertFalse(policy.shouldRetry(new APIException(new ConnectException("Connection refused")), 3, false));
+		assertFalse(policy.shouldRetry(new APIException(new SocketTimeoutException("Read timed out")), 1, false));
+		assertFalse(policy.shouldRetry(new MpiHttpException(500, "Internal Server Error"), 1, false));
+		assertFalse(policy.shouldRetry(new MpiHttpException(504, "Gateway Timeout"), 1, false));
+		assertTrue(policy.shouldRetry(new MpiHttpException(504, "Gateway Timeout"), 1, true));
+	}
+	
+	@Test
+	public void getDelay_shouldGrowExponentiallyWithJitterUpToTheMaximumDelay() {
+		RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+		for (int i = 0; i < 50; i++) {
+			long first = policy.getDelay(1);
+			assertTrue(first >= 50 && first <= 100);
+			long third = policy.getDelay(3);
+			assertTrue(third >= 200 && third <= 400);
+			long tenth = policy.getDelay(10);
+			assertTrue(tenth >= 500 && tenth <= 1000);
+		}
+	}
+	
+}
@@ -0,0 +1,101 @@
+package org.openmrs.module.fgh.mpi.projection;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.when;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_ADULT_PROCESS_ENC_TYPE_UUID;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_CHILD_PROCESS_ENC_TYPE_UUID;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_FICHA_RESUMO_ENC_TYPE_UUID;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.EncounterType;
+import org.openmrs.module.fgh.mpi.projection.LocationCache.CachedLocation;
+import org.openmrs.module.fgh.mpi.refdata.ReferenceData;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ MpiUtils.class, LocationCache.class })
+@PowerMockIgnore("javax.management.*")
+public class HealthFacilityResolverTest {
+	
+	private static final Integer PATIENT_ID = 1;
+	
+	private static final Integer FICHA_TYPE_ID = 10;
+	
+	private static final Integer ADULT_TYPE_ID = 11;
+	
+	private static final Integer CHILD_TYPE_ID = 12;
+	
+	@Before
+	public void setup() {
+		PowerMockito.mockStatic(MpiUtils.class);
+		PowerMockito.mockStatic(LocationCache.class);
+		when(MpiUtils.getEncounterTypeByGlobalProperty(GP_FICHA_RESUMO_ENC_TYPE_UUID))
+		        .thenReturn(new EncounterType(FICHA_TYPE_ID));
+		when(MpiUtils.getEncounterTypeByGlobalProperty(GP_ADULT_PROCESS_ENC_TYPE_UUID))
+		        .thenReturn(new EncounterType(ADULT_TYPE_ID));
+		when(MpiUtils.getEncounterTypeByGlobalProperty(GP_CHILD_PROCESS_ENC_TYPE_UUID))
+		        .thenReturn(new EncounterType(CHILD_TYPE_ID));
+	}
+	
+	@After
+	public void tearDown() {
+		ReferenceData.clear();
+	}
+	
+	@Test
+	public void getEncounterTypeIds_shouldLookUpTheEncounterTypesOnlyOnce() {
+		assertEquals(asList(FICHA_TYPE_ID, ADULT_TYPE_ID, CHILD_TYPE_ID), HealthFacilityResolver.getEncounterTypeIds());
+		assertEquals(asList(FICHA_TYPE_ID, ADULT_TYPE_ID, CHILD_TYPE_ID), HealthFacilityResolver.getEncounterTypeIds());
+		
+		PowerMockito.verifyStatic(MpiUtils.class, times(1));
+		MpiUtils.getEncounterTypeByGlobalProperty(GP_FICHA_RESUMO_ENC_TYPE_UUID);
+	}
+	
+	@Test
+	public void getHealthFacilityId_shouldRankTheEncounterTypesInOrderOfPrecedenceWithASingleQuery() {
+		final Integer locationId = 5;
+		List<List<Object>> rows = singletonList(singletonList(locationId));
+		when(MpiUtils.executeQuery(HealthFacilityResolver.QUERY, PATIENT_ID, FICHA_TYPE_ID, ADULT_TYPE_ID, CHILD_TYPE_ID,
+		    FICHA_TYPE_ID, ADULT_TYPE_ID)).thenReturn(rows);
+		
+		assertEquals(locationId, HealthFacilityResolver.getHealthFacilityId(PATIENT_ID));
+	}
+	
+	@Test
+	public void getHealthFacilityId_shouldReturnNullIfThePatientHasNoMatchingEncounter() {
+		assertNull(HealthFacilityResolver.getHealthFacilityId(PATIENT_ID));
+	}
+	
+	@Test
+	public void getHealthFacility_shouldGetTheResolvedLocationFromTheCache() {
+		final Integer locationId = 5;
+		CachedLocation location = new CachedLocation(locationId, "facility-uuid", "facility-name");
+		List<List<Object>> rows = singletonList(singletonList(locationId.longValue()));
+		when(MpiUtils.executeQuery(HealthFacilityResolver.QUERY, PATIENT_ID, FICHA_TYPE_ID, ADULT_TYPE_ID, CHILD_TYPE_ID,
+		    FICHA_TYPE_ID, ADULT_TYPE_ID)).thenReturn(rows);
+		when(LocationCache.get(locationId)).thenReturn(location);
+		
+		assertEquals(location, HealthFacilityResolver.getHealthFacility(PATIENT_ID));
+	}
+	
+	@Test
+	public void getHealthFacility_shouldReturnNullIfThePatientHasNoHealthFacility() {
+		assertNull(HealthFacilityResolver.getHealthFacility(PATIENT_ID));
+		
+		PowerMockito.verifyZeroInteractions(LocationCache.class);
+	}
+	
+}
@@ -0,0 +1,78 @@
+package org.openmrs.module.fgh.mpi.projection;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.module.fgh.mpi.projection.LocationCache.CachedLocation;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(MpiUtils.class)
+@PowerMockIgnore("javax.management.*")
+public class LocationCacheTest {
+	
+	private static final Integer LOCATION_ID = 5;
+	
+	@Before
+	public void setup() {
+		PowerMockito.mockStatic(MpiUtils.class);
+	}
+	
+	@After
+	public void tearDown() {
+		LocationCache.clear();
+	}
+	
+	private void mockLocationRow(String uuid, String name) {
+		List<List<Object>> rows = singletonList(asList(uuid, name));
+		when(MpiUtils.executeQuery(LocationCache.QUERY, LOCATION_ID)).thenReturn(rows);
+	}
+	
+	@Test
+	public void get_shouldLoadTheLocationOnlyOnce() {
+		mockLocationRow("location-uuid", "Location");
+		
+		CachedLocation location = LocationCache.get(LOCATION_ID);
+		
+		assertEquals(LOCATION_ID, location.getId());
+		assertEquals("location-uuid", location.getUuid());
+		assertEquals("Location", location.getName());
+		assertEquals(location, LocationCache.get(LOCATION_ID));
+		PowerMockito.verifyStatic(MpiUtils.class, times(1));
+		MpiUtils.executeQuery(LocationCache.QUERY, LOCATION_ID);
+	}
+	
+	@Test
+	public void get_shouldReloadTheLocationAfterItIsInvalidated() {
+		mockLocationRow("location-uuid", "Location");
+		LocationCache.get(LOCATION_ID);
+		mockLocationRow("location-uuid", "Renamed Location");
+		
+		LocationCache.invalidate(LOCATION_ID);
+		
+		assertEquals("Renamed Location", LocationCache.get(LOCATION_ID).getName());
+	}
+	
+	@Test
+	public void get_shouldNotCacheAMissingLocation() {
+		assertNull(LocationCache.get(LOCATION_ID));
+		mockLocationRow("location-uuid", "Location");
+		
+		assertEquals("location-uuid", LocationCache.get(LOCATION_ID).getUuid());
+	}
+	
+}
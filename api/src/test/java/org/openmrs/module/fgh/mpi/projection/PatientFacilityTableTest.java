@@ -0,0 +1,255 @@
+package org.openmrs.module.fgh.mpi.projection;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.when;
+import static org.openmrs.module.debezium.DatabaseOperation.CREATE;
+import static org.openmrs.module.debezium.DatabaseOperation.DELETE;
+import static org.openmrs.module.debezium.DatabaseOperation.UPDATE;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_ADULT_PROCESS_ENC_TYPE_UUID;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_CHILD_PROCESS_ENC_TYPE_UUID;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_FICHA_RESUMO_ENC_TYPE_UUID;
+import static org.powermock.reflect.Whitebox.setInternalState;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.EncounterType;
+import org.openmrs.module.debezium.DatabaseEvent;
+import org.openmrs.module.debezium.DatabaseOperation;
+import org.openmrs.module.fgh.mpi.refdata.ReferenceData;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(MpiUtils.class)
+@PowerMockIgnore("javax.management.*")
+public class PatientFacilityTableTest {
+	
+	private static final Integer PATIENT_ID = 1;
+	
+	private static final Integer FICHA_TYPE_ID = 10;
+	
+	private static final Integer ADULT_TYPE_ID = 11;
+	
+	private static final Integer CHILD_TYPE_ID = 12;
+	
+	private static final LocalDateTime OLDEST_DATE = LocalDateTime.of(2020, 1, 1, 8, 0);
+	
+	@Before
+	public void setup() {
+		PowerMockito.mockStatic(MpiUtils.class);
+		when(MpiUtils.getEncounterTypeByGlobalProperty(GP_FICHA_RESUMO_ENC_TYPE_UUID))
+		        .thenReturn(new EncounterType(FICHA_TYPE_ID));
+		when(MpiUtils.getEncounterTypeByGlobalProperty(GP_ADULT_PROCESS_ENC_TYPE_UUID))
+		        .thenReturn(new EncounterType(ADULT_TYPE_ID));
+		when(MpiUtils.getEncounterTypeByGlobalProperty(GP_CHILD_PROCESS_ENC_TYPE_UUID))
+		        .thenReturn(new EncounterType(CHILD_TYPE_ID));
+	}
+	
+	@After
+	public void tearDown() {
+		ReferenceData.clear();
+		setInternalState(PatientFacilityTable.class, "initialized", false);
+	}
+	
+	private void mockRows(List<Object>... rows) {
+		when(MpiUtils.executeQuery(PatientFacilityTable.SELECT, PATIENT_ID)).thenReturn(asList(rows));
+	}
+	
+	private Map<String, Object> createEncounter(Integer encounterId, Integer typeId, LocalDateTime date,
+	        Integer locationId, boolean voided) {
+		Map<String, Object> state = new HashMap();
+		state.put("encounter_id", encounterId);
+		state.put("patient_id", PATIENT_ID);
+		state.put("encounter_type", typeId);
+		state.put("encounter_datetime", Timestamp.valueOf(date));
+		state.put("location_id", locationId);
+		state.put("voided", voided);
+		return state;
+	}
+	
+	private DatabaseEvent createEvent(DatabaseOperation op, Map<String, Object> previousState,
+	        Map<String, Object> newState) {
+		return new DatabaseEvent(100, "encounter", op, null, previousState, newState);
+	}
+	
+	@Test
+	public void initialize_shouldLoadTheTableIfItIsEmpty() {
+		PatientFacilityTable.initialize();
+		
+		assertTrue(PatientFacilityTable.isInitialized());
+		PowerMockito.verifyStatic(MpiUtils.class);
+		MpiUtils.executeUpdate(PatientFacilityTable.DELETE_ALL);
+		PowerMockito.verifyStatic(MpiUtils.class);
+		MpiUtils.executeUpdate(PatientFacilityTable.LOAD, FICHA_TYPE_ID, ADULT_TYPE_ID, FICHA_TYPE_ID, ADULT_TYPE_ID,
+		    CHILD_TYPE_ID);
+	}
+	
+	@Test
+	public void initialize_shouldNotReloadTheTableIfItIsNotEmpty() {
+		List<List<Object>> rows = singletonList(singletonList(1));
+		when(MpiUtils.executeQuery(PatientFacilityTable.EXISTS)).thenReturn(rows);
+		
+		PatientFacilityTable.initialize();
+		
+		assertTrue(PatientFacilityTable.isInitialized());
+		PowerMockito.verifyStatic(MpiUtils.class, never());
+		MpiUtils.executeUpdate(anyString(), any());
+	}
+	
+	@Test
+	public void clear_shouldEmptyTheTableAndMarkItAsNotInitialized() {
+		setInternalState(PatientFacilityTable.class, "initialized", true);
+		
+		PatientFacilityTable.clear();
+		
+		assertFalse(PatientFacilityTable.isInitialized());
+		PowerMockito.verifyStatic(MpiUtils.class);
+		MpiUtils.executeUpdate(PatientFacilityTable.DELETE_ALL);
+	}
+	
+	@Test
+	public void getHealthFacilityId_shouldReturnTheLocationOfTheRowWithTheLowestPriority() {
+		final Integer locationId = 5;
+		List<List<Object>> rows = singletonList(singletonList(locationId));
+		when(MpiUtils.executeQuery(PatientFacilityTable.HEALTH_FACILITY_QUERY, PATIENT_ID)).thenReturn(rows);
+		
+		assertEquals(locationId, PatientFacilityTable.getHealthFacilityId(PATIENT_ID));
+	}
+	
+	@Test
+	public void getHealthFacilityId_shouldReturnNullIfThePatientHasNoRows() {
+		assertNull(PatientFacilityTable.getHealthFacilityId(PATIENT_ID));
+	}
+	
+	@Test
+	public void apply_shouldIgnoreEncountersOfOtherTypes() {
+		Map<String, Object> encounter = createEncounter(100, 99, OLDEST_DATE, 5, false);
+		
+		assertFalse(PatientFacilityTable.apply(createEvent(CREATE, null, encounter)));
+		
+		PowerMockito.verifyStatic(MpiUtils.class, never());
+		MpiUtils.executeQuery(PatientFacilityTable.SELECT, PATIENT_ID);
+	}
+	
+	@Test
+	public void apply_shouldRecordAnOlderEncounterAndReportTheChangedHealthFacility() {
+		mockRows(asList(0, 100, Timestamp.valueOf(OLDEST_DATE), 5));
+		LocalDateTime olderDate = OLDEST_DATE.minusDays(1);
+		Map<String, Object> encounter = createEncounter(101, FICHA_TYPE_ID, olderDate, 6, false);
+		
+		assertTrue(PatientFacilityTable.apply(createEvent(CREATE, null, encounter)));
+		
+		PowerMockito.verifyStatic(MpiUtils.class);
+		MpiUtils.executeUpdate(PatientFacilityTable.UPSERT, PATIENT_ID, 0, 101, Timestamp.valueOf(olderDate), 6);
+	}
+	
+	@Test
+	public void apply_shouldNotReportAChangeForANewerEncounter() {
+		mockRows(asList(0, 100, Timestamp.valueOf(OLDEST_DATE), 5));
+		Map<String, Object> encounter = createEncounter(101, FICHA_TYPE_ID, OLDEST_DATE.plusDays(1), 6, false);
+		
+		assertFalse(PatientFacilityTable.apply(createEvent(CREATE, null, encounter)));
+		
+		PowerMockito.verifyStatic(MpiUtils.class, never());
+		MpiUtils.executeUpdate(anyString(), any());
+	}
+	
+	@Test
+	public void apply_shouldNotReportAChangeForAnOlderEncounterOfALowerPrecedenceType() {
+		mockRows(asList(0, 100, Timestamp.valueOf(OLDEST_DATE), 5));
+		LocalDateTime olderDate = OLDEST_DATE.minusDays(1);
+		Map<String, Object> encounter = createEncounter(101, ADULT_TYPE_ID, olderDate, 6, false);
+		
+		assertFalse(PatientFacilityTable.apply(createEvent(CREATE, null, encounter)));
+		
+		PowerMockito.verifyStatic(MpiUtils.class);
+		MpiUtils.executeUpdate(PatientFacilityTable.UPSERT, PATIENT_ID, 1, 101, Timestamp.valueOf(olderDate), 6);
+	}
+	
+	@Test
+	public void apply_shouldResolveEncountersWithTheSameDateInFavorOfTheLowestId() {
+		mockRows(asList(0, 100, Timestamp.valueOf(OLDEST_DATE), 5));
+		Map<String, Object> encounter = createEncounter(99, FICHA_TYPE_ID, OLDEST_DATE, 6, false);
+		
+		assertTrue(PatientFacilityTable.apply(createEvent(CREATE, null, encounter)));
+	}
+	
+	@Test
+	public void apply_shouldRecomputeTheRowWhenTheOldestEncounterIsVoided() {
+		mockRows(asList(0, 100, Timestamp.valueOf(OLDEST_DATE), 5));
+		LocalDateTime nextDate = OLDEST_DATE.plusDays(1);
+		List<List<Object>> oldest = singletonList(asList(101, Timestamp.valueOf(nextDate), 6));
+		when(MpiUtils.executeQuery(PatientFacilityTable.OLDEST_ENCOUNTER_QUERY, PATIENT_ID, FICHA_TYPE_ID))
+		        .thenReturn(oldest);
+		Map<String, Object> previous = createEncounter(100, FICHA_TYPE_ID, OLDEST_DATE, 5, false);
+		Map<String, Object> encounter = createEncounter(100, FICHA_TYPE_ID, OLDEST_DATE, 5, true);
+		
+		assertTrue(PatientFacilityTable.apply(createEvent(UPDATE, previous, encounter)));
+		
+		PowerMockito.verifyStatic(MpiUtils.class);
+		MpiUtils.executeUpdate(PatientFacilityTable.UPSERT, PATIENT_ID, 0, 101, Timestamp.valueOf(nextDate), 6);
+	}
+	
+	@Test
+	public void apply_shouldNotReportAChangeWhenTheOldestEncounterIsUpdatedWithoutChangingTheFacility() {
+		mockRows(asList(0, 100, Timestamp.valueOf(OLDEST_DATE), 5));
+		List<List<Object>> oldest = singletonList(asList(100, Timestamp.valueOf(OLDEST_DATE), 5));
+		when(MpiUtils.executeQuery(PatientFacilityTable.OLDEST_ENCOUNTER_QUERY, PATIENT_ID, FICHA_TYPE_ID))
+		        .thenReturn(oldest);
+		Map<String, Object> encounter = createEncounter(100, FICHA_TYPE_ID, OLDEST_DATE, 5, false);
+		
+		assertFalse(PatientFacilityTable.apply(createEvent(UPDATE, encounter, encounter)));
+	}
+	
+	@Test
+	public void apply_shouldRemoveTheRowWhenThePatientHasNoOtherEncounterOfTheType() {
+		mockRows(asList(0, 100, Timestamp.valueOf(OLDEST_DATE), 5), asList(1, 200, Timestamp.valueOf(OLDEST_DATE), 8));
+		when(MpiUtils.executeQuery(PatientFacilityTable.OLDEST_ENCOUNTER_QUERY, PATIENT_ID, FICHA_TYPE_ID))
+		        .thenReturn(emptyList());
+		Map<String, Object> previous = createEncounter(100, FICHA_TYPE_ID, OLDEST_DATE, 5, false);
+		
+		assertTrue(PatientFacilityTable.apply(createEvent(DELETE, previous, null)));
+		
+		PowerMockito.verifyStatic(MpiUtils.class);
+		MpiUtils.executeUpdate(PatientFacilityTable.DELETE, PATIENT_ID, 0);
+	}
+	
+	@Test
+	public void apply_shouldReportAChangeWhenTheEncounterIsMovedToAnotherPatient() {
+		mockRows(asList(0, 100, Timestamp.valueOf(OLDEST_DATE), 5));
+		Map<String, Object> previous = createEncounter(101, FICHA_TYPE_ID, OLDEST_DATE.plusDays(1), 6, false);
+		Map<String, Object> encounter = createEncounter(101, FICHA_TYPE_ID, OLDEST_DATE.plusDays(1), 6, false);
+		encounter.put("patient_id", 2);
+		
+		assertTrue(PatientFacilityTable.apply(createEvent(UPDATE, previous, encounter)));
+		
+		PowerMockito.verifyStatic(MpiUtils.class);
+		MpiUtils.executeUpdate(PatientFacilityTable.UPSERT, 2, 0, 101, Timestamp.valueOf(OLDEST_DATE.plusDays(1)), 6);
+	}
+	
+	@Test
+	public void toLocalDateTime_shouldConvertEpochMillisAsTheWallClockTimeInUtc() {
+		assertEquals(LocalDateTime.of(2020, 1, 1, 8, 0, 0, 5000000), PatientFacilityTable.toLocalDateTime(1577865600005L));
+	}
+	
+}
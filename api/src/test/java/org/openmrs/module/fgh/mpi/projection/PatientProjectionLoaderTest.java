@@ -0,0 +1,182 @@
+package org.openmrs.module.fgh.mpi.projection;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.openmrs.module.fgh.mpi.projection.PatientProjectionLoader.ADDRESS_END_DATE;
+import static org.openmrs.module.fgh.mpi.projection.PatientProjectionLoader.ADDRESS_START_DATE;
+import static org.openmrs.module.fgh.mpi.projection.PatientProjectionLoader.SECTION_ADDRESS;
+import static org.openmrs.module.fgh.mpi.projection.PatientProjectionLoader.SECTION_HOME_PHONE;
+import static org.openmrs.module.fgh.mpi.projection.PatientProjectionLoader.SECTION_IDENTIFIER;
+import static org.openmrs.module.fgh.mpi.projection.PatientProjectionLoader.SECTION_MOBILE_PHONE;
+import static org.openmrs.module.fgh.mpi.projection.PatientProjectionLoader.SECTION_NAME;
+import static org.openmrs.module.fgh.mpi.projection.PatientProjectionLoader.SECTION_PATIENT;
+import static org.openmrs.module.fgh.mpi.projection.PatientProjectionLoader.SECTION_PERSON;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.openmrs.module.fgh.mpi.utils.Row;
+
+public class PatientProjectionLoaderTest {
+	
+	private static final Integer PATIENT_ID = 1;
+	
+	@Test
+	public void toProjection_shouldReturnNullIfThereIsNoPersonRow() {
+		assertNull(toProjection(emptyList()));
+		assertNull(toProjection(asList(row(PATIENT_ID, SECTION_PATIENT, 0, "0"))));
+	}
+	
+	@Test
+	public void toProjection_shouldConvertThePersonAndPatientValuesToTheirTypes() {
+		final String deathDate = "2020-12-12 13:00:00";
+		List<Row> rows = asList(row(PATIENT_ID, SECTION_PERSON, 0, "M", "1986-10-07", "1", deathDate, "person-uuid", "0"),
+		    row(PATIENT_ID, SECTION_PATIENT, 0, "1"));
+		
+		PatientProjection projection = toProjection(rows);
+		
+		assertEquals(PATIENT_ID, projection.getPatientId());
+		assertEquals("M", projection.getGender());
+		assertEquals("1986-10-07", projection.getBirthdate());
+		assertTrue(projection.isDead());
+		assertEquals(Timestamp.valueOf(deathDate).toLocalDateTime(), projection.getDeathDate());
+		assertEquals("person-uuid", projection.getUuid());
+		assertFalse(projection.isPersonVoided());
+		assertTrue(projection.hasPatient());
+		assertTrue(projection.isPatientVoided());
+	}
+	
+	@Test
+	public void toProjection_shouldAcceptNativeColumnTypes() {
+		final Timestamp deathDate = Timestamp.valueOf("2020-12-12 13:00:00");
+		List<Row> rows = asList(row(PATIENT_ID, SECTION_PERSON, 0, "F", null, true, deathDate, "person-uuid", 1L));
+		
+		PatientProjection projection = toProjection(rows);
+		
+		assertNull(projection.getBirthdate());
+		assertTrue(projection.isDead());
+		assertEquals(deathDate.toLocalDateTime(), projection.getDeathDate());
+		assertTrue(projection.isPersonVoided());
+		assertFalse(projection.hasPatient());
+		assertFalse(projection.isPatientVoided());
+	}
+	
+	@Test
+	public void toProjection_shouldTrimTheRowsOfEachSectionToTheSectionColumns() {
+		List<Row> rows = asList(row(PATIENT_ID, SECTION_PERSON, 0, null, null, "0", null, "person-uuid", "0"),
+		    row(PATIENT_ID, SECTION_IDENTIFIER, 1, "12345", "id-type-uuid", "id-uuid"),
+		    row(PATIENT_ID, SECTION_IDENTIFIER, 0, "qwerty", "id-type-uuid-2", "id-uuid-2"),
+		    row(PATIENT_ID, SECTION_NAME, 1, "Mr", "John", "D", "Doe", "name-uuid"),
+		    row(PATIENT_ID, SECTION_ADDRESS, 1, "A", "123", "Apt", "Dr", "Ocean", "Travis", "Texas", "US",
+		        "2020-01-01 00:00:00", null, "address-uuid"),
+		    row(PATIENT_ID, SECTION_MOBILE_PHONE, 0, "123-456-7890", "mobile-uuid"),
+		    row(PATIENT_ID, SECTION_HOME_PHONE, 0, "098-765-4321", "home-uuid"));
+		
+		PatientProjection projection = toProjection(rows);
+		
+		assertEquals(2, projection.getIdentifiers().size());
+		assertEquals(asList("12345", "id-type-uuid", "id-uuid"), projection.getIdentifiers().get(0));
+		assertEquals(asList("qwerty", "id-type-uuid-2", "id-uuid-2"), projection.getIdentifiers().get(1));
+		assertEquals(asList(asList("Mr", "John", "D", "Doe", "name-uuid")), projection.getNames());
+		assertEquals(1, projection.getAddresses().size());
+		assertEquals(11, projection.getAddresses().get(0).size());
+		assertEquals("address-uuid", projection.getAddresses().get(0).get(10));
+		assertEquals(LocalDateTime.of(2020, 1, 1, 0, 0), projection.getAddresses().get(0).get(ADDRESS_START_DATE));
+		assertNull(projection.getAddresses().get(0).get(ADDRESS_END_DATE));
+		assertEquals(asList(asList("123-456-7890", "mobile-uuid")), projection.getMobilePhones());
+		assertEquals(asList(asList("098-765-4321", "home-uuid")), projection.getHomePhones());
+	}
+	
+	@Test
+	public void toProjections_shouldGroupTheRowsByPatientId() {
+		final Integer otherPatientId = 2;
+		final Integer missingPatientId = 3;
+		List<Row> rows = asList(row(PATIENT_ID, SECTION_PERSON, 0, "M", null, "0", null, "uuid-1", "0"),
+		    row(PATIENT_ID, SECTION_NAME, 1, null, "John", null, "Doe", "name-uuid-1"),
+		    row(otherPatientId, SECTION_PERSON, 0, "F", null, "0", null, "uuid-2", "0"),
+		    row(otherPatientId, SECTION_PATIENT, 0, "0"),
+		    row(otherPatientId, SECTION_NAME, 1, null, "Jane", null, "Doe", "name-uuid-2"));
+		
+		Map<Integer, PatientProjection> projections = toProjections(asList(PATIENT_ID, otherPatientId, missingPatientId),
+		    rows);
+		
+		assertEquals(3, projections.size());
+		assertEquals("uuid-1", projections.get(PATIENT_ID).getUuid());
+		assertFalse(projections.get(PATIENT_ID).hasPatient());
+		assertEquals("name-uuid-1", projections.get(PATIENT_ID).getNames().get(0).get(4));
+		assertEquals("uuid-2", projections.get(otherPatientId).getUuid());
+		assertTrue(projections.get(otherPatientId).hasPatient());
+		assertEquals(1, projections.get(otherPatientId).getNames().size());
+		assertEquals("name-uuid-2", projections.get(otherPatientId).getNames().get(0).get(4));
+		assertTrue(projections.containsKey(missingPatientId));
+		assertNull(projections.get(missingPatientId));
+	}
+	
+	@Test
+	public void setHealthFacilities_shouldSetTheLocationOfTheOldestEncounterOfTheTypeWithTheHighestPrecedence() {
+		final Integer fichaTypeId = 10;
+		final Integer adultTypeId = 11;
+		final Integer childTypeId = 12;
+		Map<Integer, PatientProjection> projections = new HashMap();
+		for (int i = 1; i <= 4; i++) {
+			projections.put(i, new PatientProjection(i));
+		}
+		
+		projections.put(5, null);
+		Map<Integer, Map<Integer, Integer>> patientTypeLocations = new HashMap();
+		Row row = new Row(asList("patient_id", "encounter_type", "location_id"));
+		List<List<Object>> rows = asList(asList(1, adultTypeId, 100), asList(1, fichaTypeId, 101), asList(1, fichaTypeId, 102),
+		    asList(2, childTypeId, 200), asList(2, adultTypeId, 201), asList(3, childTypeId, 300));
+		for (List<Object> values : rows) {
+			PatientProjectionLoader.addEncounterLocation(patientTypeLocations, row.setValues(values.toArray()));
+		}
+		
+		PatientProjectionLoader.setHealthFacilities(projections, patientTypeLocations,
+		    asList(fichaTypeId, adultTypeId, childTypeId));
+		
+		assertEquals(101, projections.get(1).getHealthFacilityId().intValue());
+		assertEquals(201, projections.get(2).getHealthFacilityId().intValue());
+		assertEquals(300, projections.get(3).getHealthFacilityId().intValue());
+		assertTrue(projections.get(4).isHealthFacilityLoaded());
+		assertNull(projections.get(4).getHealthFacilityId());
+	}
+	
+	private PatientProjection toProjection(List<Row> rows) {
+		return toProjections(singletonList(PATIENT_ID), rows).get(PATIENT_ID);
+	}
+	
+	private Map<Integer, PatientProjection> toProjections(List<Integer> patientIds, List<Row> rows) {
+		PatientProjectionLoader.ProjectionCollector collector = new PatientProjectionLoader.ProjectionCollector(patientIds);
+		for (Row row : rows) {
+			collector.handle(row);
+		}
+		
+		return collector.getProjections();
+	}
+	
+	private Row row(Integer patientId, int section, int sortOrder, Object... values) {
+		List<String> columnLabels = new ArrayList(asList("owner_id", "section", "sort_order"));
+		List<Object> rowValues = new ArrayList(asList(patientId, section, sortOrder));
+		rowValues.addAll(asList(values));
+		while (rowValues.size() < 14) {
+			rowValues.add(null);
+		}
+		
+		while (columnLabels.size() < rowValues.size()) {
+			columnLabels.add("value_" + columnLabels.size());
+		}
+		
+		return new Row(columnLabels).setValues(rowValues.toArray());
+	}
+	
+}
@@ -0,0 +1,138 @@
+package org.openmrs.module.fgh.mpi.refdata;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_ADULT_PROCESS_ENC_TYPE_UUID;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_CHILD_PROCESS_ENC_TYPE_UUID;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_FICHA_RESUMO_ENC_TYPE_UUID;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_ID_TYPE_SYSTEM_MAP;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_MPI_SYSTEM;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_PHONE_HOME;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_PHONE_MOBILE;
+import static org.openmrs.module.fgh.mpi.utils.MpiConstants.GP_UUID_SYSTEM;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.openmrs.EncounterType;
+import org.openmrs.PersonAttributeType;
+import org.openmrs.api.APIException;
+import org.openmrs.api.PersonService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.fgh.mpi.entity.MpiSystemType;
+import org.openmrs.module.fgh.mpi.utils.MpiUtils;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Context.class, MpiUtils.class })
+@PowerMockIgnore("javax.management.*")
+public class ReferenceDataTest {
+	
+	@Mock
+	private PersonService mockPersonService;
+	
+	@Rule
+	public ExpectedException expectedException = ExpectedException.none();
+	
+	@Before
+	public void setup() {
+		PowerMockito.mockStatic(Context.class);
+		PowerMockito.mockStatic(MpiUtils.class);
+		when(Context.getPersonService()).thenReturn(mockPersonService);
+	}
+	
+	@After
+	public void tearDown() {
+		ReferenceData.clear();
+	}
+	
+	@Test
+	public void get_shouldBuildTheSnapshotOnlyOnce() {
+		when(MpiUtils.getGlobalPropertyValue(GP_UUID_SYSTEM)).thenReturn("http://test.openmrs.id/uuid");
+		
+		ReferenceData data = ReferenceData.get();
+		
+		assertEquals("http://test.openmrs.id/uuid", data.getOpenmrsUuidSystem());
+		assertSame(data, ReferenceData.get());
+		PowerMockito.verifyStatic(MpiUtils.class, times(1));
+		MpiUtils.getGlobalPropertyValue(GP_UUID_SYSTEM);
+	}
+	
+	@Test
+	public void reload_shouldReplaceTheSnapshotWithOneBuiltFromTheCurrentValues() {
+		when(MpiUtils.getGlobalPropertyValue(GP_MPI_SYSTEM)).thenReturn(MpiSystemType.OPENCR.toString());
+		ReferenceData data = ReferenceData.get();
+		assertFalse(data.isSanteMpi());
+		when(MpiUtils.getGlobalPropertyValue(GP_MPI_SYSTEM)).thenReturn(MpiSystemType.SANTEMPI.toString());
+		
+		ReferenceData.reload();
+		
+		assertNotSame(data, ReferenceData.get());
+		assertTrue(ReferenceData.get().isSanteMpi());
+		assertFalse(data.isSanteMpi());
+	}
+	
+	@Test
+	public void get_shouldParseTheIdentifierTypeSystemMappings() {
+		when(MpiUtils.getGlobalPropertyValue(GP_ID_TYPE_SYSTEM_MAP))
+		        .thenReturn(" id-type-uuid-1^http://id1.test , id-type-uuid-2^http://id2.test");
+		
+		ReferenceData data = ReferenceData.get();
+		
+		assertEquals("http://id1.test", data.getIdSystem("id-type-uuid-1"));
+		assertEquals("http://id2.test", data.getIdSystem("id-type-uuid-2"));
+		assertNull(data.getIdSystem("id-type-uuid-3"));
+	}
+	
+	@Test
+	public void get_shouldLookUpThePhoneAttributeTypesOnlyOnce() {
+		when(MpiUtils.getGlobalPropertyValue(GP_PHONE_MOBILE)).thenReturn("mobile-attr-type-uuid");
+		when(mockPersonService.getPersonAttributeTypeByUuid("mobile-attr-type-uuid"))
+		        .thenReturn(new PersonAttributeType(7));
+		
+		assertEquals(7, ReferenceData.get().getAttributeTypeId(GP_PHONE_MOBILE).intValue());
+		assertEquals(7, ReferenceData.get().getAttributeTypeId(GP_PHONE_MOBILE).intValue());
+		
+		verify(mockPersonService, times(1)).getPersonAttributeTypeByUuid("mobile-attr-type-uuid");
+	}
+	
+	@Test
+	public void getAttributeTypeId_shouldFailOnlyWhenTheMissingAttributeTypeIsRead() {
+		when(MpiUtils.getGlobalPropertyValue(GP_PHONE_MOBILE)).thenReturn("mobile-attr-type-uuid");
+		when(MpiUtils.getGlobalPropertyValue(GP_PHONE_HOME)).thenReturn("home-attr-type-uuid");
+		when(mockPersonService.getPersonAttributeTypeByUuid("mobile-attr-type-uuid"))
+		        .thenReturn(new PersonAttributeType(7));
+		ReferenceData data = ReferenceData.get();
+		assertEquals(7, data.getAttributeTypeId(GP_PHONE_MOBILE).intValue());
+		expectedException.expect(APIException.class);
+		expectedException.expectMessage(equalTo("No person attribute type found with uuid: home-attr-type-uuid"));
+		
+		data.getAttributeTypeId(GP_PHONE_HOME);
+	}
+	
+	@Test
+	public void getHealthFacilityEncounterTypeIds_shouldReturnTheEncounterTypeIdsInOrderOfPrecedence() {
+		when(MpiUtils.getEncounterTypeByGlobalProperty(GP_FICHA_RESUMO_ENC_TYPE_UUID)).thenReturn(new EncounterType(10));
+		when(MpiUtils.getEncounterTypeByGlobalProperty(GP_ADULT_PROCESS_ENC_TYPE_UUID)).thenReturn(new EncounterType(11));
+		when(MpiUtils.getEncounterTypeByGlobalProperty(GP_CHILD_PROCESS_ENC_TYPE_UUID)).thenReturn(new EncounterType(12));
+		
+		assertEquals(asList(10, 11, 12), ReferenceData.get().getHealthFacilityEncounterTypeIds());
+	}
+	
+}
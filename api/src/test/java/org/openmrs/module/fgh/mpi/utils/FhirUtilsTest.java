@@ -15,7 +15,6 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.when;
 import static org.openmrs.module.fgh.mpi.utils.FhirUtils.ATTR_QUERY;
 import static org.openmrs.module.fgh.mpi.utils.FhirUtils.ATTR_TYPE_ID_PLACEHOLDER;
-import static org.openmrs.module.fgh.mpi.utils.FhirUtils.NAME_QUERY;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.DATETIME_FORMATTER;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.FIELD_ADDRESS;
 import static org.openmrs.module.fgh.mpi.utils.MpiConstants.FIELD_END;
@@ -49,9 +48,9 @@ import static org.openmrs.module.fgh.mpi.utils.MpiUtils.executeQuery;
 
 import java.io.IOException;
 import java.sql.Timestamp;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -65,7 +64,6 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.openmrs.Location;
-import org.openmrs.Patient;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.PersonAttributeType;
 import org.openmrs.api.APIException;
@@ -76,14 +74,18 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.fgh.mpi.integ.MpiContext;
 import org.openmrs.module.fgh.mpi.entity.MpiSystemType;
 import org.openmrs.module.fgh.mpi.api.MpiService;
+import org.openmrs.module.fgh.mpi.projection.HealthFacilityResolver;
+import org.openmrs.module.fgh.mpi.projection.LocationCache;
+import org.openmrs.module.fgh.mpi.projection.LocationCache.CachedLocation;
+import org.openmrs.module.fgh.mpi.projection.PatientProjection;
+import org.openmrs.module.fgh.mpi.refdata.ReferenceData;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
-import org.powermock.reflect.Whitebox;
 
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({ Context.class, MpiUtils.class, MpiContext.class })
+@PrepareForTest({ Context.class, MpiUtils.class, MpiContext.class, HealthFacilityResolver.class, LocationCache.class })
 @PowerMockIgnore("javax.management.*")
 public class FhirUtilsTest {
 	
@@ -116,13 +118,13 @@ public class FhirUtilsTest {
 	private static final String PHONE = "+12345678909";
 	
 	@Before
-	public void setup() {
+	public void setup() throws Exception {
 		PowerMockito.mockStatic(Context.class);
 		PowerMockito.mockStatic(MpiUtils.class);
 		PowerMockito.mockStatic(MpiContext.class);
-		Whitebox.setInternalState(FhirUtils.class, "ATTR_TYPE_GP_ID_MAP", new HashMap(2));
-		Whitebox.setInternalState(FhirUtils.class, "idSystemMap", (Object) null);
-		Whitebox.setInternalState(FhirUtils.class, "openmrsUuidSystem", (Object) null);
+		PowerMockito.mockStatic(HealthFacilityResolver.class);
+		PowerMockito.mockStatic(LocationCache.class);
+		ReferenceData.clear();
 		when(Context.getPersonService()).thenReturn(mockPersonService);
 		when(Context.getPatientService()).thenReturn(mockPatientService);
 		when(Context.getLocationService()).thenReturn(mockLocationService);
@@ -133,7 +135,7 @@ public class FhirUtilsTest {
 		when(MpiUtils.getGlobalPropertyValue(GP_UUID_SYSTEM)).thenReturn(UUID_SYSTEM);
 		when(MpiUtils.getGlobalPropertyValue(GP_SANTE_MESSAGE_HEADER_FOCUS_REFERENCE)).thenReturn(MESSAGE_HEADER_REFERENCE);
 		when(MpiUtils.getGlobalPropertyValue(GP_SANTE_MESSAGE_HEADER_EVENT_URI)).thenReturn(MESSAGE_HEADER_EVENT_URI);
-		Whitebox.setInternalState(MpiContext.class, MpiContext.class, mockMpiContext);
+		when(MpiContext.initIfNecessary()).thenReturn(mockMpiContext);
 		when(mockMpiContext.getMpiSystem()).thenReturn(MpiSystemType.SANTEMPI);
 	}
 	
@@ -143,9 +145,8 @@ public class FhirUtilsTest {
 		final String birthDate = "1986-10-07";
 		final boolean dead = false;
 		final String patientUuid = "person-uuid";
-		final boolean personVoided = false;
 		final boolean patientVoided = false;
-		List<Object> personDetails = asList("M", birthDate, dead, null, patientUuid, personVoided);
+		PatientProjection patient = createProjection("M", birthDate, dead, null, patientUuid);
 		final String identifier1 = "12345";
 		final String idTypeName1 = "id-type-name-1";
 		final String idTypeUuid1 = "id-type-uuid-1";
@@ -170,7 +171,7 @@ public class FhirUtilsTest {
 		PatientIdentifierType idType2 = new PatientIdentifierType();
 		idType2.setName(idTypeName2);
 		when(mockPatientService.getPatientIdentifierTypeByUuid(idTypeUuid2)).thenReturn(idType2);
-		when(executeQuery(FhirUtils.ID_QUERY.replace(ID_PLACEHOLDER, patientId))).thenReturn(ids);
+		patient.getIdentifiers().addAll(ids);
 		final String prefix1 = "Mr";
 		final String givenName1 = "Horatio";
 		final String middleName1 = "D";
@@ -184,7 +185,7 @@ public class FhirUtilsTest {
 		final String nameUuid2 = "name-uuid-2";
 		List<Object> name2 = asList(prefix2, givenName2, middleName2, familyName2, nameUuid2);
 		List<List<Object>> names = asList(name1, name2);
-		when(executeQuery(NAME_QUERY.replace(ID_PLACEHOLDER, patientId))).thenReturn(names);
+		patient.getNames().addAll(names);
 		final String line1Address2 = "123";
 		final String line1Address6 = "Ocean";
 		final String line1Address5 = "Dr";
@@ -197,7 +198,7 @@ public class FhirUtilsTest {
 		final String endDate1 = "2020-12-31 00:00:00";
 		final String addressUuid1 = "address-uuid-1";
 		List<Object> personAddress1 = asList(line1Address1, line1Address2, line1Address3, line1Address5, line1Address6,
-		    countyDistrict1, stateProvince1, country1, startDate1, endDate1, addressUuid1);
+		    countyDistrict1, stateProvince1, country1, toLocalDateTime(startDate1), toLocalDateTime(endDate1), addressUuid1);
 		final String line2Address2 = "987";
 		final String line2Address6 = "Rubaga";
 		final String line2Address5 = "Rd";
@@ -210,47 +211,30 @@ public class FhirUtilsTest {
 		final String endDate2 = "2009-12-31 00:00:00";
 		final String addressUuid2 = "address-uuid-2";
 		List<Object> personAddress2 = asList(line2Address1, line2Address2, line2Address3, line2Address5, line2Address6,
-		    countyDistrict2, stateProvince2, country2, startDate2, endDate2, addressUuid2);
+		    countyDistrict2, stateProvince2, country2, toLocalDateTime(startDate2), toLocalDateTime(endDate2), addressUuid2);
 		List<List<Object>> addresses = new ArrayList();
 		addresses.add(personAddress1);
 		addresses.add(personAddress2);
-		when(executeQuery(FhirUtils.ADDRESS_QUERY.replace(ID_PLACEHOLDER, patientId))).thenReturn(addresses);
+		patient.getAddresses().addAll(addresses);
 		
 		final String mobile = "123-456-7890";
 		final String attributeUuid1 = "attr-uuid-1";
-		final Integer mobileAttrTypeId = 1;
-		final String mobileAttrTypeUuid = "attr-type-uuid-1";
 		List<Object> mobileAttr = asList(mobile, attributeUuid1);
-		when(MpiUtils.getGlobalPropertyValue(GP_PHONE_MOBILE)).thenReturn(mobileAttrTypeUuid);
-		PersonAttributeType mobileAttrType = new PersonAttributeType(mobileAttrTypeId);
-		when(mockPersonService.getPersonAttributeTypeByUuid(mobileAttrTypeUuid)).thenReturn(mobileAttrType);
-		when(executeQuery(
-		    ATTR_QUERY.replace(ID_PLACEHOLDER, patientId).replace(ATTR_TYPE_ID_PLACEHOLDER, mobileAttrTypeId.toString())))
-		            .thenReturn(singletonList(mobileAttr));
+		patient.getMobilePhones().add(mobileAttr);
 		final String home = "098-765-4321";
 		final String attributeUuid2 = "attr-uuid-2";
-		final Integer homeAttrTypeId = 2;
-		final String homeAttrTypeUuid = "attr-type-uuid-2";
 		List<Object> homePhoneAttr = asList(home, attributeUuid2);
-		when(MpiUtils.getGlobalPropertyValue(MpiConstants.GP_PHONE_HOME)).thenReturn(homeAttrTypeUuid);
-		PersonAttributeType homeAttrType = new PersonAttributeType(homeAttrTypeId);
-		when(mockPersonService.getPersonAttributeTypeByUuid(homeAttrTypeUuid)).thenReturn(homeAttrType);
-		when(executeQuery(
-		    ATTR_QUERY.replace(ID_PLACEHOLDER, patientId).replace(ATTR_TYPE_ID_PLACEHOLDER, homeAttrTypeId.toString())))
-		            .thenReturn(singletonList(homePhoneAttr));
+		patient.getHomePhones().add(homePhoneAttr);
 		
 		final String facilityLocUuid = "facility-uuid";
 		final String facilityLocName = "facility-name";
 		final String facilityIdSystem = "facility-id-system-uri";
-		Location oldestLoc = new Location();
-		oldestLoc.setUuid(facilityLocUuid);
-		oldestLoc.setName(facilityLocName);
-		Patient mockPatient = Mockito.mock(Patient.class);
-		when(mockPatientService.getPatient(Integer.valueOf(patientId))).thenReturn(mockPatient);
-		when(mockMpiService.getHealthFacility(mockPatient)).thenReturn(oldestLoc);
+		CachedLocation oldestLoc = new CachedLocation(1, facilityLocUuid, facilityLocName);
+		when(HealthFacilityResolver.getHealthFacility(Integer.valueOf(patientId))).thenReturn(oldestLoc);
 		when(MpiUtils.getGlobalPropertyValue(GP_HEALTH_FACILITY_SYSTEM)).thenReturn(facilityIdSystem);
+		when(MpiUtils.getGlobalPropertyValue(GP_MPI_SYSTEM)).thenReturn(MpiSystemType.SANTEMPI.toString());
 		
-		Map<String, Object> resource = FhirUtils.buildPatient(patientId, patientVoided, personDetails, null);
+		Map<String, Object> resource = FhirUtils.buildPatient(patient, null);
 		
 		System.out.println(new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(resource));
 		assertEquals(MpiConstants.PATIENT, resource.get(MpiConstants.FIELD_RESOURCE_TYPE));
@@ -281,15 +265,13 @@ public class FhirUtilsTest {
 		assertEquals(nameUuid1, resourceNames.get(0).get(FIELD_ID));
 		assertEquals(familyName1, resourceNames.get(0).get(MpiConstants.FIELD_FAMILY));
 		List<Object> givenNames1 = (List) resourceNames.get(0).get(FIELD_GIVEN);
-		assertEquals(givenName1, givenNames1.get(0));
-		assertEquals(middleName1, givenNames1.get(1));
+		assertEquals(singletonList(givenName1 + " " + middleName1), givenNames1);
 		assertNull(resourceNames.get(1).get(FIELD_USE));
 		assertEquals(prefix2, resourceNames.get(1).get(FIELD_PREFIX));
 		assertEquals(nameUuid2, resourceNames.get(1).get(FIELD_ID));
 		assertEquals(familyName2, resourceNames.get(1).get(MpiConstants.FIELD_FAMILY));
 		List<Object> givenNames2 = (List) resourceNames.get(1).get(FIELD_GIVEN);
-		assertEquals(givenName2, givenNames2.get(0));
-		assertEquals(middleName2, givenNames2.get(1));
+		assertEquals(singletonList(givenName2 + " " + middleName2), givenNames2);
 		
 		List<Map> resourceAddresses = (List) resource.get(MpiConstants.FIELD_ADDRESS);
 		assertEquals(2, resourceAddresses.size());
@@ -333,32 +315,32 @@ public class FhirUtilsTest {
 	
 	@Test
 	public void buildPatient_shouldSetTheCorrectGender() {
-		List<Object> personDetails = asList("M", null, false, null, null, false);
-		assertEquals(GENDER_MALE, FhirUtils.buildPatient("1", false, personDetails, null).get(FIELD_GENDER));
+		PatientProjection patient = createProjection("M", null, false, null, null);
+		assertEquals(GENDER_MALE, FhirUtils.buildPatient(patient, null).get(FIELD_GENDER));
 		//Should be case insensitive
-		personDetails = asList("m", null, false, null, null, false);
-		assertEquals(GENDER_MALE, FhirUtils.buildPatient("1", false, personDetails, null).get(FIELD_GENDER));
+		patient = createProjection("m", null, false, null, null);
+		assertEquals(GENDER_MALE, FhirUtils.buildPatient(patient, null).get(FIELD_GENDER));
 		
-		personDetails = asList("F", null, false, null, null, false);
-		assertEquals(GENDER_FEMALE, FhirUtils.buildPatient("1", false, personDetails, null).get(FIELD_GENDER));
+		patient = createProjection("F", null, false, null, null);
+		assertEquals(GENDER_FEMALE, FhirUtils.buildPatient(patient, null).get(FIELD_GENDER));
 		
-		personDetails = asList("f", null, false, null, null, false);
-		assertEquals(GENDER_FEMALE, FhirUtils.buildPatient("1", false, personDetails, null).get(FIELD_GENDER));
+		patient = createProjection("f", null, false, null, null);
+		assertEquals(GENDER_FEMALE, FhirUtils.buildPatient(patient, null).get(FIELD_GENDER));
 		
-		personDetails = asList("O", null, false, null, null, false);
-		assertEquals(GENDER_OTHER, FhirUtils.buildPatient("1", false, personDetails, null).get(FIELD_GENDER));
+		patient = createProjection("O", null, false, null, null);
+		assertEquals(GENDER_OTHER, FhirUtils.buildPatient(patient, null).get(FIELD_GENDER));
 		
-		personDetails = asList("o", null, false, null, null, false);
-		assertEquals(GENDER_OTHER, FhirUtils.buildPatient("1", false, personDetails, null).get(FIELD_GENDER));
+		patient = createProjection("o", null, false, null, null);
+		assertEquals(GENDER_OTHER, FhirUtils.buildPatient(patient, null).get(FIELD_GENDER));
 		
-		personDetails = asList(null, null, false, null, null, false);
-		assertEquals(GENDER_UNKNOWN, FhirUtils.buildPatient("1", false, personDetails, null).get(FIELD_GENDER));
+		patient = createProjection(null, null, false, null, null);
+		assertEquals(GENDER_UNKNOWN, FhirUtils.buildPatient(patient, null).get(FIELD_GENDER));
 		
-		personDetails = asList("", null, false, null, null, false);
-		assertEquals(GENDER_UNKNOWN, FhirUtils.buildPatient("1", false, personDetails, null).get(FIELD_GENDER));
+		patient = createProjection("", null, false, null, null);
+		assertEquals(GENDER_UNKNOWN, FhirUtils.buildPatient(patient, null).get(FIELD_GENDER));
 		
-		personDetails = asList(" ", null, false, null, null, false);
-		assertEquals(GENDER_UNKNOWN, FhirUtils.buildPatient("1", false, personDetails, null).get(FIELD_GENDER));
+		patient = createProjection(" ", null, false, null, null);
+		assertEquals(GENDER_UNKNOWN, FhirUtils.buildPatient(patient, null).get(FIELD_GENDER));
 	}
 	
 	@Test
@@ -366,15 +348,15 @@ public class FhirUtilsTest {
 		expectedException.expect(APIException.class);
 		final String gender = "Y";
 		expectedException.expectMessage(equalTo("Don't know how to represent in fhir gender value: " + gender));
-		FhirUtils.buildPatient("1", false, asList(gender, null, false, null, null, false), null);
+		FhirUtils.buildPatient(createProjection(gender, null, false, null, null), null);
 	}
 	
 	@Test
 	public void buildPatient_shouldSetDeathDateIfSpecifiedForADeadPatient() throws Exception {
 		final String deathDate = "2020-12-12 13:00:00";
-		List<Object> personDetails = asList(null, null, true, deathDate, null, false);
+		PatientProjection patient = createProjection(null, null, true, toLocalDateTime(deathDate), null);
 		
-		Map<String, Object> resource = FhirUtils.buildPatient("1", false, personDetails, null);
+		Map<String, Object> resource = FhirUtils.buildPatient(patient, null);
 		
 		assertNull(resource.get(MpiConstants.FIELD_DECEASED));
 		Date expectedDate = Timestamp.valueOf(deathDate);
@@ -383,9 +365,9 @@ public class FhirUtilsTest {
 	
 	@Test
 	public void buildPatient_shouldNotSetDeathDateIfNotSpecifiedForADeadPatient() {
-		List<Object> personDetails = asList(null, null, true, null, null, false);
+		PatientProjection patient = createProjection(null, null, true, null, null);
 		
-		Map<String, Object> resource = FhirUtils.buildPatient("1", false, personDetails, null);
+		Map<String, Object> resource = FhirUtils.buildPatient(patient, null);
 		
 		assertNull(resource.get(MpiConstants.FIELD_DECEASED_DATE));
 		assertEquals(true, resource.get(MpiConstants.FIELD_DECEASED));
@@ -393,25 +375,24 @@ public class FhirUtilsTest {
 	
 	@Test
 	public void buildPatient_shouldOmitHealthCenterExtensionIfThePatientHasNone() {
-		List<Object> personDetails = asList(null, null, false, null, null, false);
-		assertNull(FhirUtils.buildPatient("1", false, personDetails, null).get(FIELD_EXTENSION));
+		PatientProjection patient = createProjection(null, null, false, null, null);
+		assertNull(FhirUtils.buildPatient(patient, null).get(FIELD_EXTENSION));
 	}
 	
 	@Test
 	public void buildPatient_shouldReplaceIdentifierWithNullValuesInTheMpiThatDoNotExistInOpenmrs() {
-		List<Object> personDetails = asList(null, null, false, null, null, false);
-		final String patientId = "1";
+		PatientProjection patient = createProjection(null, null, false, null, null);
 		final String identifier = "12345";
 		final String idTypeUuid = "id-type-uuid";
 		final String idUuid = "id-uuid";
 		final String idTypeSystem = "id-type-system";
 		List<List<Object>> ids = asList(asList(identifier, idTypeUuid, idUuid));
-		when(executeQuery(FhirUtils.ID_QUERY.replace(ID_PLACEHOLDER, patientId))).thenReturn(ids);
+		patient.getIdentifiers().addAll(ids);
 		Map<String, Object> mpiPatient = singletonMap(IDENTIFIER, asList(null, null, null, null));
 		when(mockPatientService.getPatientIdentifierTypeByUuid(idTypeUuid)).thenReturn(new PatientIdentifierType());
 		when(MpiUtils.getGlobalPropertyValue(GP_ID_TYPE_SYSTEM_MAP)).thenReturn(idTypeUuid + "^" + idTypeSystem);
 		
-		Map<String, Object> res = FhirUtils.buildPatient(patientId, false, personDetails, mpiPatient);
+		Map<String, Object> res = FhirUtils.buildPatient(patient, mpiPatient);
 		
 		List identifiers = (List) res.get(IDENTIFIER);
 		assertEquals(4, identifiers.size());
@@ -423,15 +404,14 @@ public class FhirUtilsTest {
 	
 	@Test
 	public void buildPatient_shouldReplaceNamesWithNullValuesInTheMpiThatDoNotExistInOpenmrs() {
-		List<Object> personDetails = asList(null, null, false, null, null, false);
-		final String patientId = "1";
+		PatientProjection patient = createProjection(null, null, false, null, null);
 		final String givenName = "John";
 		final String familyName = "Doe";
 		List<List<Object>> ids = asList(asList(null, givenName, null, familyName, null));
-		when(executeQuery(NAME_QUERY.replace(ID_PLACEHOLDER, patientId))).thenReturn(ids);
+		patient.getNames().addAll(ids);
 		Map<String, Object> mpiPatient = singletonMap(FIELD_NAME, asList(null, null, null));
 		
-		Map<String, Object> res = FhirUtils.buildPatient(patientId, false, personDetails, mpiPatient);
+		Map<String, Object> res = FhirUtils.buildPatient(patient, mpiPatient);
 		
 		List names = (List) res.get(FIELD_NAME);
 		assertEquals(3, names.size());
@@ -442,14 +422,13 @@ public class FhirUtilsTest {
 	
 	@Test
 	public void buildPatient_shouldReplaceAddressesWithNullValuesInTheMpiThatDoNotExistInOpenmrs() {
-		List<Object> personDetails = asList(null, null, false, null, null, false);
-		final String patientId = "1";
+		PatientProjection patient = createProjection(null, null, false, null, null);
 		final String countyDistrict = "Test";
 		List<List<Object>> ids = asList(asList(null, null, null, null, null, countyDistrict, null, null, null, null, null));
-		when(executeQuery(FhirUtils.ADDRESS_QUERY.replace(ID_PLACEHOLDER, patientId))).thenReturn(ids);
+		patient.getAddresses().addAll(ids);
 		Map<String, Object> mpiPatient = singletonMap(FIELD_ADDRESS, asList(null, null, null));
 		
-		Map<String, Object> res = FhirUtils.buildPatient(patientId, false, personDetails, mpiPatient);
+		Map<String, Object> res = FhirUtils.buildPatient(patient, mpiPatient);
 		
 		List addresses = (List) res.get(FIELD_ADDRESS);
 		assertEquals(3, addresses.size());
@@ -460,22 +439,14 @@ public class FhirUtilsTest {
 	
 	@Test
 	public void buildPatient_shouldReplacePhonesWithNullValuesInTheMpiThatDoNotExistInOpenmrs() {
-		List<Object> personDetails = asList(null, null, false, null, null, false);
-		final String patientId = "1";
+		PatientProjection patient = createProjection(null, null, false, null, null);
 		final String mobile = "123-456-7890";
 		final String attributeUuid = "attr-uuid-1";
-		final Integer mobileAttrTypeId = 1;
-		final String mobileAttrTypeUuid = "attr-type-uuid-1";
 		List<Object> mobileAttr = asList(mobile, attributeUuid);
-		when(MpiUtils.getGlobalPropertyValue(GP_PHONE_MOBILE)).thenReturn(mobileAttrTypeUuid);
-		PersonAttributeType mobileAttrType = new PersonAttributeType(mobileAttrTypeId);
-		when(mockPersonService.getPersonAttributeTypeByUuid(mobileAttrTypeUuid)).thenReturn(mobileAttrType);
-		when(executeQuery(
-		    ATTR_QUERY.replace(ID_PLACEHOLDER, patientId).replace(ATTR_TYPE_ID_PLACEHOLDER, mobileAttrTypeId.toString())))
-		            .thenReturn(singletonList(mobileAttr));
+		patient.getMobilePhones().add(mobileAttr);
 		Map<String, Object> mpiPatient = singletonMap(FIELD_TELECOM, asList(null, null, null));
 		
-		Map<String, Object> res = FhirUtils.buildPatient(patientId, false, personDetails, mpiPatient);
+		Map<String, Object> res = FhirUtils.buildPatient(patient, mpiPatient);
 		
 		List phones = (List) res.get(FIELD_TELECOM);
 		assertEquals(3, phones.size());
@@ -487,7 +458,7 @@ public class FhirUtilsTest {
 	@Ignore
 	@Test
 	public void buildPatient_shouldReplaceHealthCenterWithNullValuesInTheMpiIfItDoNotExistInOpenmrs() {
-		List<Object> personDetails = asList(null, null, false, null, null, false);
+		PatientProjection patient = createProjection(null, null, false, null, null);
 		final String patientId = "1";
 		final Integer locationId = 1;
 		final String locationUuid = "location-uuid";
@@ -505,7 +476,7 @@ public class FhirUtilsTest {
 		when(mockLocationService.getLocation(locationId)).thenReturn(location);
 		Map<String, Object> mpiPatient = singletonMap(FIELD_EXTENSION, asList(emptyMap()));
 		
-		Map<String, Object> res = FhirUtils.buildPatient(patientId, false, personDetails, mpiPatient);
+		Map<String, Object> res = FhirUtils.buildPatient(patient, mpiPatient);
 		
 		List<Map> extension = (List) res.get(MpiConstants.FIELD_EXTENSION);
 		assertEquals(1, extension.size());
@@ -518,38 +489,23 @@ public class FhirUtilsTest {
 	
 	@Test
 	public void buildPatient_shouldIncludeAllMobileAndHomePhones() throws IOException {
-		List<Object> personDetails = asList(null, null, false, null, null, false);
-		final String patientId = "1";
+		PatientProjection patient = createProjection(null, null, false, null, null);
 		final String mobile1 = "123-456-7890";
 		final String mobile2 = "123-456-7891";
 		final String mobileAttributeUuid1 = "mobile-attr-uuid-1";
 		final String mobileAttributeUuid2 = "mobile-attr-uuid-2";
-		final Integer mobileAttrTypeId = 1;
-		final String mobileAttrTypeUuid = "mobile-attr-type-uuid";
 		List<Object> mobileAttr1 = asList(mobile1, mobileAttributeUuid1);
 		List<Object> mobileAttr2 = asList(mobile2, mobileAttributeUuid2);
-		when(MpiUtils.getGlobalPropertyValue(GP_PHONE_MOBILE)).thenReturn(mobileAttrTypeUuid);
-		PersonAttributeType mobileAttrType = new PersonAttributeType(mobileAttrTypeId);
-		when(mockPersonService.getPersonAttributeTypeByUuid(mobileAttrTypeUuid)).thenReturn(mobileAttrType);
-		when(executeQuery(
-		    ATTR_QUERY.replace(ID_PLACEHOLDER, patientId).replace(ATTR_TYPE_ID_PLACEHOLDER, mobileAttrTypeId.toString())))
-		            .thenReturn(asList(mobileAttr1, mobileAttr2));
+		patient.getMobilePhones().addAll(asList(mobileAttr1, mobileAttr2));
 		final String home1 = "098-765-4321";
 		final String home2 = "098-765-4322";
 		final String homeAttributeUuid1 = "home-attr-uuid-1";
 		final String homeAttributeUuid2 = "home-attr-uuid-2";
-		final Integer homeAttrTypeId = 2;
-		final String homeAttrTypeUuid = "home-attr-type-uuid";
 		List<Object> homePhoneAttr1 = asList(home1, homeAttributeUuid1);
 		List<Object> homePhoneAttr2 = asList(home2, homeAttributeUuid2);
-		when(MpiUtils.getGlobalPropertyValue(MpiConstants.GP_PHONE_HOME)).thenReturn(homeAttrTypeUuid);
-		PersonAttributeType homeAttrType = new PersonAttributeType(homeAttrTypeId);
-		when(mockPersonService.getPersonAttributeTypeByUuid(homeAttrTypeUuid)).thenReturn(homeAttrType);
-		when(executeQuery(
-		    ATTR_QUERY.replace(ID_PLACEHOLDER, patientId).replace(ATTR_TYPE_ID_PLACEHOLDER, homeAttrTypeId.toString())))
-		            .thenReturn(asList(homePhoneAttr1, homePhoneAttr2));
+		patient.getHomePhones().addAll(asList(homePhoneAttr1, homePhoneAttr2));
 		
-		Map<String, Object> resource = FhirUtils.buildPatient(patientId, false, personDetails, null);
+		Map<String, Object> resource = FhirUtils.buildPatient(patient, null);
 		
 		System.out.println(new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(resource));
 		
@@ -576,6 +532,28 @@ public class FhirUtilsTest {
 		assertEquals(homeAttributeUuid2, resourceTelecoms.get(3).get(FIELD_ID));
 	}
 	
+	@Test
+	public void getAttributeTypeId_shouldGetTheIdOfTheAttributeTypeMatchingTheGlobalPropertyValue() {
+		final String attrTypeUuid = "mobile-attr-type-uuid";
+		when(MpiUtils.getGlobalPropertyValue(GP_PHONE_MOBILE)).thenReturn(attrTypeUuid);
+		when(mockPersonService.getPersonAttributeTypeByUuid(attrTypeUuid)).thenReturn(new PersonAttributeType(7));
+		
+		assertEquals(7, FhirUtils.getAttributeTypeId(GP_PHONE_MOBILE).intValue());
+		assertEquals(7, FhirUtils.getAttributeTypeId(GP_PHONE_MOBILE).intValue());
+		Mockito.verify(mockPersonService).getPersonAttributeTypeByUuid(attrTypeUuid);
+	}
+	
+	@Test
+	public void getAttributeTypeId_shouldFailIfNoAttributeTypeMatchesTheGlobalPropertyValue() {
+		final String attrTypeUuid = "home-attr-type-uuid";
+		when(MpiUtils.getGlobalPropertyValue(GP_PHONE_HOME)).thenReturn(attrTypeUuid);
+		when(mockPersonService.getPersonAttributeTypeByUuid(attrTypeUuid)).thenReturn(null);
+		expectedException.expect(APIException.class);
+		expectedException.expectMessage(equalTo("No person attribute type found with uuid: " + attrTypeUuid));
+		
+		FhirUtils.getAttributeTypeId(GP_PHONE_HOME);
+	}
+	
 	@Test
 	public void generateMessageHeader_shouldCreateMessageHeaderForIntegration() {
 		Map<String, Object> messageHeader = FhirUtils.generateMessageHeader();
@@ -625,7 +603,6 @@ public class FhirUtilsTest {
 	public void getObjectOnMapAsListOfMap_shouldGetObjectInMapAsListMap() {
 		when(MpiUtils.getGlobalPropertyValue(GP_SANTE_MESSAGE_HEADER_EVENT_URI)).thenReturn(MESSAGE_HEADER_EVENT_URI);
 		when(MpiUtils.getGlobalPropertyValue(GP_SANTE_MESSAGE_HEADER_FOCUS_REFERENCE)).thenReturn(MESSAGE_HEADER_REFERENCE);
-		FhirUtils.initializeCachesIfNecessary();
 		Map<String, Object> messageHeader = FhirUtils.generateMessageHeader();
 		Map<String, Object> resource = FhirUtils.getObjectInMapAsMap("resource", messageHeader);
 		
@@ -641,30 +618,53 @@ public class FhirUtilsTest {
 	
 	@Test
 	public void buildPatient_shouldExcludeHealthFacilityForOpenCR() {
-		List<Object> personDetails = asList(null, null, true, null, null, false);
-		when(mockMpiContext.getMpiSystem()).thenReturn(MpiSystemType.OPENCR);
+		PatientProjection patient = createProjection(null, null, true, null, null);
+		when(MpiUtils.getGlobalPropertyValue(GP_MPI_SYSTEM)).thenReturn(MpiSystemType.OPENCR.toString());
 		
-		Map<String, Object> resource = FhirUtils.buildPatient("1", false, personDetails, null);
+		Map<String, Object> resource = FhirUtils.buildPatient(patient, null);
 		
 		assertEquals(1, ((List) resource.get(MpiConstants.FIELD_IDENTIFIER)).size());
 		Mockito.verifyZeroInteractions(mockPatientService);
 		Mockito.verifyZeroInteractions(mockMpiService);
+		PowerMockito.verifyZeroInteractions(HealthFacilityResolver.class);
+	}
+	
+	@Test
+	public void buildPatient_shouldUseTheHealthFacilityLoadedWithTheProjection() {
+		final Integer locationId = 5;
+		final String facilityIdSystem = "facility-id-system-uri";
+		CachedLocation location = new CachedLocation(locationId, "facility-uuid", "facility-name");
+		when(LocationCache.get(locationId)).thenReturn(location);
+		when(MpiUtils.getGlobalPropertyValue(GP_HEALTH_FACILITY_SYSTEM)).thenReturn(facilityIdSystem);
+		when(MpiUtils.getGlobalPropertyValue(GP_MPI_SYSTEM)).thenReturn(MpiSystemType.SANTEMPI.toString());
+		PatientProjection patient = createProjection(null, null, false, null, null);
+		patient.setHealthFacilityId(locationId);
+		
+		Map<String, Object> resource = FhirUtils.buildPatient(patient, null);
+		
+		List<Map> resourceIds = (List) resource.get(MpiConstants.FIELD_IDENTIFIER);
+		assertEquals(2, resourceIds.size());
+		assertEquals(facilityIdSystem, resourceIds.get(1).get(MpiConstants.FIELD_SYSTEM));
+		assertEquals("facility-name", resourceIds.get(1).get(MpiConstants.FIELD_VALUE));
+		assertEquals("facility-uuid", resourceIds.get(1).get(FIELD_ID));
+		Mockito.verifyZeroInteractions(mockPatientService);
+		Mockito.verifyZeroInteractions(mockMpiService);
+		PowerMockito.verifyZeroInteractions(HealthFacilityResolver.class);
 	}
 	
 	@Test
 	public void buildPatient_shouldJoinGivenAndMiddleNameForSante() {
 		when(MpiUtils.getGlobalPropertyValue(GP_MPI_SYSTEM)).thenReturn(MpiSystemType.SANTEMPI.toString());
-		List<Object> personDetails = asList(null, null, false, null, null, false);
-		final String patientId = "1";
+		PatientProjection patient = createProjection(null, null, false, null, null);
 		final String givenName = "John";
 		final String middleName = "Deep";
 		final String familyName = "Doe";
 		
 		List<List<Object>> ids = asList(asList(null, givenName, middleName, familyName, null));
-		when(executeQuery(NAME_QUERY.replace(ID_PLACEHOLDER, patientId))).thenReturn(ids);
+		patient.getNames().addAll(ids);
 		Map<String, Object> mpiPatient = singletonMap(FIELD_NAME, asList(null, null, null));
 		
-		Map<String, Object> res = FhirUtils.buildPatient(patientId, false, personDetails, mpiPatient);
+		Map<String, Object> res = FhirUtils.buildPatient(patient, mpiPatient);
 		
 		List<Object> expectedGivenNames = singletonList(String.join(" ", asList(givenName, middleName)));
 		
@@ -678,17 +678,16 @@ public class FhirUtilsTest {
 	@Test
 	public void buildPatient_shouldNotJoinGivenAndMiddleNameForOpenCR() {
 		when(MpiUtils.getGlobalPropertyValue(GP_MPI_SYSTEM)).thenReturn(MpiSystemType.OPENCR.toString());
-		List<Object> personDetails = asList(null, null, false, null, null, false);
-		final String patientId = "1";
+		PatientProjection patient = createProjection(null, null, false, null, null);
 		final String givenName = "John";
 		final String middleName = "Deep";
 		final String familyName = "Doe";
 		
 		List<List<Object>> ids = asList(asList(null, givenName, middleName, familyName, null));
-		when(executeQuery(NAME_QUERY.replace(ID_PLACEHOLDER, patientId))).thenReturn(ids);
+		patient.getNames().addAll(ids);
 		Map<String, Object> mpiPatient = singletonMap(FIELD_NAME, asList(null, null, null));
 		
-		Map<String, Object> res = FhirUtils.buildPatient(patientId, false, personDetails, mpiPatient);
+		Map<String, Object> res = FhirUtils.buildPatient(patient, mpiPatient);
 		
 		List names = (List) res.get(FIELD_NAME);
 		List expectedNames = asList(givenName, middleName);
@@ -697,4 +696,21 @@ public class FhirUtilsTest {
 		assertEquals(expectedNames, ((Map) names.get(0)).get(FIELD_GIVEN));
 		assertEquals(familyName, ((Map) names.get(0)).get(FIELD_FAMILY));
 	}
+	
+	private PatientProjection createProjection(String gender, String birthdate, boolean dead, LocalDateTime deathDate,
+	        String uuid) {
+		PatientProjection patient = new PatientProjection(1);
+		patient.setGender(gender);
+		patient.setBirthdate(birthdate);
+		patient.setDead(dead);
+		patient.setDeathDate(deathDate);
+		patient.setUuid(uuid);
+		patient.setPatientVoided(false);
+		return patient;
+	}
+	
+	private LocalDateTime toLocalDateTime(String dateTime) {
+		return Timestamp.valueOf(dateTime).toLocalDateTime();
+	}
+	
 }
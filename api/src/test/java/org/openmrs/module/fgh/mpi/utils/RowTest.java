@@ -0,0 +1,100 @@
+package org.openmrs.module.fgh.mpi.utils;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import org.junit.Test;
+import org.openmrs.api.APIException;
+
+public class RowTest {
+	
+	private Row row = new Row(asList("id", "Name", "flag", "date"));
+	
+	@Test
+	public void getObject_shouldLookUpTheColumnByLabelIgnoringCase() {
+		row.setValues(1, "John", null, null);
+		
+		assertEquals("John", row.getObject("name"));
+		assertEquals("John", row.getString("NAME"));
+		assertEquals(1, row.getInt("Id"));
+	}
+	
+	@Test(expected = APIException.class)
+	public void getObject_shouldFailForAnUnknownLabel() {
+		row.setValues(1, "John", null, null);
+		
+		row.getObject("other");
+	}
+	
+	@Test(expected = APIException.class)
+	public void setValues_shouldFailIfTheValueCountDoesNotMatchTheColumnCount() {
+		row.setValues(1, "John");
+	}
+	
+	@Test
+	public void getInt_shouldConvertNumbersAndStrings() {
+		row.setValues(5L, " 7 ", null, null);
+		
+		assertEquals(5, row.getInt(0));
+		assertEquals(7, row.getInt(1));
+		assertEquals(0, row.getInt(2));
+		assertNull(row.getInteger(2));
+		assertEquals(Integer.valueOf(5), row.getInteger(0));
+	}
+	
+	@Test
+	public void getBoolean_shouldConvertBooleansNumbersAndStrings() {
+		row.setValues(true, "1", 0, null);
+		
+		assertTrue(row.getBoolean(0));
+		assertTrue(row.getBoolean(1));
+		assertFalse(row.getBoolean(2));
+		assertFalse(row.getBoolean(3));
+		assertTrue(row.setValues(1L, "true", "0", "false").getBoolean(0));
+		assertTrue(row.getBoolean(1));
+		assertFalse(row.getBoolean(2));
+		assertFalse(row.getBoolean(3));
+	}
+	
+	@Test
+	public void getLocalDateTime_shouldConvertTimestampsAndStrings() {
+		final LocalDateTime expected = LocalDateTime.of(2020, 12, 12, 13, 0);
+		row.setValues(Timestamp.valueOf(expected), "2020-12-12 13:00:00", expected, " ");
+		
+		assertEquals(expected, row.getLocalDateTime(0));
+		assertEquals(expected, row.getLocalDateTime(1));
+		assertEquals(expected, row.getLocalDateTime(2));
+		assertNull(row.getLocalDateTime(3));
+		assertNull(row.setValues(null, null, null, null).getLocalDateTime("date"));
+	}
+	
+	@Test
+	public void getLocalDate_shouldConvertDatesTimestampsAndStrings() {
+		final LocalDate expected = LocalDate.of(1986, 10, 7);
+		row.setValues(java.sql.Date.valueOf(expected), "1986-10-07", Timestamp.valueOf(expected.atTime(8, 30)), null);
+		
+		assertEquals(expected, row.getLocalDate(0));
+		assertEquals(expected, row.getLocalDate(1));
+		assertEquals(expected, row.getLocalDate(2));
+		assertNull(row.getLocalDate(3));
+	}
+	
+	@Test
+	public void getValues_shouldCopyTheValuesInTheRange() {
+		row.setValues(1, "John", true, null);
+		
+		List<Object> values = row.getValues(1, 3);
+		row.setValues(2, "Jane", false, null);
+		
+		assertEquals(asList("John", true), values);
+	}
+	
+}